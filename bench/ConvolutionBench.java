@@ -0,0 +1,87 @@
+/*
+ * ConvolutionBench.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+/**
+ * Convolution benchmarks: every kernel in test/kernels applied to a whole
+ * 256x256 RGB raster, through the per-pixel {@code KOps.convolve2D} and
+ * through the region path the workers use ({@code KOps.convolveTask}, which
+ * picks the separable path when it can). Scores are per output pixel.
+ * <br>
+ * The "convolveSize" benchmarks run the region path with the diamond blur
+ * over growing rasters, to show how sensitive throughput is to image size.
+ */
+public class ConvolutionBench {
+    static final int SIZE = 256;
+    static final int [] SIZES = {256, 1024, 2048};
+
+    static void register(KBench bench) {
+        for (final String file : KBench.files(KBench.KERNEL_DIR, ".json")) {
+            for (final String path : new String[] {"perPixel", "region"}) {
+                bench.add("convolve", KBench.params("kernel", file, "path", path), SIZE*SIZE, "us/op", new KBench.Setup() {
+                    public KBench.Op create() {
+                        final BadRaster src = randomRaster(SIZE, SIZE);
+                        final BadRaster dst = new BadRaster(3, SIZE, SIZE, BadRaster.LAYOUT_INTERLEAVED);
+                        final Kernel kernel = new BaseKernel(KBench.KERNEL_DIR + "/" + file);
+                        if (path.equals("perPixel")) {
+                            return new KBench.Op() {
+                                public Object run() {
+                                    for (int y = 0; y < SIZE; ++y)
+                                        for (int x = 0; x < SIZE; ++x)
+                                            dst.setPixel(KOps.convolve2D(src, x, y, kernel), x, y);
+                                    return dst;
+                                }
+                            };
+                        }
+                        final KTask task = new KTask(0, 0, SIZE, SIZE);
+                        task.setInputRaster(src);
+                        task.setOutputRaster(dst);
+                        task.setKernel(kernel);
+                        return new KBench.Op() {
+                            public Object run() {
+                                KOps.convolveTask(task, KScratch.get());
+                                return dst;
+                            }
+                        };
+                    }
+                });
+            }
+        }
+        for (final int size : SIZES) {
+            bench.add("convolveSize", KBench.params("size", size), (long)size*size, "us/op", new KBench.Setup() {
+                public KBench.Op create() {
+                    final BadRaster src = randomRaster(size, size);
+                    final BadRaster dst = new BadRaster(3, size, size, BadRaster.LAYOUT_INTERLEAVED);
+                    final KTask task = new KTask(0, 0, size, size);
+                    task.setInputRaster(src);
+                    task.setOutputRaster(dst);
+                    task.setKernel(new BaseKernel(KBench.KERNEL_DIR + "/diamondblur_11x11.json"));
+                    return new KBench.Op() {
+                        public Object run() {
+                            KOps.convolveTask(task, KScratch.get());
+                            return dst;
+                        }
+                    };
+                }
+            });
+        }
+    }
+
+    /**
+     * Build an interleaved raster of random pixels.
+     * @param width The width
+     * @param height The height
+     * @return The raster
+     */
+    static BadRaster randomRaster(int width, int height) {
+        java.util.Random random = new java.util.Random(4003);
+        BadRaster raster = new BadRaster(3, width, height, BadRaster.LAYOUT_INTERLEAVED);
+        for (int x = 0; x < width; ++x)
+            for (int y = 0; y < height; ++y)
+                for (int b = 0; b < 3; ++b)
+                    raster.setPixelComponent(random.nextFloat(), x, y, b);
+        return raster;
+    }
+}
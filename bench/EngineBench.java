@@ -0,0 +1,99 @@
+/*
+ * EngineBench.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+import java.util.Random;
+
+/**
+ * Engine crossover benchmarks: random (non-separable) square kernels of
+ * growing size applied to a 256x256 RGB raster through the direct, FFT and
+ * SIMD engines (the SIMD engine falls back to direct without the Vector API),
+ * and box kernels through the direct (separable) and summed-area-table
+ * engines. The kernel size where the FFT scores start beating the direct
+ * scores is what {@code KOps.FFT_THRESHOLD} is tuned to. Scores are per
+ * output pixel.
+ */
+public class EngineBench {
+    static final int SIZE = 256;
+    static final int [] KERNEL_SIZES = {5, 9, 13, 17, 21, 25, 31, 41, 63};
+
+    static void register(KBench bench) {
+        for (final int k : KERNEL_SIZES) {
+            for (final String engine : new String[] {"direct", "fft", "vector"}) {
+                bench.add("engine", KBench.params("size", k + "x" + k, "engine", engine), SIZE*SIZE, "us/op", new KBench.Setup() {
+                    public KBench.Op create() {
+                        final BadRaster src = ConvolutionBench.randomRaster(SIZE, SIZE);
+                        final BadRaster dst = new BadRaster(3, SIZE, SIZE, BadRaster.LAYOUT_INTERLEAVED);
+                        final KTask task = new KTask(0, 0, SIZE, SIZE);
+                        task.setInputRaster(src);
+                        task.setOutputRaster(dst);
+                        task.setKernel(randomKernel(k));
+                        task.setEngine(KOps.parseEngine(engine));
+                        return new KBench.Op() {
+                            public Object run() {
+                                KOps.convolveTask(task, KScratch.get());
+                                return dst;
+                            }
+                        };
+                    }
+                });
+            }
+            // box kernels: separable direct passes against summed-area tables
+            for (final String engine : new String[] {"direct", "sat"}) {
+                bench.add("engine", KBench.params("size", k + "x" + k, "kernel", "box", "engine", engine), SIZE*SIZE, "us/op", new KBench.Setup() {
+                    public KBench.Op create() {
+                        final BadRaster src = ConvolutionBench.randomRaster(SIZE, SIZE);
+                        final BadRaster dst = new BadRaster(3, SIZE, SIZE, BadRaster.LAYOUT_INTERLEAVED);
+                        final KTask task = new KTask(0, 0, SIZE, SIZE);
+                        task.setInputRaster(src);
+                        task.setOutputRaster(dst);
+                        task.setKernel(boxKernel(k));
+                        task.setEngine(KOps.parseEngine(engine));
+                        return new KBench.Op() {
+                            public Object run() {
+                                KOps.convolveTask(task, KScratch.get());
+                                return dst;
+                            }
+                        };
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Build a normalized square box kernel, analyzed for separability and
+     * rectangles.
+     * @param size The width and height
+     * @return The locked kernel
+     */
+    static Kernel boxKernel(int size) {
+        Kernel kernel = new Kernel(size, size);
+        for (int i = 0; i < size; ++i)
+            for (int j = 0; j < size; ++j)
+                kernel.set(i, j, 1.0f);
+        kernel.normalize();
+        kernel.analyzeSeparability();
+        kernel.analyzeRectangles();
+        kernel.lock();
+        return kernel;
+    }
+    /**
+     * Build a normalized random square kernel, which is not separable.
+     * @param size The width and height
+     * @return The locked kernel
+     */
+    static Kernel randomKernel(int size) {
+        Random random = new Random(4003);
+        Kernel kernel = new Kernel(size, size);
+        for (int i = 0; i < size; ++i)
+            for (int j = 0; j < size; ++j)
+                kernel.set(i, j, random.nextFloat());
+        kernel.normalize();
+        kernel.analyzeSeparability();
+        kernel.lock();
+        return kernel;
+    }
+}
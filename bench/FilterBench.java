@@ -0,0 +1,116 @@
+/*
+ * FilterBench.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+/**
+ * End-to-end filtering benchmarks: tiling plus scheduling of every image in
+ * test/datasets/image with the default (diamond blur) kernel, at several
+ * thread counts and block sizes, and with the kernel interpolated per pixel
+ * between 9, 17 and 33 samples per axis (KField). The default block size is
+ * also run under the pool and structured schedulers for comparison with
+ * fork-join. Kernel chains of two and three stages (KChain) are run as one
+ * full pass per kernel ("staged"), tile by tile ("fuse") and tile by tile
+ * with stages composed where cheaper ("compose"). Image decode and encode
+ * are not included (see RasterIOBench). Scores are per image.
+ */
+public class FilterBench {
+    static final String KERNEL = KBench.KERNEL_DIR + "/diamondblur_11x11.json";
+    static final String [][] CHAINS = {
+        {"gaussianblur_7x7.json", "unsharp_5x5.json"},
+        {"gaussianblur_7x7.json", "unsharp_5x5.json", "diamondblur_11x11.json"},
+    };
+
+    static void register(KBench bench) {
+        for (final String image : KBench.files(KBench.IMAGE_DIR, ".png")) {
+            for (final int threads : new int[] {1, 2, 4, 8}) {
+                for (final int block : new int[] {8, 16, 32}) {
+                    bench.add("filter", KBench.params("image", image, "threads", threads, "block", block), 1, "ms/op",
+                              new KBench.Setup() {
+                        public KBench.Op create() throws Exception {
+                            final BadRaster src = new BadRaster(BadRaster.LAYOUT_INTERLEAVED);
+                            src.loadFromPath(KBench.IMAGE_DIR + "/" + image);
+                            final BadRaster dst = new BadRaster(src.getBands(), src.getWidth(), src.getHeight(), src.getLayout());
+                            final BaseKernel baseKernel = new BaseKernel(KERNEL);
+                            final KScheduler scheduler = new KScheduler(KScheduler.MODE_FORKJOIN, threads);
+                            return new KBench.Op() {
+                                public Object run() throws Exception {
+                                    scheduler.run(KTiler.tile(src, dst, baseKernel, block, threads, true));
+                                    return dst;
+                                }
+                            };
+                        }
+                    });
+                }
+                // the other schedulers, at the default block size
+                for (final String mode : new String[] {"pool", "structured"}) {
+                    bench.add("filter", KBench.params("image", image, "threads", threads, "scheduler", mode), 1, "ms/op",
+                              new KBench.Setup() {
+                        public KBench.Op create() throws Exception {
+                            final BadRaster src = new BadRaster(BadRaster.LAYOUT_INTERLEAVED);
+                            src.loadFromPath(KBench.IMAGE_DIR + "/" + image);
+                            final BadRaster dst = new BadRaster(src.getBands(), src.getWidth(), src.getHeight(), src.getLayout());
+                            final BaseKernel baseKernel = new BaseKernel(KERNEL);
+                            final KScheduler scheduler = new KScheduler(KScheduler.parseMode(mode), threads);
+                            return new KBench.Op() {
+                                public Object run() throws Exception {
+                                    scheduler.run(KTiler.tile(src, dst, baseKernel, 8, threads, true));
+                                    return dst;
+                                }
+                            };
+                        }
+                    });
+                }
+                // kernel chains: separate passes against fused tiles
+                for (final String [] chainKernels : CHAINS) {
+                    for (final String mode : new String[] {"staged", "fuse", "compose"}) {
+                        bench.add("filter", KBench.params("image", image, "threads", threads,
+                                                         "stages", chainKernels.length, "chain", mode), 1, "ms/op",
+                                  new KBench.Setup() {
+                            public KBench.Op create() throws Exception {
+                                final BadRaster src = new BadRaster(BadRaster.LAYOUT_INTERLEAVED);
+                                src.loadFromPath(KBench.IMAGE_DIR + "/" + image);
+                                final BadRaster dst = new BadRaster(src.getBands(), src.getWidth(), src.getHeight(), src.getLayout());
+                                java.util.List<BaseKernel> stages = new java.util.ArrayList<BaseKernel>();
+                                for (String k : chainKernels)
+                                    stages.add(new BaseKernel(KBench.KERNEL_DIR + "/" + k));
+                                final KChain chain = new KChain(stages, src.getWidth(), src.getHeight(), 8);
+                                chain.setComposition(mode.equals("compose"));
+                                final KScheduler scheduler = new KScheduler(KScheduler.MODE_FORKJOIN, threads);
+                                return new KBench.Op() {
+                                    public Object run() throws Exception {
+                                        if (mode.equals("staged"))
+                                            chain.runStaged(scheduler, src, dst, threads, true, KOps.ENGINE_AUTO);
+                                        else
+                                            scheduler.run(KTiler.tile(src, dst, chain, threads, KOps.ENGINE_AUTO));
+                                        return dst;
+                                    }
+                                };
+                            }
+                        });
+                    }
+                }
+                // per-pixel kernel interpolation in large tiles, for comparison
+                for (final int samples : new int[] {9, 17, 33}) {
+                    bench.add("filter", KBench.params("image", image, "threads", threads, "interpolate", samples), 1, "ms/op",
+                              new KBench.Setup() {
+                        public KBench.Op create() throws Exception {
+                            final BadRaster src = new BadRaster(BadRaster.LAYOUT_INTERLEAVED);
+                            src.loadFromPath(KBench.IMAGE_DIR + "/" + image);
+                            final BadRaster dst = new BadRaster(src.getBands(), src.getWidth(), src.getHeight(), src.getLayout());
+                            final KField field = new KField(new BaseKernel(KERNEL), samples);
+                            final KScheduler scheduler = new KScheduler(KScheduler.MODE_FORKJOIN, threads);
+                            return new KBench.Op() {
+                                public Object run() throws Exception {
+                                    scheduler.run(KTiler.tile(src, dst, field, threads));
+                                    return dst;
+                                }
+                            };
+                        }
+                    });
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * KBench.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+import com.google.gson.*;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * KBench is the benchmark harness for Kernelizr. It follows JMH's
+ * methodology (each benchmark runs in its own forked JVM, with timed warm-up
+ * iterations before the timed measurement iterations, and results are
+ * consumed so the JIT cannot drop them) and writes results in JMH's JSON
+ * result format, so existing JMH tooling can read them. JMH itself cannot be
+ * used: it refuses benchmark classes in the default package, and classes
+ * outside the default package cannot see the Kernelizr classes.
+ * <br>
+ * Usage (from the src directory, see {@code make bench}):
+ * <pre>
+ *   java KBench [regex] [--list] [--json=path] [--forks=n]
+ *               [--warmup=n] [--iterations=n] [--time=ms]
+ * </pre>
+ * The regex selects benchmarks by name, e.g. {@code convolve} or
+ * {@code filter.*threads=4}. Scores are average time per operation.
+ */
+public class KBench {
+    /** One benchmark operation. The result is consumed by the harness. */
+    public interface Op {
+        Object run() throws Exception;
+    }
+    /** Prepares a benchmark (outside the timed region) and returns its operation. */
+    public interface Setup {
+        Op create() throws Exception;
+    }
+
+    /** A registered benchmark */
+    static class Entry {
+        String group;
+        LinkedHashMap<String,String> params;
+        long opsPerCall;
+        String unit;
+        Setup setup;
+        String name() {
+            StringBuilder sb = new StringBuilder(group);
+            String sep = ":";
+            for (Map.Entry<String,String> p : params.entrySet()) {
+                sb.append(sep).append(p.getKey()).append('=').append(p.getValue());
+                sep = ",";
+            }
+            return sb.toString();
+        }
+    }
+
+    /** Prefix of the line a forked JVM reports its raw scores on */
+    private static final String RESULT_PREFIX = "KBENCH-RESULT ";
+    /** Two-sided 99.9% Student t quantiles for 1..10 degrees of freedom */
+    private static final double [] T_999 = {636.6, 31.60, 12.92, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587};
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private int warmup = 3;
+    private int iterations = 5;
+    private long iterationMillis = 1000;
+    private int forks = 1;
+    /** Results are folded in here so the JIT has to compute them */
+    private static volatile int sink;
+
+    /** Kernels used by the benchmarks, relative to the src directory */
+    public static final String KERNEL_DIR = "../test/kernels";
+    /** Images used by the benchmarks, relative to the src directory */
+    public static final String IMAGE_DIR = "../test/datasets/image";
+
+    /**
+     * List the files in a directory with a given suffix, sorted by name.
+     * @param dir The directory
+     * @param suffix The file name suffix, e.g. ".json"
+     * @return The file names (without the directory)
+     */
+    public static String[] files(String dir, final String suffix) {
+        String [] names = new File(dir).list(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.endsWith(suffix);
+            }
+        });
+        if (names == null)
+            return new String[0];
+        Arrays.sort(names);
+        return names;
+    }
+    /**
+     * Build a parameter map from name/value pairs.
+     * @param pairs Alternating names and values
+     * @return The parameter map
+     */
+    public static LinkedHashMap<String,String> params(Object... pairs) {
+        LinkedHashMap<String,String> map = new LinkedHashMap<String,String>();
+        for (int i = 0; i + 1 < pairs.length; i += 2)
+            map.put(String.valueOf(pairs[i]), String.valueOf(pairs[i + 1]));
+        return map;
+    }
+    /**
+     * Register a benchmark.
+     * @param group The benchmark name, e.g. "convolve"
+     * @param params The parameters of this instance
+     * @param opsPerCall How many operations one call of the Op performs
+     * @param unit The score unit: "us/op" or "ms/op"
+     * @param setup Builds the benchmark state and returns the operation
+     */
+    public void add(String group, LinkedHashMap<String,String> params, long opsPerCall, String unit, Setup setup) {
+        Entry e = new Entry();
+        e.group = group;
+        e.params = params;
+        e.opsPerCall = opsPerCall;
+        e.unit = unit;
+        e.setup = setup;
+        entries.add(e);
+    }
+
+    /**
+     * Run one benchmark in this JVM.
+     * @param e The benchmark
+     * @return The score of each measurement iteration
+     */
+    double [] runHere(Entry e) throws Exception {
+        Op op = e.setup.create();
+        double unitNanos = e.unit.equals("ms/op") ? 1e6 : 1e3;
+        double [] scores = new double[iterations];
+        for (int i = 0; i < warmup + iterations; ++i) {
+            long deadline = System.nanoTime() + iterationMillis*1000000L;
+            long calls = 0;
+            long start = System.nanoTime();
+            long now;
+            int local = 0;
+            do {
+                Object result = op.run();
+                local ^= (result == null) ? 0 : System.identityHashCode(result);
+                ++calls;
+                now = System.nanoTime();
+            } while (now < deadline);
+            sink ^= local;
+            double score = (now - start)/(double)(calls*e.opsPerCall)/unitNanos;
+            if (i >= warmup)
+                scores[i - warmup] = score;
+            System.out.printf("  %s %2d: %.3f %s\n", (i < warmup) ? "warmup   " : "iteration", (i < warmup) ? i + 1 : i - warmup + 1, score, e.unit);
+        }
+        return scores;
+    }
+
+    /**
+     * Run one benchmark in a fresh JVM with the same classpath and JVM flags.
+     * @param index The index of the benchmark
+     * @return The score of each measurement iteration
+     */
+    double [] runForked(int index) throws Exception {
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        cmd.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add("KBench");
+        cmd.add("--run=" + index);
+        cmd.add("--warmup=" + warmup);
+        cmd.add("--iterations=" + iterations);
+        cmd.add("--time=" + iterationMillis);
+        Process process = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        double [] scores = null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(RESULT_PREFIX))
+                    scores = new Gson().fromJson(line.substring(RESULT_PREFIX.length()), double[].class);
+                else
+                    System.out.println(line);
+            }
+        }
+        if (process.waitFor() != 0 || scores == null)
+            throw new IOException("Forked benchmark JVM failed");
+        return scores;
+    }
+
+    /**
+     * Turn the raw scores of a benchmark into a JMH-style result object.
+     * @param e The benchmark
+     * @param raw The scores of each fork
+     * @return The JSON result
+     */
+    JsonObject result(Entry e, List<double[]> raw) {
+        int n = 0;
+        double sum = 0.0;
+        for (double [] fork : raw)
+            for (double v : fork) {
+                sum += v;
+                ++n;
+            }
+        double mean = sum/n;
+        double var = 0.0;
+        for (double [] fork : raw)
+            for (double v : fork)
+                var += (v - mean)*(v - mean);
+        double error = Double.NaN;
+        if (n > 1) {
+            double t = (n - 1 <= T_999.length) ? T_999[n - 2] : 3.291;
+            error = t*Math.sqrt(var/(n - 1))/Math.sqrt(n);
+        }
+        Gson gson = new Gson();
+        JsonObject metric = new JsonObject();
+        metric.addProperty("score", mean);
+        metric.addProperty("scoreError", error);
+        metric.addProperty("scoreUnit", e.unit);
+        metric.add("rawData", gson.toJsonTree(raw));
+        JsonObject o = new JsonObject();
+        o.addProperty("benchmark", e.group);
+        o.addProperty("mode", "avgt");
+        o.addProperty("threads", 1);
+        o.addProperty("forks", forks);
+        o.addProperty("jvm", System.getProperty("java.home"));
+        o.addProperty("jdkVersion", System.getProperty("java.version"));
+        o.addProperty("warmupIterations", warmup);
+        o.addProperty("warmupTime", iterationMillis + " ms");
+        o.addProperty("measurementIterations", iterations);
+        o.addProperty("measurementTime", iterationMillis + " ms");
+        o.add("params", gson.toJsonTree(e.params));
+        o.add("primaryMetric", metric);
+        return o;
+    }
+
+    /* Main method */
+    public static void main(String[] args) throws Exception {
+        KOptions options = new KOptions(args);
+        KBench bench = new KBench();
+        bench.warmup = options.getInt("warmup", bench.warmup);
+        bench.iterations = Math.max(1, options.getInt("iterations", bench.iterations));
+        bench.iterationMillis = options.getInt("time", (int)bench.iterationMillis);
+        bench.forks = options.getInt("forks", bench.forks);
+        ConvolutionBench.register(bench);
+        KernelBench.register(bench);
+        RasterIOBench.register(bench);
+        QueueBench.register(bench);
+        FilterBench.register(bench);
+        EngineBench.register(bench);
+
+        // Forked child: run a single benchmark and report the raw scores
+        if (options.has("run")) {
+            double [] scores = bench.runHere(bench.entries.get(options.getInt("run", 0)));
+            System.out.println(RESULT_PREFIX + new Gson().toJson(scores));
+            return;
+        }
+        Pattern filter = Pattern.compile(options.getPositional(0, ".*"));
+        List<Integer> selected = new ArrayList<Integer>();
+        for (int i = 0; i < bench.entries.size(); ++i)
+            if (filter.matcher(bench.entries.get(i).name()).find())
+                selected.add(i);
+        if (options.getFlag("list")) {
+            for (int i : selected)
+                System.out.println(bench.entries.get(i).name());
+            return;
+        }
+        JsonArray results = new JsonArray();
+        List<String> summary = new ArrayList<String>();
+        for (int i : selected) {
+            Entry e = bench.entries.get(i);
+            System.out.println("# Benchmark: " + e.name());
+            List<double[]> raw = new ArrayList<double[]>();
+            if (bench.forks <= 0) {
+                raw.add(bench.runHere(e));
+            } else {
+                for (int f = 0; f < bench.forks; ++f) {
+                    System.out.printf("# Fork: %d of %d\n", f + 1, bench.forks);
+                    raw.add(bench.runForked(i));
+                }
+            }
+            JsonObject r = bench.result(e, raw);
+            results.add(r);
+            JsonObject metric = r.getAsJsonObject("primaryMetric");
+            summary.add(String.format("%-70s %12.3f +- %10.3f %s", e.name(),
+                        metric.get("score").getAsDouble(), metric.get("scoreError").getAsDouble(), e.unit));
+        }
+        System.out.println("\n# Results (avgt, lower is better)");
+        for (String line : summary)
+            System.out.println(line);
+        if (options.has("json")) {
+            try (Writer out = new FileWriter(options.getString("json", "results.json"))) {
+                new GsonBuilder().setPrettyPrinting().serializeSpecialFloatingPointValues().create().toJson(results, out);
+            }
+            System.out.println("Results written to " + options.getString("json", "results.json"));
+        }
+    }
+}
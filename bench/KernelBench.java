@@ -0,0 +1,77 @@
+/*
+ * KernelBench.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+/**
+ * Kernel modulation benchmarks: {@code BaseKernel.getModulatedKernel} over
+ * the 80x80 block grid of a 640x640 image, with a warm cache (every point
+ * seen before) and a cold one (a fresh BaseKernel per grid, so every point is
+ * trimmed). Scores are per call. The "load" benchmarks time what a run pays
+ * at startup per kernel: loading it from JSON or from a kernel bank (KBank),
+ * then modulating it over the whole grid once. Scores are per kernel.
+ */
+public class KernelBench {
+    static final int GRID = 80;
+
+    /** A bank of every kernel, built the first time a "load" benchmark runs */
+    private static KBank bank;
+
+    static synchronized KBank bank() throws java.io.IOException {
+        if (bank == null) {
+            java.io.File file = java.io.File.createTempFile("bench", KBank.SUFFIX);
+            file.deleteOnExit();
+            java.util.List<java.io.File> jsons = new java.util.ArrayList<java.io.File>();
+            for (String name : KBench.files(KBench.KERNEL_DIR, ".json"))
+                jsons.add(new java.io.File(KBench.KERNEL_DIR, name));
+            KBank.write(file, jsons);
+            bank = new KBank(file);
+        }
+        return bank;
+    }
+
+    static void register(KBench bench) {
+        for (final String file : KBench.files(KBench.KERNEL_DIR, ".json")) {
+            for (final String cache : new String[] {"cold", "warm"}) {
+                bench.add("modulate", KBench.params("kernel", file, "cache", cache), GRID*GRID, "us/op", new KBench.Setup() {
+                    public KBench.Op create() {
+                        final JSONKernel json = KOps.kernelFromJSONPath(KBench.KERNEL_DIR + "/" + file);
+                        final BaseKernel warm = new BaseKernel(json);
+                        return new KBench.Op() {
+                            public Object run() {
+                                BaseKernel base = cache.equals("warm") ? warm : new BaseKernel(json);
+                                Kernel last = null;
+                                for (int i = 0; i < GRID; ++i)
+                                    for (int j = 0; j < GRID; ++j)
+                                        last = base.getModulatedKernel(new float[] {i/(float)GRID, j/(float)GRID});
+                                return last;
+                            }
+                        };
+                    }
+                });
+            }
+        }
+        for (final String file : KBench.files(KBench.KERNEL_DIR, ".json")) {
+            for (final String format : new String[] {"json", "bank"}) {
+                bench.add("load", KBench.params("kernel", file, "format", format), 1, "us/op", new KBench.Setup() {
+                    public KBench.Op create() throws Exception {
+                        final KBank bank = bank();
+                        final String key = file.replace(".json", "");
+                        return new KBench.Op() {
+                            public Object run() {
+                                BaseKernel base = format.equals("bank") ? bank.get(key)
+                                                : new BaseKernel(KBench.KERNEL_DIR + "/" + file);
+                                Kernel last = null;
+                                for (int i = 0; i < GRID; ++i)
+                                    for (int j = 0; j < GRID; ++j)
+                                        last = base.getModulatedKernel(new float[] {i/(float)GRID, j/(float)GRID});
+                                return last;
+                            }
+                        };
+                    }
+                });
+            }
+        }
+    }
+}
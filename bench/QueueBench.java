@@ -0,0 +1,57 @@
+/*
+ * QueueBench.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * TaskQueue benchmarks: 1 to 16 threads alternately pushing and popping
+ * under contention. The threads live for the whole benchmark and are
+ * released together for each call. Scores are per push/pop pair.
+ */
+public class QueueBench {
+    static final int PAIRS = 10000;
+
+    static void register(KBench bench) {
+        for (final int threads : new int[] {1, 2, 4, 8, 16}) {
+            bench.add("queue", KBench.params("threads", threads), (long)threads*PAIRS, "us/op", new KBench.Setup() {
+                public KBench.Op create() {
+                    final TaskQueue queue = new TaskQueue();
+                    final KTask task = new KTask(0, 0, 1, 1);
+                    // start and end barriers include the calling thread
+                    final CyclicBarrier start = new CyclicBarrier(threads + 1);
+                    final CyclicBarrier end = new CyclicBarrier(threads + 1);
+                    for (int t = 0; t < threads; ++t) {
+                        Thread worker = new Thread() {
+                            public void run() {
+                                try {
+                                    while (true) {
+                                        start.await();
+                                        for (int i = 0; i < PAIRS; ++i) {
+                                            queue.push(task);
+                                            queue.pop();
+                                        }
+                                        end.await();
+                                    }
+                                } catch (Exception e) {
+                                    // benchmark JVM is exiting
+                                }
+                            }
+                        };
+                        worker.setDaemon(true);
+                        worker.start();
+                    }
+                    return new KBench.Op() {
+                        public Object run() throws Exception {
+                            start.await();
+                            end.await();
+                            return queue;
+                        }
+                    };
+                }
+            });
+        }
+    }
+}
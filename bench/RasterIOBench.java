@@ -0,0 +1,91 @@
+/*
+ * RasterIOBench.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Image I/O benchmarks: {@code BadRaster.loadFromFile} and
+ * {@code writeToFile} for every image in test/datasets/image, and reading a
+ * tall image in KStream strips next to loading it whole. Scores are per
+ * image.
+ */
+public class RasterIOBench {
+    /** Size of the tall image read in strips */
+    static final int TALL_WIDTH = 512, TALL_HEIGHT = 8192;
+
+    static void register(KBench bench) {
+        for (final String mode : new String[] {"whole", "strips"}) {
+            // strips should cost about the same as the whole image: every
+            // row is decoded once, whatever the strip height
+            bench.add("tall-" + mode, KBench.params("size", TALL_WIDTH + "x" + TALL_HEIGHT), 1, "ms/op", new KBench.Setup() {
+                public KBench.Op create() throws Exception {
+                    final File file = tallImage();
+                    return new KBench.Op() {
+                        public Object run() throws Exception {
+                            if (mode.equals("whole")) {
+                                BadRaster raster = new BadRaster(BadRaster.LAYOUT_INTERLEAVED);
+                                raster.loadFromFile(file);
+                                return raster;
+                            }
+                            KStream.RowSource source = KStream.openRows(file, false);
+                            BadRaster rows = null;
+                            for (int y = 0; y < source.getHeight(); y += KStream.DEFAULT_STRIP_HEIGHT)
+                                rows = source.readRows(Math.min(KStream.DEFAULT_STRIP_HEIGHT, source.getHeight() - y));
+                            source.close();
+                            return rows;
+                        }
+                    };
+                }
+            });
+        }
+        for (final String image : KBench.files(KBench.IMAGE_DIR, ".png")) {
+            bench.add("load", KBench.params("image", image), 1, "ms/op", new KBench.Setup() {
+                public KBench.Op create() {
+                    final File file = new File(KBench.IMAGE_DIR, image);
+                    return new KBench.Op() {
+                        public Object run() throws Exception {
+                            BadRaster raster = new BadRaster(BadRaster.LAYOUT_INTERLEAVED);
+                            raster.loadFromFile(file);
+                            return raster;
+                        }
+                    };
+                }
+            });
+            bench.add("write", KBench.params("image", image), 1, "ms/op", new KBench.Setup() {
+                public KBench.Op create() throws Exception {
+                    final BadRaster raster = new BadRaster(BadRaster.LAYOUT_INTERLEAVED);
+                    raster.loadFromFile(new File(KBench.IMAGE_DIR, image));
+                    final File out = File.createTempFile("kbench", ".png");
+                    out.deleteOnExit();
+                    return new KBench.Op() {
+                        public Object run() throws Exception {
+                            raster.writeToFile(out);
+                            return out;
+                        }
+                    };
+                }
+            });
+        }
+    }
+
+    /**
+     * Write a noisy RGB image of TALL_WIDTH x TALL_HEIGHT to a temporary PNG.
+     * @return The file
+     */
+    static File tallImage() throws Exception {
+        Random random = new Random(4003);
+        BadRaster raster = new BadRaster(3, TALL_WIDTH, TALL_HEIGHT, BadRaster.LAYOUT_INTERLEAVED);
+        for (int y = 0; y < TALL_HEIGHT; ++y)
+            for (int x = 0; x < TALL_WIDTH; ++x)
+                for (int b = 0; b < 3; ++b)
+                    raster.setPixelComponent(random.nextInt(256)/255.0f, x, y, b);
+        File file = File.createTempFile("kbench", ".png");
+        file.deleteOnExit();
+        raster.writeToFile(file);
+        return file;
+    }
+}
@@ -4,9 +4,13 @@
  * Built for ECEN4003 Concurrent Programming
  */
 
- import java.io.*;
- import javax.imageio.*;
- import java.awt.image.BufferedImage;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.io.*;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import javax.imageio.*;
 
 /**
  * A class representing a rectangular array of pixels. Far superior
@@ -20,15 +24,41 @@
  * pixel values are scaled to [0,1], but BadRaster does not restrict this
  * internally; pixel values can be any floating point value. BadRaster provides
  * methods to read in image data from a file and write out image data to a file.
- * These methods use java.awt.image.BufferedImage internally.
+ * These methods use java.awt.image.BufferedImage internally, accessing its
+ * data buffer in bulk and converting row strips in parallel.
  * <br>
  * A BadRaster may also be thought of as a cube of floating point data, and
  * manipulated as such. A single value within the cube can be manipulated,
  * as can an entire "stack" (with {@code setPixel} and {@code getPixel}).
+ * <br>
+ * The cube can be stored in one of three layouts, chosen at construction:
+ * {@code LAYOUT_CUBE} (nested {@code float[bands][width][height]} arrays),
+ * {@code LAYOUT_PLANAR} (a single {@code float[]} holding one row-major plane
+ * per band) or {@code LAYOUT_INTERLEAVED} (a single row-major {@code float[]}
+ * with the bands of each pixel stored next to each other). The flat layouts
+ * cost one allocation per raster and let callers walk rows linearly through
+ * {@code getData} and the stride getters. The public API is identical for
+ * all layouts.
  */
 public class BadRaster {
-    /** The byte array of raster image data */
+    /** Layout constant: nested float[bands][width][height] arrays */
+    public static final int LAYOUT_CUBE = 0;
+    /** Layout constant: one flat array, one row-major plane per band */
+    public static final int LAYOUT_PLANAR = 1;
+    /** Layout constant: one flat row-major array, bands interleaved per pixel */
+    public static final int LAYOUT_INTERLEAVED = 2;
+    /** The float array of raster image data (LAYOUT_CUBE only) */
     protected float[][][] data;
+    /** The flat float array of raster image data (flat layouts only) */
+    protected float[] flat;
+    /** The storage layout, one of the LAYOUT_* constants */
+    protected int layout = LAYOUT_CUBE;
+    /** Distance between bands of the same pixel in {@code flat} */
+    protected int bandStride;
+    /** Distance between horizontally adjacent pixels in {@code flat} */
+    protected int xStride;
+    /** Distance between vertically adjacent pixels in {@code flat} */
+    protected int yStride;
     /** The number of bands */
     protected int bands;
     /** The width of the raster (the "x" dimension) */
@@ -42,6 +72,14 @@ public class BadRaster {
     public BadRaster() {
         //
     }
+    /**
+     * Creates a BadRaster with the given storage layout and leaves it
+     * uninitialized. The layout is used when the raster is loaded.
+     * @param layout The storage layout, one of the LAYOUT_* constants
+     */
+    public BadRaster(int layout) {
+        this.layout = layout;
+    }
     /**
      * Creates a BadRaster with the given dimensions and sets all the
      * data to zero.
@@ -50,10 +88,47 @@ public class BadRaster {
      * @param height The height of the image
      */
     public BadRaster(int bands, int width, int height) {
+        this(bands, width, height, LAYOUT_CUBE);
+    }
+    /**
+     * Creates a BadRaster with the given dimensions and storage layout and
+     * sets all the data to zero.
+     * @param bands  The number of bands (typically 3 for RGB)
+     * @param width  The width of the image
+     * @param height The height of the image
+     * @param layout The storage layout, one of the LAYOUT_* constants
+     */
+    public BadRaster(int bands, int width, int height, int layout) {
         this.bands = (bands > 0) ? bands : 1;
         this.width = (width > 0) ? width : 1;
         this.height = (height > 0) ? height : 1;
-        data = new float[bands][width][height];
+        this.layout = layout;
+        allocate();
+    }
+    /**
+     * Allocate the backing storage for the current dimensions and layout.
+     */
+    protected void allocate() {
+        switch (layout) {
+            case LAYOUT_PLANAR:
+                bandStride = width*height;
+                xStride = 1;
+                yStride = width;
+                break;
+            case LAYOUT_INTERLEAVED:
+                bandStride = 1;
+                xStride = bands;
+                yStride = width*bands;
+                break;
+            case LAYOUT_CUBE:
+                data = new float[bands][width][height];
+                flat = null;
+                return;
+            default:
+                throw new IllegalArgumentException("Unknown raster layout: " + layout);
+        }
+        flat = new float[bands*width*height];
+        data = null;
     }
     /**
      * Load a raster from a filepath.
@@ -65,27 +140,117 @@ public class BadRaster {
         loadFromFile(new File(path));
     }
     /**
-     * Load a raster from a File object.
+     * Load a raster from a File object. The number of bands follows the
+     * image: 1 for grayscale, 2 for grayscale with alpha, 3 for RGB and 4 for
+     * RGB with alpha (bands ordered R,G,B,A). Samples are scaled to [0,1].
+     * Pixel x of the raster is image column x and pixel y is image row y.
+     * <br>
+     * The samples are converted in parallel row strips, straight from the
+     * image's DataBufferByte or DataBufferInt when it has a common layout,
+     * and in bulk per row otherwise.
      * @param file The file to load. Should be an image
      * @throws IOException if the file cannot be loaded
      */
     public void loadFromFile(File file) throws IOException {
         // Get a buffered image
-        BufferedImage bufferedImage = ImageIO.read(file);
+        final BufferedImage bufferedImage = ImageIO.read(file);
+        if (bufferedImage == null)
+            throw new IOException("Unsupported image format: " + file);
+        loadFromImage(bufferedImage);
+    }
+    /**
+     * Load a raster from a decoded image (or a strip of one, see KStream),
+     * converting the samples as described for {@code loadFromFile}.
+     * @param bufferedImage The image
+     */
+    public void loadFromImage(final BufferedImage bufferedImage) {
+        final ColorModel colorModel = bufferedImage.getColorModel();
+        final WritableRaster raster = bufferedImage.getRaster();
+        final SampleModel sampleModel = raster.getSampleModel();
+        final DataBuffer buffer = raster.getDataBuffer();
         // Initialize the BadRaster fields
-        this.bands = 3; // assume 3 bands (RGB)
+        if (colorModel instanceof IndexColorModel)
+            this.bands = colorModel.hasAlpha() ? 4 : 3; // palette: expand to RGB(A)
+        else
+            this.bands = colorModel.getNumComponents();
         this.width = bufferedImage.getWidth();
         this.height = bufferedImage.getHeight();
-        data = new float[bands][width][height];
-        // Get the pixel data out of the BufferedImage and convert it to floats
-        // RGB data is ordered [0,1,2] and scaled to [0,1]
-        for (int i = 0; i < bufferedImage.getWidth(); ++i) {
-            for (int j = 0; j < bufferedImage.getHeight(); ++j) {
-                int pixel = bufferedImage.getRGB(j,i); // transpose
-                data[0][i][j] = ((pixel & 0xff0000) >> 16)/255.0f; // red
-                data[1][i][j] = ((pixel & 0xff00) >> 8)/255.0f; // green
-                data[2][i][j] = (pixel & 0xff)/255.0f; // blue
+        allocate();
+        if (buffer instanceof DataBufferByte && sampleModel instanceof PixelInterleavedSampleModel
+                && colorModel instanceof ComponentColorModel && bufferedImage.getSampleModel().getSampleSize(0) == 8
+                && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0) {
+            // 8-bit interleaved samples (BGR, ABGR, gray, gray+alpha): read the bytes directly
+            final PixelInterleavedSampleModel model = (PixelInterleavedSampleModel)sampleModel;
+            final byte [] bytes = ((DataBufferByte)buffer).getData();
+            final int [] offsets = model.getBandOffsets();
+            final int pixelStride = model.getPixelStride();
+            final int scanline = model.getScanlineStride();
+            forEachStrip(new StripOp() {
+                public void run(int y0, int y1) {
+                    for (int y = y0; y < y1; ++y)
+                        for (int x = 0; x < width; ++x)
+                            for (int b = 0; b < bands; ++b)
+                                store((bytes[y*scanline + x*pixelStride + offsets[b]] & 0xff)/255.0f, x, y, b);
+                }
+            });
+        } else if (buffer instanceof DataBufferInt && sampleModel instanceof SinglePixelPackedSampleModel
+                && colorModel instanceof DirectColorModel && bands >= 3
+                && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0) {
+            // packed int pixels (INT_RGB, INT_ARGB, ...): unpack with the color model masks
+            final DirectColorModel direct = (DirectColorModel)colorModel;
+            final int [] ints = ((DataBufferInt)buffer).getData();
+            final int scanline = ((SinglePixelPackedSampleModel)sampleModel).getScanlineStride();
+            final int [] masks = {direct.getRedMask(), direct.getGreenMask(), direct.getBlueMask(), direct.getAlphaMask()};
+            final int [] shifts = new int[4];
+            final float [] scales = new float[4];
+            for (int b = 0; b < 4; ++b) {
+                shifts[b] = Integer.numberOfTrailingZeros(masks[b]);
+                scales[b] = 1.0f/((masks[b] >>> shifts[b]) == 0 ? 1 : (masks[b] >>> shifts[b]));
             }
+            forEachStrip(new StripOp() {
+                public void run(int y0, int y1) {
+                    for (int y = y0; y < y1; ++y)
+                        for (int x = 0; x < width; ++x) {
+                            int pixel = ints[y*scanline + x];
+                            for (int b = 0; b < bands; ++b)
+                                store(((pixel & masks[b]) >>> shifts[b])*scales[b], x, y, b);
+                        }
+                }
+            });
+        } else if (colorModel instanceof IndexColorModel) {
+            // palette images: expand a row at a time through getRGB
+            forEachStrip(new StripOp() {
+                public void run(int y0, int y1) {
+                    int [] row = new int[width];
+                    for (int y = y0; y < y1; ++y) {
+                        bufferedImage.getRGB(0, y, width, 1, row, 0, width);
+                        for (int x = 0; x < width; ++x) {
+                            int pixel = row[x];
+                            store(((pixel >> 16) & 0xff)/255.0f, x, y, 0); // red
+                            store(((pixel >> 8) & 0xff)/255.0f, x, y, 1); // green
+                            store((pixel & 0xff)/255.0f, x, y, 2); // blue
+                            if (bands == 4)
+                                store(((pixel >>> 24) & 0xff)/255.0f, x, y, 3); // alpha
+                        }
+                    }
+                }
+            });
+        } else {
+            // anything else (16-bit samples, ...): a row of samples at a time
+            final float [] scales = new float[bands];
+            for (int b = 0; b < bands; ++b)
+                scales[b] = 1.0f/((1 << colorModel.getComponentSize(b)) - 1);
+            forEachStrip(new StripOp() {
+                public void run(int y0, int y1) {
+                    int [] row = new int[width*bands];
+                    for (int y = y0; y < y1; ++y) {
+                        raster.getPixels(0, y, width, 1, row);
+                        for (int x = 0; x < width; ++x)
+                            for (int b = 0; b < bands; ++b)
+                                store(row[x*bands + b]*scales[b], x, y, b);
+                    }
+                }
+            });
         }
     }
     /**
@@ -97,25 +262,92 @@ public class BadRaster {
         writeToFile(new File(path));
     }
     /**
-     * Write the raster to the specified file.
+     * Write the raster to the specified file as an 8-bit PNG: grayscale for
+     * 1 band, grayscale with alpha for 2, RGB for 3 and RGB with alpha for 4
+     * (extra bands are dropped). Values are scaled by 255, truncated and
+     * saturated to [0,255]. The conversion runs in parallel row strips
+     * straight into the image's byte buffer.
      * @param file The file to write the image to
      * @throws IOException if the file cannot be written
      */
     public void writeToFile(File file) throws IOException {
-        // Get a BufferedImage
-        BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-        // Write the data into the BufferedImage, pixel-by-pixel
-        for (int i = 0; i < bufferedImage.getWidth(); ++i) {
-            for (int j = 0; j < bufferedImage.getHeight(); ++j) {
-                int pixel = 0;
-                pixel |= (int)(data[0][i][j]*255) << 16; // red
-                pixel |= (int)(data[1][i][j]*255) << 8; // green
-                pixel |= (int)(data[2][i][j]*255); // blue
-                bufferedImage.setRGB(j,i, pixel); // transpose
-            }
+        // Get a BufferedImage with interleaved 8-bit samples
+        final int outBands = Math.min(bands, 4);
+        BufferedImage bufferedImage;
+        if (outBands == 1) {
+            bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        } else if (outBands == 3) {
+            bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        } else if (outBands == 4) {
+            bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
+        } else {
+            ComponentColorModel grayAlpha = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY),
+                    true, false, Transparency.TRANSLUCENT, DataBuffer.TYPE_BYTE);
+            bufferedImage = new BufferedImage(grayAlpha, grayAlpha.createCompatibleWritableRaster(width, height), false, null);
         }
+        final PixelInterleavedSampleModel model = (PixelInterleavedSampleModel)bufferedImage.getSampleModel();
+        final byte [] bytes = ((DataBufferByte)bufferedImage.getRaster().getDataBuffer()).getData();
+        final int [] offsets = model.getBandOffsets();
+        final int pixelStride = model.getPixelStride();
+        final int scanline = model.getScanlineStride();
+        // Write the data into the BufferedImage, a strip of rows at a time
+        forEachStrip(new StripOp() {
+            public void run(int y0, int y1) {
+                for (int y = y0; y < y1; ++y)
+                    for (int x = 0; x < width; ++x)
+                        for (int b = 0; b < outBands; ++b)
+                            bytes[y*scanline + x*pixelStride + offsets[b]] = (byte)getSample(x,y,b);
+            }
+        });
         // Write the image to a file
-        ImageIO.write(bufferedImage, "png", file);
+        if (!ImageIO.write(bufferedImage, "png", file))
+            throw new IOException("No PNG writer available");
+    }
+    /**
+     * A unit of work covering rows [y0, y1) of the raster.
+     */
+    private interface StripOp {
+        void run(int y0, int y1);
+    }
+    /**
+     * Run an operation over every row of the raster, in parallel strips of
+     * rows on the common fork-join pool.
+     * @param op The operation
+     */
+    private void forEachStrip(final StripOp op) {
+        final int strip = Math.max(16, height/(4*Runtime.getRuntime().availableProcessors()));
+        final int strips = (height + strip - 1)/strip;
+        IntStream.range(0, strips).parallel().forEach(new IntConsumer() {
+            public void accept(int s) {
+                op.run(s*strip, Math.min(height, (s + 1)*strip));
+            }
+        });
+    }
+    /**
+     * Get a pixel component as the 8-bit sample {@code writeToFile} writes:
+     * scaled by 255, truncated and saturated to [0,255].
+     * @param x The x position of the pixel component (not clamped)
+     * @param y The y position of the pixel component (not clamped)
+     * @param b The band
+     * @return The sample, in [0,255]
+     */
+    public int getSample(int x, int y, int b) {
+        int v = (int)(getPixelComponent(x,y,b)*255);
+        return (v < 0) ? 0 : ((v > 255) ? 255 : v);
+    }
+    /**
+     * Store a pixel component without going through the public setter.
+     * Used while loading; subclasses with other storage override it.
+     * @param value The value to set
+     * @param x     The x position of the pixel component
+     * @param y     The y position of the pixel component
+     * @param b     The band
+     */
+    protected void store(float value, int x, int y, int b) {
+        if (flat != null)
+            flat[b*bandStride + x*xStride + y*yStride] = value;
+        else
+            data[b][x][y] = value;
     }
     /**
      * Set a pixel of the raster.
@@ -125,6 +357,12 @@ public class BadRaster {
      * @param y     The y position of the pixel to set
      */
     public void setPixel(float [] pixel, int x, int y) {
+        if (flat != null) {
+            int index = x*xStride + y*yStride;
+            for (int i = 0; i < bands; ++i)
+                flat[index + i*bandStride] = pixel[i];
+            return;
+        }
         for (int i = 0; i < bands; ++i)
             data[i][x][y] = pixel[i];
     }
@@ -136,6 +374,9 @@ public class BadRaster {
      * @param b     The band to set
      */
     public void setPixelComponent(float value, int x, int y, int b) {
+        if (flat != null)
+            flat[b*bandStride + x*xStride + y*yStride] = value;
+        else
             data[b][x][y] = value;
     }
     /**
@@ -149,6 +390,12 @@ public class BadRaster {
         int xi = (x<0)?0:((x>=width)?width-1:x);
         int yi = (y<0)?0:((y>=height)?height-1:y);
         float [] pixel = new float[bands];
+        if (flat != null) {
+            int index = xi*xStride + yi*yStride;
+            for (int i = 0; i < bands; ++i)
+                pixel[i] = flat[index + i*bandStride];
+            return pixel;
+        }
         for (int i = 0; i < bands; ++i)
             pixel[i] = data[i][xi][yi];
         return pixel;
@@ -164,8 +411,63 @@ public class BadRaster {
     public float getPixelComponent(int x, int y, int b) {
         int xi = (x<0)?0:((x>=width)?width-1:x);
         int yi = (y<0)?0:((y>=height)?height-1:y);
+        if (flat != null)
+            return flat[b*bandStride + xi*xStride + yi*yStride];
         return data[b][xi][yi];
     }
+    /**
+     * Copy a block of pixels into an interleaved float array. The block may
+     * extend past the raster: coordinates outside it are clamped to the
+     * nearest edge pixel, as in {@code getPixelComponent}, so callers can read
+     * a region plus its kernel halo and never clamp again.
+     * @param x0 The x coordinate of the first column (may be negative)
+     * @param y0 The y coordinate of the first row (may be negative)
+     * @param w The width of the block
+     * @param h The height of the block
+     * @param out Receives w*h*bands floats: component b of pixel
+     * (x0+i, y0+j) goes to {@code (j*w + i)*bands + b}
+     */
+    public void readBlock(int x0, int y0, int w, int h, float [] out) {
+        final int xa = Math.min(Math.max(x0, 0), width);
+        final int xb = Math.max(Math.min(x0 + w, width), xa);
+        for (int j = 0; j < h; ++j) {
+            final int yi = (y0 + j < 0) ? 0 : ((y0 + j >= height) ? height - 1 : y0 + j);
+            final int row = j*w*bands;
+            if (flat != null && layout == LAYOUT_INTERLEAVED && xa < xb) {
+                // in-range columns are one contiguous run of the source row
+                System.arraycopy(flat, xa*xStride + yi*yStride, out, row + (xa - x0)*bands, (xb - xa)*bands);
+                for (int i = 0; i < xa - x0; ++i)
+                    System.arraycopy(flat, xa*xStride + yi*yStride, out, row + i*bands, bands);
+                for (int i = xb - x0; i < w; ++i)
+                    System.arraycopy(flat, (xb - 1)*xStride + yi*yStride, out, row + i*bands, bands);
+            } else {
+                for (int i = 0; i < w; ++i)
+                    for (int b = 0; b < bands; ++b)
+                        out[row + i*bands + b] = getPixelComponent(x0 + i, yi, b);
+            }
+        }
+    }
+    /**
+     * Copy an interleaved float array into a block of pixels, the inverse of
+     * {@code readBlock}. The block must lie inside the raster.
+     * @param x0 The x coordinate of the first column
+     * @param y0 The y coordinate of the first row
+     * @param w The width of the block
+     * @param h The height of the block
+     * @param in Holds w*h*bands floats, laid out as for {@code readBlock}
+     */
+    public void writeBlock(int x0, int y0, int w, int h, float [] in) {
+        for (int j = 0; j < h; ++j) {
+            final int row = j*w*bands;
+            if (flat != null && layout == LAYOUT_INTERLEAVED) {
+                System.arraycopy(in, row, flat, x0*xStride + (y0 + j)*yStride, w*bands);
+            } else {
+                for (int i = 0; i < w; ++i)
+                    for (int b = 0; b < bands; ++b)
+                        setPixelComponent(in[row + i*bands + b], x0 + i, y0 + j, b);
+            }
+        }
+    }
     /**
      * Get the image width
      * @return The width of the image in pixels
@@ -187,6 +489,42 @@ public class BadRaster {
     public int getBands() {
         return bands;
     }
+    /**
+     * Get the storage layout of the raster.
+     * @return One of the LAYOUT_* constants
+     */
+    public int getLayout() {
+        return layout;
+    }
+    /**
+     * Get the flat backing array of the raster. Element (x,y,b) lives at
+     * {@code b*getBandStride() + x*getXStride() + y*getYStride()}.
+     * @return The backing array, or null if the raster uses LAYOUT_CUBE
+     */
+    public float[] getData() {
+        return flat;
+    }
+    /**
+     * Get the distance between two bands of a pixel in the flat array.
+     * @return The band stride (meaningless for LAYOUT_CUBE)
+     */
+    public int getBandStride() {
+        return bandStride;
+    }
+    /**
+     * Get the distance between horizontally adjacent pixels in the flat array.
+     * @return The x stride (meaningless for LAYOUT_CUBE)
+     */
+    public int getXStride() {
+        return xStride;
+    }
+    /**
+     * Get the distance between vertically adjacent pixels in the flat array.
+     * @return The y stride (meaningless for LAYOUT_CUBE)
+     */
+    public int getYStride() {
+        return yStride;
+    }
     /**
      * Return a string representation of a specified raster band, as either
      * the raw float data or scaled to unsigned byte values [0,255]
@@ -200,9 +538,9 @@ public class BadRaster {
         for (int i = 0; i < width; ++i) {
             for (int j = 0; j < height; ++j) {
                 if (toByte)
-                    rv += String.format("%3d ",(int)(255*data[band][i][j]));
+                    rv += String.format("%3d ",(int)(255*getPixelComponent(i,j,band)));
                 else
-                    rv += String.format("%5.3f ",255*data[band][i][j]);
+                    rv += String.format("%5.3f ",255*getPixelComponent(i,j,band));
             }
             rv += String.format("\n");
         }
@@ -210,11 +548,14 @@ public class BadRaster {
     }
     /**
      * Return a string representation of the entire raster, values as ints.
-     * Bands are printed as separate sections, ordered RGB.
-     * Do not call this on a large raster!
+     * Bands are printed as separate sections, in band order (RGB for colour
+     * images). Do not call this on a large raster!
      * @return a string representation of the entire raster
      */
     public String toString() {
-        return toString(0,true) + toString(1,true) + toString(2,true);
+        String rv = "";
+        for (int b = 0; b < bands; ++b)
+            rv += toString(b,true);
+        return rv;
     }
 }
@@ -4,20 +4,56 @@
  * Built for ECEN4003 Concurrent Programming
  */
 
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * A dynamic, with floating point data. Kernels are small rectangular
  * matrices describing an image filter. The dimensions should be mxn, where
  * both m and n are odd numbers: m,n = 2k+1 for all k.
  * BaseKernel describes an image kernel as a function of space. By specifying
  * a point, BaseKernel can generate a static kernel (Kernel)
+ * <br>
+ * Modulated kernels are memoized by crop, not by point: the block centres
+ * of an image almost never repeat, but their scales only fall into a few
+ * dozen crops. The crop only changes at the scales where some tap crosses
+ * the trim threshold, so on first use the kernel finds those scales once
+ * (its {@code ladder}) and each lookup is then a binary search on the
+ * point's scale. A modulated kernel is a normalized, centered crop of the
+ * base kernel, so it is fully determined by its trimmed dimensions; every
+ * point that trims to the same dimensions shares one locked (immutable)
+ * Kernel instance.
+ * <br>
+ * How the kernel varies over the image is set by its KModulation
+ * (KModulation.LINEAR unless {@code setModulation} is called).
  */
 public class BaseKernel extends Kernel {
+    /** Scaled taps with a magnitude up to this are trimmed from the edges */
+    public static final float TRIM_THRESHOLD = 1/(2048.0f);
     public String name;
+    /** The scale of the kernel as a function of the point */
+    private volatile KModulation modulation = KModulation.LINEAR;
+    /** Distinct trimmed kernels, keyed on (width << 16 | height) (guards the ladder) */
+    private final Map<Integer,Kernel> trimmedKernels = new HashMap<Integer,Kernel>();
+    /** Number of getModulatedKernel calls answered with a kernel handed out before */
+    private final AtomicLong cacheHits = new AtomicLong();
+    /** Number of getModulatedKernel calls that handed out a new kernel */
+    private final AtomicLong cacheMisses = new AtomicLong();
+    /** Scale from which each variant applies, ascending, or null until first use */
+    private float [] ladderScales;
+    /** The crop of each variant, or null if the variants were precomputed */
+    private int [][] ladderCrops;
+    /** The variants (precomputed by KBank, or built on first use) */
+    private Kernel [] ladderKernels;
     /**
      * Creates a BaseKernel from a JSONKernel.
      * @param jKernel The JSONKernel to copy from
+     * @throws IllegalArgumentException if the kernel is not two-dimensional
      */
     public BaseKernel(JSONKernel jKernel) {
+        if (jKernel.type != JSONKernel.TYPE_SPATIAL)
+            throw new IllegalArgumentException("Kernel " + jKernel.name + " has type " + jKernel.type
+                                               + ", not a two-dimensional kernel (see KTemporal)");
         this.width = jKernel.width;
         this.height = jKernel.height;
         kernel = new float[width][height];
@@ -25,6 +61,30 @@ public class BaseKernel extends Kernel {
         for (int i = 0; i < this.width; ++i)
             for (int j = 0; j < this.height; ++j)
                 kernel[i][j] = jKernel.kernel[i][j] * jKernel.coeff;
+        analyzeSeparability();
+        analyzeRectangles();
+    }
+    /**
+     * Creates a BaseKernel from data that has already been analyzed, with
+     * its precomputed modulated variants (see KBank).
+     * @param name The name of the kernel
+     * @param kernel The scaled kernel data
+     * @param rowFactor The horizontal factor, or null if not separable
+     * @param columnFactor The vertical factor, or null if not separable
+     * @param rectangles The packed rectangles, or null if not decomposed
+     * @param ladderScales The scale from which each variant applies,
+     * ascending from 0
+     * @param ladderKernels The variants, locked
+     */
+    BaseKernel(String name, float [][] kernel, float [] rowFactor, float [] columnFactor, float [] rectangles,
+               float [] ladderScales, Kernel [] ladderKernels) {
+        this.name = name;
+        this.width = kernel.length;
+        this.height = kernel[0].length;
+        this.kernel = kernel;
+        restoreAnalysis(rowFactor, columnFactor, rectangles);
+        this.ladderScales = ladderScales;
+        this.ladderKernels = ladderKernels;
     }
     /**
      * Creates a BaseKernel from a path to a kernel in JSON format.
@@ -33,53 +93,239 @@ public class BaseKernel extends Kernel {
     public BaseKernel(String jKernelPath) {
         this(KOps.kernelFromJSONPath(jKernelPath));
     }
+    /**
+     * Load a kernel from a path: an entry of a kernel bank for
+     * {@code bank.kbank#name} (see KBank), a JSON kernel otherwise.
+     * @param path The path
+     * @return A new BaseKernel
+     * @throws IllegalArgumentException if the bank cannot be read or has no
+     * such kernel
+     */
+    public static BaseKernel load(String path) {
+        int hash = path.indexOf(KBank.SUFFIX + "#");
+        if (hash < 0)
+            return new BaseKernel(path);
+        return KBank.open(path.substring(0, hash + KBank.SUFFIX.length()))
+                    .get(path.substring(hash + KBank.SUFFIX.length() + 1));
+    }
     /**
      * Return a scaled kernel as a Kernel, trimming dimensions if necessary.
+     * The result is shared with every other point that trims to the same
+     * size: callers must not modify it (it is locked, so the Kernel setters
+     * will refuse).
      * @param point An xy coordinate, normalized to [0,1]
-     * @return A modulated and trimmed kernel
+     * @return A modulated and trimmed kernel, analyzed for separability and
+     * rectangles
      */
     public Kernel getModulatedKernel(float [] point) {
-        float scale = 1.0f/(point[0]*80 + point[1]*40);
-        //System.out.println(scale);
-        float [][] tempKernel = new float[width][height];
-        float thresh = 1/(2048.0f);
-        // Scale kernel
-        for (int i = 0; i < width; ++i) {
-            for (int j = 0; j < height; ++j) {
-                tempKernel[i][j] = kernel[i][j] * scale;
+        float scale = modulation.scale(point);
+        if (!(scale >= 0.0f))
+            return sharedKernel(crop(scale), null); // off the ladder (NaN or negative)
+        synchronized (trimmedKernels) {
+            if (ladderScales == null) {
+                Ladder ladder = ladder();
+                ladderScales = ladder.scales;
+                ladderCrops = ladder.crops;
+                ladderKernels = new Kernel[ladderScales.length];
+            }
+            // the last variant whose scale is at most this one
+            int lo = 0, hi = ladderScales.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (ladderScales[mid] <= scale)
+                    lo = mid;
+                else
+                    hi = mid - 1;
+            }
+            ladderKernels[lo] = sharedKernel(ladderCrops == null ? null : ladderCrops[lo], ladderKernels[lo]);
+            return ladderKernels[lo];
+        }
+    }
+    /**
+     * Get the shared kernel for a crop, counting a cache hit if a kernel of
+     * its dimensions was handed out before and a miss otherwise.
+     * @param crop The crop, as returned by {@code crop} (unused if the
+     * variant is given)
+     * @param variant The kernel for the crop if it is already built, or null
+     * @return The shared kernel for the trimmed dimensions
+     */
+    private Kernel sharedKernel(int [] crop, Kernel variant) {
+        Integer dims = (variant != null) ? (variant.getWidth() << 16) | variant.getHeight()
+                                         : (crop[2] << 16) | crop[3];
+        synchronized (trimmedKernels) {
+            Kernel shared = trimmedKernels.get(dims);
+            if (shared != null) {
+                cacheHits.incrementAndGet();
+                return shared;
             }
+            cacheMisses.incrementAndGet();
+            shared = (variant != null) ? variant : cropKernel(crop[0], crop[1], crop[2], crop[3]);
+            trimmedKernels.put(dims, shared);
+            return shared;
         }
+    }
+    /**
+     * Find the crop of the kernel at a scale. The scaled kernel's edges are
+     * trimmed while they are all below TRIM_THRESHOLD: top and bottom rows
+     * first, then left and right columns.
+     * @param scale The scale from the modulation
+     * @return The first column, first row, width and height of the crop
+     */
+    int [] crop(float scale) {
+        float thresh = TRIM_THRESHOLD;
+        // Trim in place: the kernel keeps columns [left,left+cwidth) and
+        // rows [top,top+cheight) of the scaled base kernel
         int cwidth = width;
         int cheight = height;
-        boolean [] edgeCheck = KOps.edgeCheck(tempKernel, thresh);
-        boolean trimTB = edgeCheck[0] && edgeCheck[2];
-        while (trimTB && cheight > 1) {
+        int left = 0;
+        int top = 0;
+        while (cheight > 1 && belowThreshold(left, top, cwidth, 1, scale, thresh)
+                           && belowThreshold(left, top + cheight - 1, cwidth, 1, scale, thresh)) {
             cheight -= 2;
-            float [][] newTempKernel = new float[cwidth][cheight];
-            for (int i = 0; i < cwidth; ++i)
-                for (int j = 0; j < cheight; ++j)
-                    newTempKernel[i][j] = tempKernel[i][j+1];
-            tempKernel = newTempKernel;
-            edgeCheck = KOps.edgeCheck(tempKernel, thresh);
-            trimTB = edgeCheck[0] && edgeCheck[2];
+            ++top;
         }
-        boolean trimLR = edgeCheck[1] && edgeCheck[3];
-        while (trimLR && cwidth > 1) {
+        while (cwidth > 1 && belowThreshold(left, top, 1, cheight, scale, thresh)
+                          && belowThreshold(left + cwidth - 1, top, 1, cheight, scale, thresh)) {
             cwidth -= 2;
-            float [][] newTempKernel = new float[cwidth][cheight];
-            for (int i = 0; i < cwidth; ++i)
-                for (int j = 0; j < cheight; ++j)
-                    newTempKernel[i][j] = tempKernel[i+1][j];
-            tempKernel = newTempKernel;
-            edgeCheck = KOps.edgeCheck(tempKernel, thresh);
-            trimLR = edgeCheck[1] && edgeCheck[3];
+            ++left;
         }
+        return new int[] {left, top, cwidth, cheight};
+    }
+    /**
+     * Build the modulated kernel for a crop: scaling is undone by
+     * normalization, so the crop of the base kernel is normalized directly.
+     * @param left The first column of the crop
+     * @param top The first row of the crop
+     * @param cwidth The width of the crop
+     * @param cheight The height of the crop
+     * @return A new locked kernel, analyzed for separability and rectangles
+     */
+    Kernel cropKernel(int left, int top, int cwidth, int cheight) {
+        float [][] tempKernel = new float[cwidth][cheight];
+        for (int i = 0; i < cwidth; ++i)
+            for (int j = 0; j < cheight; ++j)
+                tempKernel[i][j] = kernel[left + i][top + j];
         Kernel newKernel = new Kernel(cwidth,cheight);
         newKernel.setKernel(tempKernel);
         newKernel.normalize();
-        if (newKernel.getWidth() != width || newKernel.getHeight() != height) {
-            //System.out.printf("Kernel trimmed. Original size: %dx%d; new size: %dx%d\n",width,height,newKernel.getWidth(),newKernel.getHeight());
-        }
+        newKernel.analyzeSeparability();
+        newKernel.analyzeRectangles();
+        newKernel.lock();
         return newKernel;
     }
+    /**
+     * Find every distinct crop of the kernel over all scales from zero to
+     * infinity. The crop only changes at the smallest scales where some tap
+     * rises above the threshold, so there are at most width*height + 1
+     * variants (in practice about (width + height)/2).
+     * @return The scale from which each variant applies and the crops
+     */
+    Ladder ladder() {
+        float thresh = TRIM_THRESHOLD;
+        TreeSet<Float> breaks = new TreeSet<Float>();
+        breaks.add(0.0f);
+        for (int i = 0; i < width; ++i) {
+            for (int j = 0; j < height; ++j) {
+                float a = Math.abs(kernel[i][j]);
+                if (a == 0.0f || Float.isNaN(a))
+                    continue;
+                // the smallest float scale at which a*scale > thresh
+                float s = thresh/a;
+                while (!(a*s > thresh))
+                    s = Math.nextUp(s);
+                while (s > 0.0f && a*Math.nextDown(s) > thresh)
+                    s = Math.nextDown(s);
+                breaks.add(s);
+            }
+        }
+        List<Float> scales = new ArrayList<Float>();
+        List<int[]> crops = new ArrayList<int[]>();
+        for (float s : breaks) {
+            int [] c = crop(s);
+            if (!crops.isEmpty() && Arrays.equals(crops.get(crops.size() - 1), c))
+                continue;
+            scales.add(s);
+            crops.add(c);
+        }
+        float [] ladder = new float[scales.size()];
+        for (int i = 0; i < ladder.length; ++i)
+            ladder[i] = scales.get(i);
+        return new Ladder(ladder, crops.toArray(new int[crops.size()][]));
+    }
+    /**
+     * Check whether every element of a rectangle of the scaled kernel is
+     * within [-thresh, thresh].
+     * @param x0 The first column of the rectangle
+     * @param y0 The first row of the rectangle
+     * @param w The width of the rectangle
+     * @param h The height of the rectangle
+     * @param scale The scale applied to the kernel
+     * @param thresh The threshold
+     * @return True if the whole rectangle is below the threshold
+     */
+    private boolean belowThreshold(int x0, int y0, int w, int h, float scale, float thresh) {
+        for (int i = x0; i < x0 + w; ++i) {
+            for (int j = y0; j < y0 + h; ++j) {
+                float v = kernel[i][j] * scale;
+                if (v > thresh || v < -thresh)
+                    return false;
+            }
+        }
+        return true;
+    }
+    /**
+     * Set the modulation function, which decides the scale (and so the
+     * trimmed size) of the kernel at each point. The kernels handed out so
+     * far stay valid: they depend on the scale, not the modulation.
+     * @param modulation The modulation
+     */
+    public void setModulation(KModulation modulation) {
+        this.modulation = modulation;
+    }
+    /**
+     * Get the modulation function.
+     * @return The modulation
+     */
+    public KModulation getModulation() {
+        return modulation;
+    }
+    /**
+     * Get the number of getModulatedKernel calls answered with a kernel
+     * that had been handed out before.
+     * @return The number of cache hits
+     */
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+    /**
+     * Get the number of getModulatedKernel calls that handed out a kernel
+     * for the first time (built, or taken from a kernel bank's variants).
+     * @return The number of cache misses
+     */
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+    /**
+     * Get the number of distinct modulated kernels handed out so far.
+     * @return The number of distinct kernels
+     */
+    public int getDistinctKernels() {
+        synchronized (trimmedKernels) {
+            return trimmedKernels.size();
+        }
+    }
+
+    /**
+     * The distinct crops of a kernel over all scales (see {@code ladder}).
+     */
+    static final class Ladder {
+        /** The scale from which each variant applies, ascending (the first is 0) */
+        final float [] scales;
+        /** The crop of each variant, as returned by {@code crop} */
+        final int [][] crops;
+        Ladder(float [] scales, int [][] crops) {
+            this.scales = scales;
+            this.crops = crops;
+        }
+    }
 }
@@ -0,0 +1,115 @@
+/*
+ * ByteRaster.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+/**
+ * A BadRaster that keeps each pixel component as an unsigned 8-bit sample
+ * instead of a float, for the fixed-point processing mode. It uses a quarter
+ * of the memory (and memory bandwidth) of a float raster and holds exactly
+ * what an 8-bit PNG holds, so nothing is lost on load.
+ * <br>
+ * Samples are stored in one row-major byte array with the bands of each
+ * pixel interleaved; element (x,y,b) lives at
+ * {@code b*getBandStride() + x*getXStride() + y*getYStride()} of
+ * {@code getBytes}. {@code getData} returns null, so the float fast paths
+ * fall back to the public accessors, which convert to and from [0,1]:
+ * values written through {@code setPixelComponent} are rounded to the
+ * nearest 1/255 and saturated to [0,1].
+ * <br>
+ * KOps convolves ByteRasters with integer fixed-point kernels (see
+ * {@code Kernel.getFixedKernel}).
+ */
+public class ByteRaster extends BadRaster {
+    /** The 8-bit samples (set by allocate, so no initializer) */
+    protected byte[] bytes;
+
+    /**
+     * Creates a ByteRaster and leaves it uninitialized.
+     */
+    public ByteRaster() {
+        super(LAYOUT_INTERLEAVED);
+    }
+    /**
+     * Creates a ByteRaster with the given dimensions and sets all the
+     * samples to zero.
+     * @param bands  The number of bands (typically 3 for RGB)
+     * @param width  The width of the image
+     * @param height The height of the image
+     */
+    public ByteRaster(int bands, int width, int height) {
+        super(bands, width, height, LAYOUT_INTERLEAVED);
+    }
+    /**
+     * Allocate the byte array for the current dimensions. Always uses the
+     * interleaved layout.
+     */
+    @Override
+    protected void allocate() {
+        layout = LAYOUT_INTERLEAVED;
+        bandStride = 1;
+        xStride = bands;
+        yStride = width*bands;
+        bytes = new byte[bands*width*height];
+        flat = null;
+        data = null;
+    }
+    /**
+     * Convert a value in [0,1] to a saturated 8-bit sample.
+     * @param value The value
+     * @return The nearest sample in [0,255]
+     */
+    static int toSample(float value) {
+        int v = Math.round(value*255);
+        return (v < 0) ? 0 : ((v > 255) ? 255 : v);
+    }
+    @Override
+    protected void store(float value, int x, int y, int b) {
+        bytes[b + x*xStride + y*yStride] = (byte)toSample(value);
+    }
+    @Override
+    public void setPixel(float [] pixel, int x, int y) {
+        int index = x*xStride + y*yStride;
+        for (int i = 0; i < bands; ++i)
+            bytes[index + i] = (byte)toSample(pixel[i]);
+    }
+    @Override
+    public void setPixelComponent(float value, int x, int y, int b) {
+        bytes[b + x*xStride + y*yStride] = (byte)toSample(value);
+    }
+    @Override
+    public float [] getPixel(int x, int y) {
+        int xi = (x<0)?0:((x>=width)?width-1:x);
+        int yi = (y<0)?0:((y>=height)?height-1:y);
+        float [] pixel = new float[bands];
+        int index = xi*xStride + yi*yStride;
+        for (int i = 0; i < bands; ++i)
+            pixel[i] = (bytes[index + i] & 0xff)/255.0f;
+        return pixel;
+    }
+    @Override
+    public float getPixelComponent(int x, int y, int b) {
+        int xi = (x<0)?0:((x>=width)?width-1:x);
+        int yi = (y<0)?0:((y>=height)?height-1:y);
+        return (bytes[b + xi*xStride + yi*yStride] & 0xff)/255.0f;
+    }
+    /**
+     * Get a pixel component as an 8-bit sample, exactly as stored.
+     * @param x The x position of the pixel component
+     * @param y The y position of the pixel component
+     * @param b The band
+     * @return The sample, in [0,255]
+     */
+    @Override
+    public int getSample(int x, int y, int b) {
+        return bytes[b + x*xStride + y*yStride] & 0xff;
+    }
+    /**
+     * Get the backing byte array. Samples are unsigned (mask with 0xff).
+     * @return The backing array
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+}
@@ -5,19 +5,30 @@
  */
 
 /**
- * A helper class to facilitate loading in kernels in JSON format
+ * A helper class to facilitate loading in kernels in JSON format. A kernel
+ * of {@code TYPE_SPATIAL} holds its taps in {@code kernel}; a kernel of
+ * {@code TYPE_TEMPORAL} holds {@code depth} frames of taps in
+ * {@code frames}, oldest first (see KTemporal).
  */
 public class JSONKernel {
+    /** Kernel type: a two-dimensional kernel */
+    public static final int TYPE_SPATIAL = 0;
+    /** Kernel type: a three-dimensional kernel over neighbouring frames */
+    public static final int TYPE_TEMPORAL = 1;
     /** The kernel type */
     protected int type;
     /** The floating point kernel data, a 2D array */
     protected float[][] kernel;
+    /** The frames of a temporal kernel, each a 2D array like kernel */
+    protected float[][][] frames;
     /** The kernel coefficient */
     protected float coeff;
     /** The width of the kernel. */
     protected int width;
     /** The height of the kernel. */
     protected int height;
+    /** The number of frames of a temporal kernel. */
+    protected int depth;
     /** The human-readable name of the kernel. */
     protected String name;
 }
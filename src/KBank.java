@@ -0,0 +1,330 @@
+/*
+ * KBank.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A kernel bank: many BaseKernels compiled into one binary file, so they
+ * can be loaded without parsing JSON or analyzing anything. JSON stays the
+ * authoring format; a bank is built from JSON kernels with the main method
+ * and memory-mapped read-only when it is opened.
+ * <br>
+ * Besides the scaled taps of every kernel, a bank holds its separability
+ * factors and rectangle decomposition, and every modulated variant it can
+ * have: the distinct crops {@code BaseKernel.getModulatedKernel} produces
+ * over all scales (its "ladder", usually about (width + height)/2 of them),
+ * normalized and analyzed. A kernel loaded from a bank finds the variant
+ * for a scale by binary search instead of trimming and analyzing it, and
+ * yields exactly the kernels the JSON kernel would.
+ * <br>
+ * The format (suffix {@code .kbank}) is little-endian:
+ * <pre>
+ *   int magic       'KBNK' (0x4B424E4B)
+ *   int version     1
+ *   float threshold BaseKernel.TRIM_THRESHOLD the variants were built with
+ *   int count       number of kernels
+ *   directory       count x (string key, int offset): offsets are from the start of the file
+ *   kernels         string name, int width, int height, float taps[width*height] (column by column),
+ *                   analysis, int variants, variants x (float scale, int left, int top,
+ *                   int width, int height, float taps[width*height], analysis)
+ *   string          int length, then as many UTF-8 bytes
+ *   analysis        int flags (1: separable, 2: rectangles), float row[width] and
+ *                   float column[height] if separable, int n and float rectangles[5n] if decomposed
+ * </pre>
+ * Kernels are looked up by key, the name of their JSON file without the
+ * extension. {@code BaseKernel.load("bank.kbank#name")} loads one.
+ */
+public class KBank {
+    /** File name suffix of kernel banks */
+    public static final String SUFFIX = ".kbank";
+    /** Magic number, 'KBNK' */
+    public static final int MAGIC = 0x4B424E4B;
+    /** Format version */
+    public static final int VERSION = 1;
+    /** Analysis flag: separability factors follow */
+    private static final int FLAG_SEPARABLE = 1;
+    /** Analysis flag: a rectangle decomposition follows */
+    private static final int FLAG_RECTANGLES = 2;
+    /** Banks opened so far, by path */
+    private static final Map<String,KBank> banks = new HashMap<String,KBank>();
+    /** The mapped file */
+    private final ByteBuffer buffer;
+    /** Offset of each kernel, by key, in file order */
+    private final Map<String,Integer> offsets = new LinkedHashMap<String,Integer>();
+    /**
+     * Map a bank and read its directory.
+     * @param file The bank
+     * @throws IOException if the file cannot be mapped or is not a bank
+     */
+    public KBank(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (buffer.capacity() < 16 || buffer.getInt(0) != MAGIC)
+            throw new IOException(file + " is not a kernel bank");
+        if (buffer.getInt(4) != VERSION)
+            throw new IOException(file + ": unsupported kernel bank version " + buffer.getInt(4));
+        if (buffer.getFloat(8) != BaseKernel.TRIM_THRESHOLD)
+            throw new IOException(file + " was built for another trimming threshold; rebuild it");
+        ByteBuffer b = view(12);
+        int count = b.getInt();
+        for (int i = 0; i < count; ++i) {
+            String key = readString(b);
+            offsets.put(key, b.getInt());
+        }
+    }
+    /**
+     * Get a bank, mapping it the first time it is asked for.
+     * @param path The path of the bank
+     * @return The bank
+     * @throws IllegalArgumentException if the bank cannot be read
+     */
+    public static KBank open(String path) {
+        synchronized (banks) {
+            KBank bank = banks.get(path);
+            if (bank == null) {
+                try {
+                    bank = new KBank(new File(path));
+                } catch (IOException e) {
+                    throw new IllegalArgumentException("Cannot read kernel bank: " + e.getMessage(), e);
+                }
+                banks.put(path, bank);
+            }
+            return bank;
+        }
+    }
+    /**
+     * Get the keys of the kernels in the bank.
+     * @return The keys, in file order
+     */
+    public Set<String> keys() {
+        return Collections.unmodifiableSet(offsets.keySet());
+    }
+    /**
+     * Load a kernel. Every call returns a new BaseKernel (with its own
+     * modulation and cache), but the variants are decoded afresh too, so
+     * callers that need one kernel many times should keep it.
+     * @param key The key of the kernel
+     * @return The kernel, with its variants
+     * @throws IllegalArgumentException if the bank has no such kernel
+     */
+    public BaseKernel get(String key) {
+        Integer offset = offsets.get(key);
+        if (offset == null)
+            throw new IllegalArgumentException("No kernel " + key + " in bank (has " + offsets.keySet() + ")");
+        ByteBuffer b = view(offset);
+        String name = readString(b);
+        int width = b.getInt();
+        int height = b.getInt();
+        float [][] taps = readTaps(b, width, height);
+        float [][] analysis = readAnalysis(b, width, height);
+        int count = b.getInt();
+        float [] scales = new float[count];
+        Kernel [] variants = new Kernel[count];
+        for (int v = 0; v < count; ++v) {
+            scales[v] = b.getFloat();
+            b.getInt(); // left
+            b.getInt(); // top
+            int w = b.getInt();
+            int h = b.getInt();
+            Kernel variant = new Kernel(w, h);
+            variant.setKernel(readTaps(b, w, h));
+            float [][] a = readAnalysis(b, w, h);
+            variant.restoreAnalysis(a[0], a[1], a[2]);
+            variant.lock();
+            variants[v] = variant;
+        }
+        return new BaseKernel(name, taps, analysis[0], analysis[1], analysis[2], scales, variants);
+    }
+    /**
+     * Get an independent view of the mapping, so threads can read at once.
+     * @param position Where the view starts reading
+     * @return The view
+     */
+    private ByteBuffer view(int position) {
+        ByteBuffer b = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        b.position(position);
+        return b;
+    }
+    private static String readString(ByteBuffer b) {
+        byte [] bytes = new byte[b.getInt()];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    private static float [][] readTaps(ByteBuffer b, int width, int height) {
+        float [][] taps = new float[width][height];
+        for (int i = 0; i < width; ++i) {
+            b.asFloatBuffer().get(taps[i]);
+            b.position(b.position() + 4*height);
+        }
+        return taps;
+    }
+    private static float [] readFloats(ByteBuffer b, int count) {
+        float [] values = new float[count];
+        b.asFloatBuffer().get(values);
+        b.position(b.position() + 4*count);
+        return values;
+    }
+    /**
+     * Read an analysis block.
+     * @return The row factor, column factor and rectangles, each possibly null
+     */
+    private static float [][] readAnalysis(ByteBuffer b, int width, int height) {
+        int flags = b.getInt();
+        float [][] analysis = new float[3][];
+        if ((flags & FLAG_SEPARABLE) != 0) {
+            analysis[0] = readFloats(b, width);
+            analysis[1] = readFloats(b, height);
+        }
+        if ((flags & FLAG_RECTANGLES) != 0)
+            analysis[2] = readFloats(b, 5*b.getInt());
+        return analysis;
+    }
+
+    /**
+     * Compile JSON kernels into a bank.
+     * @param out The bank to write
+     * @param kernels The JSON kernels; each is keyed on its file name
+     * without the extension
+     * @throws IOException if a kernel cannot be read or the bank written
+     */
+    public static void write(File out, List<File> kernels) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(body);
+        List<String> keys = new ArrayList<String>();
+        List<Integer> starts = new ArrayList<Integer>();
+        for (File file : kernels) {
+            String key = file.getName().replaceFirst("\\.json$", "");
+            if (keys.contains(key))
+                throw new IOException("Two kernels named " + key);
+            if (KOps.kernelFromJSONPath(file.getPath()) == null)
+                throw new IOException("Cannot read kernel " + file);
+            BaseKernel kernel = new BaseKernel(file.getPath());
+            keys.add(key);
+            starts.add(data.size());
+            writeString(data, (kernel.name != null) ? kernel.name : key);
+            writeInt(data, kernel.getWidth());
+            writeInt(data, kernel.getHeight());
+            writeTaps(data, kernel);
+            writeAnalysis(data, kernel);
+            BaseKernel.Ladder ladder = kernel.ladder();
+            float [] scales = ladder.scales;
+            int [][] crops = ladder.crops;
+            writeInt(data, scales.length);
+            for (int v = 0; v < scales.length; ++v) {
+                int [] c = crops[v];
+                Kernel variant = kernel.cropKernel(c[0], c[1], c[2], c[3]);
+                writeFloat(data, scales[v]);
+                for (int i = 0; i < 4; ++i)
+                    writeInt(data, c[i]);
+                writeTaps(data, variant);
+                writeAnalysis(data, variant);
+            }
+        }
+        data.flush();
+        // the header and directory come first, so offsets are shifted by their size
+        int headerSize = 16;
+        for (String key : keys)
+            headerSize += 8 + key.getBytes(StandardCharsets.UTF_8).length;
+        try (DataOutputStream file = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out)))) {
+            writeInt(file, MAGIC);
+            writeInt(file, VERSION);
+            writeFloat(file, BaseKernel.TRIM_THRESHOLD);
+            writeInt(file, keys.size());
+            for (int i = 0; i < keys.size(); ++i) {
+                writeString(file, keys.get(i));
+                writeInt(file, headerSize + starts.get(i));
+            }
+            body.writeTo(file);
+        }
+    }
+    private static void writeString(DataOutputStream data, String s) throws IOException {
+        byte [] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeInt(data, bytes.length);
+        data.write(bytes);
+    }
+    private static void writeInt(DataOutputStream data, int value) throws IOException {
+        data.writeInt(Integer.reverseBytes(value)); // little-endian
+    }
+    private static void writeFloat(DataOutputStream data, float value) throws IOException {
+        writeInt(data, Float.floatToRawIntBits(value));
+    }
+    private static void writeTaps(DataOutputStream data, Kernel kernel) throws IOException {
+        for (int i = 0; i < kernel.getWidth(); ++i)
+            for (int j = 0; j < kernel.getHeight(); ++j)
+                writeFloat(data, kernel.get(i, j));
+    }
+    private static void writeAnalysis(DataOutputStream data, Kernel kernel) throws IOException {
+        int flags = (kernel.isSeparable() ? FLAG_SEPARABLE : 0) | (kernel.hasRectangles() ? FLAG_RECTANGLES : 0);
+        writeInt(data, flags);
+        if (kernel.isSeparable()) {
+            for (float f : kernel.getRowFactor())
+                writeFloat(data, f);
+            for (float f : kernel.getColumnFactor())
+                writeFloat(data, f);
+        }
+        if (kernel.hasRectangles()) {
+            float [] rectangles = kernel.getRectangles();
+            writeInt(data, rectangles.length/5);
+            for (float f : rectangles)
+                writeFloat(data, f);
+        }
+    }
+
+    /**
+     * Build or list a kernel bank.<br>
+     * {@code java KBank out.kbank kernel.json|directory ...} compiles the
+     * JSON kernels (every *.json file of a directory) into a bank.<br>
+     * {@code java KBank bank.kbank} lists the kernels of a bank.
+     * @param args The command-line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length < 1 || !args[0].endsWith(SUFFIX)) {
+            System.out.println("Usage:");
+            System.out.println("    java KBank out" + SUFFIX + " kernel.json|directory ...   (build a bank)");
+            System.out.println("    java KBank bank" + SUFFIX + "                           (list a bank)");
+            return;
+        }
+        try {
+            if (args.length > 1) {
+                List<File> kernels = new ArrayList<File>();
+                for (int i = 1; i < args.length; ++i) {
+                    File f = new File(args[i]);
+                    File [] listed = f.isDirectory() ? f.listFiles((dir, name) -> name.endsWith(".json")) : null;
+                    if (listed != null) {
+                        Arrays.sort(listed);
+                        kernels.addAll(Arrays.asList(listed));
+                    } else {
+                        kernels.add(f);
+                    }
+                }
+                long start = System.nanoTime();
+                write(new File(args[0]), kernels);
+                System.out.printf("Wrote %d kernels to %s (%d bytes) in %.1f ms\n", kernels.size(), args[0],
+                                  new File(args[0]).length(), (System.nanoTime() - start)/1e6);
+            }
+            long start = System.nanoTime();
+            KBank bank = new KBank(new File(args[0]));
+            for (String key : bank.keys()) {
+                BaseKernel kernel = bank.get(key);
+                System.out.printf("%-24s %3dx%-3d %-10s %-10s %s\n", key, kernel.getWidth(), kernel.getHeight(),
+                                  kernel.isSeparable() ? "separable" : "", kernel.hasRectangles() ? "rectangles" : "",
+                                  kernel.name);
+            }
+            System.out.printf("Loaded %d kernels in %.1f ms\n", bank.keys().size(), (System.nanoTime() - start)/1e6);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("ERROR: Failed to build or read the kernel bank.");
+            System.exit(1);
+        }
+    }
+}
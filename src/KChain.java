@@ -0,0 +1,304 @@
+/*
+ * KChain.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * KChain applies an ordered list of BaseKernels to an image, each stage
+ * filtering the output of the previous one, as if Kernelizr were run once
+ * per kernel. Every stage is modulated per block exactly as a single kernel
+ * is (KTiler.grid), so the chain is tied to the dimensions of one image.
+ * <br>
+ * A task runs the whole chain over its region, so no full-size intermediate
+ * raster is ever allocated. Working back from the region, each earlier stage
+ * must produce the region of the next one plus that stage's kernel halo
+ * (clamped to the image, as every convolution clamps its taps to the edge).
+ * The intermediate tiles live in the two per-thread stage buffers of
+ * KScratch and are wrapped in windows that the ordinary engines read and
+ * write like any raster.
+ * <br>
+ * Consecutive stages whose kernel does not change over the pixels they
+ * produce, and whose halos stay inside the image, are composed into one
+ * kernel (the convolution of their kernels) when that is estimated to be
+ * cheaper (KTiler.cost) than running them one after the other: the
+ * composition of two separable kernels is separable, and a large composed
+ * kernel can go to the FFT. Composition gives the same result up to float
+ * summation order; near the image edges, where clamping makes the stages
+ * differ from their composition, the stages always run one by one.
+ */
+public class KChain {
+    /**
+     * Regions with at most this many pixels are not split by schedulers:
+     * each split region recomputes the halos of every earlier stage
+     */
+    public static final int MIN_SPLIT_AREA = 128*128;
+    /** The stages, first to last */
+    private final BaseKernel [] stages;
+    /** The width of the image */
+    private final int width;
+    /** The height of the image */
+    private final int height;
+    /** The size of the grid blocks the stages are modulated over */
+    private final int blockSize;
+    /** The regions of constant kernel of each stage (KTiler.regions) */
+    private final KTask [][] regions;
+    /** The largest kernel of any stage */
+    private final Kernel largest;
+    /** Composed kernels, keyed on the kernels they were composed from */
+    private final ConcurrentHashMap<List<Kernel>,Kernel> composed = new ConcurrentHashMap<List<Kernel>,Kernel>();
+    /** Whether stages may be composed into one kernel */
+    private volatile boolean composition = true;
+    /**
+     * Build a chain for an image.
+     * @param stages The base kernels, in the order they are applied
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param blockSize The size of the grid blocks each kernel is modulated over
+     */
+    public KChain(List<BaseKernel> stages, int width, int height, int blockSize) {
+        if (stages.isEmpty())
+            throw new IllegalArgumentException("A kernel chain needs at least one kernel");
+        this.stages = stages.toArray(new BaseKernel[stages.size()]);
+        this.width = width;
+        this.height = height;
+        this.blockSize = blockSize;
+        regions = new KTask[this.stages.length][];
+        Kernel big = null;
+        for (int s = 0; s < this.stages.length; ++s) {
+            List<KTask> r = KTiler.regions(width, height, this.stages[s], blockSize);
+            regions[s] = r.toArray(new KTask[r.size()]);
+            for (KTask region : regions[s])
+                if (big == null || region.getKernel().getWidth()*region.getKernel().getHeight() > big.getWidth()*big.getHeight())
+                    big = region.getKernel();
+        }
+        largest = big;
+    }
+    /**
+     * Allow or forbid composing stages into one kernel. Without composition
+     * every stage runs on its own, tile by tile.
+     * @param composition True to compose stages where it is cheaper
+     */
+    public void setComposition(boolean composition) {
+        this.composition = composition;
+    }
+    /**
+     * Check whether stages may be composed into one kernel.
+     * @return True if stages are composed where it is cheaper
+     */
+    public boolean getComposition() {
+        return composition;
+    }
+    /**
+     * Get the number of stages.
+     * @return The number of kernels in the chain
+     */
+    public int getStages() {
+        return stages.length;
+    }
+    /**
+     * Get a stage.
+     * @param index The stage, from 0
+     * @return Its base kernel
+     */
+    public BaseKernel getStage(int index) {
+        return stages[index];
+    }
+    /**
+     * Get the largest kernel of any stage, to estimate the cost of tasks.
+     * @return The kernel with the most taps
+     */
+    public Kernel getLargestKernel() {
+        return largest;
+    }
+    /**
+     * Get the number of distinct composed kernels built so far.
+     * @return The number of composed kernels
+     */
+    public int getComposedKernels() {
+        return composed.size();
+    }
+    /**
+     * Run the chain over a rectangular region, writing the output of the
+     * last stage directly into the destination raster.
+     * @param src The source raster, the input of the first stage.
+     * @param dst The destination raster. Must not be the source raster.
+     * @param x0 The x coordinate of the origin of the region.
+     * @param y0 The y coordinate of the origin of the region.
+     * @param w The width of the region.
+     * @param h The height of the region.
+     * @param engine The engine of every stage, one of the KOps.ENGINE_* constants.
+     * @param scratch The scratch buffers of the calling thread.
+     */
+    public void convolveRegion(BadRaster src, BadRaster dst, int x0, int y0, int w, int h,
+                               int engine, KScratch scratch) {
+        final int n = stages.length;
+        // need[s] is the region stage s must produce: x0, y0, x1, y1
+        final int [][] need = new int[n][];
+        // uniform[s] is the one kernel of stage s over need[s], or null
+        final Kernel [] uniform = new Kernel[n];
+        // inside[s] is true if stage s never clamps the taps it reads
+        final boolean [] inside = new boolean[n];
+        need[n - 1] = new int[] {x0, y0, x0 + w, y0 + h};
+        for (int s = n - 1; s >= 0; --s) {
+            int [] r = need[s];
+            int hw = 0, hh = 0;
+            Kernel only = null;
+            boolean single = true;
+            for (KTask region : regions[s]) {
+                if (!overlaps(region, r))
+                    continue;
+                Kernel k = region.getKernel();
+                hw = Math.max(hw, k.getHalfWidth());
+                hh = Math.max(hh, k.getHalfHeight());
+                if (only == null)
+                    only = k;
+                else if (only != k)
+                    single = false;
+            }
+            uniform[s] = single ? only : null;
+            inside[s] = r[0] - hw >= 0 && r[1] - hh >= 0 && r[2] + hw <= width && r[3] + hh <= height;
+            if (s > 0)
+                need[s - 1] = new int[] {Math.max(r[0] - hw, 0), Math.max(r[1] - hh, 0),
+                                         Math.min(r[2] + hw, width), Math.min(r[3] + hh, height)};
+        }
+        // Run the stages in groups; a group of several stages is composed
+        BadRaster in = src;
+        int buffer = 0;
+        for (int a = 0; a < n; ) {
+            int b = a;
+            Kernel kernel = uniform[a];
+            while (composition && kernel != null && b + 1 < n && uniform[b + 1] != null && inside[b + 1]) {
+                Kernel next = compose(kernel, uniform[b + 1]);
+                int [] r = need[b + 1];
+                int [] q = need[b];
+                long together = KTiler.cost(next, engine, r[2] - r[0], r[3] - r[1]);
+                long apart = KTiler.cost(kernel, engine, q[2] - q[0], q[3] - q[1])
+                           + KTiler.cost(uniform[b + 1], engine, r[2] - r[0], r[3] - r[1]);
+                if (together >= apart)
+                    break;
+                kernel = next;
+                ++b;
+            }
+            int [] r = need[b];
+            BadRaster out = dst;
+            if (b < n - 1) {
+                int size = (r[2] - r[0])*(r[3] - r[1])*src.getBands();
+                out = new KWindow(src.getBands(), width, height, scratch.getStage(buffer, size),
+                                  r[0], r[1], r[2] - r[0], r[3] - r[1]);
+                buffer ^= 1;
+            }
+            if (b > a) {
+                KOps.convolveKernelRegion(in, out, r[0], r[1], r[2] - r[0], r[3] - r[1], kernel, engine, scratch);
+            } else {
+                for (KTask region : regions[a]) {
+                    if (!overlaps(region, r))
+                        continue;
+                    int rx0 = Math.max(r[0], region.getOriginX());
+                    int ry0 = Math.max(r[1], region.getOriginY());
+                    int rx1 = Math.min(r[2], region.getOriginX() + region.getWidth());
+                    int ry1 = Math.min(r[3], region.getOriginY() + region.getHeight());
+                    KOps.convolveKernelRegion(in, out, rx0, ry0, rx1 - rx0, ry1 - ry0,
+                                              region.getKernel(), engine, scratch);
+                }
+            }
+            in = out;
+            a = b + 1;
+        }
+    }
+    /**
+     * Check whether a region overlaps a rectangle.
+     * @param region The region
+     * @param r The rectangle: x0, y0, x1, y1
+     * @return True if they share at least one pixel
+     */
+    private static boolean overlaps(KTask region, int [] r) {
+        return region.getOriginX() < r[2] && region.getOriginX() + region.getWidth() > r[0]
+            && region.getOriginY() < r[3] && region.getOriginY() + region.getHeight() > r[1];
+    }
+    /**
+     * Get the kernel equivalent to convolving with one kernel and then
+     * another (away from the image edges), memoized.
+     * @param first The kernel applied first
+     * @param second The kernel applied second
+     * @return The composed kernel, locked and analyzed
+     */
+    private Kernel compose(Kernel first, Kernel second) {
+        List<Kernel> key = Arrays.asList(first, second);
+        Kernel k = composed.get(key);
+        if (k == null) {
+            k = composeKernels(first, second);
+            Kernel raced = composed.putIfAbsent(key, k);
+            if (raced != null)
+                k = raced;
+        }
+        return k;
+    }
+    /**
+     * Compose two kernels: the result is as wide as both kernels together,
+     * less one, and every pair of taps adds its product at the sum of their
+     * offsets. The result is not normalized again.
+     * @param first The kernel applied first
+     * @param second The kernel applied second
+     * @return A new locked kernel, analyzed for separability and rectangles
+     */
+    public static Kernel composeKernels(Kernel first, Kernel second) {
+        int w = first.getWidth() + second.getWidth() - 1;
+        int h = first.getHeight() + second.getHeight() - 1;
+        double [][] sum = new double[w][h];
+        for (int i = 0; i < first.getWidth(); ++i)
+            for (int j = 0; j < first.getHeight(); ++j) {
+                float a = first.get(i, j);
+                if (a == 0.0f)
+                    continue;
+                for (int p = 0; p < second.getWidth(); ++p)
+                    for (int q = 0; q < second.getHeight(); ++q)
+                        sum[i + p][j + q] += a * (double)second.get(p, q);
+            }
+        float [][] taps = new float[w][h];
+        for (int i = 0; i < w; ++i)
+            for (int j = 0; j < h; ++j)
+                taps[i][j] = (float)sum[i][j];
+        Kernel kernel = new Kernel(w, h);
+        kernel.setKernel(taps);
+        kernel.analyzeSeparability();
+        kernel.analyzeRectangles();
+        kernel.lock();
+        return kernel;
+    }
+    /**
+     * Run the chain the plain way, for comparison: one full pass over the
+     * image per stage, through a full-size intermediate raster, each pass
+     * tiled like a single kernel.
+     * @param scheduler The scheduler that runs the passes
+     * @param src The source raster
+     * @param dst The destination raster
+     * @param nThreads The number of worker threads
+     * @param adaptive Regroup blocks by estimated cost
+     * @param engine The engine of every task
+     * @return The number of tasks run, over all passes
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int runStaged(KScheduler scheduler, BadRaster src, BadRaster dst, int nThreads,
+                         boolean adaptive, int engine) throws InterruptedException {
+        int count = 0;
+        BadRaster in = src;
+        BadRaster [] spare = new BadRaster[2];
+        for (int s = 0; s < stages.length; ++s) {
+            BadRaster out = dst;
+            if (s < stages.length - 1) {
+                if (spare[s & 1] == null)
+                    spare[s & 1] = new BadRaster(src.getBands(), width, height, BadRaster.LAYOUT_INTERLEAVED);
+                out = spare[s & 1];
+            }
+            List<KTask> tasks = KTiler.tile(in, out, stages[s], blockSize, nThreads, adaptive, engine);
+            scheduler.run(tasks);
+            count += tasks.size();
+            in = out;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,992 @@
+/*
+ * KCluster.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * KCluster spreads the tasks of an image over worker processes, on this
+ * machine or others, so one image (or a batch of frames) can use more
+ * processors than one JVM has.
+ * <br>
+ * The coordinator cuts the image into square shards, about SHARDS_PER_WORKER
+ * per worker, and clips the tasks (regions with one modulated kernel each,
+ * as built by KTiler) to every shard. A shard is shipped as the source
+ * pixels it reads (the shard plus the largest halo of its kernels, clamped
+ * to the image), its clipped tasks, and every kernel the worker has not
+ * seen yet on that connection, with its separability and rectangle
+ * analysis, so the worker picks the same engine the coordinator would.
+ * The worker wraps the pixels in KWindows, runs the tasks on its own
+ * KScheduler and sends back the filtered shard, which the coordinator
+ * writes into the destination raster.
+ * <br>
+ * Every worker connection has a sender and a reader thread (KThreads I/O
+ * threads). The sender takes shards from one queue shared by all workers,
+ * but at most WINDOW at a time are in flight per worker: the next shard's
+ * pixels are only read and sent when an earlier result has come back, so a
+ * slow worker gets fewer shards and nothing is buffered without bound on
+ * either side. If a connection fails (the worker process died, or a shard
+ * took longer than TIMEOUT) the worker is dropped and its shards in flight
+ * go back to the front of the queue for the others; a shard that has been
+ * lost MAX_ATTEMPTS times, or a task a worker reports as failed, fails the
+ * image.
+ * <br>
+ * Workers convolve in float: field, chain and temporal tasks are not
+ * supported, and a fixed-point destination receives rounded float results.
+ * <br>
+ * Protocol (big-endian, DataOutputStream): coordinator to worker,
+ * {@code int MSG_KERNEL, int id, int width, int height, floats taps,
+ * floats row factor, floats column factor, floats rectangles} and
+ * {@code int MSG_SHARD, int id, int bands, int width, int height,
+ * int x, y, w, h (input), floats pixels, int x, y, w, h (output),
+ * int tasks, tasks x (int x, y, w, h, kernel id, engine)}; worker to
+ * coordinator, {@code int MSG_RESULT, int id, floats pixels} or
+ * {@code int MSG_ERROR, int id, String message}. "floats" is an int count
+ * (-1 for null) followed by the values.
+ */
+public class KCluster {
+    /** Default TCP port of a worker */
+    public static final int DEFAULT_PORT = 4004;
+    /** Default number of local worker processes for --spawn */
+    public static final int DEFAULT_SPAWN = 2;
+    /** Shards in flight per worker */
+    public static final int WINDOW = 2;
+    /** Shards per worker the image is cut into */
+    public static final int SHARDS_PER_WORKER = 4;
+    /** How many workers a shard may be lost on before the image fails */
+    public static final int MAX_ATTEMPTS = 3;
+    /** How long a worker may take to connect or to return a shard, in milliseconds */
+    public static final int TIMEOUT = 60000;
+    /** How often a waiting run checks for failures, in milliseconds */
+    private static final int POLL_INTERVAL = 50;
+    /** Floats per chunk when pixels are copied to and from a socket */
+    private static final int CHUNK = 8192;
+    private static final int MSG_KERNEL = 1;
+    private static final int MSG_SHARD = 2;
+    private static final int MSG_RESULT = 3;
+    private static final int MSG_ERROR = 4;
+    /** The first line a worker prints, followed by its port */
+    private static final String READY = "KCluster worker listening on port ";
+    /** The worker connections, dead ones included (for the statistics) */
+    private final List<Link> links = new CopyOnWriteArrayList<Link>();
+    /** Local worker processes started by {@code spawn} */
+    private final List<Process> processes = new ArrayList<Process>();
+    /** Shards waiting for a worker, from every run in progress */
+    private final BlockingDeque<Shard> pending = new LinkedBlockingDeque<Shard>();
+    /** The next shard id */
+    private final AtomicInteger nextShard = new AtomicInteger();
+    /** Shards sent again after losing a worker */
+    private final AtomicInteger retries = new AtomicInteger();
+    /** Pixels filtered and time spent by the completed runs */
+    private final AtomicLong pixels = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+    /** Set once the cluster is closed */
+    private volatile boolean closed;
+
+    /** One run: an image being filtered */
+    private static class Job {
+        final BadRaster src;
+        final BadRaster dst;
+        CountDownLatch done;
+        volatile IOException failure;
+        Job(BadRaster src, BadRaster dst) {
+            this.src = src;
+            this.dst = dst;
+        }
+        synchronized void fail(IOException e) {
+            if (failure == null)
+                failure = e;
+        }
+    }
+
+    /** A shard: the part of an image one worker filters at a time */
+    private static class Shard {
+        final int id;
+        final Job job;
+        /** The source pixels the tasks read: x, y, width, height */
+        final int ix, iy, iw, ih;
+        /** The output: x, y, width, height */
+        final int ox, oy, ow, oh;
+        /** The tasks clipped to the output (regions, kernels and engines only) */
+        final List<KTask> tasks;
+        /** How many workers the shard was lost on */
+        int attempts;
+        Shard(int id, Job job, int [] in, int [] out, List<KTask> tasks) {
+            this.id = id;
+            this.job = job;
+            ix = in[0];
+            iy = in[1];
+            iw = in[2] - in[0];
+            ih = in[3] - in[1];
+            ox = out[0];
+            oy = out[1];
+            ow = out[2] - out[0];
+            oh = out[3] - out[1];
+            this.tasks = tasks;
+        }
+    }
+
+    /**
+     * Connect to running workers.
+     * @param addresses The workers' addresses
+     * @throws IOException if a worker cannot be reached
+     */
+    public KCluster(List<InetSocketAddress> addresses) throws IOException {
+        try {
+            for (InetSocketAddress address : addresses)
+                links.add(new Link(address));
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Parse worker addresses: comma-separated host:port pairs, or bare
+     * ports on the loopback interface.
+     * @param list The addresses, e.g. {@code 4004,otherhost:4004}
+     * @return The addresses
+     * @throws IllegalArgumentException if a port is not a number
+     */
+    public static List<InetSocketAddress> parseAddresses(String list) {
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        for (String item : list.split(",")) {
+            item = item.trim();
+            if (item.isEmpty())
+                continue;
+            int colon = item.lastIndexOf(':');
+            try {
+                if (colon < 0)
+                    addresses.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(item)));
+                else
+                    addresses.add(new InetSocketAddress(item.substring(0, colon), Integer.parseInt(item.substring(colon + 1))));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad worker address: " + item + " (expected host:port)");
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Start worker processes on this machine and connect to them. Each is
+     * a JVM running {@code KCluster --worker} on a free loopback port, with
+     * this JVM's class path and options; it exits when the cluster is
+     * closed or this JVM goes away.
+     * @param nWorkers The number of worker processes
+     * @param nThreads The number of worker threads in each
+     * @return The cluster
+     * @throws IOException if a worker fails to start
+     */
+    public static KCluster spawn(int nWorkers, int nThreads) throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments())
+            if (!arg.startsWith("-agentlib") && !arg.startsWith("-javaagent") && !arg.startsWith("-Xrunjdwp"))
+                command.add(arg);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("KCluster");
+        command.add("--worker");
+        command.add("--port=0");
+        command.add("--threads=" + Math.max(1, nThreads));
+        command.add("--spawned");
+        List<Process> started = new ArrayList<Process>();
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        try {
+            for (int i = 0; i < nWorkers; ++i) {
+                Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+                started.add(process);
+                final BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream()));
+                String line;
+                while ((line = out.readLine()) != null && !line.startsWith(READY))
+                    System.err.println("[worker " + i + "] " + line);
+                if (line == null)
+                    throw new IOException("Worker process " + i + " exited before listening");
+                addresses.add(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                                    Integer.parseInt(line.substring(READY.length()).trim())));
+                // pass on anything else the worker prints
+                final String prefix = "[worker " + i + "] ";
+                Thread drain = KThreads.newIOThread("kernelizr-cluster-output", new Runnable() {
+                    public void run() {
+                        try {
+                            String l;
+                            while ((l = out.readLine()) != null)
+                                System.err.println(prefix + l);
+                        } catch (IOException e) {
+                            // the worker is gone
+                        }
+                    }
+                });
+                drain.setDaemon(true);
+                drain.start();
+            }
+            KCluster cluster = new KCluster(addresses);
+            cluster.processes.addAll(started);
+            return cluster;
+        } catch (IOException e) {
+            for (Process process : started)
+                process.destroyForcibly();
+            throw e;
+        }
+    }
+
+    /**
+     * Build a cluster from command-line options: {@code --cluster=addresses}
+     * connects to running workers (see {@code parseAddresses}),
+     * {@code --spawn[=n]} starts n local worker processes with
+     * {@code --worker-threads=t} threads each (the processors shared out
+     * between them by default).
+     * @param options The options
+     * @return The cluster, or null if neither option was given
+     * @throws IOException if a worker cannot be reached or started
+     */
+    public static KCluster fromOptions(KOptions options) throws IOException {
+        if (options.has("cluster"))
+            return new KCluster(parseAddresses(options.getString("cluster", "")));
+        if (!options.has("spawn"))
+            return null;
+        int n = options.getString("spawn", "true").equals("true") ? DEFAULT_SPAWN : options.getInt("spawn", DEFAULT_SPAWN);
+        n = Math.max(1, n);
+        return spawn(n, options.getInt("worker-threads", Math.max(1, Runtime.getRuntime().availableProcessors()/n)));
+    }
+
+    /**
+     * Drain a task queue and filter every task on the workers, returning
+     * when the whole image is done.
+     * @param src The source raster
+     * @param dst The destination raster
+     * @param tasks The tasks
+     * @return The number of tasks run
+     * @throws IOException if the image could not be filtered (see {@code run})
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int run(BadRaster src, BadRaster dst, TaskQueue tasks) throws IOException, InterruptedException {
+        List<KTask> list = new ArrayList<KTask>(tasks.length());
+        KTask task;
+        while ((task = tasks.pop()) != null)
+            list.add(task);
+        return run(src, dst, list);
+    }
+
+    /**
+     * Filter every task on the workers, returning when the whole image is
+     * done. Several threads may run images at once; their shards share
+     * the workers.
+     * @param src The source raster
+     * @param dst The destination raster
+     * @param tasks The tasks (one kernel each; their rasters are ignored)
+     * @return The number of tasks run
+     * @throws IOException if every worker is gone, a shard was lost too
+     * often, or a worker failed to filter a shard
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IllegalArgumentException if a task has a field, a chain or a
+     * temporal kernel
+     */
+    public int run(BadRaster src, BadRaster dst, List<KTask> tasks) throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        if (getLiveWorkers() == 0)
+            throw new IOException("No live workers");
+        Job job = new Job(src, dst);
+        List<Shard> shards = partition(job, tasks);
+        job.done = new CountDownLatch(shards.size());
+        pending.addAll(shards);
+        while (!job.done.await(POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+            if (job.failure == null && getLiveWorkers() == 0)
+                job.fail(new IOException("Every worker is gone"));
+            if (job.failure != null)
+                break;
+        }
+        if (job.failure != null) {
+            pending.removeIf(s -> s.job == job);
+            throw new IOException(job.failure.getMessage(), job.failure);
+        }
+        pixels.addAndGet((long)src.getWidth()*src.getHeight());
+        nanos.addAndGet(System.nanoTime() - start);
+        return tasks.size();
+    }
+
+    /**
+     * Cut an image into square shards (multiples of KOps.BLOCK_SIZE),
+     * SHARDS_PER_WORKER per live worker, and clip the tasks to them.
+     * @param job The run
+     * @param tasks The tasks
+     * @return The shards that hold at least one task
+     */
+    private List<Shard> partition(Job job, List<KTask> tasks) {
+        final int width = job.src.getWidth();
+        final int height = job.src.getHeight();
+        long count = Math.max(1, getLiveWorkers()) * (long)SHARDS_PER_WORKER;
+        int side = (int)Math.ceil(Math.sqrt((double)width*height/count));
+        side = Math.max(1, (side + KOps.BLOCK_SIZE - 1)/KOps.BLOCK_SIZE)*KOps.BLOCK_SIZE;
+        for (KTask task : tasks)
+            if (task.getField() != null || task.getChain() != null || task.getTemporal() != null)
+                throw new IllegalArgumentException("KCluster runs tasks with one kernel each, not kernel fields, chains or temporal kernels");
+        List<Shard> shards = new ArrayList<Shard>();
+        for (int y = 0; y < height; y += side) {
+            for (int x = 0; x < width; x += side) {
+                int [] out = {x, y, Math.min(x + side, width), Math.min(y + side, height)};
+                List<KTask> parts = new ArrayList<KTask>();
+                int left = 0, top = 0, right = 0, bottom = 0;
+                for (KTask task : tasks) {
+                    int x0 = Math.max(out[0], task.getOriginX());
+                    int y0 = Math.max(out[1], task.getOriginY());
+                    int x1 = Math.min(out[2], task.getOriginX() + task.getWidth());
+                    int y1 = Math.min(out[3], task.getOriginY() + task.getHeight());
+                    if (x0 >= x1 || y0 >= y1)
+                        continue;
+                    Kernel kernel = task.getKernel();
+                    KTask part = new KTask(x0, y0, x1 - x0, y1 - y0);
+                    part.setKernel(kernel);
+                    part.setEngine(task.getEngine());
+                    parts.add(part);
+                    left = Math.max(left, kernel.getHalfWidth());
+                    top = Math.max(top, kernel.getHalfHeight());
+                    right = Math.max(right, kernel.getWidth() - 1 - kernel.getHalfWidth());
+                    bottom = Math.max(bottom, kernel.getHeight() - 1 - kernel.getHalfHeight());
+                }
+                if (parts.isEmpty())
+                    continue;
+                int [] in = {Math.max(out[0] - left, 0), Math.max(out[1] - top, 0),
+                             Math.min(out[2] + right, width), Math.min(out[3] + bottom, height)};
+                shards.add(new Shard(nextShard.getAndIncrement(), job, in, out, parts));
+            }
+        }
+        return shards;
+    }
+
+    /**
+     * Get the number of workers still connected.
+     * @return The number of live workers
+     */
+    public int getLiveWorkers() {
+        int live = 0;
+        for (Link link : links)
+            if (!link.dead)
+                ++live;
+        return live;
+    }
+
+    /**
+     * Get the number of shards sent again after losing a worker.
+     * @return The number of retries
+     */
+    public int getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Get the worker processes started by {@code spawn}.
+     * @return The processes (empty for a cluster of running workers)
+     */
+    public List<Process> getProcesses() {
+        return Collections.unmodifiableList(processes);
+    }
+
+    /**
+     * Get the throughput of the runs so far and the traffic per worker.
+     * @return Several lines of text
+     */
+    public String getStats() {
+        StringBuilder stats = new StringBuilder();
+        double seconds = nanos.get()/1e9;
+        stats.append(String.format("cluster: %d of %d workers live, %.2f Mpixel in %.3f s (%.2f Mpixel/s), %d shards retried\n",
+                                   getLiveWorkers(), links.size(), pixels.get()/1e6, seconds,
+                                   (seconds > 0) ? pixels.get()/1e6/seconds : 0.0, retries.get()));
+        for (Link link : links)
+            stats.append(String.format("  %-21s %5d shards, %8.2f MB sent, %8.2f MB received%s\n",
+                                       link.name, link.shards.get(), link.sent.get()/1e6, link.received.get()/1e6,
+                                       link.dead ? " (lost)" : ""));
+        return stats.toString();
+    }
+
+    /**
+     * Disconnect from the workers, and stop the worker processes started
+     * by {@code spawn}. Runs in progress fail.
+     */
+    public void close() {
+        closed = true;
+        for (Link link : links)
+            link.die(null);
+        for (Process process : processes) {
+            try {
+                process.getOutputStream().close(); // a spawned worker exits at the end of its input
+                if (!process.waitFor(5, TimeUnit.SECONDS))
+                    process.destroyForcibly();
+            } catch (Exception e) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    /**
+     * A connection to one worker, with its sender and reader threads.
+     */
+    private class Link {
+        final String name;
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        /** Free places for shards in flight */
+        final Semaphore window = new Semaphore(WINDOW);
+        /** The shards sent and not returned, by id */
+        final Map<Integer,Shard> inFlight = new ConcurrentHashMap<Integer,Shard>();
+        /** The ids of the kernels sent so far (sender thread only) */
+        final Map<Kernel,Integer> kernels = new IdentityHashMap<Kernel,Integer>();
+        final AtomicInteger shards = new AtomicInteger();
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong received = new AtomicLong();
+        final Thread sender;
+        final Thread reader;
+        volatile boolean dead;
+
+        Link(InetSocketAddress address) throws IOException {
+            name = address.getHostString() + ":" + address.getPort();
+            socket = new Socket();
+            socket.connect(address, TIMEOUT);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(TIMEOUT);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            sender = KThreads.newIOThread("kernelizr-cluster-send", new Runnable() {
+                public void run() {
+                    send();
+                }
+            });
+            reader = KThreads.newIOThread("kernelizr-cluster-receive", new Runnable() {
+                public void run() {
+                    receive();
+                }
+            });
+            sender.setDaemon(true);
+            reader.setDaemon(true);
+            sender.start();
+            reader.start();
+        }
+
+        /**
+         * Send shards while there is room in the window.
+         */
+        void send() {
+            try {
+                while (!dead) {
+                    window.acquire();
+                    Shard shard = pending.take();
+                    synchronized (this) {
+                        if (dead) {
+                            pending.addFirst(shard);
+                            return;
+                        }
+                        if (shard.job.failure != null) {
+                            window.release();
+                            continue;
+                        }
+                        inFlight.put(shard.id, shard);
+                    }
+                    write(shard);
+                }
+            } catch (InterruptedException e) {
+                // dropped or closed
+            } catch (IOException | RuntimeException e) {
+                die(e);
+            }
+        }
+
+        /**
+         * Send one shard, and the kernels it needs that were not sent yet.
+         * @param shard The shard
+         * @throws IOException if the connection fails
+         */
+        void write(Shard shard) throws IOException {
+            final int bands = shard.job.src.getBands();
+            long bytes = 0;
+            int [] ids = new int[shard.tasks.size()];
+            for (int t = 0; t < ids.length; ++t) {
+                Kernel kernel = shard.tasks.get(t).getKernel();
+                Integer id = kernels.get(kernel);
+                if (id == null) {
+                    id = kernels.size();
+                    kernels.put(kernel, id);
+                    out.writeInt(MSG_KERNEL);
+                    out.writeInt(id);
+                    bytes += 8 + writeKernel(out, kernel);
+                }
+                ids[t] = id;
+            }
+            float [] pixels = new float[shard.iw*shard.ih*bands];
+            shard.job.src.readBlock(shard.ix, shard.iy, shard.iw, shard.ih, pixels);
+            out.writeInt(MSG_SHARD);
+            out.writeInt(shard.id);
+            out.writeInt(bands);
+            out.writeInt(shard.job.src.getWidth());
+            out.writeInt(shard.job.src.getHeight());
+            writeRect(out, shard.ix, shard.iy, shard.iw, shard.ih);
+            bytes += writeFloats(out, pixels, pixels.length);
+            writeRect(out, shard.ox, shard.oy, shard.ow, shard.oh);
+            out.writeInt(ids.length);
+            for (int t = 0; t < ids.length; ++t) {
+                KTask task = shard.tasks.get(t);
+                writeRect(out, task.getOriginX(), task.getOriginY(), task.getWidth(), task.getHeight());
+                out.writeInt(ids[t]);
+                out.writeInt(task.getEngine());
+            }
+            out.flush();
+            sent.addAndGet(bytes + 60 + 24L*ids.length);
+        }
+
+        /**
+         * Receive results and write them into the destination rasters.
+         */
+        void receive() {
+            try {
+                while (!dead) {
+                    int type;
+                    try {
+                        type = in.readInt();
+                    } catch (SocketTimeoutException e) {
+                        if (inFlight.isEmpty())
+                            continue; // idle, not stuck
+                        throw e;
+                    }
+                    int id = in.readInt();
+                    if (type == MSG_RESULT) {
+                        float [] pixels = readFloats(in);
+                        received.addAndGet(12 + 4L*pixels.length);
+                        Shard shard = inFlight.remove(id);
+                        if (shard == null)
+                            continue; // already given to another worker
+                        if (pixels.length != shard.ow*shard.oh*shard.job.dst.getBands())
+                            throw new IOException("Bad result size for shard " + id);
+                        shard.job.dst.writeBlock(shard.ox, shard.oy, shard.ow, shard.oh, pixels);
+                        shards.incrementAndGet();
+                        window.release();
+                        shard.job.done.countDown();
+                    } else if (type == MSG_ERROR) {
+                        String message = in.readUTF();
+                        Shard shard = inFlight.remove(id);
+                        if (shard != null)
+                            shard.job.fail(new IOException("Worker " + name + " failed on shard " + id + ": " + message));
+                        window.release();
+                    } else {
+                        throw new IOException("Unknown message " + type + " from worker " + name);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                die(e);
+            }
+        }
+
+        /**
+         * Drop the connection and queue its shards in flight again (in
+         * front, since they were taken first).
+         * @param cause Why, or null when the cluster is closed
+         */
+        void die(Exception cause) {
+            List<Shard> lost = new ArrayList<Shard>();
+            synchronized (this) {
+                if (dead)
+                    return;
+                dead = true;
+                for (Integer id : inFlight.keySet()) {
+                    Shard shard = inFlight.remove(id);
+                    if (shard != null)
+                        lost.add(shard);
+                }
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+            sender.interrupt();
+            if (closed)
+                return;
+            System.err.printf("KCluster: lost worker %s (%s)%s\n", name, cause,
+                              lost.isEmpty() ? "" : ", retrying " + lost.size() + " shards");
+            for (Shard shard : lost) {
+                if (++shard.attempts >= MAX_ATTEMPTS) {
+                    shard.job.fail(new IOException("Shard " + shard.id + " was lost on " + shard.attempts + " workers", cause));
+                } else {
+                    retries.incrementAndGet();
+                    pending.addFirst(shard);
+                }
+            }
+        }
+    }
+
+    /**
+     * A worker: filters the shards sent by coordinators on its own
+     * scheduler. Every connection is served by its own thread, one shard
+     * at a time.
+     */
+    public static class Worker {
+        private final ServerSocket serverSocket;
+        private final KScheduler scheduler;
+        /** The open connections */
+        private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+
+        /**
+         * Open a worker's socket on the loopback interface.
+         * @param port The port, or 0 for any free port
+         * @param nThreads The number of worker threads
+         * @throws IOException if the socket cannot be opened
+         */
+        public Worker(int port, int nThreads) throws IOException {
+            this(port, nThreads, InetAddress.getLoopbackAddress());
+        }
+
+        /**
+         * Open a worker's socket.
+         * @param port The port, or 0 for any free port
+         * @param nThreads The number of worker threads
+         * @param bind The address to listen on
+         * @throws IOException if the socket cannot be opened
+         */
+        public Worker(int port, int nThreads, InetAddress bind) throws IOException {
+            serverSocket = new ServerSocket(port, 50, bind);
+            scheduler = new KScheduler(KScheduler.MODE_FORKJOIN, nThreads);
+        }
+
+        /**
+         * Get the port the worker listens on.
+         * @return The port
+         */
+        public int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        /**
+         * Accept coordinators until closed.
+         */
+        public void listen() {
+            while (true) {
+                final Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    break; // closed
+                }
+                sockets.add(socket);
+                Thread handler = KThreads.newIOThread("kernelizr-cluster-worker", new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+                handler.setDaemon(true);
+                handler.start();
+            }
+        }
+
+        /**
+         * Accept coordinators on a background thread until closed.
+         * @return This worker
+         */
+        public Worker start() {
+            Thread listener = KThreads.newIOThread("kernelizr-cluster-listen", new Runnable() {
+                public void run() {
+                    listen();
+                }
+            });
+            listener.setDaemon(true);
+            listener.start();
+            return this;
+        }
+
+        /**
+         * Stop listening, drop every connection and stop the worker
+         * threads.
+         */
+        public void close() {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // already closed
+                }
+            }
+            scheduler.shutdown();
+        }
+
+        /**
+         * Serve one coordinator until it disconnects.
+         * @param socket The connection
+         */
+        private void serve(Socket socket) {
+            Map<Integer,Kernel> kernels = new HashMap<Integer,Kernel>();
+            try (Socket s = socket) {
+                s.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 1 << 16));
+                while (true) {
+                    int type;
+                    try {
+                        type = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (type == MSG_KERNEL) {
+                        int id = in.readInt();
+                        kernels.put(id, readKernel(in));
+                    } else if (type == MSG_SHARD) {
+                        int id = in.readInt();
+                        float [] result;
+                        try {
+                            result = filter(in, kernels);
+                        } catch (RuntimeException e) {
+                            out.writeInt(MSG_ERROR);
+                            out.writeInt(id);
+                            out.writeUTF(String.valueOf(e));
+                            out.flush();
+                            continue;
+                        }
+                        out.writeInt(MSG_RESULT);
+                        out.writeInt(id);
+                        writeFloats(out, result, result.length);
+                        out.flush();
+                    } else {
+                        throw new IOException("Unknown message " + type);
+                    }
+                }
+            } catch (IOException e) {
+                // the coordinator is gone
+            } catch (InterruptedException e) {
+                // shutting down
+            } finally {
+                sockets.remove(socket);
+            }
+        }
+
+        /**
+         * Read the rest of a shard and filter it.
+         * @param in The connection
+         * @param kernels The kernels sent on the connection, by id
+         * @return The output pixels, interleaved
+         * @throws IOException if the connection fails
+         * @throws InterruptedException if interrupted while filtering
+         */
+        private float [] filter(DataInputStream in, Map<Integer,Kernel> kernels)
+                throws IOException, InterruptedException {
+            int bands = in.readInt();
+            int width = in.readInt();
+            int height = in.readInt();
+            int [] i = readRect(in);
+            float [] pixels = readFloats(in);
+            int [] o = readRect(in);
+            int count = in.readInt();
+            // read the whole message before anything can fail
+            int [][] regions = new int[count][];
+            int [] ids = new int[count];
+            int [] engines = new int[count];
+            for (int t = 0; t < count; ++t) {
+                regions[t] = readRect(in);
+                ids[t] = in.readInt();
+                engines[t] = in.readInt();
+            }
+            KWindow src = new KWindow(bands, width, height, pixels, i[0], i[1], i[2], i[3]);
+            float [] result = new float[o[2]*o[3]*bands];
+            KWindow dst = new KWindow(bands, width, height, result, o[0], o[1], o[2], o[3]);
+            List<KTask> tasks = new ArrayList<KTask>(count);
+            for (int t = 0; t < count; ++t) {
+                Kernel kernel = kernels.get(ids[t]);
+                if (kernel == null)
+                    throw new IllegalStateException("Unknown kernel " + ids[t]);
+                KTask task = new KTask(regions[t][0], regions[t][1], regions[t][2], regions[t][3]);
+                task.setKernel(kernel);
+                task.setEngine(engines[t]);
+                task.setInputRaster(src);
+                task.setOutputRaster(dst);
+                tasks.add(task);
+            }
+            scheduler.run(tasks);
+            return result;
+        }
+    }
+
+    private static void writeRect(DataOutputStream out, int x, int y, int w, int h) throws IOException {
+        out.writeInt(x);
+        out.writeInt(y);
+        out.writeInt(w);
+        out.writeInt(h);
+    }
+    private static int [] readRect(DataInputStream in) throws IOException {
+        return new int[] {in.readInt(), in.readInt(), in.readInt(), in.readInt()};
+    }
+    /**
+     * Write a count and that many floats (or -1 for null).
+     * @return The number of bytes written
+     */
+    private static long writeFloats(DataOutputStream out, float [] values, int count) throws IOException {
+        if (values == null) {
+            out.writeInt(-1);
+            return 4;
+        }
+        out.writeInt(count);
+        ByteBuffer buffer = ByteBuffer.allocate(4*Math.min(CHUNK, Math.max(count, 1)));
+        for (int i = 0; i < count; i += CHUNK) {
+            int n = Math.min(CHUNK, count - i);
+            buffer.clear();
+            buffer.asFloatBuffer().put(values, i, n);
+            out.write(buffer.array(), 0, 4*n);
+        }
+        return 4 + 4L*count;
+    }
+    private static float [] readFloats(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0)
+            return null;
+        float [] values = new float[count];
+        ByteBuffer buffer = ByteBuffer.allocate(4*Math.min(CHUNK, Math.max(count, 1)));
+        for (int i = 0; i < count; i += CHUNK) {
+            int n = Math.min(CHUNK, count - i);
+            in.readFully(buffer.array(), 0, 4*n);
+            buffer.clear();
+            buffer.asFloatBuffer().get(values, i, n);
+        }
+        return values;
+    }
+    /**
+     * Write a kernel's size, taps and analysis.
+     * @return The number of bytes written
+     */
+    private static long writeKernel(DataOutputStream out, Kernel kernel) throws IOException {
+        int w = kernel.getWidth();
+        int h = kernel.getHeight();
+        float [] taps = new float[w*h];
+        for (int i = 0; i < w; ++i)
+            for (int j = 0; j < h; ++j)
+                taps[i*h + j] = kernel.get(i, j);
+        out.writeInt(w);
+        out.writeInt(h);
+        return 8 + writeFloats(out, taps, taps.length)
+                 + writeFloats(out, kernel.getRowFactor(), w)
+                 + writeFloats(out, kernel.getColumnFactor(), h)
+                 + writeFloats(out, kernel.getRectangles(), kernel.hasRectangles() ? kernel.getRectangles().length : 0);
+    }
+    private static Kernel readKernel(DataInputStream in) throws IOException {
+        int w = in.readInt();
+        int h = in.readInt();
+        float [] flat = readFloats(in);
+        if (flat == null || flat.length != w*h)
+            throw new IOException("Bad kernel taps");
+        float [][] taps = new float[w][h];
+        for (int i = 0; i < w; ++i)
+            System.arraycopy(flat, i*h, taps[i], 0, h);
+        Kernel kernel = new Kernel(w, h);
+        kernel.setKernel(taps);
+        kernel.restoreAnalysis(readFloats(in), readFloats(in), readFloats(in));
+        kernel.lock();
+        return kernel;
+    }
+
+    /**
+     * Run a worker, or measure how throughput scales with the number of
+     * local workers.
+     * <br>
+     * {@code java KCluster --worker [--port=n] [--threads=n] [--bind=address]}
+     * <br>
+     * {@code java KCluster --scale[=n] image_path [kernel_path] [--threads=n] [--runs=n] [--engine=name] [--block=n]}
+     * filters the image with 1 to n (4) spawned workers of {@code threads}
+     * (1) threads each, and prints the best time of {@code runs} (3) runs
+     * for each, next to one local scheduler with as many threads.
+     * @param args The command-line args
+     * @throws Exception if a worker fails to start
+     */
+    public static void main(String[] args) throws Exception {
+        KOptions options = new KOptions(args);
+        if (options.has("worker")) {
+            Worker worker = new Worker(options.getInt("port", DEFAULT_PORT),
+                                       options.getInt("threads", Runtime.getRuntime().availableProcessors()),
+                                       InetAddress.getByName(options.getString("bind", InetAddress.getLoopbackAddress().getHostAddress())));
+            if (options.getFlag("spawned")) {
+                // the coordinator closes our input when done, or by going away
+                Thread watch = KThreads.newIOThread("kernelizr-cluster-watch", new Runnable() {
+                    public void run() {
+                        try {
+                            while (System.in.read() >= 0)
+                                ;
+                        } catch (IOException e) {
+                            // the coordinator is gone
+                        }
+                        System.exit(0);
+                    }
+                });
+                watch.setDaemon(true);
+                watch.start();
+            }
+            System.out.println(READY + worker.getPort());
+            System.out.flush();
+            worker.listen();
+            return;
+        }
+        if (!options.has("scale") || options.positionalCount() < 1) {
+            System.out.println("Usage:");
+            System.out.println("    java KCluster --worker [--port=n] [--threads=n] [--bind=address]");
+            System.out.println("    java KCluster --scale[=n] image_path [kernel_path] [--threads=n] [--runs=n] [--engine=name] [--block=n]");
+            System.exit(1);
+        }
+        int maxWorkers = options.getString("scale", "true").equals("true") ? 4 : options.getInt("scale", 4);
+        int nThreads = options.getInt("threads", 1);
+        int runs = Math.max(1, options.getInt("runs", 3));
+        int engine = KOps.parseEngine(options.getString("engine", "auto"));
+        BadRaster src = new BadRaster(BadRaster.LAYOUT_INTERLEAVED);
+        src.loadFromPath(options.getPositional(0, null));
+        BaseKernel baseKernel = BaseKernel.load(options.getPositional(1, KServer.DEFAULT_KERNEL));
+        BadRaster expected = new BadRaster(src.getBands(), src.getWidth(), src.getHeight(), src.getLayout());
+        BadRaster dst = new BadRaster(src.getBands(), src.getWidth(), src.getHeight(), src.getLayout());
+        List<KTask> tasks = KTiler.tile(src, expected, baseKernel, options.getInt("block", 8), nThreads, true, engine);
+        double mpixels = src.getWidth()*(double)src.getHeight()/1e6;
+        System.out.printf("%dx%d image, %d tasks, %d runs each, %d threads per worker, %d processors\n",
+                          src.getWidth(), src.getHeight(), tasks.size(), runs, nThreads,
+                          Runtime.getRuntime().availableProcessors());
+        KScheduler scheduler = new KScheduler(KScheduler.MODE_FORKJOIN, nThreads);
+        scheduler.run(tasks); // warm-up
+        long local = Long.MAX_VALUE;
+        for (int r = 0; r < runs; ++r) {
+            long t0 = System.nanoTime();
+            scheduler.run(tasks);
+            local = Math.min(local, System.nanoTime() - t0);
+        }
+        scheduler.shutdown();
+        System.out.printf("%-10s %10.2f ms %8.2f Mpixel/s\n", "local", local/1e6, mpixels/(local/1e9));
+        float [] reference = new float[src.getWidth()*src.getHeight()*src.getBands()];
+        float [] actual = new float[reference.length];
+        expected.readBlock(0, 0, src.getWidth(), src.getHeight(), reference);
+        long single = 0;
+        for (int n = 1; n <= maxWorkers; ++n) {
+            KCluster cluster = spawn(n, nThreads);
+            try {
+                cluster.run(src, dst, tasks); // warm-up
+                long best = Long.MAX_VALUE;
+                for (int r = 0; r < runs; ++r) {
+                    long t0 = System.nanoTime();
+                    cluster.run(src, dst, tasks);
+                    best = Math.min(best, System.nanoTime() - t0);
+                }
+                if (n == 1)
+                    single = best;
+                dst.readBlock(0, 0, src.getWidth(), src.getHeight(), actual);
+                float diff = 0;
+                for (int i = 0; i < actual.length; ++i)
+                    diff = Math.max(diff, Math.abs(actual[i] - reference[i]));
+                System.out.printf("%-10s %10.2f ms %8.2f Mpixel/s %6.2fx of 1 worker, max difference %g\n",
+                                  n + ((n == 1) ? " worker" : " workers"), best/1e6, mpixels/(best/1e9),
+                                  (double)single/best, diff);
+            } finally {
+                cluster.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * KEngine.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+/**
+ * KEngine is a convolution engine that is loaded at runtime rather than
+ * linked statically, because it depends on an optional JDK module (see
+ * KVector). Implementations need a public no-arg constructor.
+ */
+public interface KEngine {
+    /**
+     * Convolves a rectangular region of a raster with a kernel, writing the
+     * result directly into the destination raster. Must match
+     * {@code KOps.convolveRegion} up to float rounding.
+     * @param src The source raster.
+     * @param dst The destination raster. Must not be the source raster.
+     * @param x0 The x coordinate of the origin of the region.
+     * @param y0 The y coordinate of the origin of the region.
+     * @param w The width of the region.
+     * @param h The height of the region.
+     * @param kernel The kernel to convolve with.
+     * @param scratch The scratch buffers of the calling thread.
+     */
+    void convolveRegion(BadRaster src, BadRaster dst, int x0, int y0, int w, int h,
+                        Kernel kernel, KScratch scratch);
+}
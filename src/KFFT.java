@@ -0,0 +1,302 @@
+/*
+ * KFFT.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * KFFT convolves raster regions with a kernel through the fast Fourier
+ * transform, using overlap-save over blocks of the region. The cost per
+ * pixel grows with log(block size) instead of the kernel area, so it wins
+ * over direct convolution for large kernels (see the "engine" benchmarks).
+ * This is a pseudo-static class (should not be instantiated).
+ * <br>
+ * For each block of output pixels, the source pixels under the block plus the
+ * kernel halo (clamped to the raster edges, like the direct path) are
+ * gathered into a power-of-two sized array, transformed, multiplied by the
+ * conjugate spectrum of the zero-padded kernel (which turns circular
+ * convolution into the correlation that KOps.convolve2D computes), and
+ * transformed back. Only the outputs that did not wrap around are kept.
+ * Since kernels are real, two bands are packed into the real and imaginary
+ * parts of one complex transform.
+ */
+public final class KFFT {
+    /** Largest block of output pixels (per side) computed by one transform */
+    public static final int MAX_BLOCK = 128;
+    /** FFT regions with at most this many pixels are not split by schedulers */
+    public static final int MIN_SPLIT_AREA = 64*64;
+    /** Twiddle factors by transform size: {cos, sin} of -2*pi*k/n */
+    private static final Map<Integer,float[][]> twiddles = new ConcurrentHashMap<Integer,float[][]>();
+    /** Conjugate kernel spectra by kernel, then by (n << 32 | m) */
+    private static final Map<Kernel,Map<Long,float[]>> spectra = new WeakHashMap<Kernel,Map<Long,float[]>>();
+    /**
+     * Private constructor. Emulates static class behaviour.
+     */
+    private KFFT() {
+        //
+    }
+    /**
+     * Convolves a rectangular region of a raster with a kernel through the
+     * FFT, writing the result directly into the destination raster. Matches
+     * {@code KOps.convolveRegion} up to float rounding.
+     * @param src The source raster.
+     * @param dst The destination raster. Must not be the source raster.
+     * @param x0 The x coordinate of the origin of the region.
+     * @param y0 The y coordinate of the origin of the region.
+     * @param w The width of the region.
+     * @param h The height of the region.
+     * @param kernel The kernel to convolve with.
+     * @param scratch The scratch buffers of the calling thread.
+     */
+    public static void convolveRegion(BadRaster src, BadRaster dst, int x0, int y0, int w, int h,
+                                      Kernel kernel, KScratch scratch) {
+        final int bands = src.getBands();
+        final int kw = kernel.getWidth();
+        final int kh = kernel.getHeight();
+        final int hw = kernel.getHalfWidth();
+        final int hh = kernel.getHalfHeight();
+        // transform size: a block of up to MAX_BLOCK outputs plus the halo
+        final int n = nextPowerOfTwo(Math.min(w, MAX_BLOCK) + kw - 1);
+        final int m = nextPowerOfTwo(Math.min(h, MAX_BLOCK) + kh - 1);
+        final int tw = n - kw + 1;
+        final int th = m - kh + 1;
+        final float [] spectrum = spectrum(kernel, n, m);
+        final float [] re = scratch.getReal(n*m);
+        final float [] im = scratch.getImaginary(n*m);
+        final float [] column = scratch.getTile(2*m);
+        final float scale = 1.0f/(n*m);
+        final float [] s = src.getData();
+        final int sbs = src.getBandStride();
+        final int sxs = src.getXStride();
+        final int sys = src.getYStride();
+        final float [] d = dst.getData();
+        final int dbs = dst.getBandStride();
+        final int dxs = dst.getXStride();
+        final int dys = dst.getYStride();
+        for (int by = y0; by < y0 + h; by += th) {
+            for (int bx = x0; bx < x0 + w; bx += tw) {
+                int ow = Math.min(tw, x0 + w - bx);
+                int oh = Math.min(th, y0 + h - by);
+                for (int b = 0; b < bands; b += 2) {
+                    boolean pair = b + 1 < bands;
+                    // gather the block plus halo; P(p,q) = src(bx-hw+p, by-hh+q)
+                    Arrays.fill(re, 0, n*m, 0.0f);
+                    Arrays.fill(im, 0, n*m, 0.0f);
+                    if (s != null) {
+                        for (int q = 0; q < oh + kh - 1; ++q) {
+                            int row = clamp(by - hh + q, src.getHeight())*sys + b*sbs;
+                            for (int p = 0; p < ow + kw - 1; ++p) {
+                                int index = row + clamp(bx - hw + p, src.getWidth())*sxs;
+                                re[q*n + p] = s[index];
+                                if (pair)
+                                    im[q*n + p] = s[index + sbs];
+                            }
+                        }
+                    } else {
+                        for (int q = 0; q < oh + kh - 1; ++q) {
+                            for (int p = 0; p < ow + kw - 1; ++p) {
+                                re[q*n + p] = src.getPixelComponent(bx - hw + p, by - hh + q, b);
+                                if (pair)
+                                    im[q*n + p] = src.getPixelComponent(bx - hw + p, by - hh + q, b + 1);
+                            }
+                        }
+                    }
+                    transform2D(re, im, n, m, false, column);
+                    // multiply by the conjugate kernel spectrum (stored conjugated)
+                    for (int i = 0; i < n*m; ++i) {
+                        float a = re[i], c = im[i];
+                        float kr = spectrum[2*i], ki = spectrum[2*i + 1];
+                        re[i] = a*kr - c*ki;
+                        im[i] = a*ki + c*kr;
+                    }
+                    transform2D(re, im, n, m, true, column);
+                    for (int v = 0; v < oh; ++v) {
+                        for (int u = 0; u < ow; ++u) {
+                            if (d != null) {
+                                int index = (bx + u)*dxs + (by + v)*dys + b*dbs;
+                                d[index] = re[v*n + u]*scale;
+                                if (pair)
+                                    d[index + dbs] = im[v*n + u]*scale;
+                            } else {
+                                dst.setPixelComponent(re[v*n + u]*scale, bx + u, by + v, b);
+                                if (pair)
+                                    dst.setPixelComponent(im[v*n + u]*scale, bx + u, by + v, b + 1);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+    /**
+     * Get the estimated cost per output pixel and band of convolving a large
+     * region with a kernel through the FFT, in multiply-adds: a forward and
+     * an inverse transform of n*m points (each log2(n*m) butterfly stages)
+     * shared by the outputs of one block, halved since two bands share a
+     * transform.
+     * @param kernel The kernel
+     * @return The estimated cost per pixel
+     */
+    public static long costPerPixel(Kernel kernel) {
+        int n = nextPowerOfTwo(MAX_BLOCK + kernel.getWidth() - 1);
+        int m = nextPowerOfTwo(MAX_BLOCK + kernel.getHeight() - 1);
+        int tw = n - kernel.getWidth() + 1;
+        int th = m - kernel.getHeight() + 1;
+        int stages = Integer.numberOfTrailingZeros(n*m);
+        return Math.max(1, 2L*n*m*stages/((long)tw*th));
+    }
+    /**
+     * Get the conjugated spectrum of a kernel zero-padded to n x m, cached
+     * per kernel and size.
+     * @param kernel The kernel
+     * @param n The transform width (a power of two)
+     * @param m The transform height (a power of two)
+     * @return Interleaved real/imaginary parts, row-major, n*m complex values
+     */
+    static float[] spectrum(Kernel kernel, int n, int m) {
+        Long key = ((long)n << 32) | m;
+        synchronized (spectra) {
+            Map<Long,float[]> bySize = spectra.get(kernel);
+            if (bySize != null && bySize.containsKey(key))
+                return bySize.get(key);
+        }
+        float [] re = new float[n*m];
+        float [] im = new float[n*m];
+        for (int i = 0; i < kernel.getWidth(); ++i)
+            for (int j = 0; j < kernel.getHeight(); ++j)
+                re[j*n + i] = kernel.get(i, j);
+        transform2D(re, im, n, m, false, new float[2*m]);
+        float [] spectrum = new float[2*n*m];
+        for (int i = 0; i < n*m; ++i) {
+            spectrum[2*i] = re[i];
+            spectrum[2*i + 1] = -im[i];
+        }
+        synchronized (spectra) {
+            Map<Long,float[]> bySize = spectra.get(kernel);
+            if (bySize == null) {
+                bySize = new HashMap<Long,float[]>();
+                spectra.put(kernel, bySize);
+            }
+            bySize.put(key, spectrum);
+        }
+        return spectrum;
+    }
+    /**
+     * In-place 2D FFT of a row-major n x m complex array: every row, then
+     * every column. The inverse transform is not scaled.
+     * @param re The real parts
+     * @param im The imaginary parts
+     * @param n The width (a power of two)
+     * @param m The height (a power of two)
+     * @param inverse Compute the inverse transform
+     * @param column Scratch space for 2*m floats
+     */
+    static void transform2D(float [] re, float [] im, int n, int m, boolean inverse, float [] column) {
+        for (int q = 0; q < m; ++q)
+            transform(re, im, q*n, 0, n, inverse);
+        // columns are gathered into contiguous scratch so the butterflies
+        // do not stride across rows
+        for (int p = 0; p < n; ++p) {
+            for (int q = 0; q < m; ++q) {
+                column[q] = re[q*n + p];
+                column[m + q] = im[q*n + p];
+            }
+            // real parts at [0,m), imaginary parts at [m,2m)
+            transform(column, column, 0, m, m, inverse);
+            for (int q = 0; q < m; ++q) {
+                re[q*n + p] = column[q];
+                im[q*n + p] = column[m + q];
+            }
+        }
+    }
+    /**
+     * In-place iterative radix-2 FFT of n complex values. Value k has its
+     * real part at re[off + k] and imaginary part at im[off + k + imOffset].
+     * @param re The array holding the real parts
+     * @param im The array holding the imaginary parts
+     * @param off The index of the first real part
+     * @param imOffset The distance from a real part to its imaginary part
+     * (0 when re and im are separate arrays)
+     * @param n The length (a power of two)
+     * @param inverse Compute the inverse transform
+     */
+    private static void transform(float [] re, float [] im, int off, int imOffset, int n, boolean inverse) {
+        if (n < 2)
+            return;
+        int imOff = off + imOffset;
+        // bit-reversal permutation
+        for (int i = 1, j = 0; i < n; ++i) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1)
+                j ^= bit;
+            j ^= bit;
+            if (i < j) {
+                float t = re[off + i]; re[off + i] = re[off + j]; re[off + j] = t;
+                t = im[imOff + i]; im[imOff + i] = im[imOff + j]; im[imOff + j] = t;
+            }
+        }
+        float [][] table = twiddles(n);
+        float [] cos = table[0];
+        float [] sin = table[1];
+        float sign = inverse ? -1.0f : 1.0f;
+        for (int len = 2; len <= n; len <<= 1) {
+            int half = len >> 1;
+            int step = n/len;
+            for (int i = 0; i < n; i += len) {
+                for (int k = 0; k < half; ++k) {
+                    float wr = cos[k*step];
+                    float wi = sign*sin[k*step];
+                    int a = i + k;
+                    int b = a + half;
+                    float xr = re[off + b]*wr - im[imOff + b]*wi;
+                    float xi = re[off + b]*wi + im[imOff + b]*wr;
+                    re[off + b] = re[off + a] - xr;
+                    im[imOff + b] = im[imOff + a] - xi;
+                    re[off + a] += xr;
+                    im[imOff + a] += xi;
+                }
+            }
+        }
+    }
+    /**
+     * Get the twiddle factors for a transform size.
+     * @param n The transform size
+     * @return {cos, sin} of -2*pi*k/n for k in [0, n/2)
+     */
+    private static float[][] twiddles(int n) {
+        float [][] table = twiddles.get(n);
+        if (table == null) {
+            table = new float[2][n/2];
+            for (int k = 0; k < n/2; ++k) {
+                double angle = -2.0*Math.PI*k/n;
+                table[0][k] = (float)Math.cos(angle);
+                table[1][k] = (float)Math.sin(angle);
+            }
+            twiddles.put(n, table);
+        }
+        return table;
+    }
+    /**
+     * Clamp a coordinate to [0, size).
+     * @param v The coordinate
+     * @param size The raster dimension
+     * @return The clamped coordinate
+     */
+    private static int clamp(int v, int size) {
+        return (v < 0) ? 0 : (v >= size) ? size - 1 : v;
+    }
+    /**
+     * Get the smallest power of two that is at least n.
+     * @param n A positive number
+     * @return The power of two
+     */
+    static int nextPowerOfTwo(int n) {
+        int p = 1;
+        while (p < n)
+            p <<= 1;
+        return p;
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * KField.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+import java.util.*;
+
+/**
+ * KField describes a BaseKernel as a continuous function of space. The base
+ * kernel is modulated at a small grid of sample points spread evenly over
+ * the image (corners included), and the kernel at any pixel is the bilinear
+ * interpolation of the four samples around it. The kernel therefore varies
+ * smoothly from pixel to pixel, whatever the size of the tasks: there are no
+ * seams at block edges and no Kernel object per block, so tasks can be as
+ * large as scheduling wants.
+ * <br>
+ * Regions are convolved in blocks like {@code KOps.convolveRegion}. For each
+ * output row the taps of every sample column the block touches are first
+ * interpolated vertically; pixels between two columns with the same taps (in
+ * practice most of them, since modulated kernels of the same trimmed size are
+ * shared) are convolved as one run, directly with the sample's own kernel
+ * when no interpolation was needed at all. Only the pixels between columns
+ * with different taps pay for a horizontal blend of the taps.
+ */
+public class KField {
+    /** Default number of sample points per axis */
+    public static final int DEFAULT_SAMPLES = 17;
+    /**
+     * Regions with at most this many pixels are not split by schedulers:
+     * each region interpolates its sample columns once per row
+     */
+    public static final int MIN_SPLIT_AREA = 64*64;
+    /** Number of sample points along x */
+    private final int samplesX;
+    /** Number of sample points along y */
+    private final int samplesY;
+    /** The modulated kernel at each sample point, row by row */
+    private final Kernel [] samples;
+    /** The taps of each sample, zero-padded to width x height, centered */
+    private final float [][] padded;
+    /** The width of the padded taps (the widest sample) */
+    private final int width;
+    /** The height of the padded taps (the tallest sample) */
+    private final int height;
+    /** The sample with the most taps */
+    private final Kernel largest;
+    /**
+     * Create a field with the same number of sample points along both axes.
+     * @param baseKernel The base kernel, modulated at each sample point
+     * @param samples The number of sample points per axis (at least 2)
+     */
+    public KField(BaseKernel baseKernel, int samples) {
+        this(baseKernel, samples, samples);
+    }
+    /**
+     * Create a field.
+     * @param baseKernel The base kernel, modulated at each sample point
+     * @param samplesX The number of sample points along x (at least 2)
+     * @param samplesY The number of sample points along y (at least 2)
+     */
+    public KField(BaseKernel baseKernel, int samplesX, int samplesY) {
+        if (samplesX < 2 || samplesY < 2)
+            throw new IllegalArgumentException("A kernel field needs at least 2 sample points per axis");
+        this.samplesX = samplesX;
+        this.samplesY = samplesY;
+        samples = new Kernel[samplesX*samplesY];
+        int w = 1, h = 1;
+        Kernel big = null;
+        for (int sy = 0; sy < samplesY; ++sy) {
+            for (int sx = 0; sx < samplesX; ++sx) {
+                float [] point = {sx/(float)(samplesX - 1), sy/(float)(samplesY - 1)};
+                Kernel kernel = baseKernel.getModulatedKernel(point);
+                samples[sy*samplesX + sx] = kernel;
+                w = Math.max(w, kernel.getWidth());
+                h = Math.max(h, kernel.getHeight());
+                if (big == null || kernel.getWidth()*kernel.getHeight() > big.getWidth()*big.getHeight())
+                    big = kernel;
+            }
+        }
+        width = w;
+        height = h;
+        largest = big;
+        // samples that share a Kernel share their padded taps, so equal taps
+        // can be recognized by reference
+        padded = new float[samples.length][];
+        Map<Kernel,float[]> byKernel = new IdentityHashMap<Kernel,float[]>();
+        for (int s = 0; s < samples.length; ++s) {
+            Kernel kernel = samples[s];
+            float [] taps = byKernel.get(kernel);
+            if (taps == null) {
+                taps = new float[width*height];
+                float [] flat = kernel.getFlatKernel();
+                int ox = (width - kernel.getWidth())/2;
+                int oy = (height - kernel.getHeight())/2;
+                for (int j = 0; j < kernel.getHeight(); ++j)
+                    System.arraycopy(flat, j*kernel.getWidth(), taps, (oy + j)*width + ox, kernel.getWidth());
+                byKernel.put(kernel, taps);
+            }
+            padded[s] = taps;
+        }
+    }
+    /**
+     * Get the kernel at a sample point.
+     * @param sx The sample column
+     * @param sy The sample row
+     * @return The modulated kernel at that point
+     */
+    public Kernel getSample(int sx, int sy) {
+        return samples[sy*samplesX + sx];
+    }
+    /**
+     * Get the sample with the most taps, which bounds the cost per pixel.
+     * @return The largest sample kernel
+     */
+    public Kernel getLargestKernel() {
+        return largest;
+    }
+    /**
+     * Get the width of the interpolated kernels.
+     * @return The width of the widest sample
+     */
+    public int getWidth() {
+        return width;
+    }
+    /**
+     * Get the height of the interpolated kernels.
+     * @return The height of the tallest sample
+     */
+    public int getHeight() {
+        return height;
+    }
+    /**
+     * Get the interpolated kernel at a pixel, as flat row-major taps of
+     * getWidth() x getHeight() (see {@code Kernel.getFlatKernel}). Slow; for
+     * checking convolveRegion.
+     * @param x The x coordinate of the pixel
+     * @param y The y coordinate of the pixel
+     * @param imageWidth The width of the image
+     * @param imageHeight The height of the image
+     * @return The taps at the pixel
+     */
+    public float[] getTaps(int x, int y, int imageWidth, int imageHeight) {
+        float tx = x*(samplesX - 1)/(float)Math.max(1, imageWidth - 1);
+        float ty = y*(samplesY - 1)/(float)Math.max(1, imageHeight - 1);
+        int cx = cell(tx, samplesX);
+        int cy = cell(ty, samplesY);
+        float fx = tx - cx;
+        float fy = ty - cy;
+        float [] taps = new float[width*height];
+        for (int t = 0; t < taps.length; ++t) {
+            float top = (1 - fx)*padded[cy*samplesX + cx][t] + fx*padded[cy*samplesX + cx + 1][t];
+            float bottom = (1 - fx)*padded[(cy + 1)*samplesX + cx][t] + fx*padded[(cy + 1)*samplesX + cx + 1][t];
+            taps[t] = (1 - fy)*top + fy*bottom;
+        }
+        return taps;
+    }
+    /**
+     * Convolves a rectangular region of a raster with the field, writing the
+     * result directly into the destination raster. Pixel (x,y) of a WxH
+     * raster sits at the normalized point (x/(W-1), y/(H-1)), so the raster
+     * must be the whole image. Taps outside the raster are clamped to the
+     * edge, as everywhere else.
+     * @param src The source raster.
+     * @param dst The destination raster. Must not be the source raster.
+     * @param x0 The x coordinate of the origin of the region.
+     * @param y0 The y coordinate of the origin of the region.
+     * @param w The width of the region.
+     * @param h The height of the region.
+     * @param scratch The scratch buffers of the calling thread.
+     */
+    public void convolveRegion(BadRaster src, BadRaster dst, int x0, int y0, int w, int h, KScratch scratch) {
+        final int bands = src.getBands();
+        final int size = width*height;
+        final float tx = (samplesX - 1)/(float)Math.max(1, src.getWidth() - 1);
+        final float ty = (samplesY - 1)/(float)Math.max(1, src.getHeight() - 1);
+        // taps of each sample column for the current row: buffer sx holds a
+        // vertical blend, buffer samplesX a pixel's horizontal blend
+        final float [][] blends = scratch.getTaps(samplesX + 1, size);
+        final float [][] rows = new float[samplesX][];
+        final Kernel [] rowKernels = new Kernel[samplesX];
+        for (int by = y0; by < y0 + h; by += KOps.BLOCK_SIZE) {
+            for (int bx = x0; bx < x0 + w; bx += KOps.BLOCK_SIZE) {
+                final int bw = Math.min(KOps.BLOCK_SIZE, x0 + w - bx);
+                final int bh = Math.min(KOps.BLOCK_SIZE, y0 + h - by);
+                final int pw = bw + width - 1;
+                final int stride = pw*bands;
+                final float [] in = scratch.getHalo(pw*(bh + height - 1)*bands);
+                final float [] out = scratch.getBlock(bw*bh*bands);
+                src.readBlock(bx - width/2, by - height/2, pw, bh + height - 1, in);
+                final int first = cell(bx*tx, samplesX);
+                final int last = cell((bx + bw - 1)*tx, samplesX) + 1;
+                for (int v = 0; v < bh; ++v) {
+                    float t = (by + v)*ty;
+                    int cy = cell(t, samplesY);
+                    blendRows(cy, t - cy, first, last, rows, rowKernels, blends, size);
+                    int u = 0;
+                    while (u < bw) {
+                        float s = (bx + u)*tx;
+                        int cx = cell(s, samplesX);
+                        if (rows[cx] == rows[cx + 1]) {
+                            // the same taps up to the next sample column
+                            int end = u + 1;
+                            while (end < bw && cell((bx + end)*tx, samplesX) == cx)
+                                ++end;
+                            Kernel kernel = rowKernels[cx];
+                            if (kernel != null) {
+                                int ox = (width - kernel.getWidth())/2;
+                                int oy = (height - kernel.getHeight())/2;
+                                KOps.convolveRow(in, (v + oy)*stride + (u + ox)*bands, stride, bands,
+                                                 kernel.getFlatKernel(), kernel.getWidth(), kernel.getHeight(),
+                                                 out, (v*bw + u)*bands, end - u);
+                            } else {
+                                KOps.convolveRow(in, v*stride + u*bands, stride, bands, rows[cx], width, height,
+                                                 out, (v*bw + u)*bands, end - u);
+                            }
+                            u = end;
+                        } else {
+                            float fx = s - cx;
+                            float [] a = rows[cx];
+                            float [] b = rows[cx + 1];
+                            float [] taps = blends[samplesX];
+                            for (int i = 0; i < size; ++i)
+                                taps[i] = a[i] + fx*(b[i] - a[i]);
+                            KOps.convolveRow(in, v*stride + u*bands, stride, bands, taps, width, height,
+                                             out, (v*bw + u)*bands, 1);
+                            ++u;
+                        }
+                    }
+                }
+                dst.writeBlock(bx, by, bw, bh, out);
+            }
+        }
+    }
+    /**
+     * Interpolate the taps of sample columns [first, last] vertically, at a
+     * fraction fy of the way from sample row cy to row cy+1. Columns whose
+     * two samples are the same kernel get that kernel's padded taps (and the
+     * kernel itself, in rowKernels); neighbouring columns with the same pair
+     * of samples share one blend.
+     */
+    private void blendRows(int cy, float fy, int first, int last,
+                           float [][] rows, Kernel [] rowKernels, float [][] blends, int size) {
+        for (int sx = first; sx <= last; ++sx) {
+            int top = cy*samplesX + sx;
+            int bottom = top + samplesX;
+            if (samples[top] == samples[bottom] || fy == 0.0f) {
+                rows[sx] = padded[top];
+                rowKernels[sx] = samples[top];
+            } else if (sx > first && samples[top] == samples[top - 1] && samples[bottom] == samples[bottom - 1]) {
+                rows[sx] = rows[sx - 1];
+                rowKernels[sx] = null;
+            } else {
+                float [] a = padded[top];
+                float [] b = padded[bottom];
+                float [] taps = blends[sx];
+                for (int i = 0; i < size; ++i)
+                    taps[i] = a[i] + fy*(b[i] - a[i]);
+                rows[sx] = taps;
+                rowKernels[sx] = null;
+            }
+        }
+    }
+    /**
+     * Get the cell (the sample interval) a position falls in.
+     * @param t The position, in sample intervals
+     * @param samples The number of sample points along the axis
+     * @return The index of the sample before the position
+     */
+    private static int cell(float t, int samples) {
+        return Math.min((int)t, samples - 2);
+    }
+}
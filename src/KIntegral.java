@@ -0,0 +1,199 @@
+/*
+ * KIntegral.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+import java.util.*;
+
+/**
+ * KIntegral convolves raster regions with kernels that are sums of a few
+ * weighted rectangles (see {@code Kernel.analyzeRectangles}) through a
+ * summed-area table (integral image). The sum of the pixels under a
+ * rectangle is four table lookups whatever its size, so the cost per pixel
+ * depends on the number of rectangle corners, not the kernel size. This is
+ * a pseudo-static class (should not be instantiated).
+ * <br>
+ * Regions are processed in blocks like the direct path: each block plus its
+ * kernel halo is copied into a per-thread buffer ({@code BadRaster.readBlock},
+ * which clamps the edges), its summed-area table is built per band in double
+ * precision, and every output is a weighted sum of table entries at fixed
+ * offsets. Keeping the tables per block keeps them in cache, needs no pass
+ * over the whole image before the tasks start, and keeps the sums small
+ * enough that the differences of table entries lose nothing.
+ */
+public final class KIntegral {
+    /** Regions with at most this many pixels are not split by schedulers */
+    public static final int MIN_SPLIT_AREA = 64*64;
+    /**
+     * Fixed cost per output pixel and band, in direct multiply-adds: the
+     * double-precision sum and its conversion (calibrated against the
+     * direct path, which does about one multiply-add per ns)
+     */
+    public static final int OUTPUT_COST = 12;
+    /** Table lookups by kernel */
+    private static final Map<Kernel,Lookups> lookups = new WeakHashMap<Kernel,Lookups>();
+    /**
+     * Private constructor. Emulates static class behaviour.
+     */
+    private KIntegral() {
+        //
+    }
+    /**
+     * Convolves a rectangular region of a raster with a rectangle-decomposed
+     * kernel, writing the result directly into the destination raster.
+     * Matches {@code KOps.convolveRegion} up to float rounding (and the
+     * rectangle tolerance).
+     * @param src The source raster.
+     * @param dst The destination raster. Must not be the source raster.
+     * @param x0 The x coordinate of the origin of the region.
+     * @param y0 The y coordinate of the origin of the region.
+     * @param w The width of the region.
+     * @param h The height of the region.
+     * @param kernel The kernel to convolve with. Must have rectangles.
+     * @param scratch The scratch buffers of the calling thread.
+     */
+    public static void convolveRegion(BadRaster src, BadRaster dst, int x0, int y0, int w, int h,
+                                      Kernel kernel, KScratch scratch) {
+        final int bands = src.getBands();
+        final int kw = kernel.getWidth();
+        final int kh = kernel.getHeight();
+        final int hw = kernel.getHalfWidth();
+        final int hh = kernel.getHalfHeight();
+        final Lookups table = lookups(kernel);
+        final int [] px = table.x;
+        final int [] py = table.y;
+        final double [] weight = table.weight;
+        final int points = weight.length;
+        final int [] offset = new int[points];
+        for (int by = y0; by < y0 + h; by += KOps.BLOCK_SIZE) {
+            for (int bx = x0; bx < x0 + w; bx += KOps.BLOCK_SIZE) {
+                final int bw = Math.min(KOps.BLOCK_SIZE, x0 + w - bx);
+                final int bh = Math.min(KOps.BLOCK_SIZE, y0 + h - by);
+                final int pw = bw + kw - 1;
+                final int ph = bh + kh - 1;
+                final int stride = (pw + 1)*bands;
+                final float [] in = scratch.getHalo(pw*ph*bands);
+                final double [] sat = scratch.getSums((ph + 1)*stride);
+                final float [] out = scratch.getBlock(bw*bh*bands);
+                src.readBlock(bx - hw, by - hh, pw, ph, in);
+                // sat(x,y) = sum of in over [0,x) x [0,y), at y*stride + x*bands
+                Arrays.fill(sat, 0, stride, 0.0);
+                for (int y = 0; y < ph; ++y) {
+                    final int row = (y + 1)*stride;
+                    for (int b = 0; b < bands; ++b) {
+                        double run = 0.0;
+                        sat[row + b] = 0.0;
+                        for (int x = 0; x < pw; ++x) {
+                            run += in[(y*pw + x)*bands + b];
+                            sat[row + (x + 1)*bands + b] = sat[row - stride + (x + 1)*bands + b] + run;
+                        }
+                    }
+                }
+                for (int p = 0; p < points; ++p)
+                    offset[p] = py[p]*stride + px[p]*bands;
+                for (int v = 0; v < bh; ++v) {
+                    for (int u = 0; u < bw; ++u) {
+                        final int base = v*stride + u*bands;
+                        final int o = (v*bw + u)*bands;
+                        for (int b = 0; b < bands; ++b) {
+                            double sum = 0.0;
+                            for (int p = 0; p < points; ++p)
+                                sum += weight[p]*sat[base + b + offset[p]];
+                            out[o + b] = (float)sum;
+                        }
+                    }
+                }
+                dst.writeBlock(bx, by, bw, bh, out);
+            }
+        }
+    }
+    /**
+     * Get the estimated cost per output pixel and band of convolving a large
+     * region with a kernel through summed-area tables, in direct
+     * multiply-adds: two per lookup (a double multiply-add on a scattered
+     * load), two per table entry shared by the outputs of a block, and
+     * OUTPUT_COST.
+     * @param kernel The kernel. Must have rectangles.
+     * @return The estimated cost per pixel
+     */
+    public static long costPerPixel(Kernel kernel) {
+        int n = KOps.BLOCK_SIZE;
+        long build = 2L*(n + kernel.getWidth())*(n + kernel.getHeight())/((long)n*n);
+        return 2L*lookups(kernel).weight.length + build + OUTPUT_COST;
+    }
+    /**
+     * Get the table lookups of a kernel, cached per kernel. A rectangle
+     * covering taps [x0,x1) x [y0,y1) with weight c contributes
+     * c*(sat(x1,y1) - sat(x0,y1) - sat(x1,y0) + sat(x0,y0)), relative to
+     * the top left of the output pixel's halo; lookups at the same corner
+     * are merged and those that cancel are dropped.
+     * @param kernel The kernel. Must have rectangles.
+     * @return The lookups
+     */
+    static Lookups lookups(Kernel kernel) {
+        synchronized (lookups) {
+            Lookups cached = lookups.get(kernel);
+            if (cached != null)
+                return cached;
+        }
+        float [] rectangles = kernel.getRectangles();
+        if (rectangles == null)
+            throw new IllegalArgumentException("Kernel has no rectangle decomposition");
+        Map<Long,Double> corners = new TreeMap<Long,Double>();
+        for (int r = 0; r < rectangles.length; r += 5) {
+            long xa = (long)rectangles[r], ya = (long)rectangles[r + 1];
+            long xb = (long)rectangles[r + 2], yb = (long)rectangles[r + 3];
+            double c = rectangles[r + 4];
+            addCorner(corners, xb, yb, c);
+            addCorner(corners, xa, yb, -c);
+            addCorner(corners, xb, ya, -c);
+            addCorner(corners, xa, ya, c);
+        }
+        List<Long> keys = new ArrayList<Long>();
+        for (Map.Entry<Long,Double> e : corners.entrySet())
+            if (e.getValue() != 0.0)
+                keys.add(e.getKey());
+        int [] px = new int[keys.size()];
+        int [] py = new int[keys.size()];
+        double [] weight = new double[keys.size()];
+        for (int i = 0; i < keys.size(); ++i) {
+            long key = keys.get(i);
+            py[i] = (int)(key >>> 32);
+            px[i] = (int)key;
+            weight[i] = corners.get(key);
+        }
+        Lookups table = new Lookups(px, py, weight);
+        synchronized (lookups) {
+            lookups.put(kernel, table);
+        }
+        return table;
+    }
+    /**
+     * Add a weight to a corner, keyed (y << 32 | x) so lookups run row by row.
+     */
+    private static void addCorner(Map<Long,Double> corners, long x, long y, double c) {
+        Long key = (y << 32) | x;
+        Double old = corners.get(key);
+        corners.put(key, (old == null) ? c : old + c);
+    }
+
+    /**
+     * The table lookups of a kernel: lookup p reads the table at
+     * (x[p], y[p]) relative to the top left of the output pixel's halo and
+     * adds weight[p] times it.
+     */
+    static final class Lookups {
+        /** The x offsets */
+        final int [] x;
+        /** The y offsets */
+        final int [] y;
+        /** The weights */
+        final double [] weight;
+        Lookups(int [] x, int [] y, double [] weight) {
+            this.x = x;
+            this.y = y;
+            this.weight = weight;
+        }
+    }
+}
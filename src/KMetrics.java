@@ -0,0 +1,446 @@
+/*
+ * KMetrics.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.google.gson.*;
+
+/**
+ * KMetrics records what the worker threads do, for tuning the block size
+ * and thread count. This is a pseudo-static class (should not be
+ * instantiated).
+ * <br>
+ * The schedulers report every task region they run (see KScheduler and
+ * KWorker) with its queue wait and run time, both from System.nanoTime.
+ * Each thread records into its own Recorder (counters, latency histograms,
+ * kernel sizes and optionally trace spans), so recording takes no locks and
+ * shares no cache lines; the recorders are only read once the runs are
+ * over. Every KScheduler.run adds its wall time, and each recorder notes
+ * the runs it took part in, so the idle time of a worker is the wall time
+ * of its runs minus its busy time: a thread that only served some of the
+ * runs (a pool that was replaced, a fork-join worker that was retired) is
+ * not charged for the others. Runs are numbered in the order they end, so
+ * the accounting assumes one scheduler runs at a time, as in Kernelizr.
+ * <br>
+ * Recording is off by default and then costs one volatile read per region.
+ * At the end of a run the summary can be printed, written as JSON, and the
+ * spans written as a Chrome trace-event file (chrome://tracing, Perfetto).
+ */
+public final class KMetrics {
+    /** Whether task regions are recorded */
+    private static volatile boolean enabled;
+    /** Whether spans are kept for the trace */
+    private static volatile boolean tracing;
+    /** Every thread's recorder, in the order the threads first recorded */
+    private static final Queue<Recorder> recorders = new ConcurrentLinkedQueue<Recorder>();
+    /** The id of the next recorder (its trace track) */
+    private static final AtomicInteger nextId = new AtomicInteger();
+    /** The recorder of the current thread */
+    private static final ThreadLocal<Recorder> recorder = new ThreadLocal<Recorder>() {
+        @Override
+        protected Recorder initialValue() {
+            Recorder r = new Recorder(Thread.currentThread().getName(), nextId.getAndIncrement());
+            recorders.add(r);
+            return r;
+        }
+    };
+    /** Total wall time of the scheduler runs, in ns (only the running thread writes) */
+    private static volatile long wallNanos;
+    /** Number of scheduler runs: the number of the run in progress */
+    private static volatile int batches;
+    /** The wall time of each scheduler run, in ns, by number */
+    private static volatile long[] batchNanos = new long[64];
+    /** Start of the first run, the zero of the trace clock */
+    private static volatile long origin;
+    /**
+     * Private constructor. Emulates static class behaviour.
+     */
+    private KMetrics() {
+        //
+    }
+
+    /**
+     * Start recording, discarding anything recorded so far.
+     * @param trace Also keep a span per task region for {@code writeTrace}
+     */
+    public static void enable(boolean trace) {
+        reset();
+        tracing = trace;
+        enabled = true;
+    }
+    /**
+     * Stop recording. What was recorded is kept.
+     */
+    public static void disable() {
+        enabled = false;
+    }
+    /**
+     * Check whether recording is on.
+     * @return True if task regions are recorded
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+    /**
+     * Discard everything recorded. Must not be called while tasks run.
+     */
+    public static void reset() {
+        for (Recorder r : recorders)
+            r.clear();
+        wallNanos = 0;
+        batches = 0;
+        batchNanos = new long[64];
+        origin = 0;
+    }
+    /**
+     * Get a timestamp if recording is on.
+     * @return System.nanoTime(), or 0 if recording is off
+     */
+    public static long now() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Record a task region that has just finished on the current thread.
+     * @param task The task the region belongs to
+     * @param w The width of the region
+     * @param h The height of the region
+     * @param x0 The x coordinate of the region
+     * @param y0 The y coordinate of the region
+     * @param queued When the region was handed to the scheduler ({@code now})
+     * @param start When the region started running ({@code now})
+     */
+    public static void task(KTask task, int x0, int y0, int w, int h, long queued, long start) {
+        long end = System.nanoTime();
+        if (start == 0)
+            return; // recording was switched on while the region ran
+        Kernel kernel = task.getKernel();
+        int engine = KOps.engineFor(task);
+        recorder.get().add(x0, y0, w, h, kernel.getWidth(), kernel.getHeight(), engine,
+                           KTiler.cost(kernel, engine, w, h)*task.getInputRaster().getBands(),
+                           queued, start, end);
+    }
+    /**
+     * Record the wall time of one scheduler run.
+     * @param start When the run started ({@code now})
+     * @param end When the last task of the run finished
+     */
+    public static void batch(long start, long end) {
+        if (start == 0)
+            return;
+        if (origin == 0)
+            origin = start;
+        if (batches == batchNanos.length)
+            batchNanos = Arrays.copyOf(batchNanos, 2*batches);
+        batchNanos[batches] = end - start;
+        wallNanos += end - start;
+        ++batches;
+    }
+
+    /**
+     * Build the summary of everything recorded: totals, per-worker busy and
+     * idle time, task latency and queue wait histograms, and the effective
+     * kernel sizes.
+     * @return The summary as a JSON object
+     */
+    public static JsonObject summary() {
+        Histogram latency = new Histogram();
+        Histogram wait = new Histogram();
+        Map<Long,long[]> kernels = new TreeMap<Long,long[]>();
+        long tasks = 0, pixels = 0, multiplyAdds = 0, busy = 0, workerWall = 0;
+        double maxUtilization = 0;
+        int workers = 0;
+        JsonArray workerArray = new JsonArray();
+        for (Recorder r : recorders) {
+            if (r.tasks == 0)
+                continue;
+            ++workers;
+            tasks += r.tasks;
+            pixels += r.pixels;
+            multiplyAdds += r.multiplyAdds;
+            busy += r.busyNanos;
+            long wall = r.wallNanos();
+            workerWall += wall;
+            maxUtilization = Math.max(maxUtilization, ratio(r.busyNanos, wall));
+            latency.add(r.latency);
+            wait.add(r.wait);
+            for (Map.Entry<Long,long[]> e : r.kernels.entrySet()) {
+                long[] sum = kernels.get(e.getKey());
+                if (sum == null)
+                    kernels.put(e.getKey(), sum = new long[2]);
+                sum[0] += e.getValue()[0];
+                sum[1] += e.getValue()[1];
+            }
+            JsonObject w = new JsonObject();
+            w.addProperty("thread", r.name);
+            w.addProperty("tasks", r.tasks);
+            w.addProperty("pixels", r.pixels);
+            w.addProperty("busySeconds", r.busyNanos/1e9);
+            w.addProperty("runs", r.batches.cardinality());
+            w.addProperty("idleSeconds", Math.max(0, wall - r.busyNanos)/1e9);
+            w.addProperty("utilization", ratio(r.busyNanos, wall));
+            w.addProperty("pixelsPerBusySecond", ratio(r.pixels*1e9, r.busyNanos));
+            workerArray.add(w);
+        }
+        JsonObject o = new JsonObject();
+        o.addProperty("batches", batches);
+        o.addProperty("wallSeconds", wallNanos/1e9);
+        o.addProperty("workers", workers);
+        o.addProperty("tasks", tasks);
+        o.addProperty("pixels", pixels);
+        o.addProperty("multiplyAdds", multiplyAdds);
+        o.addProperty("pixelsPerSecond", ratio(pixels*1e9, wallNanos));
+        // mean busy fraction of the workers over the runs each took part in,
+        // and how far the busiest is above the mean
+        o.addProperty("utilization", ratio(busy, workerWall));
+        o.addProperty("imbalance", ratio(maxUtilization, ratio(busy, workerWall)));
+        o.add("taskMicros", latency.toJson());
+        o.add("queueWaitMicros", wait.toJson());
+        JsonArray kernelArray = new JsonArray();
+        for (Map.Entry<Long,long[]> e : kernels.entrySet()) {
+            JsonObject k = new JsonObject();
+            k.addProperty("width", (int)(e.getKey() >>> 32));
+            k.addProperty("height", (int)(long)e.getKey());
+            k.addProperty("regions", e.getValue()[0]);
+            k.addProperty("pixels", e.getValue()[1]);
+            kernelArray.add(k);
+        }
+        o.add("kernels", kernelArray);
+        o.add("workerThreads", workerArray);
+        return o;
+    }
+    /**
+     * Print a short summary: totals, latency percentiles and one line per
+     * worker thread.
+     * @param out The stream to print to
+     */
+    public static void printSummary(PrintStream out) {
+        JsonObject s = summary();
+        out.printf("Metrics: %d tasks in %d runs, %.1f Mpixels/s, utilization %.0f%%, imbalance %.2f\n",
+                   s.get("tasks").getAsLong(), s.get("batches").getAsInt(),
+                   s.get("pixelsPerSecond").getAsDouble()/1e6, 100*s.get("utilization").getAsDouble(),
+                   s.get("imbalance").getAsDouble());
+        JsonObject t = s.getAsJsonObject("taskMicros");
+        JsonObject q = s.getAsJsonObject("queueWaitMicros");
+        out.printf("  task time  us: p50 %.1f, p90 %.1f, p99 %.1f, max %.1f\n",
+                   t.get("p50").getAsDouble(), t.get("p90").getAsDouble(),
+                   t.get("p99").getAsDouble(), t.get("max").getAsDouble());
+        out.printf("  queue wait us: p50 %.1f, p90 %.1f, p99 %.1f, max %.1f\n",
+                   q.get("p50").getAsDouble(), q.get("p90").getAsDouble(),
+                   q.get("p99").getAsDouble(), q.get("max").getAsDouble());
+        for (JsonElement e : s.getAsJsonArray("workerThreads")) {
+            JsonObject w = e.getAsJsonObject();
+            out.printf("  %-28s %6d tasks, busy %8.3f s, idle %8.3f s (%3.0f%%)\n",
+                       w.get("thread").getAsString(), w.get("tasks").getAsLong(),
+                       w.get("busySeconds").getAsDouble(), w.get("idleSeconds").getAsDouble(),
+                       100*w.get("utilization").getAsDouble());
+        }
+    }
+    /**
+     * Write the summary as JSON.
+     * @param file The file to write
+     * @throws IOException if the file cannot be written
+     */
+    public static void writeSummary(File file) throws IOException {
+        try (Writer out = new BufferedWriter(new FileWriter(file))) {
+            new GsonBuilder().setPrettyPrinting().serializeSpecialFloatingPointValues().create().toJson(summary(), out);
+        }
+    }
+    /**
+     * Write the recorded spans as a Chrome trace-event file: one complete
+     * ("X") event per task region on its worker's track, with the region,
+     * kernel size and queue wait as arguments. Needs {@code enable(true)}.
+     * @param file The file to write
+     * @throws IOException if the file cannot be written
+     */
+    public static void writeTrace(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            out.println("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+            boolean first = true;
+            for (Recorder r : recorders) {
+                if (r.tasks == 0)
+                    continue;
+                out.printf("%s{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":%d,\"args\":{\"name\":%s}}",
+                           first ? "" : ",\n", r.id, new Gson().toJson(r.name));
+                first = false;
+                long[] s = r.spans;
+                for (int i = 0; i < r.spanCount; i += Recorder.SPAN_FIELDS) {
+                    // x, y, w, h, kw, kh, engine, queued, start, end
+                    out.printf(Locale.ROOT, ",\n{\"name\":\"%dx%d\",\"cat\":\"%s\",\"ph\":\"X\",\"pid\":1,\"tid\":%d,"
+                               + "\"ts\":%.3f,\"dur\":%.3f,\"args\":{\"x\":%d,\"y\":%d,\"w\":%d,\"h\":%d,\"waitUs\":%.3f}}",
+                               s[i + 4], s[i + 5], KOps.engineName((int)s[i + 6]), r.id,
+                               (s[i + 8] - origin)/1e3, (s[i + 9] - s[i + 8])/1e3,
+                               s[i], s[i + 1], s[i + 2], s[i + 3], (s[i + 8] - s[i + 7])/1e3);
+                }
+            }
+            out.println("\n]}");
+        }
+    }
+    /**
+     * Divide, returning 0 for an empty denominator.
+     */
+    private static double ratio(double a, double b) {
+        return (b == 0) ? 0.0 : a/b;
+    }
+
+    /**
+     * The counters of one thread. Only that thread writes them.
+     */
+    private static class Recorder {
+        /** Longs per span in {@code spans} */
+        static final int SPAN_FIELDS = 10;
+        final String name;
+        final int id;
+        long tasks, pixels, multiplyAdds, busyNanos;
+        final Histogram latency = new Histogram();
+        final Histogram wait = new Histogram();
+        /** (kernel width << 32 | height) to {regions, pixels} */
+        final Map<Long,long[]> kernels = new HashMap<Long,long[]>();
+        /** The scheduler runs this thread ran a region of */
+        final BitSet batches = new BitSet();
+        long[] spans = new long[0];
+        int spanCount;
+        Recorder(String name, int id) {
+            this.name = name;
+            this.id = id;
+        }
+        void add(int x0, int y0, int w, int h, int kw, int kh, int engine, long cost,
+                 long queued, long start, long end) {
+            ++tasks;
+            batches.set(KMetrics.batches);
+            pixels += (long)w*h;
+            multiplyAdds += cost;
+            busyNanos += end - start;
+            latency.record(end - start);
+            wait.record(Math.max(0, start - queued));
+            Long key = ((long)kw << 32) | kh;
+            long[] k = kernels.get(key);
+            if (k == null)
+                kernels.put(key, k = new long[2]);
+            ++k[0];
+            k[1] += (long)w*h;
+            if (tracing) {
+                if (spanCount + SPAN_FIELDS > spans.length)
+                    spans = Arrays.copyOf(spans, Math.max(1024, 2*spans.length));
+                long[] s = spans;
+                int i = spanCount;
+                s[i] = x0; s[i + 1] = y0; s[i + 2] = w; s[i + 3] = h;
+                s[i + 4] = kw; s[i + 5] = kh; s[i + 6] = engine;
+                s[i + 7] = queued; s[i + 8] = start; s[i + 9] = end;
+                spanCount += SPAN_FIELDS;
+            }
+        }
+        /**
+         * Get the wall time of the scheduler runs this thread took part in.
+         */
+        long wallNanos() {
+            long[] walls = batchNanos;
+            long sum = 0;
+            for (int b = batches.nextSetBit(0); b >= 0 && b < KMetrics.batches; b = batches.nextSetBit(b + 1))
+                sum += walls[b];
+            return sum;
+        }
+        void clear() {
+            tasks = pixels = multiplyAdds = busyNanos = 0;
+            batches.clear();
+            latency.clear();
+            wait.clear();
+            kernels.clear();
+            spans = new long[0];
+            spanCount = 0;
+        }
+    }
+
+    /**
+     * A histogram of nanosecond durations with 8 buckets per power of two,
+     * so percentiles are within 12.5%.
+     */
+    static class Histogram {
+        /** Sub-buckets per power of two (as a shift) */
+        private static final int SUB_BITS = 3;
+        private final long[] counts = new long[(64 - SUB_BITS + 1) << SUB_BITS];
+        private long count, total, max;
+
+        /**
+         * Get the bucket of a value: values below 8 have their own bucket,
+         * larger ones are bucketed by exponent and their top mantissa bits.
+         */
+        static int bucket(long v) {
+            if (v < (1 << SUB_BITS))
+                return (int)v;
+            int e = 63 - Long.numberOfLeadingZeros(v);
+            return ((e - SUB_BITS + 1) << SUB_BITS) + (int)((v >>> (e - SUB_BITS)) & ((1 << SUB_BITS) - 1));
+        }
+        /**
+         * Get the largest value that falls in a bucket.
+         */
+        static long upperBound(int bucket) {
+            if (bucket < (1 << SUB_BITS))
+                return bucket;
+            int e = (bucket >> SUB_BITS) + SUB_BITS - 1;
+            long mantissa = (bucket & ((1 << SUB_BITS) - 1)) | (1 << SUB_BITS);
+            return ((mantissa + 1) << (e - SUB_BITS)) - 1;
+        }
+        void record(long v) {
+            ++counts[bucket(v)];
+            ++count;
+            total += v;
+            max = Math.max(max, v);
+        }
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length; ++i)
+                counts[i] += other.counts[i];
+            count += other.count;
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+        void clear() {
+            Arrays.fill(counts, 0);
+            count = total = max = 0;
+        }
+        /**
+         * Get a percentile.
+         * @param q The fraction of values at or below the result, in (0,1]
+         * @return The upper bound of the bucket holding that value
+         */
+        long percentile(double q) {
+            long rank = (long)Math.ceil(q*count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; ++i) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0)
+                    return Math.min(upperBound(i), max);
+            }
+            return max;
+        }
+        /**
+         * Summarize in microseconds: count, mean, percentiles, max and the
+         * non-empty buckets.
+         */
+        JsonObject toJson() {
+            JsonObject o = new JsonObject();
+            o.addProperty("count", count);
+            o.addProperty("mean", ratio(total, count)/1e3);
+            o.addProperty("p50", percentile(0.5)/1e3);
+            o.addProperty("p90", percentile(0.9)/1e3);
+            o.addProperty("p99", percentile(0.99)/1e3);
+            o.addProperty("max", max/1e3);
+            JsonArray buckets = new JsonArray();
+            for (int i = 0; i < counts.length; ++i) {
+                if (counts[i] == 0)
+                    continue;
+                JsonObject b = new JsonObject();
+                b.addProperty("upTo", upperBound(i)/1e3);
+                b.addProperty("count", counts[i]);
+                buckets.add(b);
+            }
+            o.add("histogram", buckets);
+            return o;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * KModulation.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+/**
+ * KModulation maps a point of the image to the scale a BaseKernel is
+ * multiplied by before its edges are trimmed (see
+ * {@code BaseKernel.getModulatedKernel}): the smaller the scale, the more
+ * of the kernel falls below the trimming threshold and the smaller the
+ * modulated kernel. Implementations must be pure functions of the point,
+ * since modulated kernels are cached.
+ */
+public interface KModulation {
+    /** The original modulation: kernels shrink towards the right and bottom */
+    KModulation LINEAR = point -> 1.0f/(point[0]*80 + point[1]*40);
+    /** Kernels shrink with the distance from the centre of the image */
+    KModulation RADIAL = point -> 1.0f/(120*(float)Math.hypot(point[0] - 0.5f, point[1] - 0.5f));
+    /**
+     * Get the scale of the kernel at a point.
+     * @param point An xy coordinate, normalized to [0,1]
+     * @return The scale (may be infinite: nothing is trimmed)
+     */
+    float scale(float [] point);
+    /**
+     * Parse a modulation name ("linear" or "radial").
+     * @param name The modulation name
+     * @return The modulation
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    static KModulation parse(String name) {
+        if (name.equals("linear"))
+            return LINEAR;
+        if (name.equals("radial"))
+            return RADIAL;
+        throw new IllegalArgumentException("Unknown modulation: " + name + " (expected linear or radial)");
+    }
+}
@@ -13,12 +13,56 @@ import java.util.List;
  * class (should not be instantiated).
  */
 public final class KOps {
+    /** Engine: pick per kernel (FFT above FFT_THRESHOLD, else spatial) */
+    public static final int ENGINE_AUTO = 0;
+    /** Engine: spatial convolution (separable passes when possible) */
+    public static final int ENGINE_DIRECT = 1;
+    /** Engine: FFT overlap-save convolution (KFFT) */
+    public static final int ENGINE_FFT = 2;
+    /** Engine: SIMD convolution (KVector); direct when the Vector API is missing */
+    public static final int ENGINE_VECTOR = 3;
+    /** Engine: summed-area tables (KIntegral); direct for kernels without rectangles */
+    public static final int ENGINE_SAT = 4;
+    /**
+     * ENGINE_AUTO uses the FFT for non-separable kernels with at least this
+     * many taps (see the "engine" benchmarks for the crossover).
+     */
+    public static final int FFT_THRESHOLD = 21*21;
+    /**
+     * The spatial paths convolve regions in blocks of at most this many
+     * pixels per side, so the halo-padded copy of a block stays in cache.
+     */
+    public static final int BLOCK_SIZE = 64;
+    /** Parses JSON kernels */
+    private static final Gson GSON = new Gson();
+    /** The SIMD engine, or null if jdk.incubator.vector is not available */
+    private static final KEngine vectorEngine = loadEngine("KVector");
     /**
      * Private constructor. Emulates static class behaviour.
      */
     private KOps() {
         //
     }
+    /**
+     * Load an optional engine by class name.
+     * @param name The class name
+     * @return The engine, or null if it (or a module it needs) is missing
+     */
+    private static KEngine loadEngine(String name) {
+        try {
+            return (KEngine)Class.forName(name).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+    /**
+     * Check whether the SIMD engine could be loaded. It needs the JVM to be
+     * started with {@code --add-modules jdk.incubator.vector}.
+     * @return True if ENGINE_VECTOR runs KVector
+     */
+    public static boolean isVectorAvailable() {
+        return vectorEngine != null;
+    }
     /**
      * Convolves a given pixel with a kernel.
      * @param raster The source raster.
@@ -45,6 +89,457 @@ public final class KOps {
         }
         return newPixel;
     }
+    /**
+     * Convolves the region of interest of a task, writing the result directly
+     * into the task's output raster.
+     * @param task The task describing the region, kernel and rasters.
+     * @param scratch The scratch buffers of the calling thread.
+     */
+    public static void convolveTask(KTask task, KScratch scratch) {
+        convolveTaskRegion(task, task.getOriginX(), task.getOriginY(),
+                           task.getWidth(), task.getHeight(), scratch);
+    }
+    /**
+     * Convolves part of the region of interest of a task, writing the result
+     * directly into the task's output raster. Lets schedulers split a task.
+     * Tasks with a kernel field (KField) are interpolated per pixel instead,
+     * tasks with a kernel chain (KChain) run the whole chain, and tasks
+     * with a temporal kernel (KTemporal) convolve across their input
+     * frames, whatever their engine.
+     * @param task The task describing the kernel and rasters.
+     * @param x0 The x coordinate of the origin of the sub-region.
+     * @param y0 The y coordinate of the origin of the sub-region.
+     * @param w The width of the sub-region.
+     * @param h The height of the sub-region.
+     * @param scratch The scratch buffers of the calling thread.
+     */
+    public static void convolveTaskRegion(KTask task, int x0, int y0, int w, int h, KScratch scratch) {
+        if (task.getField() != null)
+            task.getField().convolveRegion(task.getInputRaster(), task.getOutputRaster(),
+                                           x0, y0, w, h, scratch);
+        else if (task.getChain() != null)
+            task.getChain().convolveRegion(task.getInputRaster(), task.getOutputRaster(),
+                                           x0, y0, w, h, task.getEngine(), scratch);
+        else if (task.getTemporal() != null)
+            task.getTemporal().convolveRegion(task.getInputFrames(), task.getOutputRaster(),
+                                              x0, y0, w, h, task.getEngine(), scratch);
+        else
+            convolveKernelRegion(task.getInputRaster(), task.getOutputRaster(),
+                                 x0, y0, w, h, task.getKernel(), task.getEngine(), scratch);
+    }
+    /**
+     * Convolves a rectangular region of a raster with a kernel on the path an
+     * engine selects: fixed point when both rasters are ByteRasters, then
+     * the engine (resolved as by {@code engineFor}), then separable passes
+     * when the kernel allows them.
+     * @param src The source raster.
+     * @param dst The destination raster. Must not be the source raster.
+     * @param x0 The x coordinate of the origin of the region.
+     * @param y0 The y coordinate of the origin of the region.
+     * @param w The width of the region.
+     * @param h The height of the region.
+     * @param kernel The kernel to convolve with.
+     * @param engine One of the ENGINE_* constants.
+     * @param scratch The scratch buffers of the calling thread.
+     */
+    public static void convolveKernelRegion(BadRaster src, BadRaster dst, int x0, int y0, int w, int h,
+                                            Kernel kernel, int engine, KScratch scratch) {
+        engine = engineFor(kernel, engine);
+        if (src instanceof ByteRaster && dst instanceof ByteRaster)
+            convolveRegionFixed((ByteRaster)src, (ByteRaster)dst, x0, y0, w, h, kernel, scratch);
+        else if (engine == ENGINE_FFT)
+            KFFT.convolveRegion(src, dst, x0, y0, w, h, kernel, scratch);
+        else if (engine == ENGINE_VECTOR)
+            vectorEngine.convolveRegion(src, dst, x0, y0, w, h, kernel, scratch);
+        else if (engine == ENGINE_SAT)
+            KIntegral.convolveRegion(src, dst, x0, y0, w, h, kernel, scratch);
+        else if (useSeparable(kernel))
+            convolveRegionSeparable(src, dst, x0, y0, w, h, kernel, scratch);
+        else
+            convolveRegion(src, dst, x0, y0, w, h, kernel, scratch);
+    }
+    /**
+     * Convolves a rectangular region of a raster with a kernel, writing the
+     * result directly into the destination raster. Produces the same values as
+     * calling {@code convolve2D} for every pixel of the region (up to float
+     * summation order), but without allocating or clamping per tap. The
+     * region is processed in blocks of at most BLOCK_SIZE x BLOCK_SIZE
+     * pixels: each block plus its kernel halo is copied once into a padded
+     * per-thread buffer ({@code BadRaster.readBlock}, which clamps the edges
+     * during the copy), convolved entirely out of that cache-resident buffer
+     * into a second one, and written back in one pass
+     * ({@code BadRaster.writeBlock}).
+     * @param src The source raster.
+     * @param dst The destination raster. Must not be the source raster.
+     * @param x0 The x coordinate of the origin of the region.
+     * @param y0 The y coordinate of the origin of the region.
+     * @param w The width of the region.
+     * @param h The height of the region.
+     * @param kernel The kernel to convolve the source raster with.
+     * @param scratch The scratch buffers of the calling thread.
+     */
+    public static void convolveRegion(BadRaster src, BadRaster dst, int x0, int y0, int w, int h,
+                                      Kernel kernel, KScratch scratch) {
+        final int bands = src.getBands();
+        final int hw = kernel.getHalfWidth();
+        final int hh = kernel.getHalfHeight();
+        final int kw = kernel.getWidth();
+        final int kh = kernel.getHeight();
+        for (int by = y0; by < y0 + h; by += BLOCK_SIZE) {
+            for (int bx = x0; bx < x0 + w; bx += BLOCK_SIZE) {
+                int bw = Math.min(BLOCK_SIZE, x0 + w - bx);
+                int bh = Math.min(BLOCK_SIZE, y0 + h - by);
+                int pw = bw + kw - 1;
+                float [] in = scratch.getHalo(pw*(bh + kh - 1)*bands);
+                float [] out = scratch.getBlock(bw*bh*bands);
+                src.readBlock(bx - hw, by - hh, pw, bh + kh - 1, in);
+                for (int v = 0; v < bh; ++v)
+                    convolveRow(in, v*pw*bands, pw*bands, bands, kernel, out, v*bw*bands, bw);
+                dst.writeBlock(bx, by, bw, bh, out);
+            }
+        }
+    }
+    /**
+     * Parse an engine name ("auto", "direct", "fft", "vector" or "sat").
+     * @param name The engine name
+     * @return The engine constant
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public static int parseEngine(String name) {
+        if (name.equals("auto"))
+            return ENGINE_AUTO;
+        if (name.equals("direct"))
+            return ENGINE_DIRECT;
+        if (name.equals("fft"))
+            return ENGINE_FFT;
+        if (name.equals("vector"))
+            return ENGINE_VECTOR;
+        if (name.equals("sat"))
+            return ENGINE_SAT;
+        throw new IllegalArgumentException("Unknown engine: " + name + " (expected auto, direct, fft, vector or sat)");
+    }
+    /**
+     * Get the name of an engine, as accepted by {@code parseEngine}.
+     * @param engine One of the ENGINE_* constants
+     * @return The engine name
+     */
+    public static String engineName(int engine) {
+        switch (engine) {
+            case ENGINE_DIRECT: return "direct";
+            case ENGINE_FFT: return "fft";
+            case ENGINE_VECTOR: return "vector";
+            case ENGINE_SAT: return "sat";
+            default: return "auto";
+        }
+    }
+    /**
+     * Get the engine ENGINE_AUTO picks for a kernel: the FFT for large
+     * kernels that cannot be convolved separably, spatial otherwise, unless
+     * the kernel is made of rectangles that summed-area tables evaluate
+     * more cheaply.
+     * @param kernel The kernel
+     * @return ENGINE_FFT, ENGINE_SAT or ENGINE_DIRECT
+     */
+    public static int selectEngine(Kernel kernel) {
+        int engine = ENGINE_DIRECT;
+        long cost = useSeparable(kernel) ? kernel.getWidth() + kernel.getHeight()
+                                         : kernel.getWidth()*kernel.getHeight();
+        if (!useSeparable(kernel) && kernel.getWidth()*kernel.getHeight() >= FFT_THRESHOLD) {
+            engine = ENGINE_FFT;
+            cost = KFFT.costPerPixel(kernel);
+        }
+        if (kernel.hasRectangles() && KIntegral.costPerPixel(kernel) < cost)
+            return ENGINE_SAT;
+        return engine;
+    }
+    /**
+     * Get the engine that will run a task, resolving ENGINE_AUTO (and
+     * ENGINE_VECTOR when the Vector API is missing, ENGINE_SAT when the
+     * kernel has no rectangle decomposition).
+     * @param task The task
+     * @return ENGINE_FFT, ENGINE_VECTOR, ENGINE_SAT or ENGINE_DIRECT
+     */
+    public static int engineFor(KTask task) {
+        return engineFor(task.getKernel(), task.getEngine());
+    }
+    /**
+     * Get the engine that will convolve with a kernel, resolving ENGINE_AUTO
+     * (and ENGINE_VECTOR when the Vector API is missing, ENGINE_SAT when the
+     * kernel has no rectangle decomposition).
+     * @param kernel The kernel
+     * @param engine One of the ENGINE_* constants
+     * @return ENGINE_FFT, ENGINE_VECTOR, ENGINE_SAT or ENGINE_DIRECT
+     */
+    public static int engineFor(Kernel kernel, int engine) {
+        if (engine == ENGINE_AUTO)
+            return selectEngine(kernel);
+        if (engine == ENGINE_VECTOR && vectorEngine == null)
+            return ENGINE_DIRECT;
+        if (engine == ENGINE_SAT && !kernel.hasRectangles())
+            return ENGINE_DIRECT;
+        return engine;
+    }
+    /**
+     * Decide whether a kernel should be convolved as two one-dimensional
+     * passes. That needs a separable kernel which is at least 3 wide and
+     * 3 high (otherwise there is nothing to save).
+     * @param kernel The kernel to check.
+     * @return True if convolveRegionSeparable should be used.
+     */
+    public static boolean useSeparable(Kernel kernel) {
+        return kernel.isSeparable() && kernel.getWidth() >= 3 && kernel.getHeight() >= 3;
+    }
+    /**
+     * Convolves a rectangular region of a raster with a separable kernel, as a
+     * horizontal pass followed by a vertical pass, block by block like
+     * {@code convolveRegion}. The horizontal pass reads the halo-padded copy
+     * of the block and writes the block plus the kernel's vertical halo into
+     * an intermediate tile (interleaved, from the scratch buffers); the
+     * vertical pass reads the tile into the output block, which is then
+     * written back. Edge behaviour matches {@code convolveRegion}: taps
+     * outside the raster are clamped to the edge. Costs kw+kh multiply-adds
+     * per pixel and band instead of kw*kh.
+     * @param src The source raster.
+     * @param dst The destination raster. Must not be the source raster.
+     * @param x0 The x coordinate of the origin of the region.
+     * @param y0 The y coordinate of the origin of the region.
+     * @param w The width of the region.
+     * @param h The height of the region.
+     * @param kernel The kernel to convolve with. Must be separable.
+     * @param scratch The scratch buffers of the calling thread.
+     */
+    public static void convolveRegionSeparable(BadRaster src, BadRaster dst, int x0, int y0, int w, int h,
+                                               Kernel kernel, KScratch scratch) {
+        final int bands = src.getBands();
+        final int hw = kernel.getHalfWidth();
+        final int hh = kernel.getHalfHeight();
+        final int kw = kernel.getWidth();
+        final int kh = kernel.getHeight();
+        final float [] row = kernel.getRowFactor();
+        final float [] column = kernel.getColumnFactor();
+        final float [] acc = scratch.getAccumulator(bands);
+        for (int by = y0; by < y0 + h; by += BLOCK_SIZE) {
+            for (int bx = x0; bx < x0 + w; bx += BLOCK_SIZE) {
+                final int bw = Math.min(BLOCK_SIZE, x0 + w - bx);
+                final int bh = Math.min(BLOCK_SIZE, y0 + h - by);
+                final int tileRows = bh + kh - 1;
+                final int inStride = (bw + kw - 1)*bands;
+                final int tileStride = bw*bands;
+                final float [] in = scratch.getHalo(tileRows*inStride);
+                final float [] tile = scratch.getTile(tileRows*tileStride);
+                final float [] out = scratch.getBlock(bh*tileStride);
+                src.readBlock(bx - hw, by - hh, bw + kw - 1, tileRows, in);
+                // Horizontal pass: tile row t holds padded row t
+                for (int t = 0; t < tileRows; ++t) {
+                    int index = t*inStride;
+                    int o = t*tileStride;
+                    for (int x = 0; x < bw; ++x, index += bands, o += bands) {
+                        for (int b = 0; b < bands; ++b)
+                            acc[b] = 0.0f;
+                        for (int i = 0; i < kw; ++i)
+                            for (int b = 0; b < bands; ++b)
+                                acc[b] += row[i] * in[index + i*bands + b];
+                        for (int b = 0; b < bands; ++b)
+                            tile[o + b] = acc[b];
+                    }
+                }
+                // Vertical pass: output row v reads tile rows v .. v+kh-1
+                for (int v = 0; v < bh; ++v) {
+                    int o = v*tileStride;
+                    for (int x = 0; x < bw; ++x, o += bands) {
+                        for (int b = 0; b < bands; ++b)
+                            acc[b] = 0.0f;
+                        for (int j = 0; j < kh; ++j) {
+                            int index = o + j*tileStride;
+                            float kv = column[j];
+                            for (int b = 0; b < bands; ++b)
+                                acc[b] += kv * tile[index + b];
+                        }
+                        for (int b = 0; b < bands; ++b)
+                            out[o + b] = acc[b];
+                    }
+                }
+                dst.writeBlock(bx, by, bw, bh, out);
+            }
+        }
+    }
+    /**
+     * Convolves a rectangular region of an 8-bit raster in fixed point,
+     * writing the result directly into the destination raster. Taps come from
+     * {@code Kernel.getFixedKernel}; the sums are exact in int arithmetic and
+     * rounded to the nearest sample and saturated to [0,255] once per output
+     * (the float path truncates instead). Taps outside the raster are clamped
+     * to the edge, as everywhere else. Every task whose input and output are
+     * both ByteRasters takes this path, whatever its engine.
+     * @param src The source raster.
+     * @param dst The destination raster, with the same dimensions. Must not
+     * be the source raster.
+     * @param x0 The x coordinate of the origin of the region.
+     * @param y0 The y coordinate of the origin of the region.
+     * @param w The width of the region.
+     * @param h The height of the region.
+     * @param kernel The kernel to convolve with.
+     * @param scratch The scratch buffers of the calling thread.
+     */
+    public static void convolveRegionFixed(ByteRaster src, ByteRaster dst, int x0, int y0, int w, int h,
+                                           Kernel kernel, KScratch scratch) {
+        final int bands = src.getBands();
+        final int kw = kernel.getWidth();
+        final int kh = kernel.getHeight();
+        final int hw = kernel.getHalfWidth();
+        final int hh = kernel.getHalfHeight();
+        final int [] k = kernel.getFixedKernel();
+        final byte [] s = src.getBytes();
+        final byte [] d = dst.getBytes();
+        final int xs = src.getXStride();
+        final int ys = src.getYStride();
+        final int width = src.getWidth();
+        final int height = src.getHeight();
+        final int [] acc = scratch.getIntAccumulator(bands);
+        final int round = 1 << (Kernel.FIXED_SHIFT - 1);
+        // an even kernel reaches one tap further right and down than left and up
+        final int right = kw - 1 - hw;
+        final int below = kh - 1 - hh;
+        for (int y = y0; y < y0 + h; ++y) {
+            boolean rowInside = y >= hh && y < height - below;
+            for (int x = x0; x < x0 + w; ++x) {
+                for (int b = 0; b < bands; ++b)
+                    acc[b] = 0;
+                if (rowInside && x >= hw && x < width - right) {
+                    int base = (x - hw)*xs + (y - hh)*ys;
+                    if (bands == 3) {
+                        // common case: RGB, keep the accumulators in registers
+                        int r = 0, g = 0, bl = 0;
+                        for (int j = 0; j < kh; ++j) {
+                            int index = base + j*ys;
+                            int krow = j*kw;
+                            for (int i = 0; i < kw; ++i, index += 3) {
+                                int kv = k[krow + i];
+                                r += kv * (s[index] & 0xff);
+                                g += kv * (s[index + 1] & 0xff);
+                                bl += kv * (s[index + 2] & 0xff);
+                            }
+                        }
+                        acc[0] = r;
+                        acc[1] = g;
+                        acc[2] = bl;
+                    } else {
+                        for (int j = 0; j < kh; ++j)
+                            for (int i = 0; i < kw; ++i) {
+                                int kv = k[j*kw + i];
+                                int index = base + j*ys + i*xs;
+                                for (int b = 0; b < bands; ++b)
+                                    acc[b] += kv * (s[index + b] & 0xff);
+                            }
+                    }
+                } else {
+                    for (int j = 0; j < kh; ++j) {
+                        int yi = Math.min(Math.max(y - hh + j, 0), height - 1);
+                        for (int i = 0; i < kw; ++i) {
+                            int xi = Math.min(Math.max(x - hw + i, 0), width - 1);
+                            int kv = k[j*kw + i];
+                            int index = xi*xs + yi*ys;
+                            for (int b = 0; b < bands; ++b)
+                                acc[b] += kv * (s[index + b] & 0xff);
+                        }
+                    }
+                }
+                int out = x*dst.getXStride() + y*dst.getYStride();
+                for (int b = 0; b < bands; ++b) {
+                    int v = (acc[b] + round) >> Kernel.FIXED_SHIFT;
+                    d[out + b] = (byte)((v < 0) ? 0 : ((v > 255) ? 255 : v));
+                }
+            }
+        }
+    }
+    /**
+     * Convolves one row of a block out of a halo-padded interleaved buffer,
+     * with no bounds logic.
+     * @param in The padded input block.
+     * @param base The index of the first tap of the first output pixel.
+     * @param stride The distance between padded rows.
+     * @param bands The number of bands.
+     * @param kernel The kernel to convolve with.
+     * @param out The output block.
+     * @param outBase The index of the first output pixel.
+     * @param count The number of output pixels.
+     */
+    private static void convolveRow(float [] in, int base, int stride, int bands,
+                                    Kernel kernel, float [] out, int outBase, int count) {
+        convolveRow(in, base, stride, bands, kernel.getFlatKernel(), kernel.getWidth(), kernel.getHeight(),
+                    out, outBase, count);
+    }
+    /**
+     * Convolves one row of a block out of a halo-padded interleaved buffer
+     * with flat, row-major taps (see {@code Kernel.getFlatKernel}), with no
+     * bounds logic. Lets KField convolve with taps that belong to no Kernel.
+     * @param in The padded input block.
+     * @param base The index of the first tap of the first output pixel.
+     * @param stride The distance between padded rows.
+     * @param bands The number of bands.
+     * @param k The taps, kw*kh of them.
+     * @param kw The width of the taps.
+     * @param kh The height of the taps.
+     * @param out The output block.
+     * @param outBase The index of the first output pixel.
+     * @param count The number of output pixels.
+     */
+    static void convolveRow(float [] in, int base, int stride, int bands, float [] k, int kw, int kh,
+                            float [] out, int outBase, int count) {
+        if (bands == 3) {
+            // common case: interleaved RGB, keep the accumulators in registers
+            for (int x = 0; x < count; ++x, base += 3, outBase += 3) {
+                float r = 0.0f, g = 0.0f, bl = 0.0f;
+                for (int j = 0; j < kh; ++j) {
+                    int index = base + j*stride;
+                    int krow = j*kw;
+                    for (int i = 0; i < kw; ++i, index += 3) {
+                        float kv = k[krow + i];
+                        r += kv * in[index];
+                        g += kv * in[index + 1];
+                        bl += kv * in[index + 2];
+                    }
+                }
+                out[outBase] = r;
+                out[outBase + 1] = g;
+                out[outBase + 2] = bl;
+            }
+            return;
+        }
+        for (int x = 0; x < count; ++x, base += bands, outBase += bands) {
+            for (int b = 0; b < bands; ++b)
+                out[outBase + b] = 0.0f;
+            for (int j = 0; j < kh; ++j) {
+                int index = base + j*stride;
+                int krow = j*kw;
+                for (int i = 0; i < kw; ++i, index += bands) {
+                    float kv = k[krow + i];
+                    for (int b = 0; b < bands; ++b)
+                        out[outBase + b] += kv * in[index + b];
+                }
+            }
+        }
+    }
+    /**
+     * Get the peak signal-to-noise ratio between two rasters of the same
+     * dimensions, over the 8-bit samples they would be saved as.
+     * @param reference The reference raster
+     * @param test The raster to rate
+     * @return The PSNR in dB (infinite if the samples are identical)
+     */
+    public static double psnr(BadRaster reference, BadRaster test) {
+        double squares = 0.0;
+        long count = 0;
+        for (int y = 0; y < reference.getHeight(); ++y)
+            for (int x = 0; x < reference.getWidth(); ++x)
+                for (int b = 0; b < reference.getBands(); ++b, ++count) {
+                    int diff = reference.getSample(x, y, b) - test.getSample(x, y, b);
+                    squares += diff*diff;
+                }
+        if (squares == 0.0)
+            return Double.POSITIVE_INFINITY;
+        return 10.0*Math.log10(255.0*255.0/(squares/count));
+    }
     /**
      * Returns a four-element boolean array indicate which edges of the
      * passed array are less than a threshold. Ordered [top,right,bottom,left]
@@ -85,17 +580,17 @@ public final class KOps {
     }
     /**
      * Load a kernel from JSON. GSON parses the JSON file into a JSONKernel
-     * object, which is then converted to a regular Kernel
+     * object, which is then converted to a regular Kernel. One Gson instance
+     * (which is thread safe) is shared by every call, so its reflective type
+     * adapters are only built once. For many kernels, see KBank.
      * @param path The JSON kernel path
      * @return A JSONKernel derived from the JSON kernel
      */
     public static JSONKernel kernelFromJSONPath(String path) {
-        Gson gson = new Gson();
-        try {
-            // Get a buffered reader for file
-            BufferedReader br = new BufferedReader(new FileReader(path));
+        // Get a buffered reader for file
+        try (BufferedReader br = new BufferedReader(new FileReader(path))) {
             // convert the JSON file to JSONKernel
-            JSONKernel jKernel = gson.fromJson(br, JSONKernel.class);
+            JSONKernel jKernel = GSON.fromJson(br, JSONKernel.class);
             return jKernel;
         } catch (IOException e) {
             e.printStackTrace();
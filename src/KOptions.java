@@ -0,0 +1,126 @@
+/*
+ * KOptions.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+import java.util.*;
+
+/**
+ * KOptions parses Kernelizr command-line arguments. Arguments of the form
+ * {@code --name=value} (or just {@code --name}, meaning "true") are options;
+ * everything else is a positional argument, kept in order.
+ */
+public class KOptions {
+    /** Positional arguments, in order */
+    private final List<String> positional = new ArrayList<String>();
+    /** Options by name */
+    private final Map<String,String> options = new LinkedHashMap<String,String>();
+    /** Options given without a value ({@code --name}) */
+    private final Set<String> bare = new HashSet<String>();
+    /**
+     * Parse a command line.
+     * @param args The command-line arguments
+     */
+    public KOptions(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.length() > 2) {
+                int eq = arg.indexOf('=');
+                if (eq < 0) {
+                    options.put(arg.substring(2), "true");
+                    bare.add(arg.substring(2));
+                } else {
+                    options.put(arg.substring(2, eq), arg.substring(eq + 1));
+                    bare.remove(arg.substring(2, eq));
+                }
+            } else {
+                positional.add(arg);
+            }
+        }
+    }
+    /**
+     * Get a positional argument.
+     * @param index The index of the argument
+     * @param fallback The value to return if there is no such argument
+     * @return The argument, or the fallback
+     */
+    public String getPositional(int index, String fallback) {
+        return (index < positional.size()) ? positional.get(index) : fallback;
+    }
+    /**
+     * Get the number of positional arguments.
+     * @return The number of positional arguments
+     */
+    public int positionalCount() {
+        return positional.size();
+    }
+    /**
+     * Check whether an option was given.
+     * @param name The option name, without the leading dashes
+     * @return True if the option was given
+     */
+    public boolean has(String name) {
+        return options.containsKey(name);
+    }
+    /**
+     * Get a string option.
+     * @param name The option name, without the leading dashes
+     * @param fallback The value to return if the option was not given
+     * @return The option value, or the fallback
+     */
+    public String getString(String name, String fallback) {
+        String value = options.get(name);
+        return (value != null) ? value : fallback;
+    }
+    /**
+     * Get the value of an option that may also be given bare, such as
+     * {@code --metrics[=path]}.
+     * @param name The option name, without the leading dashes
+     * @return The value given with {@code --name=value}, or null if the
+     * option was not given or was given without a value
+     */
+    public String getValue(String name) {
+        return bare.contains(name) ? null : options.get(name);
+    }
+    /**
+     * Get an integer option.
+     * @param name The option name, without the leading dashes
+     * @param fallback The value to return if the option was not given
+     * @return The option value, or the fallback
+     * @throws IllegalArgumentException if the value is not an integer
+     */
+    public int getInt(String name, int fallback) {
+        String value = options.get(name);
+        if (value == null)
+            return fallback;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("--" + name + " expects an integer, got: " + value);
+        }
+    }
+    /**
+     * Get an integer option that must be at least some minimum.
+     * @param name The option name, without the leading dashes
+     * @param fallback The value to return if the option was not given
+     * @param min The smallest valid value
+     * @return The option value, or the fallback
+     * @throws IllegalArgumentException if the value is not an integer or is
+     * below the minimum
+     */
+    public int getInt(String name, int fallback, int min) {
+        int value = getInt(name, fallback);
+        if (value < min)
+            throw new IllegalArgumentException("--" + name + " must be at least " + min + ", got: " + value);
+        return value;
+    }
+    /**
+     * Get a boolean option. A bare {@code --name} counts as true.
+     * @param name The option name, without the leading dashes
+     * @return True if the option was given and not "false"
+     */
+    public boolean getFlag(String name) {
+        String value = options.get(name);
+        return value != null && !value.equals("false");
+    }
+}
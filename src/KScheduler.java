@@ -0,0 +1,264 @@
+/*
+ * KScheduler.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * KScheduler runs a batch of KTasks on a fixed set of long-lived worker
+ * threads. Two modes are supported:
+ * <br>
+ * {@code MODE_FORKJOIN} (the default) hands the whole batch to a ForkJoinPool
+ * as one recursive action. The action splits its range of tasks in half until
+ * a single task is left, and splits a single large task region in half along
+ * its longer side until it is small. Each worker keeps its own deque of
+ * pending halves and idle workers steal from the others, so expensive regions
+ * are shared out automatically and no Runnable is allocated per block.
+ * <br>
+ * {@code MODE_POOL} is the original scheme: one KWorker Runnable per task,
+ * submitted to a fixed pool of nThreads threads that lives as long as the
+ * scheduler. If a task fails, the tasks that have not started are
+ * cancelled and {@code run} rethrows the first failure (as a
+ * CompletionException) once the running ones have finished.
+ * <br>
+ * {@code MODE_STRUCTURED} forks one KWorker per task into a KScope over a
+ * long-lived pool of nThreads platform threads. The batch is one structured
+ * unit: if any task fails, the tasks that have not started are skipped, and
+ * {@code run} rethrows the failure (as a CompletionException) once the
+ * running ones have finished, so a failing tile abandons the whole image
+ * instead of leaving it half written behind a live pool.
+ * <br>
+ * In every mode {@code run} returns when every task is done (no spinning),
+ * and a failing task is rethrown as a CompletionException.
+ * When KMetrics is recording, every region run is reported to it.
+ */
+public class KScheduler {
+    /** Scheduler mode: fork-join with work stealing */
+    public static final int MODE_FORKJOIN = 0;
+    /** Scheduler mode: one Runnable per task on a fixed thread pool */
+    public static final int MODE_POOL = 1;
+    /** Scheduler mode: structured scope over a bounded pool, cancelled on failure */
+    public static final int MODE_STRUCTURED = 2;
+    /** Regions with at most this many pixels are never split */
+    public static final int MIN_SPLIT_AREA = 256;
+    /** The scheduler mode */
+    private final int mode;
+    /** The number of worker threads */
+    private final int nThreads;
+    /** The fork-join pool (MODE_FORKJOIN only) */
+    private final ForkJoinPool forkJoinPool;
+    /** The compute pool (MODE_POOL and MODE_STRUCTURED) */
+    private final ExecutorService computePool;
+    /**
+     * Create a scheduler with its worker threads.
+     * @param mode The scheduler mode, one of the MODE_* constants
+     * @param nThreads The number of worker threads
+     */
+    public KScheduler(int mode, int nThreads) {
+        this.mode = mode;
+        this.nThreads = Math.max(1, nThreads);
+        forkJoinPool = (mode == MODE_FORKJOIN) ? new ForkJoinPool(this.nThreads) : null;
+        computePool = (mode != MODE_FORKJOIN) ? KThreads.newComputePool("kernelizr-compute", this.nThreads) : null;
+    }
+    /**
+     * Parse a scheduler mode name ("forkjoin", "pool" or "structured").
+     * @param name The mode name
+     * @return The mode constant
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public static int parseMode(String name) {
+        if (name.equals("forkjoin"))
+            return MODE_FORKJOIN;
+        if (name.equals("pool"))
+            return MODE_POOL;
+        if (name.equals("structured"))
+            return MODE_STRUCTURED;
+        throw new IllegalArgumentException("Unknown scheduler: " + name + " (expected forkjoin, pool or structured)");
+    }
+    /**
+     * Drain a task queue and run every task, returning when all are done.
+     * @param tasks The tasks to run
+     * @return The number of tasks run
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int run(TaskQueue tasks) throws InterruptedException {
+        List<KTask> list = new ArrayList<KTask>(tasks.length());
+        KTask task;
+        while ((task = tasks.pop()) != null)
+            list.add(task);
+        run(list);
+        return list.size();
+    }
+    /**
+     * Run every task in a list, returning when all are done.
+     * @param tasks The tasks to run
+     * @throws InterruptedException if interrupted while waiting
+     * @throws CompletionException if a task failed (in every mode)
+     */
+    public void run(List<KTask> tasks) throws InterruptedException {
+        if (tasks.isEmpty())
+            return;
+        final long start = KMetrics.now();
+        if (mode == MODE_FORKJOIN) {
+            KTask [] array = tasks.toArray(new KTask[tasks.size()]);
+            try {
+                forkJoinPool.invoke(new TaskRange(array, 0, array.length, start));
+            } catch (CompletionException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                // invoke rethrows the task's own exception; report it like the other modes
+                throw new CompletionException(e);
+            } finally {
+                KMetrics.batch(start, System.nanoTime());
+            }
+            return;
+        }
+        if (mode == MODE_STRUCTURED) {
+            try (KScope scope = new KScope(computePool)) {
+                for (KTask t : tasks)
+                    scope.fork(new KWorker(t));
+                scope.join();
+                scope.throwIfFailed();
+            } catch (ExecutionException e) {
+                throw new CompletionException(e.getCause());
+            } finally {
+                KMetrics.batch(start, System.nanoTime());
+            }
+            return;
+        }
+        // one Runnable per task on the long-lived pool
+        final CountDownLatch done = new CountDownLatch(tasks.size());
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        for (KTask t : tasks) {
+            final KWorker worker = new KWorker(t);
+            computePool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        // skip the tasks that have not started once one fails
+                        if (failure.get() == null)
+                            worker.run();
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            done.await();
+        } finally {
+            KMetrics.batch(start, System.nanoTime());
+        }
+        if (failure.get() != null)
+            throw new CompletionException(failure.get());
+    }
+    /**
+     * Get the scheduler mode.
+     * @return One of the MODE_* constants
+     */
+    public int getMode() {
+        return mode;
+    }
+    /**
+     * Get the number of worker threads.
+     * @return The number of worker threads
+     */
+    public int getThreads() {
+        return nThreads;
+    }
+    /**
+     * Stop the worker threads. The scheduler cannot be used afterwards.
+     */
+    public void shutdown() {
+        if (forkJoinPool != null)
+            forkJoinPool.shutdown();
+        if (computePool != null)
+            computePool.shutdown();
+    }
+
+    /**
+     * A range of tasks, split recursively by the fork-join workers.
+     */
+    private static class TaskRange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final KTask [] tasks;
+        private final int lo;
+        private final int hi;
+        /** When the range was forked, for KMetrics (0 when not recording) */
+        private final long queued;
+        TaskRange(KTask [] tasks, int lo, int hi, long queued) {
+            this.tasks = tasks;
+            this.lo = lo;
+            this.hi = hi;
+            this.queued = queued;
+        }
+        @Override
+        protected void compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                long now = KMetrics.now();
+                invokeAll(new TaskRange(tasks, lo, mid, now), new TaskRange(tasks, mid, hi, now));
+            } else {
+                KTask task = tasks[lo];
+                new RegionAction(task, task.getOriginX(), task.getOriginY(),
+                                 task.getWidth(), task.getHeight(), queued).compute();
+            }
+        }
+    }
+
+    /**
+     * A sub-region of a single task, split in half along its longer side
+     * until it is at most MIN_SPLIT_AREA pixels (KFFT.MIN_SPLIT_AREA for FFT
+     * tasks, KIntegral.MIN_SPLIT_AREA for summed-area-table tasks,
+     * KField.MIN_SPLIT_AREA for interpolated tasks, KChain.MIN_SPLIT_AREA
+     * for chains and KTemporal.MIN_SPLIT_AREA for temporal kernels, whose
+     * per-region transforms, tables, blends, stage halos and per-frame
+     * passes only pay off on larger regions).
+     */
+    private static class RegionAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final KTask task;
+        private final int x0, y0, w, h;
+        /** When the region was forked, for KMetrics (0 when not recording) */
+        private final long queued;
+        RegionAction(KTask task, int x0, int y0, int w, int h, long queued) {
+            this.task = task;
+            this.x0 = x0;
+            this.y0 = y0;
+            this.w = w;
+            this.h = h;
+            this.queued = queued;
+        }
+        @Override
+        protected void compute() {
+            int engine = KOps.engineFor(task);
+            int minArea = (task.getField() != null) ? KField.MIN_SPLIT_AREA
+                        : (task.getChain() != null) ? KChain.MIN_SPLIT_AREA
+                        : (task.getTemporal() != null) ? KTemporal.MIN_SPLIT_AREA
+                        : (engine == KOps.ENGINE_FFT) ? KFFT.MIN_SPLIT_AREA
+                        : (engine == KOps.ENGINE_SAT) ? KIntegral.MIN_SPLIT_AREA : MIN_SPLIT_AREA;
+            if (w*h > minArea && (w > 1 || h > 1)) {
+                long now = KMetrics.now();
+                if (w >= h) {
+                    int hw = w/2;
+                    invokeAll(new RegionAction(task, x0, y0, hw, h, now),
+                              new RegionAction(task, x0 + hw, y0, w - hw, h, now));
+                } else {
+                    int hh = h/2;
+                    invokeAll(new RegionAction(task, x0, y0, w, hh, now),
+                              new RegionAction(task, x0, y0 + hh, w, h - hh, now));
+                }
+                return;
+            }
+            long start = KMetrics.now();
+            KOps.convolveTaskRegion(task, x0, y0, w, h, KScratch.get());
+            if (start != 0)
+                KMetrics.task(task, x0, y0, w, h, queued, start);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * KScope.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * KScope runs a group of subtasks as one unit of work, in the manner of
+ * structured concurrency ({@code StructuredTaskScope.ShutdownOnFailure},
+ * a preview API in Java 21): subtasks are forked into the scope, the owner
+ * joins them all, and the scope is closed before the owner moves on, so no
+ * subtask outlives the block that opened it. The first subtask to fail
+ * shuts the scope down: subtasks that have not started yet are skipped,
+ * and the failure is rethrown to the owner by {@code throwIfFailed}.
+ * Subtasks that are already running are not interrupted (convolution does
+ * not check for interrupts); they finish their region and are joined.
+ * <pre>
+ * try (KScope scope = new KScope(pool)) {
+ *     for (KTask task : tasks)
+ *         scope.fork(new KWorker(task));
+ *     scope.join();
+ *     scope.throwIfFailed();
+ * }
+ * </pre>
+ */
+public class KScope implements AutoCloseable {
+    /** Runs the subtasks */
+    private final Executor executor;
+    /** The first failure, if any */
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    /** Set when the scope is shut down */
+    private volatile boolean shutdown;
+    /** Number of forked subtasks that have not completed (guarded by this) */
+    private int running;
+    /**
+     * Open a scope.
+     * @param executor Runs the forked subtasks
+     */
+    public KScope(Executor executor) {
+        this.executor = executor;
+    }
+    /**
+     * Fork a subtask. Does nothing once the scope is shut down.
+     * @param subtask The subtask
+     */
+    public void fork(final Runnable subtask) {
+        if (shutdown)
+            return;
+        synchronized (this) {
+            ++running;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (!shutdown)
+                            subtask.run();
+                    } catch (Throwable t) {
+                        if (failure.compareAndSet(null, t))
+                            shutdown();
+                    } finally {
+                        done();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            done();
+            throw e;
+        }
+    }
+    /**
+     * Count a subtask as completed.
+     */
+    private synchronized void done() {
+        if (--running == 0)
+            notifyAll();
+    }
+    /**
+     * Wait until every forked subtask has completed or been skipped.
+     * @throws InterruptedException if interrupted while waiting; the scope
+     * is shut down first
+     */
+    public void join() throws InterruptedException {
+        synchronized (this) {
+            try {
+                while (running > 0)
+                    wait();
+            } catch (InterruptedException e) {
+                shutdown();
+                throw e;
+            }
+        }
+    }
+    /**
+     * Shut the scope down: subtasks that have not started are skipped, and
+     * no more can be forked.
+     */
+    public void shutdown() {
+        shutdown = true;
+    }
+    /**
+     * Check whether the scope was shut down.
+     * @return True once shutdown was called or a subtask failed
+     */
+    public boolean isShutdown() {
+        return shutdown;
+    }
+    /**
+     * Rethrow the first failure of a subtask, if there was one.
+     * @throws ExecutionException wrapping the failure
+     */
+    public void throwIfFailed() throws ExecutionException {
+        Throwable t = failure.get();
+        if (t != null)
+            throw new ExecutionException(t);
+    }
+    /**
+     * Shut the scope down and wait for the subtasks that are still running.
+     */
+    @Override
+    public void close() {
+        shutdown();
+        boolean interrupted = false;
+        synchronized (this) {
+            while (running > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+}
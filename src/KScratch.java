@@ -0,0 +1,160 @@
+/*
+ * KScratch.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+/**
+ * KScratch holds reusable scratch buffers for the convolution routines in
+ * KOps. Buffers only ever grow, so once a worker thread has processed a few
+ * tasks the convolution hot path no longer allocates. A KScratch is not
+ * thread safe; each worker thread gets its own through {@code get}.
+ */
+public class KScratch {
+    /** Per-thread scratch instances */
+    private static final ThreadLocal<KScratch> local = ThreadLocal.withInitial(KScratch::new);
+    /** Per-pixel accumulator, one element per band */
+    private float[] accumulator = new float[0];
+    /** Per-pixel fixed-point accumulator, one element per band */
+    private int[] intAccumulator = new int[0];
+    /** Intermediate tile buffer */
+    private float[] tile = new float[0];
+    /** Halo-padded copy of the input block */
+    private float[] halo = new float[0];
+    /** Output block, written back to the destination in one pass */
+    private float[] block = new float[0];
+    /** Real parts of an FFT block */
+    private float[] real = new float[0];
+    /** Imaginary parts of an FFT block */
+    private float[] imaginary = new float[0];
+    /** Summed-area table of a block (KIntegral) */
+    private double[] sums = new double[0];
+    /** Interpolated kernel taps (KField) */
+    private float[][] taps = new float[0][0];
+    /** Intermediate stage tiles of a kernel chain (KChain), used in turn */
+    private final float[][] stages = {new float[0], new float[0]};
+    /**
+     * Get the scratch buffers belonging to the calling thread.
+     * @return The KScratch of the current thread
+     */
+    public static KScratch get() {
+        return local.get();
+    }
+    /**
+     * Get an accumulator with at least the given number of elements. The
+     * contents are unspecified; callers must clear what they use.
+     * @param size The minimum length of the accumulator
+     * @return A reusable float array
+     */
+    public float[] getAccumulator(int size) {
+        if (accumulator.length < size)
+            accumulator = new float[size];
+        return accumulator;
+    }
+    /**
+     * Get a fixed-point accumulator with at least the given number of
+     * elements. The contents are unspecified; callers must clear what they use.
+     * @param size The minimum length of the accumulator
+     * @return A reusable int array
+     */
+    public int[] getIntAccumulator(int size) {
+        if (intAccumulator.length < size)
+            intAccumulator = new int[size];
+        return intAccumulator;
+    }
+    /**
+     * Get a tile buffer with at least the given number of elements. The
+     * contents are unspecified.
+     * @param size The minimum length of the tile buffer
+     * @return A reusable float array
+     */
+    public float[] getTile(int size) {
+        if (tile.length < size)
+            tile = new float[size];
+        return tile;
+    }
+    /**
+     * Get a buffer for a halo-padded input block, with at least the given
+     * number of elements. The contents are unspecified.
+     * @param size The minimum length of the buffer
+     * @return A reusable float array
+     */
+    public float[] getHalo(int size) {
+        if (halo.length < size)
+            halo = new float[size];
+        return halo;
+    }
+    /**
+     * Get a buffer for an output block, with at least the given number of
+     * elements. The contents are unspecified.
+     * @param size The minimum length of the buffer
+     * @return A reusable float array
+     */
+    public float[] getBlock(int size) {
+        if (block.length < size)
+            block = new float[size];
+        return block;
+    }
+    /**
+     * Get a buffer for the real parts of an FFT block, with at least the
+     * given number of elements. The contents are unspecified.
+     * @param size The minimum length of the buffer
+     * @return A reusable float array
+     */
+    public float[] getReal(int size) {
+        if (real.length < size)
+            real = new float[size];
+        return real;
+    }
+    /**
+     * Get a buffer for the imaginary parts of an FFT block, with at least
+     * the given number of elements. The contents are unspecified.
+     * @param size The minimum length of the buffer
+     * @return A reusable float array
+     */
+    public float[] getImaginary(int size) {
+        if (imaginary.length < size)
+            imaginary = new float[size];
+        return imaginary;
+    }
+    /**
+     * Get a buffer for the summed-area table of a block, with at least the
+     * given number of elements. The contents are unspecified.
+     * @param size The minimum length of the buffer
+     * @return A reusable double array
+     */
+    public double[] getSums(int size) {
+        if (sums.length < size)
+            sums = new double[size];
+        return sums;
+    }
+    /**
+     * Get buffers for interpolated kernel taps: at least the given number of
+     * distinct buffers, each with at least the given number of elements.
+     * The contents are unspecified.
+     * @param count The minimum number of buffers
+     * @param size The minimum length of each buffer
+     * @return Reusable float arrays
+     */
+    public float[][] getTaps(int count, int size) {
+        if (taps.length < count || taps[0].length < size) {
+            int length = Math.max(size, (taps.length > 0) ? taps[0].length : 0);
+            taps = new float[Math.max(count, taps.length)][length];
+        }
+        return taps;
+    }
+    /**
+     * Get one of the two buffers for the intermediate tiles of a kernel
+     * chain, with at least the given number of elements. Consecutive stages
+     * use alternate buffers; a KTemporal accumulates in one and convolves
+     * each frame into the other. The contents are unspecified.
+     * @param index The buffer, 0 or 1
+     * @param size The minimum length of the buffer
+     * @return A reusable float array
+     */
+    public float[] getStage(int index, int size) {
+        if (stages[index].length < size)
+            stages[index] = new float[size];
+        return stages[index];
+    }
+}
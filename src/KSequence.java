@@ -0,0 +1,407 @@
+/*
+ * KSequence.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * KSequence filters a sequence of frames (e.g. the PNG time series in
+ * test/datasets/timeseries) with one base kernel. The frames flow through a
+ * three-stage pipeline:
+ * <br>
+ * decode (own thread) -&gt; filter (the calling thread, driving the worker
+ * threads of a KScheduler, or the worker processes of a KCluster) -&gt;
+ * encode (own thread)
+ * <br>
+ * The decode and encode threads come from KThreads (virtual threads where
+ * the JDK has them), since they mostly block on files and queues.
+ * <br>
+ * Stages are connected by bounded queues, so decoding and encoding of
+ * neighbouring frames overlaps with filtering and a slow stage applies
+ * backpressure instead of buffering the whole sequence. The task layout
+ * (regions and modulated kernels) is built once and only rebound to each
+ * frame's rasters; destination rasters are recycled once encoded.
+ * <br>
+ * With a temporal kernel (KTemporal, {@code setTemporal}) each output frame
+ * is convolved across its neighbours. The filter stage keeps the last
+ * decoded frames in a ring buffer as deep as the kernel and emits output
+ * frame t as soon as its last input frame has been decoded, so every
+ * frame is still decoded exactly once; the frames before the first and
+ * after the last are clamped to them.
+ */
+public class KSequence {
+    /** Capacity of the queues between stages */
+    public static final int QUEUE_DEPTH = 4;
+    /** The scheduler running the filter tasks */
+    private final KScheduler scheduler;
+    /** The base kernel */
+    private final BaseKernel baseKernel;
+    /** The tiling block size */
+    private final int blockSize;
+    /** Whether tiling is adaptive */
+    private final boolean adaptive;
+    /** The convolution engine of every task */
+    private int engine = KOps.ENGINE_AUTO;
+    /** Whether frames are processed as 8-bit ByteRasters */
+    private boolean fixedPoint;
+    /** The kernel field interpolated per pixel, or null for per-block kernels */
+    private KField field;
+    /** Worker processes that filter the frames, or null for the scheduler */
+    private KCluster cluster;
+    /** The frames of the temporal kernel, oldest first, or null for 2D kernels */
+    private List<BaseKernel> temporalFrames;
+    /** The name of the temporal kernel */
+    private String temporalName;
+    /** The decode statistics of the last run */
+    private StageStats decodeStats = new StageStats("decode");
+    /** The task layout (regions and kernels), built for the first frame */
+    private List<KTask> layout;
+    /** The frame size the layout was built for */
+    private int layoutWidth = -1, layoutHeight = -1;
+    /** Set by the first stage that fails */
+    private volatile Exception failure;
+
+    /** A frame travelling through the pipeline */
+    private static class Frame {
+        /** Marks the end of the sequence */
+        static final Frame END = new Frame(-1, null);
+        final int index;
+        final File file;
+        BadRaster raster;
+        Frame(int index, File file) {
+            this.index = index;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Latency statistics for one pipeline stage.
+     */
+    public static class StageStats {
+        private final String name;
+        /** What is counted, in the plural */
+        private final String unit;
+        private long count, total, min = Long.MAX_VALUE, max;
+        StageStats(String name) {
+            this(name, "frames");
+        }
+        StageStats(String name, String unit) {
+            this.name = name;
+            this.unit = unit;
+        }
+        /**
+         * Get the number of latencies recorded.
+         * @return The count
+         */
+        public synchronized long getCount() {
+            return count;
+        }
+        synchronized void add(long nanos) {
+            ++count;
+            total += nanos;
+            min = Math.min(min, nanos);
+            max = Math.max(max, nanos);
+        }
+        @Override
+        public synchronized String toString() {
+            if (count == 0)
+                return String.format("%-7s no %s", name, unit);
+            return String.format("%-7s %4d %s, latency avg %8.2f ms, min %8.2f ms, max %8.2f ms",
+                                 name, count, unit, total/1e6/count, min/1e6, max/1e6);
+        }
+    }
+
+    /**
+     * Create a sequence processor.
+     * @param scheduler The scheduler that runs the filter tasks
+     * @param baseKernel The base kernel
+     * @param blockSize The tiling block size
+     * @param adaptive Whether tiling is adaptive
+     */
+    public KSequence(KScheduler scheduler, BaseKernel baseKernel, int blockSize, boolean adaptive) {
+        this.scheduler = scheduler;
+        this.baseKernel = baseKernel;
+        this.blockSize = blockSize;
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Set the convolution engine used for every task.
+     * @param engine One of the KOps.ENGINE_* constants
+     */
+    public void setEngine(int engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Process frames as 8-bit ByteRasters with fixed-point kernels instead
+     * of float rasters.
+     * @param fixedPoint True for 8-bit fixed point
+     */
+    public void setFixedPoint(boolean fixedPoint) {
+        this.fixedPoint = fixedPoint;
+    }
+
+    /**
+     * Interpolate a kernel field per pixel (in large tiles) instead of
+     * using one modulated kernel per block.
+     * @param field The field, or null for per-block kernels
+     */
+    public void setField(KField field) {
+        this.field = field;
+    }
+
+    /**
+     * Filter with a temporal kernel (KTemporal): every output frame is
+     * convolved across its neighbouring input frames, which are decoded
+     * once and kept in a ring buffer as deep as the kernel.
+     * @param temporal The kernel as loaded by {@code KTemporal.loadFrames},
+     * or null for the base kernel
+     */
+    public void setTemporal(KTemporal.Frames temporal) {
+        this.temporalName = (temporal != null) ? temporal.name : null;
+        this.temporalFrames = (temporal != null) ? temporal.frames : null;
+    }
+
+    /**
+     * Get the decode statistics of the last run: with a temporal kernel,
+     * too, every input frame is decoded once.
+     * @return The statistics
+     */
+    public StageStats getDecodeStats() {
+        return decodeStats;
+    }
+
+    /**
+     * Filter the frames on worker processes instead of the scheduler's
+     * threads (the layout is still built once, for per-block kernels).
+     * @param cluster The workers, or null to use the scheduler
+     */
+    public void setCluster(KCluster cluster) {
+        this.cluster = cluster;
+    }
+
+    /**
+     * Check whether a source path names a sequence rather than one image:
+     * a directory, or a file name containing glob characters.
+     * @param path The source path
+     * @return True if the path names a sequence
+     */
+    public static boolean isSequence(String path) {
+        return new File(path).isDirectory() || path.indexOf('*') >= 0 || path.indexOf('?') >= 0;
+    }
+
+    /**
+     * List the frames of a sequence, sorted by name. A directory yields all
+     * PNG files in it; otherwise the file name part is a glob, e.g.
+     * {@code dir/hw8_z2_*.png}.
+     * @param path A directory or a glob
+     * @return The frame files
+     * @throws IOException if the directory cannot be read
+     */
+    public static List<File> listFrames(String path) throws IOException {
+        File dir = new File(path);
+        String glob = "*.png";
+        if (!dir.isDirectory()) {
+            glob = dir.getName();
+            dir = dir.getAbsoluteFile().getParentFile();
+        }
+        List<File> frames = new ArrayList<File>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath(), glob)) {
+            for (Path p : stream)
+                frames.add(p.toFile());
+        }
+        Collections.sort(frames);
+        return frames;
+    }
+
+    /**
+     * Filter every frame and write the results into a directory, under the
+     * input file names. Prints frames/sec and per-stage latency when done.
+     * @param frames The input frames, in order
+     * @param outputDir The output directory (created if missing)
+     * @throws Exception if any stage fails
+     */
+    public void run(final List<File> frames, final File outputDir) throws Exception {
+        outputDir.mkdirs();
+        final BlockingQueue<Frame> decoded = new ArrayBlockingQueue<Frame>(QUEUE_DEPTH);
+        final BlockingQueue<Frame> filtered = new ArrayBlockingQueue<Frame>(QUEUE_DEPTH);
+        // destination rasters come back here once encoded
+        final BlockingQueue<BadRaster> free = new LinkedBlockingQueue<BadRaster>();
+        final StageStats decodeStats = new StageStats("decode");
+        this.decodeStats = decodeStats;
+        final StageStats filterStats = new StageStats("filter");
+        final StageStats encodeStats = new StageStats("encode");
+        final long startTime = System.nanoTime();
+
+        Thread decoder = KThreads.newIOThread("kernelizr-decode", new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 0; i < frames.size() && failure == null; ++i) {
+                        long t0 = System.nanoTime();
+                        Frame frame = new Frame(i, frames.get(i));
+                        frame.raster = fixedPoint ? new ByteRaster() : new BadRaster(BadRaster.LAYOUT_INTERLEAVED);
+                        frame.raster.loadFromFile(frame.file);
+                        decodeStats.add(System.nanoTime() - t0);
+                        decoded.put(frame);
+                    }
+                } catch (Exception e) {
+                    failure = e;
+                } finally {
+                    putQuietly(decoded, Frame.END);
+                }
+            }
+        });
+        Thread encoder = KThreads.newIOThread("kernelizr-encode", new Runnable() {
+            public void run() {
+                Frame frame;
+                while ((frame = takeQuietly(filtered)) != Frame.END) {
+                    if (failure != null)
+                        continue; // drain, so the filter stage never blocks
+                    try {
+                        long t0 = System.nanoTime();
+                        frame.raster.writeToFile(new File(outputDir, frame.file.getName()));
+                        encodeStats.add(System.nanoTime() - t0);
+                        free.add(frame.raster);
+                    } catch (Exception e) {
+                        failure = e;
+                    }
+                }
+            }
+        });
+        decoder.start();
+        encoder.start();
+
+        // Filter stage. Decoded frames wait in a ring buffer as deep as the
+        // temporal kernel (one frame for 2D kernels) until every input of
+        // the next output frame has arrived.
+        final int depth = (temporalFrames != null) ? temporalFrames.size() : 1;
+        final int after = depth - 1 - (depth - 1)/2;
+        final Frame [] ring = new Frame[depth];
+        layout = null;
+        int next = 0;
+        Frame frame;
+        while ((frame = takeQuietly(decoded)) != Frame.END) {
+            if (failure != null)
+                continue; // drain, so the decoder never blocks
+            ring[frame.index % depth] = frame;
+            try {
+                for (; next <= frame.index - after; ++next)
+                    filter(next, ring, frame.index, filtered, free, filterStats);
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+        // the last frames, whose later neighbours are clamped to the last frame
+        try {
+            for (; failure == null && next < frames.size(); ++next)
+                filter(next, ring, frames.size() - 1, filtered, free, filterStats);
+        } catch (Exception e) {
+            failure = e;
+        }
+        putQuietly(filtered, Frame.END);
+        decoder.join();
+        encoder.join();
+        if (failure != null)
+            throw failure;
+
+        double seconds = (System.nanoTime() - startTime)/1e9;
+        System.out.printf("Processed %d frames in %.3f s: %.2f frames/sec\n",
+                          frames.size(), seconds, frames.size()/seconds);
+        System.out.println(decodeStats);
+        System.out.println(filterStats);
+        System.out.println(encodeStats);
+    }
+
+    /**
+     * Filter one output frame from the frames in the ring buffer and pass
+     * it on to the encoder.
+     * @param t The index of the output frame
+     * @param ring The decoded frames, frame i at {@code i % ring.length}
+     * @param last The index of the last decoded frame that may be read
+     * @param filtered The queue to the encoder
+     * @param free Destination rasters that may be reused
+     * @param filterStats The filter stage statistics
+     * @throws InterruptedException if interrupted while filtering
+     * @throws IOException if the cluster fails to filter the frame
+     */
+    private void filter(int t, Frame [] ring, int last, BlockingQueue<Frame> filtered,
+                        BlockingQueue<BadRaster> free, StageStats filterStats)
+            throws InterruptedException, IOException {
+        long t0 = System.nanoTime();
+        final int depth = ring.length;
+        final int before = (depth - 1)/2;
+        BadRaster [] inputs = new BadRaster[depth];
+        for (int k = 0; k < depth; ++k)
+            inputs[k] = ring[Math.min(Math.max(t - before + k, 0), last) % depth].raster;
+        BadRaster src = inputs[before];
+        for (BadRaster input : inputs)
+            if (input.getWidth() != src.getWidth() || input.getHeight() != src.getHeight()
+                    || input.getBands() != src.getBands())
+                throw new IllegalArgumentException("The frames under a temporal kernel must all have the same size");
+        BadRaster dst = free.poll();
+        if (dst == null || dst.getWidth() != src.getWidth() || dst.getHeight() != src.getHeight()
+                || dst.getBands() != src.getBands())
+            dst = fixedPoint ? new ByteRaster(src.getBands(), src.getWidth(), src.getHeight())
+                             : new BadRaster(src.getBands(), src.getWidth(), src.getHeight(), src.getLayout());
+        if (layout == null || layoutWidth != src.getWidth() || layoutHeight != src.getHeight()) {
+            // first frame (or a frame of a new size): build the layout
+            layout = (temporalFrames != null)
+                   ? KTiler.tile(src, dst, new KTemporal(temporalName, temporalFrames, src.getWidth(), src.getHeight(), blockSize),
+                                 scheduler.getThreads(), engine)
+                   : (field != null)
+                   ? KTiler.tile(src, dst, field, scheduler.getThreads())
+                   : KTiler.tile(src, dst, baseKernel, blockSize, scheduler.getThreads(), adaptive, engine);
+            layoutWidth = src.getWidth();
+            layoutHeight = src.getHeight();
+        }
+        for (KTask task : layout) {
+            task.setInputRaster(src);
+            task.setInputFrames(inputs);
+            task.setOutputRaster(dst);
+        }
+        if (cluster != null)
+            cluster.run(src, dst, layout);
+        else
+            scheduler.run(layout);
+        Frame out = new Frame(t, ring[t % depth].file);
+        out.raster = dst;
+        filterStats.add(System.nanoTime() - t0);
+        putQuietly(filtered, out);
+    }
+
+    /**
+     * Take an element from a queue, retrying if interrupted.
+     * @param queue The queue
+     * @return The element
+     */
+    private static Frame takeQuietly(BlockingQueue<Frame> queue) {
+        while (true) {
+            try {
+                return queue.take();
+            } catch (InterruptedException e) {
+                // retry
+            }
+        }
+    }
+    /**
+     * Put an element into a queue, retrying if interrupted.
+     * @param queue The queue
+     * @param frame The element
+     */
+    private static void putQuietly(BlockingQueue<Frame> queue, Frame frame) {
+        while (true) {
+            try {
+                queue.put(frame);
+                return;
+            } catch (InterruptedException e) {
+                // retry
+            }
+        }
+    }
+}
@@ -0,0 +1,583 @@
+/*
+ * KServer.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * KServer keeps one JVM, one worker pool and the parsed base kernels alive
+ * across filter jobs, so small jobs stop paying for JVM startup, class
+ * loading, JIT warm-up and thread creation on every run.
+ * <br>
+ * A job is one line in Kernelizr's syntax, without the {@code java Kernelizr}:
+ * {@code image_path [kernel_path] --output=path [options]}. The per-job
+ * options are --output (required), --engine, --precision, --tiling,
+ * --block, --modulation and --interpolate; the thread count belongs to the
+ * server. Arguments are split like a shell would (see {@code splitJob}), so
+ * paths with spaces can be quoted. Jobs arrive over a local socket (one job per line; the reply to
+ * each is a line starting with "ok" or "error", the command "stats" prints
+ * the statistics and "shutdown" stops the server) or through a spool
+ * directory (each *.job file holds jobs, one per line, and its replies are
+ * written to a matching *.done file; write the file under another name and
+ * rename it, so it is never read half written, and create a file named
+ * "shutdown" to stop the server).
+ * <br>
+ * Up to {@code jobs} jobs are decoded, filtered and encoded at the same
+ * time. Their filter tasks all run on the one shared KScheduler, but in
+ * turns: a job runs at most SLICE_TASKS_PER_THREAD tasks per worker thread
+ * and then queues again behind the other jobs (a fair semaphore), so a
+ * small job never waits for a large one to finish, only for its current
+ * slice. Job, client and spool threads are I/O threads (KThreads: virtual
+ * threads on Java 21 and later, unless {@code --io=platform}).
+ */
+public class KServer {
+    /** Default TCP port, on the loopback interface */
+    public static final int DEFAULT_PORT = 4003;
+    /** Default number of jobs in progress at once */
+    public static final int DEFAULT_JOBS = 2;
+    /** Tasks per worker thread a job may run before yielding its turn */
+    public static final int SLICE_TASKS_PER_THREAD = 4;
+    /** How often the spool directory is scanned, in milliseconds */
+    public static final int SPOOL_INTERVAL = 250;
+    /** Used when a job names no kernel */
+    public static final String DEFAULT_KERNEL = "../test/kernels/diamondblur_11x11.json";
+    /** The shared worker pool */
+    private final KScheduler scheduler;
+    /** Runs the jobs; its queue holds the jobs waiting for a slot */
+    private final ThreadPoolExecutor executor;
+    /** Turns on the scheduler, handed out in arrival order */
+    private final Semaphore turn = new Semaphore(1, true);
+    /** Parsed base kernels, by path and modulation */
+    private final Map<String,BaseKernel> kernels = new ConcurrentHashMap<String,BaseKernel>();
+    /** Number of jobs accepted so far (the next job id) */
+    private final AtomicInteger accepted = new AtomicInteger();
+    /** Number of jobs accepted and not finished */
+    private final AtomicInteger pending = new AtomicInteger();
+    /** Number of jobs that failed */
+    private final AtomicInteger failed = new AtomicInteger();
+    /** Per-job latency: waiting for a slot, each stage, and in total */
+    private final KSequence.StageStats queuedStats = new KSequence.StageStats("queued", "jobs");
+    private final KSequence.StageStats decodeStats = new KSequence.StageStats("decode", "jobs");
+    private final KSequence.StageStats filterStats = new KSequence.StageStats("filter", "jobs");
+    private final KSequence.StageStats encodeStats = new KSequence.StageStats("encode", "jobs");
+    private final KSequence.StageStats totalStats = new KSequence.StageStats("total", "jobs");
+    /** Set once the server is stopping */
+    private volatile boolean stopping;
+    /** The listening socket, if any */
+    private volatile ServerSocket serverSocket;
+
+    /**
+     * Create a server with its worker pool.
+     * @param schedulerMode The scheduler mode, one of the KScheduler.MODE_* constants
+     * @param nThreads The number of worker threads shared by all jobs
+     * @param jobs The number of jobs in progress at once
+     */
+    public KServer(int schedulerMode, int nThreads, int jobs) {
+        scheduler = new KScheduler(schedulerMode, nThreads);
+        jobs = Math.max(1, jobs);
+        executor = new ThreadPoolExecutor(jobs, jobs, 0L, TimeUnit.MILLISECONDS,
+                                          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                return KThreads.newIOThread("kernelizr-job-" + count.incrementAndGet(), r);
+            }
+        });
+    }
+
+    /**
+     * Submit a job.
+     * @param line The job, in Kernelizr's command-line syntax
+     * @return The reply line, once the job is done
+     */
+    public Future<String> submit(String line) {
+        return submit(line, null);
+    }
+
+    /**
+     * Submit a job, with a callback for its reply.
+     * @param line The job, in Kernelizr's command-line syntax
+     * @param done Called on the job thread with the reply line (may be null)
+     * @return The reply line, once the job is done
+     */
+    public Future<String> submit(final String line, final Consumer<String> done) {
+        final int id = accepted.incrementAndGet();
+        final long submitted = System.nanoTime();
+        pending.incrementAndGet();
+        return executor.submit(new Callable<String>() {
+            public String call() {
+                String reply;
+                try {
+                    reply = run(id, new KOptions(splitJob(line)), submitted);
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    reply = String.format("error %d %s", id, e);
+                    System.out.println(reply);
+                } finally {
+                    pending.decrementAndGet();
+                }
+                if (done != null)
+                    done.accept(reply);
+                return reply;
+            }
+        });
+    }
+
+    /**
+     * Split a job line into arguments the way a shell does: whitespace
+     * separates arguments except inside single or double quotes, a
+     * backslash outside quotes takes the next character literally, and
+     * inside double quotes it escapes only {@code "} and a backslash. So
+     * {@code "my image.png"}, {@code 'my image.png'} and
+     * {@code my\ image.png} are one argument.
+     * @param line The job line
+     * @return The arguments
+     * @throws IllegalArgumentException if a quote is not closed
+     */
+    static String[] splitJob(String line) {
+        List<String> args = new ArrayList<String>();
+        StringBuilder arg = new StringBuilder();
+        boolean inArg = false;
+        char quote = 0;
+        for (int i = 0; i < line.length(); ++i) {
+            char c = line.charAt(i);
+            if (quote == '\'') {
+                if (c == '\'')
+                    quote = 0;
+                else
+                    arg.append(c);
+            } else if (quote == '"') {
+                if (c == '"')
+                    quote = 0;
+                else if (c == '\\' && i + 1 < line.length() && (line.charAt(i + 1) == '"' || line.charAt(i + 1) == '\\'))
+                    arg.append(line.charAt(++i));
+                else
+                    arg.append(c);
+            } else if (c == '\\' && i + 1 < line.length()) {
+                arg.append(line.charAt(++i));
+                inArg = true;
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                inArg = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inArg)
+                    args.add(arg.toString());
+                arg.setLength(0);
+                inArg = false;
+            } else {
+                arg.append(c);
+                inArg = true;
+            }
+        }
+        if (quote != 0)
+            throw new IllegalArgumentException("Unclosed " + quote + " in job: " + line);
+        if (inArg)
+            args.add(arg.toString());
+        return args.toArray(new String[args.size()]);
+    }
+
+    /**
+     * Quote an argument for a job line, if it needs it, so that
+     * {@code splitJob} gives it back unchanged.
+     * @param arg The argument
+     * @return The argument, in single quotes if it is empty or has
+     * whitespace, quotes or backslashes
+     */
+    static String quote(String arg) {
+        for (int i = 0; i < arg.length(); ++i) {
+            char c = arg.charAt(i);
+            if (Character.isWhitespace(c) || c == '"' || c == '\'' || c == '\\')
+                return "'" + arg.replace("'", "'\\''") + "'";
+        }
+        return arg.isEmpty() ? "''" : arg;
+    }
+
+    /**
+     * Run one job.
+     * @param id The job id
+     * @param options The job's arguments
+     * @param submitted When the job was submitted (System.nanoTime)
+     * @return The reply line
+     * @throws Exception if the job fails
+     */
+    private String run(int id, KOptions options, long submitted) throws Exception {
+        final long t0 = System.nanoTime();
+        queuedStats.add(t0 - submitted);
+        final String sourcePath = options.getPositional(0, null);
+        final String destinationPath = options.getString("output", null);
+        if (sourcePath == null || destinationPath == null)
+            throw new IllegalArgumentException("A job needs an image path and --output=path");
+        final int blockSize = options.getInt("block", 8, 1);
+        final boolean adaptive = options.getString("tiling", "adaptive").equals("adaptive");
+        final int engine = KOps.parseEngine(options.getString("engine", "auto"));
+        final String precision = options.getString("precision", "float");
+        if (!precision.equals("float") && !precision.equals("fixed"))
+            throw new IllegalArgumentException("Unknown precision: " + precision + " (expected float or fixed)");
+        final boolean fixedPoint = precision.equals("fixed");
+        final String interpolate = options.getString("interpolate", null);
+        final int fieldSamples = (interpolate == null) ? 0
+                               : interpolate.equals("true") ? KField.DEFAULT_SAMPLES : options.getInt("interpolate", 0);
+        final BaseKernel baseKernel = getKernel(options.getPositional(1, DEFAULT_KERNEL),
+                                                options.getString("modulation", "linear"));
+
+        // Decode
+        final boolean rawSource = sourcePath.endsWith(MappedRaster.SUFFIX);
+        if (!new File(sourcePath).isFile())
+            throw new IllegalArgumentException("No such image: " + sourcePath);
+        final boolean rawDestination = destinationPath.endsWith(MappedRaster.SUFFIX);
+        BadRaster src;
+        if (rawSource) {
+            src = MappedRaster.open(new File(sourcePath), false);
+        } else {
+            src = fixedPoint ? new ByteRaster() : new BadRaster(BadRaster.LAYOUT_INTERLEAVED);
+            src.loadFromPath(sourcePath);
+        }
+        BadRaster dst;
+        if (rawDestination)
+            dst = MappedRaster.create(new File(destinationPath), src.getBands(), src.getWidth(), src.getHeight(),
+                                      fixedPoint ? MappedRaster.SAMPLE_BYTE : MappedRaster.SAMPLE_FLOAT);
+        else if (fixedPoint && !rawSource)
+            dst = new ByteRaster(src.getBands(), src.getWidth(), src.getHeight());
+        else
+            dst = new BadRaster(src.getBands(), src.getWidth(), src.getHeight(), BadRaster.LAYOUT_INTERLEAVED);
+        final long t1 = System.nanoTime();
+        decodeStats.add(t1 - t0);
+
+        // Filter, one slice of tasks per turn on the shared workers
+        KField field = (fieldSamples > 0) ? new KField(baseKernel, fieldSamples) : null;
+        List<KTask> tasks = Kernelizr.tile(src, dst, baseKernel, field, null, blockSize,
+                                           scheduler.getThreads(), adaptive, engine);
+        final int slice = SLICE_TASKS_PER_THREAD*scheduler.getThreads();
+        for (int i = 0; i < tasks.size(); i += slice) {
+            turn.acquire();
+            try {
+                scheduler.run(tasks.subList(i, Math.min(tasks.size(), i + slice)));
+            } finally {
+                turn.release();
+            }
+        }
+        final long t2 = System.nanoTime();
+        filterStats.add(t2 - t1);
+
+        // Encode
+        if (rawDestination)
+            ((MappedRaster)dst).force();
+        else
+            dst.writeToPath(destinationPath);
+        final long t3 = System.nanoTime();
+        encodeStats.add(t3 - t2);
+        totalStats.add(t3 - submitted);
+        String reply = String.format("ok %d %s %dx%d %d tasks, queued %.2f ms, decode %.2f ms, filter %.2f ms, encode %.2f ms, total %.2f ms",
+                                     id, destinationPath, src.getWidth(), src.getHeight(), tasks.size(),
+                                     (t0 - submitted)/1e6, (t1 - t0)/1e6, (t2 - t1)/1e6, (t3 - t2)/1e6, (t3 - submitted)/1e6);
+        System.out.println(reply + ", queue depth " + getQueueDepth());
+        return reply;
+    }
+
+    /**
+     * Get a base kernel, parsing it the first time it is asked for. Kernels
+     * are shared by every job that names the same file and modulation.
+     * @param path The path of the JSON kernel, or {@code bank.kbank#name}
+     * @param modulation The name of the modulation
+     * @return The base kernel
+     */
+    private BaseKernel getKernel(final String path, final String modulation) {
+        final KModulation function = KModulation.parse(modulation);
+        int hash = path.indexOf(KBank.SUFFIX + "#");
+        if (!new File((hash < 0) ? path : path.substring(0, hash + KBank.SUFFIX.length())).isFile())
+            throw new IllegalArgumentException("No such kernel: " + path);
+        return kernels.computeIfAbsent(path + "|" + modulation, key -> {
+            BaseKernel kernel = BaseKernel.load(path);
+            kernel.setModulation(function);
+            return kernel;
+        });
+    }
+
+    /**
+     * Get the port the server listens on (useful after {@code listen(0)}).
+     * @return The local port, or -1 if the server is not listening
+     */
+    public int getPort() {
+        ServerSocket socket = serverSocket;
+        return (socket == null) ? -1 : socket.getLocalPort();
+    }
+
+    /**
+     * Get the number of jobs waiting for a slot.
+     * @return The queue depth
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Get the statistics of the jobs run so far.
+     * @return Several lines of text
+     */
+    public String getStats() {
+        StringBuilder stats = new StringBuilder();
+        stats.append(String.format("jobs: %d accepted, %d pending (%d queued), %d failed; %d threads, %d kernels cached\n",
+                                   accepted.get(), pending.get(), getQueueDepth(), failed.get(),
+                                   scheduler.getThreads(), kernels.size()));
+        for (KSequence.StageStats s : new KSequence.StageStats[] {queuedStats, decodeStats, filterStats, encodeStats, totalStats})
+            stats.append(s).append('\n');
+        return stats.toString();
+    }
+
+    /**
+     * Accept jobs over TCP on the loopback interface until stopped. Every
+     * connection is served by its own thread; its jobs run concurrently and
+     * the replies are written as the jobs finish.
+     * @param port The port, or 0 for any free port (see {@code getPort})
+     * @throws IOException if the socket cannot be opened
+     */
+    public void listen(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        System.out.printf("Listening on %s:%d\n", serverSocket.getInetAddress().getHostAddress(), serverSocket.getLocalPort());
+        while (!stopping) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException e) {
+                break; // closed by stop()
+            }
+            Thread handler = KThreads.newIOThread("kernelizr-client", new Runnable() {
+                public void run() {
+                    serve(socket);
+                }
+            });
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    /**
+     * Serve one client connection: submit each job line, and reply to each
+     * as it finishes. Returns once the client has closed its side and every
+     * job it sent is done.
+     * @param socket The connection
+     */
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8))) {
+            final PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), true);
+            List<Future<String>> replies = new ArrayList<Future<String>>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty())
+                    continue;
+                if (line.equals("stats")) {
+                    synchronized (out) {
+                        out.print(getStats());
+                        out.flush();
+                    }
+                } else if (line.equals("shutdown")) {
+                    stop();
+                    break;
+                } else {
+                    replies.add(submit(line, reply -> {
+                        synchronized (out) {
+                            out.println(reply);
+                        }
+                    }));
+                }
+            }
+            for (Future<String> reply : replies)
+                reply.get();
+        } catch (Exception e) {
+            if (!stopping)
+                e.printStackTrace();
+        }
+    }
+
+    /**
+     * Run the jobs of the *.job files that appear in a directory until
+     * stopped. A file is claimed by renaming it to *.running, and replaced
+     * by a *.done file holding the reply to each of its jobs.
+     * @param dir The spool directory
+     */
+    public void spool(File dir) {
+        dir.mkdirs();
+        System.out.printf("Watching %s for *.job files\n", dir.getPath());
+        File shutdown = new File(dir, "shutdown");
+        while (!stopping) {
+            if (shutdown.delete()) {
+                stop();
+                break;
+            }
+            File [] files = dir.listFiles((d, name) -> name.endsWith(".job"));
+            if (files != null) {
+                Arrays.sort(files);
+                for (File file : files)
+                    claim(file);
+            }
+            try {
+                Thread.sleep(SPOOL_INTERVAL);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Claim a spooled job file and submit its jobs; the last of them to
+     * finish writes the *.done file.
+     * @param file The *.job file
+     */
+    private void claim(File file) {
+        String base = file.getPath().substring(0, file.getPath().length() - ".job".length());
+        final File running = new File(base + ".running");
+        final File done = new File(base + ".done");
+        if (!file.renameTo(running))
+            return; // claimed by someone else
+        final List<String> lines = new ArrayList<String>();
+        try {
+            for (String line : Files.readAllLines(running.toPath(), StandardCharsets.UTF_8))
+                if (!line.trim().isEmpty() && !line.trim().startsWith("#"))
+                    lines.add(line);
+        } catch (IOException e) {
+            lines.clear();
+            e.printStackTrace();
+        }
+        // replies in the order of the jobs, written when the last is done
+        final String [] replies = new String[lines.size()];
+        final AtomicInteger remaining = new AtomicInteger(lines.size());
+        Runnable finish = () -> {
+            StringBuilder text = new StringBuilder();
+            for (String reply : replies)
+                text.append(reply).append('\n');
+            try {
+                Files.write(done.toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+                running.delete();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        };
+        if (lines.isEmpty())
+            finish.run();
+        for (int i = 0; i < lines.size(); ++i) {
+            final int index = i;
+            submit(lines.get(i), reply -> {
+                replies[index] = reply;
+                if (remaining.decrementAndGet() == 0)
+                    finish.run();
+            });
+        }
+    }
+
+    /**
+     * Stop accepting jobs. Jobs already accepted are finished first (see
+     * {@code shutdown}).
+     */
+    public void stop() {
+        stopping = true;
+        ServerSocket socket = serverSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    /**
+     * Finish the accepted jobs and stop the job and worker threads.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        scheduler.shutdown();
+    }
+
+    /**
+     * Send jobs to a running server and print the replies.
+     * @param port The server's port
+     * @param lines The jobs (or commands)
+     * @return The number of replies starting with "error"
+     * @throws IOException if the server cannot be reached
+     */
+    public static int send(int port, List<String> lines) throws IOException {
+        int errors = 0;
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            for (String line : lines)
+                out.write(line + "\n");
+            out.flush();
+            socket.shutdownOutput();
+            String reply;
+            while ((reply = in.readLine()) != null) {
+                System.out.println(reply);
+                if (reply.startsWith("error"))
+                    ++errors;
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * Run a server, or send jobs to one.
+     * <br>
+     * {@code java KServer [--port=n] [--spool=dir] [--threads=n] [--jobs=n] [--scheduler=forkjoin|pool|structured] [--io=auto|platform|virtual]}
+     * <br>
+     * {@code java KServer --send[=port] image_path [kernel_path] --output=path [options]}
+     * sends one job, quoting the arguments that need it (read job lines
+     * from standard input with {@code -}).
+     * @param args The command-line args
+     * @throws Exception if the server fails to start or stop
+     */
+    public static void main(String[] args) throws Exception {
+        KOptions options = new KOptions(args);
+        if (options.has("send")) {
+            String send = options.getString("send", "true");
+            int port = send.equals("true") ? DEFAULT_PORT : options.getInt("send", DEFAULT_PORT);
+            List<String> lines = new ArrayList<String>();
+            if (options.positionalCount() == 1 && options.getPositional(0, "").equals("-")) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+                String line;
+                while ((line = in.readLine()) != null)
+                    lines.add(line);
+            } else {
+                StringBuilder job = new StringBuilder();
+                for (String arg : args)
+                    if (!arg.startsWith("--send"))
+                        job.append(quote(arg)).append(' ');
+                lines.add(job.toString().trim());
+            }
+            System.exit(send(port, lines) == 0 ? 0 : 1);
+        }
+        KThreads.setMode(KThreads.parseMode(options.getString("io", "auto")));
+        final int nThreads = options.getInt("threads", Runtime.getRuntime().availableProcessors());
+        final int jobs = options.getInt("jobs", DEFAULT_JOBS);
+        final KServer server = new KServer(KScheduler.parseMode(options.getString("scheduler", "forkjoin")), nThreads, jobs);
+        System.out.printf("Kernelizr server: %d worker threads, %d jobs at a time, %s I/O threads.\n",
+                          nThreads, Math.max(1, jobs), KThreads.isVirtual() ? "virtual" : "platform");
+        Thread spooler = null;
+        if (options.has("spool")) {
+            final File dir = new File(options.getString("spool", "spool"));
+            spooler = KThreads.newIOThread("kernelizr-spool", new Runnable() {
+                public void run() {
+                    server.spool(dir);
+                }
+            });
+            spooler.start();
+        }
+        if (!options.has("spool") || options.has("port"))
+            server.listen(options.getInt("port", DEFAULT_PORT));
+        if (spooler != null)
+            spooler.join();
+        server.shutdown();
+        System.out.print(server.getStats());
+    }
+}
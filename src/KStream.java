@@ -0,0 +1,849 @@
+/*
+ * KStream.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * KStream filters one image in horizontal strips, so images larger than the
+ * heap can be processed. Like KSequence it is a three-stage pipeline:
+ * <br>
+ * decode (own thread) -&gt; filter (the calling thread, driving the worker
+ * threads of a KScheduler) -&gt; encode (own thread)
+ * <br>
+ * The decode and encode threads come from KThreads (virtual threads where
+ * the JDK has them), since they mostly block on files and queues.
+ * <br>
+ * The decoder reads the source once, top to bottom: PNGs are inflated and
+ * unfiltered a row at a time as the strips need them (see
+ * {@code PNGRowReader}), other images are decoded whole once and handed out
+ * in rows. The filter stage keeps a rolling window of source rows: the
+ * strip plus the kernel halo above and below it (the halo rows are carried
+ * over from the previous window, only the new rows are decoded). Each strip
+ * is tiled with the blocks and kernels it has in the whole-image grid, so
+ * the output is identical to filtering the whole image. Finished strips go
+ * to the encoder, which appends their rows to a PNG (written row by row,
+ * see {@code PNGRowWriter}) or to a MappedRaster.
+ * <br>
+ * Peak memory is a few windows of strip + 2*halo rows, proportional to the
+ * image width times the strip and kernel height instead of the image area
+ * (plus the whole image for the sources PNGRowReader cannot stream).
+ */
+public class KStream {
+    /** Default strip height in rows (rounded up to a multiple of the block size) */
+    public static final int DEFAULT_STRIP_HEIGHT = 256;
+    /** Capacity of the queues between stages */
+    public static final int QUEUE_DEPTH = 2;
+    /** The first eight bytes of every PNG file */
+    static final byte [] PNG_SIGNATURE = {(byte)137, 'P', 'N', 'G', '\r', '\n', 26, '\n'};
+    /** The scheduler running the filter tasks */
+    private final KScheduler scheduler;
+    /** The base kernel */
+    private final BaseKernel baseKernel;
+    /** The tiling block size */
+    private final int blockSize;
+    /** Whether tiling is adaptive */
+    private final boolean adaptive;
+    /** The convolution engine of every task */
+    private int engine = KOps.ENGINE_AUTO;
+    /** Whether strips are processed as 8-bit ByteRasters */
+    private boolean fixedPoint;
+    /** The strip height in rows, a multiple of the block size */
+    private int stripHeight;
+    /** Set by the first stage that fails */
+    private volatile Exception failure;
+
+    /** Rows of an image travelling through the pipeline */
+    private static class Strip {
+        /** Marks the end of the image */
+        static final Strip END = new Strip(null, 0, 0);
+        /** The raster holding the rows */
+        final BadRaster raster;
+        /** The first row of the strip in the raster */
+        final int offset;
+        /** The number of rows */
+        final int rows;
+        Strip(BadRaster raster, int offset, int rows) {
+            this.raster = raster;
+            this.offset = offset;
+            this.rows = rows;
+        }
+    }
+
+    /** Supplies the rows of the source image, top to bottom */
+    interface RowSource {
+        int getBands();
+        int getWidth();
+        int getHeight();
+        /**
+         * Read the next rows.
+         * @param rows The number of rows
+         * @return A raster holding just those rows
+         * @throws IOException if the image cannot be read
+         */
+        BadRaster readRows(int rows) throws IOException;
+        void close() throws IOException;
+    }
+
+    /** Receives the rows of the filtered image, top to bottom */
+    private interface RowSink {
+        void writeRows(BadRaster raster, int offset, int rows) throws IOException;
+        void close() throws IOException;
+    }
+
+    /**
+     * Create a strip processor.
+     * @param scheduler The scheduler that runs the filter tasks
+     * @param baseKernel The base kernel
+     * @param blockSize The tiling block size
+     * @param adaptive Whether tiling is adaptive
+     */
+    public KStream(KScheduler scheduler, BaseKernel baseKernel, int blockSize, boolean adaptive) {
+        this.scheduler = scheduler;
+        this.baseKernel = baseKernel;
+        this.blockSize = blockSize;
+        this.adaptive = adaptive;
+        setStripHeight(DEFAULT_STRIP_HEIGHT);
+    }
+
+    /**
+     * Set the convolution engine used for every task.
+     * @param engine One of the KOps.ENGINE_* constants
+     */
+    public void setEngine(int engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Process strips as 8-bit ByteRasters with fixed-point kernels instead
+     * of float rasters.
+     * @param fixedPoint True for 8-bit fixed point
+     */
+    public void setFixedPoint(boolean fixedPoint) {
+        this.fixedPoint = fixedPoint;
+    }
+
+    /**
+     * Set the strip height. Strips start on block boundaries, so the height
+     * is rounded up to a multiple of the block size.
+     * @param rows The strip height in rows
+     */
+    public void setStripHeight(int rows) {
+        stripHeight = Math.max(1, (rows + blockSize - 1)/blockSize)*blockSize;
+    }
+
+    /**
+     * Get the strip height.
+     * @return The strip height in rows
+     */
+    public int getStripHeight() {
+        return stripHeight;
+    }
+
+    /**
+     * Filter an image strip by strip. The output is a PNG, or a raw raster
+     * if its name ends in MappedRaster.SUFFIX (8-bit samples in fixed point).
+     * Prints the window size and per-stage latency when done.
+     * @param input The input image
+     * @param output The output file
+     * @throws Exception if any stage fails
+     */
+    public void run(File input, File output) throws Exception {
+        RowSource source = openRows(input, fixedPoint);
+        try {
+            run(source, output);
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Open an image for reading row by row: a PNGRowReader if the file is a
+     * PNG it can stream, an ImageRowReader otherwise.
+     * @param file The image
+     * @param fixedPoint True for 8-bit ByteRaster rows
+     * @return The rows of the image
+     * @throws IOException if the file cannot be read
+     */
+    static RowSource openRows(File file, boolean fixedPoint) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+        PNGRowReader png;
+        try {
+            png = new PNGRowReader(in, fixedPoint);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        if (png.isStreamable())
+            return png;
+        png.close();
+        return new ImageRowReader(file, fixedPoint);
+    }
+
+    /**
+     * Run the pipeline on a row source.
+     * @param source The source image
+     * @param output The output file
+     * @throws Exception if any stage fails
+     */
+    private void run(final RowSource source, final File output) throws Exception {
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        final int halo = baseKernel.getHalfHeight();
+        final BlockingQueue<Strip> decoded = new ArrayBlockingQueue<Strip>(QUEUE_DEPTH);
+        final BlockingQueue<Strip> filtered = new ArrayBlockingQueue<Strip>(QUEUE_DEPTH);
+        // destination windows come back here once encoded
+        final BlockingQueue<BadRaster> free = new LinkedBlockingQueue<BadRaster>();
+        final KSequence.StageStats decodeStats = new KSequence.StageStats("decode");
+        final KSequence.StageStats filterStats = new KSequence.StageStats("filter");
+        final KSequence.StageStats encodeStats = new KSequence.StageStats("encode");
+        final long startTime = System.nanoTime();
+        failure = null;
+
+        // The decoder reads, for the strip [y0, y1), the source rows up to
+        // y1 + halo that earlier strips have not read, continuing where the
+        // previous strip stopped
+        Thread decoder = KThreads.newIOThread("kernelizr-decode", new Runnable() {
+            public void run() {
+                try {
+                    int loaded = 0;
+                    for (int y0 = 0; y0 < height && failure == null; y0 += stripHeight) {
+                        int end = Math.min(height, y0 + stripHeight + halo);
+                        BadRaster rows = null;
+                        if (end > loaded) {
+                            // near the bottom the earlier strips may have read every row
+                            long t0 = System.nanoTime();
+                            rows = source.readRows(end - loaded);
+                            decodeStats.add(System.nanoTime() - t0);
+                        }
+                        decoded.put(new Strip(rows, loaded, end - loaded));
+                        loaded = end;
+                    }
+                } catch (Exception e) {
+                    failure = e;
+                } finally {
+                    putQuietly(decoded, Strip.END);
+                }
+            }
+        });
+        decoder.start();
+        // The bands are only known once the first rows are decoded
+        Strip first = takeQuietly(decoded);
+        if (first == Strip.END) {
+            decoder.join();
+            throw (failure != null) ? failure : new IOException("No rows decoded");
+        }
+        final int bands = first.raster.getBands();
+        final RowSink sink;
+        try {
+            sink = output.getName().endsWith(MappedRaster.SUFFIX)
+                 ? new RawRowWriter(MappedRaster.create(output, bands, width, height,
+                       fixedPoint ? MappedRaster.SAMPLE_BYTE : MappedRaster.SAMPLE_FLOAT))
+                 : new PNGRowWriter(output, bands, width, height);
+        } catch (IOException e) {
+            failure = e;
+            while (decoder.isAlive())
+                decoded.poll(10, TimeUnit.MILLISECONDS);
+            throw e;
+        }
+        Thread encoder = KThreads.newIOThread("kernelizr-encode", new Runnable() {
+            public void run() {
+                Strip strip;
+                while ((strip = takeQuietly(filtered)) != Strip.END) {
+                    if (failure != null)
+                        continue; // drain, so the filter stage never blocks
+                    try {
+                        long t0 = System.nanoTime();
+                        sink.writeRows(strip.raster, strip.offset, strip.rows);
+                        encodeStats.add(System.nanoTime() - t0);
+                        free.add(strip.raster);
+                    } catch (Exception e) {
+                        failure = e;
+                    }
+                }
+            }
+        });
+        encoder.start();
+
+        // Filter stage. The window holds source rows [top, loaded).
+        BadRaster window = null;
+        int top = 0, loaded = 0;
+        float [] row = new float[width*bands];
+        Strip next = first;
+        for (int y0 = 0; y0 < height && failure == null; y0 += stripHeight) {
+            try {
+                long t0 = System.nanoTime();
+                int y1 = Math.min(height, y0 + stripHeight);
+                int newTop = Math.max(0, y0 - halo);
+                int newLoaded = Math.min(height, y1 + halo);
+                if (next == null)
+                    next = takeQuietly(decoded);
+                if (next == Strip.END)
+                    break; // the decoder failed
+                // slide the window: keep the rows still needed, append the new ones
+                BadRaster src = window;
+                if (src == null || src.getHeight() != newLoaded - newTop)
+                    src = newRaster(fixedPoint, bands, width, newLoaded - newTop);
+                for (int y = newTop; y < loaded; ++y)
+                    copyRow(window, y - top, src, y - newTop, row);
+                for (int j = 0; j < next.rows; ++j)
+                    copyRow(next.raster, j, src, next.offset + j - newTop, row);
+                next = null;
+                window = src;
+                top = newTop;
+                loaded = newLoaded;
+                BadRaster dst = free.poll();
+                if (dst == null || dst.getHeight() != src.getHeight())
+                    dst = newRaster(fixedPoint, bands, width, src.getHeight());
+                // tile the strip as in the whole-image grid, in window coordinates
+                List<KTask> tasks = KTiler.group(KTiler.grid(width, height, baseKernel, blockSize, y0, y1),
+                                                 scheduler.getThreads(), adaptive, engine);
+                for (KTask task : tasks) {
+                    task.setRegion(task.getOriginX(), task.getOriginY() - top, task.getWidth(), task.getHeight());
+                    task.setInputRaster(src);
+                    task.setOutputRaster(dst);
+                }
+                scheduler.run(tasks);
+                filterStats.add(System.nanoTime() - t0);
+                putQuietly(filtered, new Strip(dst, y0 - top, y1 - y0));
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+        // let a blocked decoder finish
+        while (next != Strip.END && decoder.isAlive())
+            next = decoded.poll(10, TimeUnit.MILLISECONDS);
+        putQuietly(filtered, Strip.END);
+        decoder.join();
+        encoder.join();
+        sink.close();
+        if (failure != null)
+            throw failure;
+
+        double seconds = (System.nanoTime() - startTime)/1e9;
+        int windowRows = Math.min(height, stripHeight + 2*halo);
+        System.out.printf("Streamed %dx%d in %.3f s: %d-row strips, %d-row window (%.1f MB per window)\n",
+                          width, height, seconds, stripHeight, windowRows,
+                          (double)windowRows*width*bands*(fixedPoint ? 1 : 4)/(1 << 20));
+        System.out.println(decodeStats);
+        System.out.println(filterStats);
+        System.out.println(encodeStats);
+    }
+
+    /**
+     * Allocate a window raster.
+     * @param fixedPoint True for an 8-bit raster
+     * @param bands The number of bands
+     * @param width The width
+     * @param rows The height
+     * @return A float or 8-bit raster, depending on the precision
+     */
+    private static BadRaster newRaster(boolean fixedPoint, int bands, int width, int rows) {
+        return fixedPoint ? new ByteRaster(bands, width, rows)
+                          : new BadRaster(bands, width, rows, BadRaster.LAYOUT_INTERLEAVED);
+    }
+
+    /**
+     * Copy one row of pixels between rasters of the same width and bands.
+     * Copying a row up within one raster is safe when rows are copied top to
+     * bottom.
+     * @param from The source raster
+     * @param fromRow The source row
+     * @param to The destination raster
+     * @param toRow The destination row
+     * @param row Scratch space for width*bands floats
+     */
+    private static void copyRow(BadRaster from, int fromRow, BadRaster to, int toRow, float [] row) {
+        if (from == to && fromRow == toRow)
+            return;
+        from.readBlock(0, fromRow, from.getWidth(), 1, row);
+        to.writeBlock(0, toRow, to.getWidth(), 1, row);
+    }
+
+    /**
+     * Take an element from a queue, retrying if interrupted.
+     * @param queue The queue
+     * @return The element
+     */
+    private static Strip takeQuietly(BlockingQueue<Strip> queue) {
+        while (true) {
+            try {
+                return queue.take();
+            } catch (InterruptedException e) {
+                // retry
+            }
+        }
+    }
+    /**
+     * Put an element into a queue, retrying if interrupted.
+     * @param queue The queue
+     * @param strip The element
+     */
+    private static void putQuietly(BlockingQueue<Strip> queue, Strip strip) {
+        while (true) {
+            try {
+                queue.put(strip);
+                return;
+            } catch (InterruptedException e) {
+                // retry
+            }
+        }
+    }
+
+    /**
+     * Appends rows to a MappedRaster.
+     */
+    private static class RawRowWriter implements RowSink {
+        private final MappedRaster raster;
+        private final float [] row;
+        private int y;
+        RawRowWriter(MappedRaster raster) {
+            this.raster = raster;
+            this.row = new float[raster.getWidth()*raster.getBands()];
+        }
+        public void writeRows(BadRaster from, int offset, int rows) {
+            for (int j = 0; j < rows; ++j)
+                copyRow(from, offset + j, raster, y++, row);
+        }
+        public void close() {
+            raster.force();
+        }
+    }
+
+    /**
+     * Writes an 8-bit PNG one row at a time, so the whole image never has to
+     * be in memory (the ImageIO PNG writer only writes whole images). Bands
+     * map to PNG color types as in {@code BadRaster.writeToFile}, and samples
+     * are converted with {@code BadRaster.getSample}, so the file decodes to
+     * the same pixels. Each row gets the PNG filter with the smallest sum of
+     * absolute differences, the usual heuristic.
+     */
+    static class PNGRowWriter implements RowSink {
+        /** Image data is written in IDAT chunks of up to this many bytes */
+        private static final int CHUNK_SIZE = 1 << 16;
+        private final DataOutputStream out;
+        private final Deflater compressor;
+        private final DeflaterOutputStream deflater;
+        private final int bands;
+        private final int width;
+        private final int stride;
+        private byte [] previous;
+        private byte [] current;
+        private final byte [][] filtered = new byte[5][];
+
+        /**
+         * Create the file and write the PNG header.
+         * @param file The file to write
+         * @param bands The number of bands (extra bands past 4 are dropped)
+         * @param width The image width
+         * @param height The image height
+         * @throws IOException if the file cannot be written
+         */
+        PNGRowWriter(File file, int bands, int width, int height) throws IOException {
+            this.bands = Math.min(bands, 4);
+            this.width = width;
+            this.stride = width*this.bands;
+            this.previous = new byte[stride];
+            this.current = new byte[stride];
+            for (int f = 0; f < filtered.length; ++f)
+                filtered[f] = new byte[stride];
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.write(PNG_SIGNATURE);
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream ihdr = new DataOutputStream(header);
+            ihdr.writeInt(width);
+            ihdr.writeInt(height);
+            ihdr.writeByte(8); // bit depth
+            ihdr.writeByte(new int[] {0, 0, 4, 2, 6}[this.bands]); // gray, gray+alpha, RGB, RGBA
+            ihdr.writeByte(0); // deflate
+            ihdr.writeByte(0); // adaptive filtering
+            ihdr.writeByte(0); // no interlacing
+            writeChunk("IHDR", header.toByteArray(), header.size());
+            compressor = new Deflater();
+            deflater = new DeflaterOutputStream(new ChunkStream(), compressor, CHUNK_SIZE);
+        }
+        public void writeRows(BadRaster raster, int offset, int rows) throws IOException {
+            for (int j = 0; j < rows; ++j) {
+                for (int x = 0; x < width; ++x)
+                    for (int b = 0; b < bands; ++b)
+                        current[x*bands + b] = (byte)raster.getSample(x, offset + j, b);
+                int best = filter();
+                deflater.write(best);
+                deflater.write(filtered[best], 0, stride);
+                byte [] t = previous;
+                previous = current;
+                current = t;
+            }
+        }
+        public void close() throws IOException {
+            deflater.close(); // flushes the last IDAT chunk
+            compressor.end();
+            writeChunk("IEND", new byte[0], 0);
+            out.close();
+        }
+        /**
+         * Apply the five PNG filters to the current row.
+         * @return The filter whose output has the smallest sum of absolute
+         * (signed byte) values
+         */
+        private int filter() {
+            int best = 0;
+            long bestSum = Long.MAX_VALUE;
+            for (int f = 0; f < 5; ++f) {
+                byte [] o = filtered[f];
+                long sum = 0;
+                for (int i = 0; i < stride; ++i) {
+                    int x = current[i] & 0xff;
+                    int a = (i >= bands) ? current[i - bands] & 0xff : 0;
+                    int b = previous[i] & 0xff;
+                    int c = (i >= bands) ? previous[i - bands] & 0xff : 0;
+                    int predictor;
+                    switch (f) {
+                        case 1: predictor = a; break;
+                        case 2: predictor = b; break;
+                        case 3: predictor = (a + b) >> 1; break;
+                        case 4: predictor = paeth(a, b, c); break;
+                        default: predictor = 0;
+                    }
+                    o[i] = (byte)(x - predictor);
+                    sum += Math.abs(o[i]);
+                }
+                if (sum < bestSum) {
+                    bestSum = sum;
+                    best = f;
+                }
+            }
+            return best;
+        }
+        /**
+         * The Paeth predictor of the PNG specification.
+         */
+        private static int paeth(int a, int b, int c) {
+            int p = a + b - c;
+            int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+            return (pa <= pb && pa <= pc) ? a : (pb <= pc) ? b : c;
+        }
+        /**
+         * Write a PNG chunk: length, type, data and CRC of type and data.
+         */
+        private void writeChunk(String type, byte [] data, int length) throws IOException {
+            CRC32 crc = new CRC32();
+            byte [] typeBytes = type.getBytes("US-ASCII");
+            crc.update(typeBytes);
+            crc.update(data, 0, length);
+            out.writeInt(length);
+            out.write(typeBytes);
+            out.write(data, 0, length);
+            out.writeInt((int)crc.getValue());
+        }
+        /**
+         * Collects the compressed stream into IDAT chunks.
+         */
+        private class ChunkStream extends OutputStream {
+            private final byte [] buffer = new byte[CHUNK_SIZE];
+            private int count;
+            @Override
+            public void write(int b) throws IOException {
+                if (count == buffer.length)
+                    flushChunk();
+                buffer[count++] = (byte)b;
+            }
+            @Override
+            public void write(byte [] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    if (count == buffer.length)
+                        flushChunk();
+                    int n = Math.min(len, buffer.length - count);
+                    System.arraycopy(b, off, buffer, count, n);
+                    count += n;
+                    off += n;
+                    len -= n;
+                }
+            }
+            @Override
+            public void close() throws IOException {
+                flushChunk();
+            }
+            private void flushChunk() throws IOException {
+                if (count > 0)
+                    writeChunk("IDAT", buffer, count);
+                count = 0;
+            }
+        }
+    }
+
+    /**
+     * Hands out the rows of an image decoded whole by ImageIO, for the
+     * sources PNGRowReader cannot stream (other formats, interlaced PNGs,
+     * ...). The image is still decoded only once, but it has to fit in
+     * memory.
+     */
+    static class ImageRowReader implements RowSource {
+        private final BadRaster image;
+        private final boolean fixedPoint;
+        private final float [] row;
+        private int y;
+        ImageRowReader(File file, boolean fixedPoint) throws IOException {
+            this.fixedPoint = fixedPoint;
+            image = fixedPoint ? new ByteRaster() : new BadRaster(BadRaster.LAYOUT_INTERLEAVED);
+            image.loadFromFile(file);
+            row = new float[image.getWidth()*image.getBands()];
+        }
+        public int getBands() {
+            return image.getBands();
+        }
+        public int getWidth() {
+            return image.getWidth();
+        }
+        public int getHeight() {
+            return image.getHeight();
+        }
+        public BadRaster readRows(int rows) {
+            BadRaster raster = newRaster(fixedPoint, image.getBands(), image.getWidth(), rows);
+            for (int j = 0; j < rows; ++j)
+                copyRow(image, y++, raster, j, row);
+            return raster;
+        }
+        public void close() {
+        }
+    }
+
+    /**
+     * Reads a PNG one row at a time: the image data is inflated and
+     * unfiltered once, top to bottom, as the rows are asked for. An
+     * ImageReader with a source region restarts the inflater at the top of
+     * the image on every read, so reading strips that way costs O(height^2).
+     * <br>
+     * Handles non-interlaced gray, gray + alpha, RGB and RGBA images with 8
+     * or 16-bit samples, and palette images of any depth. The bands and
+     * sample values are the ones {@code BadRaster.loadFromImage} gives for the
+     * ImageIO decode of the same file, so streaming does not change the
+     * output. For anything else (interlacing, gray below 8 bits, a tRNS color
+     * key on a gray or RGB image) {@code isStreamable} is false.
+     */
+    static class PNGRowReader implements RowSource {
+        /** Scale of 16-bit samples, as in {@code BadRaster.loadFromImage} */
+        private static final float SCALE_16 = 1.0f/((1 << 16) - 1);
+        private final DataInputStream in;
+        private final boolean fixedPoint;
+        private final Inflater inflater = new Inflater();
+        private int width;
+        private int height;
+        private int depth;
+        private int colorType;
+        private int bands;
+        /** Bytes per complete pixel, the distance of the PNG filters (at least 1) */
+        private int pixelBytes;
+        /** Bytes per row, without the filter byte */
+        private int stride;
+        /** Palette entries (r, g, b, a per entry), padded to 1 << depth entries */
+        private byte [][] palette;
+        private byte [] transparency;
+        private boolean streamable;
+        /** The inflated image data */
+        private DataInputStream data;
+        /** Bytes left in the current IDAT chunk */
+        private int chunkLeft;
+        private boolean dataEnded;
+        private byte [] previous;
+        private byte [] current;
+        private float [] row;
+
+        /**
+         * Read the PNG header, up to the start of the image data.
+         * @param input The file contents
+         * @param fixedPoint True for 8-bit ByteRaster rows
+         * @throws IOException if the header cannot be read
+         */
+        PNGRowReader(InputStream input, boolean fixedPoint) throws IOException {
+            this.in = new DataInputStream(input);
+            this.fixedPoint = fixedPoint;
+            byte [] signature = new byte[PNG_SIGNATURE.length];
+            if (in.read(signature) != signature.length || !Arrays.equals(signature, PNG_SIGNATURE))
+                return; // not a PNG
+            boolean interlaced = false;
+            byte [] plte = null;
+            while (true) {
+                int length = in.readInt();
+                String type = readType();
+                if (type.equals("IDAT")) {
+                    chunkLeft = length;
+                    break;
+                }
+                if (type.equals("IEND"))
+                    throw new IOException("PNG has no image data");
+                byte [] chunk = new byte[length];
+                in.readFully(chunk);
+                in.readInt(); // CRC
+                if (type.equals("IHDR")) {
+                    DataInputStream header = new DataInputStream(new ByteArrayInputStream(chunk));
+                    width = header.readInt();
+                    height = header.readInt();
+                    depth = header.readUnsignedByte();
+                    colorType = header.readUnsignedByte();
+                    header.readUnsignedByte(); // compression
+                    header.readUnsignedByte(); // filter method
+                    interlaced = header.readUnsignedByte() != 0;
+                } else if (type.equals("PLTE")) {
+                    plte = chunk;
+                } else if (type.equals("tRNS")) {
+                    transparency = chunk;
+                }
+            }
+            int channels = (colorType <= 6) ? new int[] {1, 0, 3, 1, 2, 0, 4}[colorType] : 0;
+            if (colorType == 3) {
+                streamable = plte != null && plte.length >= 3 && depth <= 8;
+                if (streamable)
+                    bands = buildPalette(plte);
+            } else {
+                streamable = channels > 0 && (depth == 8 || depth == 16) && transparency == null;
+                bands = channels;
+            }
+            streamable &= !interlaced && width > 0 && height > 0;
+            if (!streamable)
+                return;
+            pixelBytes = Math.max(1, channels*depth/8);
+            stride = (int)(((long)width*channels*depth + 7)/8);
+            previous = new byte[stride];
+            current = new byte[stride];
+            row = new float[width*bands];
+            data = new DataInputStream(new InflaterInputStream(new ImageData(), inflater, 1 << 16));
+        }
+
+        /**
+         * Whether the image is one this reader decodes. If not, the caller
+         * should close it and use an ImageRowReader.
+         * @return True if the rows can be read
+         */
+        boolean isStreamable() {
+            return streamable;
+        }
+        public int getBands() {
+            return bands;
+        }
+        public int getWidth() {
+            return width;
+        }
+        public int getHeight() {
+            return height;
+        }
+        public BadRaster readRows(int rows) throws IOException {
+            BadRaster raster = newRaster(fixedPoint, bands, width, rows);
+            for (int j = 0; j < rows; ++j) {
+                nextRow();
+                raster.writeBlock(0, j, width, 1, row);
+            }
+            return raster;
+        }
+        public void close() throws IOException {
+            inflater.end();
+            in.close();
+        }
+
+        /**
+         * Expand the palette like the ImageIO PNG reader: entries missing from
+         * PLTE repeat the last one, entries missing from tRNS are opaque.
+         * @param plte The PLTE chunk
+         * @return 4 bands if some entry is not opaque, 3 otherwise
+         */
+        private int buildPalette(byte [] plte) {
+            int entries = Math.min(plte.length/3, 1 << depth);
+            palette = new byte[4][1 << depth];
+            boolean alpha = false;
+            for (int i = 0; i < (1 << depth); ++i) {
+                int e = Math.min(i, entries - 1);
+                palette[0][i] = plte[3*e];
+                palette[1][i] = plte[3*e + 1];
+                palette[2][i] = plte[3*e + 2];
+                palette[3][i] = (transparency != null && i < transparency.length) ? transparency[i] : (byte)255;
+                alpha |= palette[3][i] != (byte)255;
+            }
+            return alpha ? 4 : 3;
+        }
+
+        /**
+         * Inflate and unfilter the next row into current, then convert it to
+         * samples in row.
+         */
+        private void nextRow() throws IOException {
+            byte [] t = previous;
+            previous = current;
+            current = t;
+            int filter = data.read();
+            if (filter < 0)
+                throw new EOFException("PNG image data ends early");
+            data.readFully(current);
+            for (int i = 0; i < stride; ++i) {
+                int a = (i >= pixelBytes) ? current[i - pixelBytes] & 0xff : 0;
+                int b = previous[i] & 0xff;
+                int c = (i >= pixelBytes) ? previous[i - pixelBytes] & 0xff : 0;
+                int predictor;
+                switch (filter) {
+                    case 0: predictor = 0; break;
+                    case 1: predictor = a; break;
+                    case 2: predictor = b; break;
+                    case 3: predictor = (a + b) >> 1; break;
+                    case 4: predictor = PNGRowWriter.paeth(a, b, c); break;
+                    default: throw new IOException("Unknown PNG filter type " + filter);
+                }
+                current[i] = (byte)(current[i] + predictor);
+            }
+            if (colorType == 3) {
+                int perByte = 8/depth, mask = (1 << depth) - 1;
+                for (int x = 0; x < width; ++x) {
+                    int shift = 8 - depth*(x%perByte + 1);
+                    int index = ((current[x/perByte] & 0xff) >> shift) & mask;
+                    for (int b = 0; b < bands; ++b)
+                        row[x*bands + b] = (palette[b][index] & 0xff)/255.0f;
+                }
+            } else if (depth == 8) {
+                for (int i = 0; i < row.length; ++i)
+                    row[i] = (current[i] & 0xff)/255.0f;
+            } else {
+                for (int i = 0; i < row.length; ++i)
+                    row[i] = (((current[2*i] & 0xff) << 8) | (current[2*i + 1] & 0xff))*SCALE_16;
+            }
+        }
+
+        private String readType() throws IOException {
+            byte [] type = new byte[4];
+            in.readFully(type);
+            return new String(type, "US-ASCII");
+        }
+
+        /**
+         * The contents of the consecutive IDAT chunks, as one stream.
+         */
+        private class ImageData extends InputStream {
+            @Override
+            public int read() throws IOException {
+                byte [] one = new byte[1];
+                return (read(one, 0, 1) < 0) ? -1 : one[0] & 0xff;
+            }
+            @Override
+            public int read(byte [] b, int off, int len) throws IOException {
+                while (chunkLeft == 0) {
+                    if (dataEnded)
+                        return -1;
+                    in.readInt(); // CRC of the previous chunk
+                    int length = in.readInt();
+                    if (!readType().equals("IDAT")) {
+                        dataEnded = true;
+                        return -1;
+                    }
+                    chunkLeft = length;
+                }
+                int n = in.read(b, off, Math.min(len, chunkLeft));
+                if (n < 0)
+                    throw new EOFException("PNG image data ends early");
+                chunkLeft -= n;
+                return n;
+            }
+        }
+    }
+}
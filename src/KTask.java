@@ -22,6 +22,16 @@ public class KTask {
     protected int height;
     /** The kernel associated with the task. */
     protected Kernel kernel;
+    /** The convolution engine, one of the KOps.ENGINE_* constants. */
+    protected int engine = KOps.ENGINE_AUTO;
+    /** The kernel field interpolated per pixel, or null to use the kernel. */
+    protected KField field;
+    /** The kernel chain run over the region, or null to use the kernel. */
+    protected KChain chain;
+    /** The temporal kernel run over the region, or null to use the kernel. */
+    protected KTemporal temporal;
+    /** The input frames of a temporal kernel, one per kernel frame. */
+    protected BadRaster [] inFrames;
     /**
      * Get a new KTask with a specific region.
      * @param originX The x-coordinate of the origin of the region
@@ -49,6 +59,82 @@ public class KTask {
     public Kernel getKernel() {
         return kernel;
     }
+    /**
+     * Set the convolution engine of the task.
+     * @param engine One of the KOps.ENGINE_* constants
+     */
+    public void setEngine(int engine) {
+        this.engine = engine;
+    }
+    /**
+     * Get the convolution engine of the task.
+     * @return One of the KOps.ENGINE_* constants
+     */
+    public int getEngine() {
+        return engine;
+    }
+    /**
+     * Set a kernel field to interpolate per pixel instead of convolving the
+     * whole region with one kernel. The kernel is still used to estimate
+     * the cost of the task.
+     * @param field The field, or null
+     */
+    public void setField(KField field) {
+        this.field = field;
+    }
+    /**
+     * Get the kernel field of the task.
+     * @return The field, or null if the task uses its kernel throughout
+     */
+    public KField getField() {
+        return field;
+    }
+    /**
+     * Set a kernel chain to run over the region instead of convolving it
+     * with one kernel. The kernel is still used to estimate the cost of the
+     * task.
+     * @param chain The chain, or null
+     */
+    public void setChain(KChain chain) {
+        this.chain = chain;
+    }
+    /**
+     * Get the kernel chain of the task.
+     * @return The chain, or null if the task uses its kernel
+     */
+    public KChain getChain() {
+        return chain;
+    }
+    /**
+     * Set a temporal kernel to run over the region of the input frames
+     * instead of convolving the input raster with one kernel. The kernel
+     * is still used to estimate the cost of the task.
+     * @param temporal The temporal kernel, or null
+     */
+    public void setTemporal(KTemporal temporal) {
+        this.temporal = temporal;
+    }
+    /**
+     * Get the temporal kernel of the task.
+     * @return The temporal kernel, or null if the task uses its kernel
+     */
+    public KTemporal getTemporal() {
+        return temporal;
+    }
+    /**
+     * Set the input frames of a temporal kernel.
+     * @param frames One input frame per kernel frame, oldest first
+     */
+    public void setInputFrames(BadRaster [] frames) {
+        this.inFrames = frames;
+    }
+    /**
+     * Get the input frames of a temporal kernel.
+     * @return The input frames, or null
+     */
+    public BadRaster [] getInputFrames() {
+        return inFrames;
+    }
     /**
      * Set the input (source) raster for the task.
      * @param raster The input raster to add to the task
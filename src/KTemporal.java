@@ -0,0 +1,271 @@
+/*
+ * KTemporal.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+import java.util.*;
+
+/**
+ * KTemporal is a three-dimensional kernel for frame sequences: width x
+ * height taps over depth neighbouring frames. Output frame t is the sum,
+ * over the kernel frames k, of input frame {@code t - before + k} (see
+ * {@code getFramesBefore}) convolved with kernel frame k. Frames before
+ * the first and after the last input frame are clamped to them, as taps
+ * outside an image are clamped to its edge.
+ * <br>
+ * Every kernel frame is a BaseKernel, modulated per block exactly as a
+ * single kernel is (KTiler.grid), so like a KChain a KTemporal is tied to
+ * the dimensions of the frames. A modulated kernel is normalized, so each
+ * kernel frame is weighted by its share of the sum of all the taps: the
+ * unmodulated kernel gives exactly its JSON taps, and every modulated
+ * kernel still sums to 1.
+ * <br>
+ * A task convolves its region of each input frame with the engine of its
+ * choice into one per-thread stage buffer of KScratch (wrapped in a
+ * KWindow) and accumulates the weighted results in the other, which is
+ * written to the output frame once. KSequence keeps the input frames in a
+ * ring buffer as deep as the kernel, so every frame is decoded once.
+ * <br>
+ * JSON format (JSONKernel.TYPE_TEMPORAL): {@code "type": 1}, {@code width},
+ * {@code height}, {@code depth}, {@code coeff}, {@code name}, and
+ * {@code frames}, an array of depth 2D arrays laid out like the
+ * {@code kernel} of a 2D kernel, oldest frame first.
+ */
+public class KTemporal {
+    /**
+     * Regions with at most this many pixels are not split by schedulers:
+     * every split region runs each kernel frame on its own
+     */
+    public static final int MIN_SPLIT_AREA = 64*64;
+    /** The name of the kernel */
+    private final String name;
+    /** The kernel frames, oldest first */
+    private final BaseKernel [] frames;
+    /** The weight of each kernel frame: its share of the sum of the taps */
+    private final float [] weights;
+    /** The width of the image */
+    private final int width;
+    /** The height of the image */
+    private final int height;
+    /** The regions of constant kernel of each kernel frame (KTiler.regions) */
+    private final KTask [][] regions;
+    /** The largest kernel of any frame */
+    private final Kernel largest;
+    /**
+     * Build a temporal kernel for frames of one size.
+     * @param name The name of the kernel
+     * @param frames The kernel frames, oldest first, with their modulation set
+     * @param width The width of the frames
+     * @param height The height of the frames
+     * @param blockSize The size of the grid blocks each kernel frame is modulated over
+     * @throws IllegalArgumentException if there are no frames, or a frame
+     * or the whole kernel sums to zero
+     */
+    public KTemporal(String name, List<BaseKernel> frames, int width, int height, int blockSize) {
+        if (frames.isEmpty())
+            throw new IllegalArgumentException("A temporal kernel needs at least one frame");
+        this.name = name;
+        this.frames = frames.toArray(new BaseKernel[frames.size()]);
+        this.width = width;
+        this.height = height;
+        weights = new float[this.frames.length];
+        double total = 0;
+        for (int k = 0; k < this.frames.length; ++k) {
+            weights[k] = KOps.sum(this.frames[k].getKernel());
+            if (weights[k] == 0.0f)
+                throw new IllegalArgumentException("Frame " + k + " of temporal kernel " + name + " sums to zero");
+            total += weights[k];
+        }
+        if (total == 0.0)
+            throw new IllegalArgumentException("Temporal kernel " + name + " sums to zero");
+        for (int k = 0; k < weights.length; ++k)
+            weights[k] = (float)(weights[k]/total);
+        regions = new KTask[this.frames.length][];
+        Kernel big = null;
+        for (int k = 0; k < this.frames.length; ++k) {
+            List<KTask> r = KTiler.regions(width, height, this.frames[k], blockSize);
+            regions[k] = r.toArray(new KTask[r.size()]);
+            for (KTask region : regions[k])
+                if (big == null || region.getKernel().getWidth()*region.getKernel().getHeight() > big.getWidth()*big.getHeight())
+                    big = region.getKernel();
+        }
+        largest = big;
+    }
+    /**
+     * Load the frames of a temporal kernel from JSON, each as a BaseKernel
+     * (scaled by the coefficient, like a 2D kernel).
+     * @param path The JSON kernel path
+     * @return The name and the kernel frames, oldest first
+     * @throws IllegalArgumentException if the file cannot be read or does
+     * not hold a temporal kernel
+     */
+    public static Frames loadFrames(String path) {
+        JSONKernel json = KOps.kernelFromJSONPath(path);
+        if (json == null)
+            throw new IllegalArgumentException("Cannot read kernel " + path);
+        return framesOf(path, json);
+    }
+    /**
+     * Load the frames of a kernel if it is a temporal JSON kernel, reading
+     * the file once.
+     * @param path A kernel path (JSON, or an entry of a kernel bank)
+     * @return The name and the kernel frames, or null if the path is not a
+     * JSON kernel of TYPE_TEMPORAL
+     * @throws IllegalArgumentException if the temporal kernel is malformed
+     */
+    public static Frames loadIfTemporal(String path) {
+        if (path.contains(KBank.SUFFIX + "#") || !new java.io.File(path).isFile())
+            return null;
+        JSONKernel json = KOps.kernelFromJSONPath(path);
+        if (json == null || json.type != JSONKernel.TYPE_TEMPORAL)
+            return null;
+        return framesOf(path, json);
+    }
+    /**
+     * Split a parsed temporal kernel into its frames.
+     * @param path The JSON kernel path, for messages
+     * @param json The parsed kernel
+     * @return The name and the kernel frames, oldest first
+     */
+    private static Frames framesOf(String path, JSONKernel json) {
+        if (json.type != JSONKernel.TYPE_TEMPORAL || json.frames == null)
+            throw new IllegalArgumentException(path + " is not a temporal kernel (type "
+                                               + JSONKernel.TYPE_TEMPORAL + " with frames)");
+        if (json.depth != json.frames.length)
+            throw new IllegalArgumentException(path + ": depth is " + json.depth + " but there are "
+                                               + json.frames.length + " frames");
+        List<BaseKernel> frames = new ArrayList<BaseKernel>();
+        for (int k = 0; k < json.frames.length; ++k) {
+            float [][] taps = json.frames[k];
+            if (taps.length != json.width || taps[0].length != json.height)
+                throw new IllegalArgumentException(path + ": frame " + k + " is not " + json.width + "x" + json.height);
+            JSONKernel frame = new JSONKernel();
+            frame.type = JSONKernel.TYPE_SPATIAL;
+            frame.kernel = taps;
+            frame.coeff = json.coeff;
+            frame.width = json.width;
+            frame.height = json.height;
+            frame.name = json.name + " [" + k + "]";
+            frames.add(new BaseKernel(frame));
+        }
+        return new Frames(json.name, frames);
+    }
+    /**
+     * Get the name of the kernel.
+     * @return The name
+     */
+    public String getName() {
+        return name;
+    }
+    /**
+     * Get the number of frames the kernel spans.
+     * @return The depth
+     */
+    public int getDepth() {
+        return frames.length;
+    }
+    /**
+     * Get the number of input frames before the output frame that the
+     * kernel reads: (depth - 1)/2, so an odd kernel is centred and an even
+     * one reaches one frame further ahead.
+     * @return The number of earlier frames
+     */
+    public int getFramesBefore() {
+        return (frames.length - 1)/2;
+    }
+    /**
+     * Get the number of input frames after the output frame that the
+     * kernel reads.
+     * @return The number of later frames
+     */
+    public int getFramesAfter() {
+        return frames.length - 1 - getFramesBefore();
+    }
+    /**
+     * Get a kernel frame.
+     * @param index The frame, from 0 (the oldest)
+     * @return Its base kernel
+     */
+    public BaseKernel getFrame(int index) {
+        return frames[index];
+    }
+    /**
+     * Get the weight of a kernel frame.
+     * @param index The frame, from 0 (the oldest)
+     * @return Its share of the sum of all the taps
+     */
+    public float getWeight(int index) {
+        return weights[index];
+    }
+    /**
+     * Get the largest kernel of any frame, to estimate the cost of tasks.
+     * @return The kernel with the most taps
+     */
+    public Kernel getLargestKernel() {
+        return largest;
+    }
+    /**
+     * Convolve a rectangular region across neighbouring frames, writing the
+     * result directly into the destination raster.
+     * @param inputs The input frames, one per kernel frame (see
+     * {@code getFramesBefore}), all of the kernel's dimensions.
+     * @param dst The destination raster. Must not be one of the inputs.
+     * @param x0 The x coordinate of the origin of the region.
+     * @param y0 The y coordinate of the origin of the region.
+     * @param w The width of the region.
+     * @param h The height of the region.
+     * @param engine The engine of every kernel frame, one of the KOps.ENGINE_* constants.
+     * @param scratch The scratch buffers of the calling thread.
+     */
+    public void convolveRegion(BadRaster [] inputs, BadRaster dst, int x0, int y0, int w, int h,
+                               int engine, KScratch scratch) {
+        final int bands = dst.getBands();
+        final int size = w*h*bands;
+        final float [] sum = scratch.getStage(0, size);
+        final float [] part = scratch.getStage(1, size);
+        final KWindow window = new KWindow(bands, width, height, part, x0, y0, w, h);
+        for (int k = 0; k < frames.length; ++k) {
+            for (KTask region : regions[k]) {
+                int rx0 = Math.max(x0, region.getOriginX());
+                int ry0 = Math.max(y0, region.getOriginY());
+                int rx1 = Math.min(x0 + w, region.getOriginX() + region.getWidth());
+                int ry1 = Math.min(y0 + h, region.getOriginY() + region.getHeight());
+                if (rx0 < rx1 && ry0 < ry1)
+                    KOps.convolveKernelRegion(inputs[k], window, rx0, ry0, rx1 - rx0, ry1 - ry0,
+                                              region.getKernel(), engine, scratch);
+            }
+            final float weight = weights[k];
+            if (k == 0) {
+                for (int i = 0; i < size; ++i)
+                    sum[i] = weight*part[i];
+            } else {
+                for (int i = 0; i < size; ++i)
+                    sum[i] += weight*part[i];
+            }
+        }
+        dst.writeBlock(x0, y0, w, h, sum);
+    }
+
+    /**
+     * The frames of a temporal kernel as loaded from JSON, with its name:
+     * what a KTemporal (or {@code KSequence.setTemporal}) is built from.
+     */
+    public static final class Frames {
+        /** The name of the kernel */
+        final String name;
+        /** The kernel frames, oldest first */
+        final List<BaseKernel> frames;
+        Frames(String name, List<BaseKernel> frames) {
+            this.name = name;
+            this.frames = frames;
+        }
+        /**
+         * Get the middle frame, the one over the output frame.
+         * @return The frame
+         */
+        BaseKernel middle() {
+            return frames.get((frames.size() - 1)/2);
+        }
+    }
+}
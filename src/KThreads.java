@@ -0,0 +1,130 @@
+/*
+ * KThreads.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * KThreads creates the threads of the I/O stages (decoding, encoding,
+ * serving clients). These spend their time blocked on files, sockets and
+ * queues, so on Java 21 and later they are virtual threads, which cost
+ * almost nothing to create or park and never hold on to a carrier while
+ * blocked. Virtual threads are found by reflection, so the code still builds
+ * and runs on older JDKs, where the I/O stages get ordinary platform
+ * threads. Compute never runs on virtual threads: the workers are the
+ * bounded pools of KScheduler. This is a pseudo-static class (should not be
+ * instantiated).
+ */
+public final class KThreads {
+    /** I/O mode: virtual threads when available, platform threads otherwise */
+    public static final int IO_AUTO = 0;
+    /** I/O mode: always platform threads */
+    public static final int IO_PLATFORM = 1;
+    /** I/O mode: virtual threads (platform threads when they are not available) */
+    public static final int IO_VIRTUAL = 2;
+    /** Creates virtual threads, or null if the JDK has none */
+    private static final ThreadFactory virtualFactory = loadVirtualFactory();
+    /** Whether I/O threads are virtual */
+    private static volatile boolean virtual = virtualFactory != null;
+    /**
+     * Private constructor. Emulates static class behaviour.
+     */
+    private KThreads() {
+        //
+    }
+    /**
+     * Look up {@code Thread.ofVirtual().factory()}.
+     * @return The factory, or null before Java 21
+     */
+    private static ThreadFactory loadVirtualFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory)Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            // missing, or a preview API that is not enabled
+            return null;
+        }
+    }
+    /**
+     * Check whether the JDK has virtual threads.
+     * @return True on Java 21 and later
+     */
+    public static boolean isVirtualAvailable() {
+        return virtualFactory != null;
+    }
+    /**
+     * Check whether I/O threads are currently virtual.
+     * @return True if newIOThread creates virtual threads
+     */
+    public static boolean isVirtual() {
+        return virtual;
+    }
+    /**
+     * Parse an I/O mode name ("auto", "platform" or "virtual").
+     * @param name The mode name
+     * @return The mode constant
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public static int parseMode(String name) {
+        if (name.equals("auto"))
+            return IO_AUTO;
+        if (name.equals("platform"))
+            return IO_PLATFORM;
+        if (name.equals("virtual"))
+            return IO_VIRTUAL;
+        throw new IllegalArgumentException("Unknown I/O threads: " + name + " (expected auto, platform or virtual)");
+    }
+    /**
+     * Choose the kind of I/O thread. Virtual threads fall back to platform
+     * threads when the JDK has none.
+     * @param mode One of the IO_* constants
+     */
+    public static void setMode(int mode) {
+        virtual = (mode != IO_PLATFORM) && virtualFactory != null;
+    }
+    /**
+     * Create (but do not start) a thread for an I/O stage.
+     * @param name The thread name
+     * @param body What the thread runs
+     * @return The thread
+     */
+    public static Thread newIOThread(String name, Runnable body) {
+        Thread thread = virtual ? virtualFactory.newThread(body) : new Thread(body);
+        thread.setName(name);
+        return thread;
+    }
+    /**
+     * Create an executor that runs every task on a new I/O thread. Tasks
+     * are not queued, so the caller bounds how many run at once.
+     * @param name The prefix of the thread names
+     * @return The executor
+     */
+    public static ExecutorService newIOExecutor(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 10L, TimeUnit.SECONDS,
+                                      new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                return newIOThread(name + "-" + count.incrementAndGet(), r);
+            }
+        });
+    }
+    /**
+     * Create a fixed pool of platform threads for compute.
+     * @param name The prefix of the thread names
+     * @param nThreads The number of threads
+     * @return The executor
+     */
+    public static ExecutorService newComputePool(final String name, int nThreads) {
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
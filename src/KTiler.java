@@ -0,0 +1,353 @@
+/*
+ * KTiler.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+import java.util.*;
+
+/**
+ * KTiler divides an image into KTasks. The image is first cut into a grid of
+ * blockSize x blockSize blocks (the last row and column are narrower when the
+ * image dimensions are not a multiple of the block size, so no pixel is
+ * dropped), and each block gets the kernel its modulation point selects.
+ * <br>
+ * With adaptive tiling the blocks are then regrouped by estimated cost: the
+ * cost of a region is its area times the multiply-adds per pixel of its
+ * kernel (kw*kh, or kw+kh for kernels convolved separably). Neighbouring
+ * blocks that share a kernel are merged while the result stays under a target
+ * cost (a fraction of the total, so every thread gets several tasks), and
+ * regions above the target are split in half along their longer side. Only
+ * blocks sharing the same kernel are merged, so the output is identical to
+ * fixed tiling.
+ */
+public class KTiler {
+    /** Adaptive tiling aims for this many tasks per worker thread */
+    public static final int TASKS_PER_THREAD = 16;
+    /** Regions with at most this many pixels are never split */
+    public static final int MIN_SPLIT_AREA = 16;
+    /**
+     * Private constructor. Emulates static class behaviour.
+     */
+    private KTiler() {
+        //
+    }
+    /**
+     * Get the estimated cost of convolving a region with a kernel, in
+     * multiply-adds per band, with the engine ENGINE_AUTO would pick.
+     * @param kernel The kernel
+     * @param width The width of the region
+     * @param height The height of the region
+     * @return The estimated cost
+     */
+    public static long cost(Kernel kernel, int width, int height) {
+        return cost(kernel, KOps.selectEngine(kernel), width, height);
+    }
+    /**
+     * Get the estimated cost of convolving a region with a kernel, in
+     * multiply-adds per band.
+     * @param kernel The kernel
+     * @param engine The engine, one of the KOps.ENGINE_* constants
+     * @param width The width of the region
+     * @param height The height of the region
+     * @return The estimated cost
+     */
+    public static long cost(Kernel kernel, int engine, int width, int height) {
+        long perPixel;
+        if (engine == KOps.ENGINE_AUTO)
+            engine = KOps.selectEngine(kernel);
+        if (engine == KOps.ENGINE_FFT)
+            perPixel = KFFT.costPerPixel(kernel);
+        else if (engine == KOps.ENGINE_SAT && kernel.hasRectangles())
+            perPixel = KIntegral.costPerPixel(kernel);
+        else if (KOps.useSeparable(kernel) && engine != KOps.ENGINE_VECTOR)
+            perPixel = kernel.getWidth() + kernel.getHeight();
+        else
+            perPixel = kernel.getWidth() * kernel.getHeight();
+        return perPixel * width * height;
+    }
+    /**
+     * Get the estimated cost of a task.
+     * @param task The task
+     * @return The estimated cost, in multiply-adds per band
+     */
+    public static long cost(KTask task) {
+        return cost(task.getKernel(), task.getEngine(), task.getWidth(), task.getHeight());
+    }
+    /**
+     * Divide an image into tasks.
+     * @param src The source raster
+     * @param dst The destination raster
+     * @param baseKernel The base kernel, modulated per block
+     * @param blockSize The size of the grid blocks in pixels
+     * @param nThreads The number of worker threads that will run the tasks
+     * @param adaptive Regroup blocks by estimated cost
+     * @return The tasks, covering every pixel of the image exactly once
+     */
+    public static List<KTask> tile(BadRaster src, BadRaster dst, BaseKernel baseKernel,
+                                   int blockSize, int nThreads, boolean adaptive) {
+        return tile(src, dst, baseKernel, blockSize, nThreads, adaptive, KOps.ENGINE_AUTO);
+    }
+    /**
+     * Divide an image into tasks that use a given convolution engine.
+     * @param src The source raster
+     * @param dst The destination raster
+     * @param baseKernel The base kernel, modulated per block
+     * @param blockSize The size of the grid blocks in pixels
+     * @param nThreads The number of worker threads that will run the tasks
+     * @param adaptive Regroup blocks by estimated cost
+     * @param engine The engine of every task, one of the KOps.ENGINE_* constants
+     * @return The tasks, covering every pixel of the image exactly once
+     */
+    public static List<KTask> tile(BadRaster src, BadRaster dst, BaseKernel baseKernel,
+                                   int blockSize, int nThreads, boolean adaptive, int engine) {
+        List<KTask> blocks = group(grid(src.getWidth(), src.getHeight(), baseKernel, blockSize),
+                                   nThreads, adaptive, engine);
+        for (KTask task : blocks) {
+            task.setInputRaster(src);
+            task.setOutputRaster(dst);
+        }
+        return blocks;
+    }
+    /**
+     * Divide an image into tasks that interpolate a kernel field. The kernel
+     * varies per pixel inside every task, so the tiles do not follow the
+     * kernel at all: the image is cut into square tiles (multiples of
+     * KOps.BLOCK_SIZE) of about equal cost, TASKS_PER_THREAD per thread.
+     * @param src The source raster
+     * @param dst The destination raster
+     * @param field The kernel field
+     * @param nThreads The number of worker threads that will run the tasks
+     * @return The tasks, covering every pixel of the image exactly once
+     */
+    public static List<KTask> tile(BadRaster src, BadRaster dst, KField field, int nThreads) {
+        List<KTask> tiles = squares(src.getWidth(), src.getHeight(), nThreads);
+        for (KTask task : tiles) {
+            task.setKernel(field.getLargestKernel());
+            task.setEngine(KOps.ENGINE_DIRECT);
+            task.setField(field);
+            task.setInputRaster(src);
+            task.setOutputRaster(dst);
+        }
+        return tiles;
+    }
+    /**
+     * Divide an image into tasks that run a kernel chain. Every task runs
+     * all the stages over its region, so like field tasks they are square
+     * tiles of about equal cost rather than kernel blocks.
+     * @param src The source raster
+     * @param dst The destination raster
+     * @param chain The kernel chain, built for the dimensions of the image
+     * @param nThreads The number of worker threads that will run the tasks
+     * @param engine The engine of every stage, one of the KOps.ENGINE_* constants
+     * @return The tasks, covering every pixel of the image exactly once
+     */
+    public static List<KTask> tile(BadRaster src, BadRaster dst, KChain chain, int nThreads, int engine) {
+        List<KTask> tiles = squares(src.getWidth(), src.getHeight(), nThreads);
+        for (KTask task : tiles) {
+            task.setKernel(chain.getLargestKernel());
+            task.setEngine(engine);
+            task.setChain(chain);
+            task.setInputRaster(src);
+            task.setOutputRaster(dst);
+        }
+        return tiles;
+    }
+    /**
+     * Divide a frame into tasks that run a temporal kernel. Like chain
+     * tasks they are square tiles of about equal cost; bind the input
+     * frames of each output frame with {@code KTask.setInputFrames}.
+     * @param src The source raster (the input frame at the output's time)
+     * @param dst The destination raster
+     * @param temporal The temporal kernel, built for the dimensions of the frames
+     * @param nThreads The number of worker threads that will run the tasks
+     * @param engine The engine of every kernel frame, one of the KOps.ENGINE_* constants
+     * @return The tasks, covering every pixel of the frame exactly once
+     */
+    public static List<KTask> tile(BadRaster src, BadRaster dst, KTemporal temporal, int nThreads, int engine) {
+        List<KTask> tiles = squares(src.getWidth(), src.getHeight(), nThreads);
+        for (KTask task : tiles) {
+            task.setKernel(temporal.getLargestKernel());
+            task.setEngine(engine);
+            task.setTemporal(temporal);
+            task.setInputRaster(src);
+            task.setOutputRaster(dst);
+        }
+        return tiles;
+    }
+    /**
+     * Cut an image into square tiles (multiples of KOps.BLOCK_SIZE), about
+     * TASKS_PER_THREAD per thread.
+     * @param width The image width
+     * @param height The image height
+     * @param nThreads The number of worker threads that will run the tasks
+     * @return The tiles (without kernels or rasters)
+     */
+    private static List<KTask> squares(int width, int height, int nThreads) {
+        long tasks = Math.max(1, nThreads) * (long)TASKS_PER_THREAD;
+        int side = (int)Math.ceil(Math.sqrt((double)width*height/tasks));
+        side = Math.max(1, (side + KOps.BLOCK_SIZE - 1)/KOps.BLOCK_SIZE)*KOps.BLOCK_SIZE;
+        List<KTask> tiles = new ArrayList<KTask>();
+        for (int y = 0; y < height; y += side)
+            for (int x = 0; x < width; x += side)
+                tiles.add(new KTask(x, y, Math.min(side, width - x), Math.min(side, height - y)));
+        return tiles;
+    }
+    /**
+     * Cut an image into the largest regions of constant kernel: grid blocks
+     * merged with their neighbours that share a kernel, without a cost limit.
+     * @param width The image width
+     * @param height The image height
+     * @param baseKernel The base kernel, modulated per block
+     * @param blockSize The size of the grid blocks in pixels
+     * @return The regions (without rasters), with their kernels
+     */
+    public static List<KTask> regions(int width, int height, BaseKernel baseKernel, int blockSize) {
+        return merge(grid(width, height, baseKernel, blockSize), Long.MAX_VALUE);
+    }
+    /**
+     * Set the engine of grid blocks and, if adaptive, regroup them by cost.
+     * @param blocks The blocks, ordered row by row (see {@code grid})
+     * @param nThreads The number of worker threads that will run the tasks
+     * @param adaptive Regroup blocks by estimated cost
+     * @param engine The engine of every task, one of the KOps.ENGINE_* constants
+     * @return The tasks (without rasters), covering the same pixels as the blocks
+     */
+    public static List<KTask> group(List<KTask> blocks, int nThreads, boolean adaptive, int engine) {
+        for (KTask block : blocks)
+            block.setEngine(engine);
+        if (adaptive) {
+            long total = 0;
+            for (KTask block : blocks)
+                total += cost(block);
+            long target = Math.max(1, total / (Math.max(1, nThreads) * (long)TASKS_PER_THREAD));
+            blocks = split(merge(blocks, target), target);
+        }
+        return blocks;
+    }
+    /**
+     * Cut an image into a grid of blocks and attach each block's kernel. The
+     * blocks are ordered row by row.
+     * @param width The image width
+     * @param height The image height
+     * @param baseKernel The base kernel, modulated per block
+     * @param blockSize The size of the blocks in pixels
+     * @return The blocks (without rasters)
+     */
+    public static List<KTask> grid(int width, int height, BaseKernel baseKernel, int blockSize) {
+        return grid(width, height, baseKernel, blockSize, 0, height);
+    }
+    /**
+     * Cut the rows [y0, y1) of an image into grid blocks, with the kernels
+     * the same blocks get in the whole-image grid. Used to tile one strip of
+     * an image at a time (see KStream).
+     * @param width The image width
+     * @param height The image height
+     * @param baseKernel The base kernel, modulated per block
+     * @param blockSize The size of the blocks in pixels
+     * @param y0 The first row; a multiple of the block size
+     * @param y1 The row after the last row; a multiple of the block size or
+     * the image height
+     * @return The blocks (without rasters), in image coordinates
+     */
+    public static List<KTask> grid(int width, int height, BaseKernel baseKernel, int blockSize, int y0, int y1) {
+        int xBlocks = (width + blockSize - 1)/blockSize;
+        int yBlocks = (height + blockSize - 1)/blockSize;
+        int firstRow = y0/blockSize;
+        int lastRow = Math.min(yBlocks, (y1 + blockSize - 1)/blockSize);
+        List<KTask> blocks = new ArrayList<KTask>(xBlocks*Math.max(0, lastRow - firstRow));
+        for (int j = firstRow; j < lastRow; ++j) {
+            for (int i = 0; i < xBlocks; ++i) {
+                float [] point = {i/((float)xBlocks),j/((float)yBlocks)};
+                int w = Math.min(blockSize, width - i*blockSize);
+                int h = Math.min(blockSize, height - j*blockSize);
+                KTask task = new KTask(i*blockSize,j*blockSize,w,h);
+                task.setKernel(baseKernel.getModulatedKernel(point));
+                blocks.add(task);
+            }
+        }
+        return blocks;
+    }
+    /**
+     * Merge neighbouring blocks that share a kernel. Blocks are first merged
+     * into horizontal runs along each grid row, then runs with the same
+     * horizontal extent and kernel are merged down the rows.
+     * @param blocks The blocks, ordered row by row
+     * @param target The cost a merged region may not exceed
+     * @return The merged regions
+     */
+    private static List<KTask> merge(List<KTask> blocks, long target) {
+        // Horizontal runs
+        List<KTask> runs = new ArrayList<KTask>();
+        KTask run = null;
+        for (KTask block : blocks) {
+            if (run != null && run.getKernel() == block.getKernel()
+                    && run.getOriginY() == block.getOriginY()
+                    && run.getOriginX() + run.getWidth() == block.getOriginX()
+                    && run.getHeight() == block.getHeight()
+                    && cost(run) + cost(block) <= target) {
+                run.setRegion(run.getOriginX(), run.getOriginY(), run.getWidth() + block.getWidth(), run.getHeight());
+            } else {
+                run = new KTask(block.getOriginX(), block.getOriginY(), block.getWidth(), block.getHeight());
+                run.setKernel(block.getKernel());
+                run.setEngine(block.getEngine());
+                runs.add(run);
+            }
+        }
+        // Vertical merging of runs with matching extents. open maps the x
+        // extent of a run to the region it can still be merged into.
+        List<KTask> merged = new ArrayList<KTask>();
+        Map<Long,KTask> open = new HashMap<Long,KTask>();
+        for (KTask r : runs) {
+            Long key = ((long)r.getOriginX() << 32) | r.getWidth();
+            KTask above = open.get(key);
+            if (above != null && above.getKernel() == r.getKernel()
+                    && above.getOriginY() + above.getHeight() == r.getOriginY()
+                    && cost(above) + cost(r) <= target) {
+                above.setRegion(above.getOriginX(), above.getOriginY(), above.getWidth(), above.getHeight() + r.getHeight());
+            } else {
+                merged.add(r);
+                open.put(key, r);
+            }
+        }
+        return merged;
+    }
+    /**
+     * Split regions whose cost is above the target in half along their
+     * longer side, recursively.
+     * @param regions The regions
+     * @param target The cost a region should not exceed
+     * @return The split regions
+     */
+    private static List<KTask> split(List<KTask> regions, long target) {
+        List<KTask> result = new ArrayList<KTask>(regions.size());
+        Deque<KTask> pending = new ArrayDeque<KTask>();
+        for (KTask region : regions) {
+            pending.push(region);
+            while (!pending.isEmpty()) {
+                KTask r = pending.pop();
+                int w = r.getWidth();
+                int h = r.getHeight();
+                if (cost(r) <= target || w*h <= MIN_SPLIT_AREA) {
+                    result.add(r);
+                    continue;
+                }
+                KTask a, b;
+                if (w >= h) {
+                    a = new KTask(r.getOriginX(), r.getOriginY(), w/2, h);
+                    b = new KTask(r.getOriginX() + w/2, r.getOriginY(), w - w/2, h);
+                } else {
+                    a = new KTask(r.getOriginX(), r.getOriginY(), w, h/2);
+                    b = new KTask(r.getOriginX(), r.getOriginY() + h/2, w, h - h/2);
+                }
+                a.setKernel(r.getKernel());
+                b.setKernel(r.getKernel());
+                a.setEngine(r.getEngine());
+                b.setEngine(r.getEngine());
+                pending.push(b);
+                pending.push(a);
+            }
+        }
+        return result;
+    }
+}
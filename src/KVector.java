@@ -0,0 +1,119 @@
+/*
+ * KVector.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * KVector is a SIMD convolution engine built on the incubating Vector API
+ * (jdk.incubator.vector). It has to be compiled and run with
+ * {@code --add-modules jdk.incubator.vector} (the makefile does both), so
+ * KOps only loads it by name and falls back to the scalar path when the
+ * module is missing.
+ * <br>
+ * The interior of a region is convolved one row span at a time, one output
+ * float per vector lane. In a flat layout the floats of a row are contiguous
+ * (all bands of each pixel for the interleaved layout, one band for the
+ * planar layout), so every kernel tap is a single unaligned vector load at a
+ * fixed offset from the output, multiplied by the broadcast tap and added to
+ * the output. Border pixels, whose taps need clamping, and rasters
+ * without a flat backing array go through {@code KOps.convolveRegion}.
+ */
+public class KVector implements KEngine {
+    /** The widest vector shape the hardware supports */
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    /**
+     * Get the number of floats per vector.
+     * @return The vector length in lanes
+     */
+    public static int lanes() {
+        return SPECIES.length();
+    }
+
+    @Override
+    public void convolveRegion(BadRaster src, BadRaster dst, int x0, int y0, int w, int h,
+                               Kernel kernel, KScratch scratch) {
+        final float [] s = src.getData();
+        final float [] d = dst.getData();
+        final int hw = kernel.getHalfWidth();
+        final int hh = kernel.getHalfHeight();
+        // an even kernel reaches one tap further right and down than left and up
+        final int ix0 = Math.max(x0, hw);
+        final int ix1 = Math.min(x0 + w, src.getWidth() - (kernel.getWidth() - 1 - hw));
+        final int iy0 = Math.max(y0, hh);
+        final int iy1 = Math.min(y0 + h, src.getHeight() - (kernel.getHeight() - 1 - hh));
+        if (s == null || d == null || src.getLayout() != dst.getLayout()
+                || src.getWidth() != dst.getWidth() || src.getHeight() != dst.getHeight()
+                || ix0 >= ix1 || iy0 >= iy1) {
+            KOps.convolveRegion(src, dst, x0, y0, w, h, kernel, scratch);
+            return;
+        }
+        // Borders: rows above and below the interior, then the sides
+        if (iy0 > y0)
+            KOps.convolveRegion(src, dst, x0, y0, w, iy0 - y0, kernel, scratch);
+        if (y0 + h > iy1)
+            KOps.convolveRegion(src, dst, x0, iy1, w, y0 + h - iy1, kernel, scratch);
+        if (ix0 > x0)
+            KOps.convolveRegion(src, dst, x0, iy0, ix0 - x0, iy1 - iy0, kernel, scratch);
+        if (x0 + w > ix1)
+            KOps.convolveRegion(src, dst, ix1, iy0, x0 + w - ix1, iy1 - iy0, kernel, scratch);
+        // Interior
+        final int xs = src.getXStride();
+        final int ys = src.getYStride();
+        final int bs = src.getBandStride();
+        if (bs == 1) {
+            // interleaved: one span per row covers every band
+            for (int y = iy0; y < iy1; ++y)
+                convolveSpan(s, d, ix0*xs + y*ys, (ix1 - ix0)*xs, xs, ys, kernel);
+        } else {
+            // planar: one span per band and row
+            for (int b = 0; b < src.getBands(); ++b)
+                for (int y = iy0; y < iy1; ++y)
+                    convolveSpan(s, d, b*bs + ix0*xs + y*ys, ix1 - ix0, xs, ys, kernel);
+        }
+    }
+
+    /**
+     * Convolves a contiguous span of output floats whose taps are all inside
+     * the source array. The loops run tap by tap over the whole span,
+     * accumulating in the destination: the span stays in L1 and the inner
+     * loop is just a load, a fused multiply-add and a store per vector, which
+     * the JIT compiles to straight SIMD instructions (a vector accumulator
+     * held across the tap loops is not reliably kept in a register).
+     * @param s The flat source data
+     * @param d The flat destination data (same layout as the source)
+     * @param out The index of the first output float
+     * @param len The number of output floats
+     * @param xs The x stride of the layout
+     * @param ys The y stride of the layout
+     * @param kernel The kernel
+     */
+    private static void convolveSpan(float [] s, float [] d, int out, int len, int xs, int ys, Kernel kernel) {
+        final float [] k = kernel.getFlatKernel();
+        final int kw = kernel.getWidth();
+        final int kh = kernel.getHeight();
+        // source index of tap (0,0) for the first output
+        final int origin = out - kernel.getHalfWidth()*xs - kernel.getHalfHeight()*ys;
+        final int bound = SPECIES.loopBound(len);
+        java.util.Arrays.fill(d, out, out + len, 0.0f);
+        for (int j = 0; j < kh; ++j) {
+            for (int i = 0; i < kw; ++i) {
+                float kv = k[j*kw + i];
+                FloatVector tap = FloatVector.broadcast(SPECIES, kv);
+                int in = origin + j*ys + i*xs;
+                int o = 0;
+                for (; o < bound; o += SPECIES.length())
+                    FloatVector.fromArray(SPECIES, s, in + o)
+                               .fma(tap, FloatVector.fromArray(SPECIES, d, out + o))
+                               .intoArray(d, out + o);
+                // scalar tail
+                for (; o < len; ++o)
+                    d[out + o] += kv * s[in + o];
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * KWindow.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+/**
+ * KWindow is a tile of an image, seen as a raster covering the whole image.
+ * Reads are clamped to the image like any raster's, then taken from the
+ * tile, which must hold every pixel that is read; only pixels inside the
+ * tile may be written. Has no flat array, so engines that index rasters
+ * directly (KFFT, KVector) fall back to the accessors.
+ * <br>
+ * Used for the intermediate stages of a KChain and for the halo-padded
+ * input and the output of a KCluster worker.
+ */
+public class KWindow extends BadRaster {
+    /** The tile, interleaved */
+    private final float [] tile;
+    /** The x coordinate of the first column of the tile */
+    private final int ox;
+    /** The y coordinate of the first row of the tile */
+    private final int oy;
+    /** The width of the tile */
+    private final int tw;
+    /** The height of the tile */
+    private final int th;
+    /**
+     * Wrap a tile of an image.
+     * @param bands The number of bands
+     * @param width The width of the whole image
+     * @param height The height of the whole image
+     * @param tile The tile pixels, interleaved, at least tw*th*bands long
+     * @param ox The x coordinate of the first column of the tile
+     * @param oy The y coordinate of the first row of the tile
+     * @param tw The width of the tile
+     * @param th The height of the tile
+     */
+    public KWindow(int bands, int width, int height, float [] tile, int ox, int oy, int tw, int th) {
+        super(LAYOUT_INTERLEAVED);
+        this.bands = bands;
+        this.width = width;
+        this.height = height;
+        this.tile = tile;
+        this.ox = ox;
+        this.oy = oy;
+        this.tw = tw;
+        this.th = th;
+    }
+    @Override
+    protected void allocate() {
+        throw new UnsupportedOperationException("A window cannot be reallocated");
+    }
+    /**
+     * Get the tile pixels.
+     * @return The tile, interleaved
+     */
+    public float [] getTile() {
+        return tile;
+    }
+    /**
+     * Get the x coordinate of the first column of the tile.
+     * @return The x coordinate
+     */
+    public int getTileX() {
+        return ox;
+    }
+    /**
+     * Get the y coordinate of the first row of the tile.
+     * @return The y coordinate
+     */
+    public int getTileY() {
+        return oy;
+    }
+    /**
+     * Get the width of the tile.
+     * @return The width in pixels
+     */
+    public int getTileWidth() {
+        return tw;
+    }
+    /**
+     * Get the height of the tile.
+     * @return The height in pixels
+     */
+    public int getTileHeight() {
+        return th;
+    }
+    @Override
+    public float getPixelComponent(int x, int y, int b) {
+        int xi = (x<0)?0:((x>=width)?width-1:x);
+        int yi = (y<0)?0:((y>=height)?height-1:y);
+        return tile[((yi - oy)*tw + xi - ox)*bands + b];
+    }
+    @Override
+    public void setPixelComponent(float value, int x, int y, int b) {
+        tile[((y - oy)*tw + x - ox)*bands + b] = value;
+    }
+    @Override
+    public void readBlock(int x0, int y0, int w, int h, float [] out) {
+        final int xa = Math.min(Math.max(x0, 0), width);
+        final int xb = Math.max(Math.min(x0 + w, width), xa);
+        for (int j = 0; j < h; ++j) {
+            final int yi = (y0 + j < 0) ? 0 : ((y0 + j >= height) ? height - 1 : y0 + j);
+            final int row = j*w*bands;
+            final int first = ((yi - oy)*tw + xa - ox)*bands;
+            final int last = ((yi - oy)*tw + xb - 1 - ox)*bands;
+            System.arraycopy(tile, first, out, row + (xa - x0)*bands, (xb - xa)*bands);
+            for (int i = 0; i < xa - x0; ++i)
+                System.arraycopy(tile, first, out, row + i*bands, bands);
+            for (int i = xb - x0; i < w; ++i)
+                System.arraycopy(tile, last, out, row + i*bands, bands);
+        }
+    }
+    @Override
+    public void writeBlock(int x0, int y0, int w, int h, float [] in) {
+        for (int j = 0; j < h; ++j)
+            System.arraycopy(in, j*w*bands, tile, ((y0 + j - oy)*tw + x0 - ox)*bands, w*bands);
+    }
+}
@@ -17,6 +17,8 @@ public class KWorker implements Runnable {
     private int tid;
     /** Shared thread ID counter */
     private static AtomicInteger tidCounter = new AtomicInteger(0);
+    /** When the task was submitted, for KMetrics (0 when not recording) */
+    private final long queued;
     /**
      * Initialize a KWorker with a given task.
      * @param task The task to be run by this thread.
@@ -24,21 +26,18 @@ public class KWorker implements Runnable {
     public KWorker(KTask task) {
         this.task = task;
         tid = tidCounter.getAndIncrement();
+        queued = KMetrics.now();
     }
     /**
      * Executes the task.
      */
     @Override
     public void run() {
-        //System.out.println("Processing task: " + task.getRegionString() + " on thread: " + tid);
-        for (int i = 0; i < task.getWidth(); ++i) {
-            for (int j = 0; j < task.getHeight(); ++j) {
-                // convolve and get the pixel value for this coordinate
-                float [] pixel = KOps.convolve2D(task.getInputRaster(), task.getOriginX() + i, task.getOriginY() + j, task.getKernel());
-                // write the pixel value back to the destination raster
-                task.getOutputRaster().setPixel(pixel, task.getOriginX() + i, task.getOriginY() + j);
-            }
-        }
-        //System.out.println("Done with task: " + task.getRegionString() + " on thread: " + tid);
+        long start = KMetrics.now();
+        // convolve the whole region straight into the destination raster,
+        // reusing the scratch buffers of whichever pool thread runs us
+        KOps.convolveTask(task, KScratch.get());
+        if (start != 0)
+            KMetrics.task(task, task.getOriginX(), task.getOriginY(), task.getWidth(), task.getHeight(), queued, start);
     }
 }
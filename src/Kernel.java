@@ -10,12 +10,44 @@
  * both m and n are odd numbers: m,n = 2k+1 for all k.
  */
 public class Kernel {
+    /**
+     * Default tolerance for separability analysis: the largest acceptable sum
+     * of absolute differences between the kernel and its rank-1
+     * approximation, relative to the sum of absolute kernel values. For a
+     * normalized kernel applied to pixels in [0,1] this bounds the output
+     * error to two 8-bit levels (in practice the error is far smaller); it is
+     * loose enough to accept kernels typed in with three decimals, such as
+     * the 7x7 Gaussian in test/kernels.
+     */
+    public static final float SEPARABLE_TOLERANCE = 1/128.0f;
+    /**
+     * Default tolerance for the rectangle analysis, relative like
+     * SEPARABLE_TOLERANCE. Only absorbs float noise in taps that were meant
+     * to be equal; the decomposition is otherwise exact.
+     */
+    public static final float RECTANGLE_TOLERANCE = 1e-5f;
+    /** Kernels that need more rectangles than this are not decomposed */
+    public static final int MAX_RECTANGLES = 16;
+    /** Fraction bits of the fixed-point kernel: taps are in units of 2^-14 */
+    public static final int FIXED_SHIFT = 14;
     /** The floating point kernel, a 2D array */
     protected float[][] kernel;
     /** The width of the kernel. */
     protected int width;
     /** The height of the kernel. */
     protected int height;
+    /** Row-major copy of the kernel, built on demand. See getFlatKernel. */
+    protected float[] flatKernel;
+    /** Horizontal factor of a separable kernel (length width), or null. */
+    protected float[] rowFactor;
+    /** Vertical factor of a separable kernel (length height), or null. */
+    protected float[] columnFactor;
+    /** Weighted rectangles summing to the kernel ({x0,y0,x1,y1,weight} each), or null. */
+    protected float[] rectangles;
+    /** Row-major fixed-point copy of the kernel, built on demand. */
+    protected int[] fixedKernel;
+    /** Set once the kernel is shared and must no longer change. */
+    protected boolean locked;
     /**
      * An empty no-arg constructor. Necessary for subclasses to do their thing.
      */
@@ -44,7 +76,9 @@ public class Kernel {
      * The dimensions of newKernel must match the existing kernel size.
      */
     public void setKernel(float[][] newKernel) {
+        checkUnlocked();
         kernel = newKernel;
+        invalidate();
     }
     /**
      * Get the raw kernel data as a floating point array.
@@ -60,13 +94,16 @@ public class Kernel {
      * @param value The value to set
      */
     public void set(int x, int y, float value) {
+        checkUnlocked();
         kernel[x][y] = value;
+        invalidate();
     }
     /**
      * Normalize the kernel. Normalize ensures that the sum of the entire
      * kernel is 1.
      */
     public void normalize() {
+        checkUnlocked();
         double sum = 0.0;
         for (int i = 0; i < kernel.length; ++i)
             for (int j = 0; j < kernel[i].length; ++j)
@@ -74,6 +111,42 @@ public class Kernel {
         for (int i = 0; i < kernel.length; ++i)
             for (int j = 0; j < kernel[i].length; ++j)
                 kernel[i][j] = (float)(kernel[i][j]/sum);
+        invalidate();
+    }
+    /**
+     * Lock the kernel. A locked kernel is immutable: the setters and
+     * {@code normalize} throw an IllegalStateException. Locked kernels can be
+     * shared freely between tasks and threads.
+     */
+    public void lock() {
+        getFlatKernel(); // build derived data before it is shared
+        getFixedKernel();
+        locked = true;
+    }
+    /**
+     * Check whether the kernel is locked.
+     * @return True if the kernel is immutable
+     */
+    public boolean isLocked() {
+        return locked;
+    }
+    /**
+     * Throw if the kernel is locked.
+     */
+    protected void checkUnlocked() {
+        if (locked)
+            throw new IllegalStateException("Kernel is locked (shared) and cannot be modified");
+    }
+    /**
+     * Drop everything derived from the kernel data. Called whenever the
+     * kernel is modified.
+     */
+    protected void invalidate() {
+        flatKernel = null;
+        fixedKernel = null;
+        rowFactor = null;
+        columnFactor = null;
+        rectangles = null;
     }
     /**
      * Get the width of the kernel.
@@ -116,6 +189,275 @@ public class Kernel {
     public float get(int x, int y) {
         return kernel[x][y];
     }
+    /**
+     * Get the kernel as a flat, row-major array: component (x,y) is stored at
+     * {@code y*getWidth() + x}. The array is cached until the kernel is next
+     * modified through this class, and must not be modified by callers.
+     * @return The row-major kernel data
+     */
+    public float[] getFlatKernel() {
+        float [] flat = flatKernel;
+        if (flat == null) {
+            flat = new float[width*height];
+            for (int i = 0; i < width; ++i)
+                for (int j = 0; j < height; ++j)
+                    flat[j*width + i] = kernel[i][j];
+            flatKernel = flat;
+        }
+        return flat;
+    }
+    /**
+     * Get the kernel as a flat, row-major array of fixed-point taps, in units
+     * of 2^-FIXED_SHIFT (laid out like {@code getFlatKernel}). Each tap is
+     * rounded to the nearest unit, and the rounding error of the whole kernel
+     * is then moved onto its largest tap, so the fixed-point taps sum to the
+     * rounded sum of the float taps and flat areas keep their brightness.
+     * Cached like the flat kernel; must not be modified by callers.
+     * @return The row-major fixed-point taps
+     */
+    public int[] getFixedKernel() {
+        int [] fixed = fixedKernel;
+        if (fixed == null) {
+            float [] flat = getFlatKernel();
+            fixed = new int[flat.length];
+            double sum = 0.0;
+            long fixedSum = 0;
+            int largest = 0;
+            for (int i = 0; i < flat.length; ++i) {
+                fixed[i] = (int)Math.round((double)flat[i]*(1 << FIXED_SHIFT));
+                sum += flat[i];
+                fixedSum += fixed[i];
+                if (Math.abs(flat[i]) > Math.abs(flat[largest]))
+                    largest = i;
+            }
+            if (fixed.length > 0)
+                fixed[largest] += (int)(Math.round(sum*(1 << FIXED_SHIFT)) - fixedSum);
+            fixedKernel = fixed;
+        }
+        return fixed;
+    }
+    /**
+     * Analyze the kernel for separability using the default tolerance.
+     * @return True if the kernel is separable
+     * @see #analyzeSeparability(float)
+     */
+    public boolean analyzeSeparability() {
+        return analyzeSeparability(SEPARABLE_TOLERANCE);
+    }
+    /**
+     * Check whether the kernel is (close to) the outer product of a row
+     * vector and a column vector, i.e. whether it has rank 1. The dominant
+     * singular vectors are found by power iteration; if the rank-1
+     * approximation is within the tolerance the factors are stored and can
+     * be retrieved with {@code getRowFactor} and {@code getColumnFactor}.
+     * The result is discarded when the kernel is next modified.
+     * @param tolerance The largest acceptable sum of absolute differences
+     * between the kernel and its approximation, relative to the sum of
+     * absolute kernel values.
+     * @return True if the kernel is separable
+     */
+    public boolean analyzeSeparability(float tolerance) {
+        checkUnlocked();
+        rowFactor = null;
+        columnFactor = null;
+        double total = 0.0;
+        for (int i = 0; i < width; ++i)
+            for (int j = 0; j < height; ++j)
+                total += Math.abs(kernel[i][j]);
+        if (total == 0.0)
+            return false;
+        // Start from the column with the largest norm, then alternate
+        // u = K v / |K v| (column space), v = K^T u (row space)
+        double [] u = new double[height];
+        double [] v = new double[width];
+        int best = 0;
+        double bestNorm = -1.0;
+        for (int i = 0; i < width; ++i) {
+            double norm = 0.0;
+            for (int j = 0; j < height; ++j)
+                norm += kernel[i][j]*kernel[i][j];
+            if (norm > bestNorm) {
+                bestNorm = norm;
+                best = i;
+            }
+        }
+        for (int j = 0; j < height; ++j)
+            u[j] = kernel[best][j];
+        for (int iter = 0; iter < 32; ++iter) {
+            double norm = 0.0;
+            for (int j = 0; j < height; ++j)
+                norm += u[j]*u[j];
+            norm = Math.sqrt(norm);
+            for (int j = 0; j < height; ++j)
+                u[j] /= norm;
+            for (int i = 0; i < width; ++i) {
+                v[i] = 0.0;
+                for (int j = 0; j < height; ++j)
+                    v[i] += kernel[i][j]*u[j];
+            }
+            double [] next = new double[height];
+            for (int j = 0; j < height; ++j)
+                for (int i = 0; i < width; ++i)
+                    next[j] += kernel[i][j]*v[i];
+            u = next;
+        }
+        double norm = 0.0;
+        for (int j = 0; j < height; ++j)
+            norm += u[j]*u[j];
+        norm = Math.sqrt(norm);
+        for (int j = 0; j < height; ++j)
+            u[j] /= norm;
+        for (int i = 0; i < width; ++i) {
+            v[i] = 0.0;
+            for (int j = 0; j < height; ++j)
+                v[i] += kernel[i][j]*u[j];
+        }
+        // kernel[i][j] ~= v[i]*u[j]
+        double residual = 0.0;
+        for (int i = 0; i < width; ++i)
+            for (int j = 0; j < height; ++j)
+                residual += Math.abs(kernel[i][j] - v[i]*u[j]);
+        if (!(residual <= tolerance*total))
+            return false;
+        float [] row = new float[width];
+        float [] column = new float[height];
+        for (int i = 0; i < width; ++i)
+            row[i] = (float)v[i];
+        for (int j = 0; j < height; ++j)
+            column[j] = (float)u[j];
+        rowFactor = row;
+        columnFactor = column;
+        return true;
+    }
+    /**
+     * Restore the results of earlier separability and rectangle analyses of
+     * the same data (see KBank), instead of analyzing the kernel again.
+     * @param rowFactor The horizontal factor, or null if not separable
+     * @param columnFactor The vertical factor, or null if not separable
+     * @param rectangles The packed rectangles, or null if not decomposed
+     */
+    void restoreAnalysis(float[] rowFactor, float[] columnFactor, float[] rectangles) {
+        checkUnlocked();
+        this.rowFactor = rowFactor;
+        this.columnFactor = columnFactor;
+        this.rectangles = rectangles;
+    }
+    /**
+     * Check whether the last separability analysis found the kernel to be
+     * separable (and the kernel has not been modified since).
+     * @return True if the kernel is known to be separable
+     */
+    public boolean isSeparable() {
+        return rowFactor != null;
+    }
+    /**
+     * Get the horizontal factor of a separable kernel.
+     * @return A width-element array, or null if the kernel is not separable
+     */
+    public float[] getRowFactor() {
+        return rowFactor;
+    }
+    /**
+     * Get the vertical factor of a separable kernel. Component (x,y) of the
+     * kernel is approximately {@code getRowFactor()[x]*getColumnFactor()[y]}.
+     * @return A height-element array, or null if the kernel is not separable
+     */
+    public float[] getColumnFactor() {
+        return columnFactor;
+    }
+    /**
+     * Analyze the kernel for a rectangle decomposition using the default
+     * tolerance and rectangle limit.
+     * @return True if the kernel was decomposed
+     * @see #analyzeRectangles(float, int)
+     */
+    public boolean analyzeRectangles() {
+        return analyzeRectangles(RECTANGLE_TOLERANCE, MAX_RECTANGLES);
+    }
+    /**
+     * Try to write the kernel as a sum of a few weighted rectangles, so it
+     * can be convolved in a constant number of summed-area-table lookups per
+     * pixel (see KIntegral). Kernels made of constant-weight regions with
+     * axis-aligned edges (boxes, nested boxes, crosses of boxes) decompose
+     * into one rectangle per corner of their regions.
+     * <br>
+     * The rectangles come from the 2D difference of the kernel,
+     * d(x,y) = k(x,y) - k(x-1,y) - k(x,y-1) + k(x-1,y-1): every nonzero
+     * d(x,y) is a rectangle from (x,y) to the far corner of the kernel with
+     * weight d(x,y), and the kernel is their sum. Differences within the
+     * tolerance of zero are dropped, and the decomposition is kept if the
+     * rectangles still sum to the kernel within the tolerance and there are
+     * at most maxRectangles of them. The result is discarded when the
+     * kernel is next modified.
+     * @param tolerance The largest acceptable sum of absolute differences
+     * between the kernel and the rectangles, relative to the sum of absolute
+     * kernel values
+     * @param maxRectangles The largest acceptable number of rectangles
+     * @return True if the kernel was decomposed
+     */
+    public boolean analyzeRectangles(float tolerance, int maxRectangles) {
+        checkUnlocked();
+        rectangles = null;
+        double total = 0.0;
+        for (int i = 0; i < width; ++i)
+            for (int j = 0; j < height; ++j)
+                total += Math.abs(kernel[i][j]);
+        if (total == 0.0)
+            return false;
+        float [] found = new float[5*maxRectangles];
+        int count = 0;
+        double [][] sum = new double[width][height];
+        for (int i = 0; i < width; ++i) {
+            for (int j = 0; j < height; ++j) {
+                double d = kernel[i][j];
+                if (i > 0)
+                    d -= kernel[i-1][j];
+                if (j > 0)
+                    d -= kernel[i][j-1];
+                if (i > 0 && j > 0)
+                    d += kernel[i-1][j-1];
+                if (Math.abs(d) <= tolerance*total)
+                    continue;
+                if (count == maxRectangles)
+                    return false;
+                found[5*count] = i;
+                found[5*count + 1] = j;
+                found[5*count + 2] = width;
+                found[5*count + 3] = height;
+                found[5*count + 4] = (float)d;
+                ++count;
+                for (int x = i; x < width; ++x)
+                    for (int y = j; y < height; ++y)
+                        sum[x][y] += (float)d;
+            }
+        }
+        double residual = 0.0;
+        for (int i = 0; i < width; ++i)
+            for (int j = 0; j < height; ++j)
+                residual += Math.abs(kernel[i][j] - sum[i][j]);
+        if (count == 0 || !(residual <= tolerance*total))
+            return false;
+        rectangles = java.util.Arrays.copyOf(found, 5*count);
+        return true;
+    }
+    /**
+     * Check whether the last rectangle analysis decomposed the kernel (and
+     * the kernel has not been modified since).
+     * @return True if {@code getRectangles} returns a decomposition
+     */
+    public boolean hasRectangles() {
+        return rectangles != null;
+    }
+    /**
+     * Get the rectangle decomposition of the kernel. Rectangle r covers the
+     * taps x0 &lt;= x &lt; x1, y0 &lt;= y &lt; y1, where {x0,y0,x1,y1,weight}
+     * are elements 5r to 5r+4, and the kernel is the sum of the weights of
+     * the rectangles covering each tap.
+     * @return The packed rectangles, or null if the kernel was not decomposed
+     */
+    public float[] getRectangles() {
+        return rectangles;
+    }
     /**
      * Return a string representation of the kernel. Values are scaled to [0,1],
      * floating point.
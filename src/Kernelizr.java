@@ -4,8 +4,6 @@
  * Built for ECEN4003 Concurrent Programming
  */
 
-import java.util.concurrent.*;
-
 /**
  * Processes an image with a multithreaded, dynamic kernel-based image
  * filtering algorithm.
@@ -20,98 +18,454 @@ public class Kernelizr {
      */
     public static void main(String[] args) {
         System.out.println("\nHello, I'm Kernelizr, an image filter.");
+        KOptions options = new KOptions(args);
         // The first argument should be a path to an image file.
         // If it is not, complain. Otherwise, try to open it
-        if (args.length < 1) {
+        if (options.positionalCount() < 1) {
             System.out.println("No image path provided.");
-            System.out.println("Usage:");
-            System.out.println("    java Kernelizr image_path [kernel_path]");
-            System.out.println("    ");
+            printUsage();
             return;
         }
-        if (args.length < 2) {
+        if (options.positionalCount() < 2) {
             System.out.println("No kernel path provided. Using default kernel.");
         }
         // Set processing parameters -------------------------------------------
-        // blockSize is the size in pixels of each block associated with a task
-        final int blockSize = 8;
-        // nThreads is the (supposedly optimal) number of threads to run in
-        // the thread pool. Determined by number of processors.
-        final int nThreads = Runtime.getRuntime().availableProcessors();
+        // A bad option value is reported with the usage, like a missing path
+        final int blockSize, nThreads, stripHeight, schedulerMode, engine, fieldSamples;
+        final boolean adaptiveTiling, fixedPoint;
+        final KModulation modulation;
+        final String chainMode;
+        try {
+            // blockSize is the size in pixels of each block associated with a task
+            blockSize = options.getInt("block", 8, 1);
+            // nThreads is the (supposedly optimal) number of threads to run in
+            // the thread pool. Determined by number of processors.
+            nThreads = options.getInt("threads", Runtime.getRuntime().availableProcessors(), 1);
+            // The rows per strip when streaming
+            stripHeight = options.getInt("strip", KStream.DEFAULT_STRIP_HEIGHT, 1);
+            // Whether blocks are regrouped into tasks of roughly equal cost
+            adaptiveTiling = options.getString("tiling", "adaptive").equals("adaptive");
+            // How tasks are handed to the worker threads
+            schedulerMode = KScheduler.parseMode(options.getString("scheduler", "forkjoin"));
+            // Which threads run the decode and encode stages
+            KThreads.setMode(KThreads.parseMode(options.getString("io", "auto")));
+            // How each task is convolved
+            engine = KOps.parseEngine(options.getString("engine", "auto"));
+            // 8-bit pixels with fixed-point kernels instead of float pixels
+            String precision = options.getString("precision", "float");
+            if (!precision.equals("float") && !precision.equals("fixed"))
+                throw new IllegalArgumentException("Unknown precision: " + precision + " (expected float or fixed)");
+            fixedPoint = precision.equals("fixed");
+            // How the kernel varies over the image
+            modulation = KModulation.parse(options.getString("modulation", "linear"));
+            // Per-pixel interpolation between this many samples per axis (0: per block)
+            String interpolate = options.getString("interpolate", null);
+            fieldSamples = (interpolate == null) ? 0
+                         : interpolate.equals("true") ? KField.DEFAULT_SAMPLES : options.getInt("interpolate", 0);
+            // How a chain of kernels is run
+            chainMode = options.getString("chain", "compose");
+            if (!chainMode.equals("compose") && !chainMode.equals("fuse") && !chainMode.equals("staged"))
+                throw new IllegalArgumentException("Unknown chain mode: " + chainMode + " (expected compose, fuse or staged)");
+        } catch (IllegalArgumentException e) {
+            System.out.println("ERROR: " + e.getMessage());
+            printUsage();
+            System.exit(1);
+            return;
+        }
+        // Compare the two precisions
+        final boolean reportQuality = options.getFlag("psnr");
+        if (engine == KOps.ENGINE_VECTOR && !KOps.isVectorAvailable())
+            System.out.println("Vector API not available (run java with --add-modules jdk.incubator.vector). Using direct convolution.");
+        // Instrumentation: a summary (optionally as JSON) and a trace-event file
+        final boolean metrics = options.has("metrics");
+        final String metricsPath = options.getValue("metrics");
+        final String tracePath = options.getString("trace", null);
+        if (metrics || tracePath != null)
+            KMetrics.enable(tracePath != null);
+        // Path of the source image
+        final String sourcePath = options.getPositional(0, null);
         // Path to save the image
-        final String destinationPath = "../test/output.png";
-        // Path to base kernel
-        final String baseKernelPath = "../test/kernels/diamondblur_11x11.json";
+        final String destinationPath = options.getString("output", "../test/output.png");
+        // Path to base kernel (JSON or bank.kbank#name), or comma-separated
+        // paths of a kernel chain
+        final String [] kernelPaths = options.getPositional(1, "../test/kernels/diamondblur_11x11.json").split(",");
+        final String baseKernelPath = kernelPaths[0];
+        if (kernelPaths.length > 1 && (KSequence.isSequence(sourcePath) || options.getFlag("stream") || options.has("strip")))
+            System.out.println("Kernel chains need a single image; using the first kernel only.");
+        // A temporal (3D) kernel convolves each frame of a sequence with its neighbours
+        final KTemporal.Frames temporalKernel = KSequence.isSequence(sourcePath) ? KTemporal.loadIfTemporal(baseKernelPath) : null;
+        final boolean temporal = temporalKernel != null;
+        // Filter on worker processes instead of local threads
+        boolean clustered = options.has("cluster") || options.has("spawn");
+        if (clustered && (fieldSamples > 0 || temporal || kernelPaths.length > 1 || options.getFlag("stream") || options.has("strip"))) {
+            System.out.println("--cluster and --spawn run one kernel per block on whole images; filtering locally.");
+            clustered = false;
+        }
 
+        // A directory or glob is a frame sequence: pipeline it and stop
+        if (KSequence.isSequence(sourcePath)) {
+            BaseKernel baseKernel = temporal ? temporalKernel.middle() : BaseKernel.load(baseKernelPath);
+            baseKernel.setModulation(modulation);
+            if (temporal) {
+                for (BaseKernel frame : temporalKernel.frames)
+                    frame.setModulation(modulation);
+                System.out.printf("Using temporal kernel: %s, %dx%d over %d frames\n", temporalKernel.name,
+                                  baseKernel.getWidth(), baseKernel.getHeight(), temporalKernel.frames.size());
+                if (fieldSamples > 0)
+                    System.out.println("--interpolate does not apply to temporal kernels; using one kernel per block.");
+            } else {
+                System.out.printf("Using kernel: %s, sum: %f\n",baseKernel.name,KOps.sum(baseKernel.getKernel()));
+            }
+            KScheduler scheduler = new KScheduler(schedulerMode, nThreads);
+            KCluster cluster = null;
+            try {
+                java.util.List<java.io.File> frames = KSequence.listFrames(sourcePath);
+                String outputDir = options.getString("output", "../test/output");
+                System.out.printf("Filtering %d frames from %s into %s with %d threads.\n",
+                                  frames.size(), sourcePath, outputDir, nThreads);
+                KSequence sequence = new KSequence(scheduler, baseKernel, blockSize, adaptiveTiling);
+                sequence.setEngine(engine);
+                sequence.setFixedPoint(fixedPoint);
+                if (temporal)
+                    sequence.setTemporal(temporalKernel);
+                else if (fieldSamples > 0)
+                    sequence.setField(new KField(baseKernel, fieldSamples));
+                if (clustered) {
+                    cluster = KCluster.fromOptions(options);
+                    sequence.setCluster(cluster);
+                    System.out.printf("Filtering on %d worker processes.\n", cluster.getLiveWorkers());
+                }
+                sequence.run(frames, new java.io.File(outputDir));
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.out.println("ERROR: Failed to process sequence.");
+                System.exit(1);
+            }
+            scheduler.shutdown();
+            if (cluster != null) {
+                System.out.print(cluster.getStats());
+                cluster.close();
+            }
+            System.out.printf("Kernel cache: %d hits, %d misses, %d distinct kernels\n",
+                              baseKernel.getCacheHits(), baseKernel.getCacheMisses(), baseKernel.getDistinctKernels());
+            reportMetrics(metricsPath, tracePath);
+            return;
+        }
 
-        // Load the source image into a raster
-        BadRaster srcRaster = new BadRaster();
+        // Streaming: filter the image in strips without loading all of it
+        if (options.getFlag("stream") || options.has("strip")) {
+            BaseKernel baseKernel = loadKernel(baseKernelPath);
+            baseKernel.setModulation(modulation);
+            System.out.printf("Using kernel: %s, sum: %f\n",baseKernel.name,KOps.sum(baseKernel.getKernel()));
+            if (fieldSamples > 0)
+                System.out.println("--interpolate needs whole images; streaming with one kernel per block.");
+            KScheduler scheduler = new KScheduler(schedulerMode, nThreads);
+            try {
+                KStream stream = new KStream(scheduler, baseKernel, blockSize, adaptiveTiling);
+                stream.setEngine(engine);
+                stream.setFixedPoint(fixedPoint);
+                stream.setStripHeight(stripHeight);
+                System.out.printf("Streaming %s into %s in %d-row strips with %d threads.\n",
+                                  sourcePath, destinationPath, stream.getStripHeight(), nThreads);
+                stream.run(new java.io.File(sourcePath), new java.io.File(destinationPath));
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.out.println("ERROR: Failed to stream image.");
+                System.exit(1);
+            }
+            scheduler.shutdown();
+            System.out.printf("Kernel cache: %d hits, %d misses, %d distinct kernels\n",
+                              baseKernel.getCacheHits(), baseKernel.getCacheMisses(), baseKernel.getDistinctKernels());
+            reportMetrics(metricsPath, tracePath);
+            return;
+        }
+
+        // Load the source image into a raster. The interleaved layout keeps
+        // each row (and the bands of each pixel) contiguous in memory. Raw
+        // rasters are only mapped, not loaded.
+        final boolean rawSource = sourcePath.endsWith(MappedRaster.SUFFIX);
+        final boolean rawDestination = destinationPath.endsWith(MappedRaster.SUFFIX);
+        BadRaster srcRaster = null;
         try {
-            //srcRaster.loadFromPath(args[0])
-            //srcRaster.loadFromPath("../test/datasets/image/rgb3x3.png");
-            //srcRaster.loadFromPath("../test/datasets/image/hw8_z20_20150807T000000.png");
-            srcRaster.loadFromPath("../test/datasets/image/hw8_z2_20150819T060000_640x640.png");
-            //srcRaster.loadFromPath("../test/datasets/image/pattern_128x128.png");
+            if (rawSource) {
+                srcRaster = MappedRaster.open(new java.io.File(sourcePath), false);
+            } else {
+                srcRaster = fixedPoint ? new ByteRaster() : new BadRaster(BadRaster.LAYOUT_INTERLEAVED);
+                srcRaster.loadFromPath(sourcePath);
+            }
         } catch (Exception e) {
             e.printStackTrace();
             System.out.println("ERROR: Failed to open source image.");
             System.exit(1);
         }
-        System.out.printf("Loaded %s. Dimensions: %dx%d\n",args[0],srcRaster.getWidth(),srcRaster.getHeight());
+        System.out.printf("Loaded %s. Dimensions: %dx%d\n",sourcePath,srcRaster.getWidth(),srcRaster.getHeight());
 
         // Create a new raster to write the filtered image data to
-        BadRaster destRaster = new BadRaster(srcRaster.getBands(),srcRaster.getWidth(),srcRaster.getHeight());
+        BadRaster destRaster = null;
+        if (rawDestination) {
+            try {
+                destRaster = MappedRaster.create(new java.io.File(destinationPath), srcRaster.getBands(),
+                                                 srcRaster.getWidth(), srcRaster.getHeight(),
+                                                 fixedPoint ? MappedRaster.SAMPLE_BYTE : MappedRaster.SAMPLE_FLOAT);
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.out.println("ERROR: Failed to create destination raster.");
+                System.exit(1);
+            }
+        } else if (fixedPoint && !rawSource) {
+            destRaster = new ByteRaster(srcRaster.getBands(),srcRaster.getWidth(),srcRaster.getHeight());
+        } else {
+            destRaster = new BadRaster(srcRaster.getBands(),srcRaster.getWidth(),srcRaster.getHeight(),BadRaster.LAYOUT_INTERLEAVED);
+        }
         // Create a task queue and add items
         TaskQueue tasks = new TaskQueue();
-        // Divide the source image into blocks and iterate through
+        // Divide the source image into blocks (regrouped by cost if adaptive)
         // Each task has an associated Kernel derived from a BaseKernel
-        BaseKernel baseKernel = new BaseKernel(baseKernelPath);
+        BaseKernel baseKernel = loadKernel(baseKernelPath);
+        baseKernel.setModulation(modulation);
         System.out.printf("Using kernel: %s, sum: %f\n",baseKernel.name,KOps.sum(baseKernel.getKernel()));
-        int nBlocks = 0;
-        int xBlocks = srcRaster.getWidth()/blockSize;
-        int yBlocks = srcRaster.getHeight()/blockSize;
-        if (srcRaster.getWidth() % blockSize != 0 || srcRaster.getHeight() % blockSize != 0)
-            System.out.println("Warning: Image dimensions not a multiple of blocksize. Some pixels may be ignored.");
-        for (int i = 0; i < xBlocks; ++i) {
-            for (int j = 0; j < yBlocks; ++j) {
-                float [] point = {i/((float)xBlocks),j/((float)yBlocks)};
-                // Create a task
-                KTask task = new KTask(i*blockSize,j*blockSize,blockSize,blockSize);
-                task.setInputRaster(srcRaster);
-                task.setOutputRaster(destRaster);
-                Kernel kernel = baseKernel.getModulatedKernel(point);
-                task.setKernel(kernel);
+        // With interpolation the kernel varies per pixel, inside large tiles
+        final KField field = (fieldSamples > 0 && kernelPaths.length == 1) ? new KField(baseKernel, fieldSamples) : null;
+        // Several kernels are applied one after the other, tile by tile
+        KChain chain = null;
+        if (kernelPaths.length > 1) {
+            if (fieldSamples > 0)
+                System.out.println("--interpolate does not apply to kernel chains; using one kernel per block.");
+            java.util.List<BaseKernel> stages = new java.util.ArrayList<BaseKernel>();
+            stages.add(baseKernel);
+            for (int i = 1; i < kernelPaths.length; ++i) {
+                BaseKernel stage = loadKernel(kernelPaths[i]);
+                stage.setModulation(modulation);
+                System.out.printf("Then kernel: %s, sum: %f\n",stage.name,KOps.sum(stage.getKernel()));
+                stages.add(stage);
+            }
+            chain = new KChain(stages, srcRaster.getWidth(), srcRaster.getHeight(), blockSize);
+            chain.setComposition(chainMode.equals("compose"));
+        }
+        final boolean staged = chain != null && chainMode.equals("staged");
+        int nBlocks = ((srcRaster.getWidth() + blockSize - 1)/blockSize)
+                    * ((srcRaster.getHeight() + blockSize - 1)/blockSize);
+        if (!staged)
+            for (KTask task : tile(srcRaster, destRaster, baseKernel, field, chain, blockSize, nThreads, adaptiveTiling, engine)) {
                 tasks.push(task);
-                //System.out.println("Pushed task: " + task.getRegionString() + " w/ modulation: [" + point[0] + "," + point[1] + "]");
-                ++nBlocks;
+                //System.out.println("Pushed task: " + task.getRegionString());
+            }
+        if (staged)
+            System.out.printf("Kernel chain of %d kernels, one full pass per kernel, block size: %d, %s tiling\n",
+                              chain.getStages(), blockSize, adaptiveTiling ? "adaptive" : "fixed");
+        else if (chain != null)
+            System.out.printf("Task queue built. Tasks: %d, chain of %d kernels run per tile%s\n",
+                              tasks.length(), chain.getStages(), chain.getComposition() ? ", composed where cheaper" : "");
+        else if (field != null)
+            System.out.printf("Task queue built. Tasks: %d, kernel interpolated between %dx%d samples (up to %dx%d)\n",
+                              tasks.length(), fieldSamples, fieldSamples, field.getWidth(), field.getHeight());
+        else
+            System.out.printf("Task queue built. Tasks: %d (%d blocks), block size: %d, %s tiling\n",
+                              tasks.length(), nBlocks, blockSize, adaptiveTiling ? "adaptive" : "fixed");
+        System.out.printf("Kernel cache: %d hits, %d misses, %d distinct kernels\n",
+                          baseKernel.getCacheHits(), baseKernel.getCacheMisses(), baseKernel.getDistinctKernels());
+        // Connect to (or start) the worker processes before the timer
+        KCluster cluster = null;
+        if (clustered) {
+            try {
+                cluster = KCluster.fromOptions(options);
+            } catch (java.io.IOException e) {
+                e.printStackTrace();
+                System.out.println("ERROR: Failed to reach the worker processes.");
+                System.exit(1);
             }
+            System.out.printf("Filtering on %d worker processes.\n", cluster.getLiveWorkers());
         }
-        System.out.printf("Task queue built. Tasks: %d, block size: %d\n", tasks.length(), blockSize);
-        // Start the thread pool running and start a timer
-        System.out.printf("Starting thread pool with %d threads. Starting timer.\n", nThreads);
+        // Start the worker threads running and start a timer
+        System.out.printf("Starting %s scheduler with %d threads. Starting timer.\n",
+                          (schedulerMode == KScheduler.MODE_FORKJOIN) ? "fork-join"
+                          : (schedulerMode == KScheduler.MODE_STRUCTURED) ? "structured" : "thread pool", nThreads);
+        System.out.printf("Precision: %s\n", fixedPoint ? "8-bit fixed point" : "float");
+        KScheduler scheduler = new KScheduler(schedulerMode, nThreads);
         final long startTime = System.currentTimeMillis();
-        // executor manages the thread pool
-        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
-        // Add worker threads to the thread pool queue
-        while (!tasks.isEmpty()) {
-            Runnable worker = new KWorker(tasks.pop());
-            executor.execute(worker);
+        // Run every task; returns once the last one has finished
+        int nTasks = 0;
+        try {
+            nTasks = staged ? chain.runStaged(scheduler, srcRaster, destRaster, nThreads, adaptiveTiling, engine)
+                   : (cluster != null) ? cluster.run(srcRaster, destRaster, tasks)
+                   : scheduler.run(tasks);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (java.io.IOException e) {
+            e.printStackTrace();
+            System.out.println("ERROR: The worker processes failed; the image was abandoned.");
+            System.exit(1);
+        } catch (java.util.concurrent.CompletionException e) {
+            e.getCause().printStackTrace();
+            System.out.println("ERROR: A task failed; the image was abandoned.");
+            System.exit(1);
         }
-        // Stop the thread pool and wait for threads to finish
-        executor.shutdown();
-        while (!executor.isTerminated()) {}
-        System.out.println("Task queue empty, thread pool shutdown.");
         final long endTime = System.currentTimeMillis();
         final long elapsedTime = endTime - startTime;
-        System.out.printf("Processed %d blocks in %f %s\n",nBlocks,(elapsedTime>1000)?elapsedTime/1000.0f:elapsedTime,(elapsedTime>1000)?"s":"ms");
+        System.out.printf("Processed %d tasks (%d blocks) in %f %s\n",nTasks,nBlocks,(elapsedTime>1000)?elapsedTime/1000.0f:elapsedTime,(elapsedTime>1000)?"s":"ms");
+        if (chain != null && chain.getComposedKernels() > 0)
+            System.out.printf("Composed kernels: %d\n", chain.getComposedKernels());
+        if (cluster != null) {
+            System.out.print(cluster.getStats());
+            cluster.close();
+        }
+        // only the main run is reported, not the --psnr comparison
+        reportMetrics(metricsPath, tracePath);
+
+        // Quality report: filter again in the other precision and compare
+        if (reportQuality && rawSource) {
+            System.out.println("Quality report skipped: --psnr needs an image source, not a raw raster.");
+        } else if (reportQuality) {
+            try {
+                BadRaster otherSrc = fixedPoint ? new BadRaster(BadRaster.LAYOUT_INTERLEAVED) : new ByteRaster();
+                otherSrc.loadFromPath(sourcePath);
+                BadRaster otherDest = fixedPoint
+                                    ? new BadRaster(otherSrc.getBands(),otherSrc.getWidth(),otherSrc.getHeight(),otherSrc.getLayout())
+                                    : new ByteRaster(otherSrc.getBands(),otherSrc.getWidth(),otherSrc.getHeight());
+                final long otherStart = System.currentTimeMillis();
+                if (staged)
+                    chain.runStaged(scheduler, otherSrc, otherDest, nThreads, adaptiveTiling, engine);
+                else
+                    scheduler.run(tile(otherSrc, otherDest, baseKernel, field, chain, blockSize, nThreads, adaptiveTiling, engine));
+                final long otherTime = System.currentTimeMillis() - otherStart;
+                double psnr = fixedPoint ? KOps.psnr(otherDest, destRaster) : KOps.psnr(destRaster, otherDest);
+                System.out.printf("Quality: fixed point vs float PSNR %.2f dB (float %d ms, fixed point %d ms)\n",
+                                  psnr, fixedPoint ? otherTime : elapsedTime, fixedPoint ? elapsedTime : otherTime);
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+        scheduler.shutdown();
+        System.out.println("Task queue empty, workers shut down.");
 
         // Save the destination raster to the destination filepath
         System.out.printf("Saving image to %s. Dimensions: %dx%d\n",destinationPath,destRaster.getWidth(),destRaster.getHeight());
         try {
-            destRaster.writeToPath(destinationPath);
+            if (rawDestination)
+                ((MappedRaster)destRaster).force();
+            else
+                destRaster.writeToPath(destinationPath);
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(1);
         }
     }
+    /**
+     * Load a base kernel (JSON or bank.kbank#name). A temporal kernel needs
+     * a frame sequence, so outside one its middle frame is used.
+     * @param path The kernel path
+     * @return The base kernel
+     */
+    static BaseKernel loadKernel(String path) {
+        KTemporal.Frames temporal = KTemporal.loadIfTemporal(path);
+        if (temporal == null)
+            return BaseKernel.load(path);
+        System.out.println("Temporal kernels need a frame sequence; using the middle frame only.");
+        return temporal.middle();
+    }
+    /**
+     * Divide an image into tasks: large tiles interpolating a kernel field
+     * or running a kernel chain if there is one, kernel grid blocks otherwise.
+     * @param src The source raster
+     * @param dst The destination raster
+     * @param baseKernel The base kernel
+     * @param field The kernel field, or null
+     * @param chain The kernel chain, or null
+     * @param blockSize The size of the grid blocks in pixels
+     * @param nThreads The number of worker threads
+     * @param adaptive Regroup blocks by estimated cost
+     * @param engine The engine of every block or chain task
+     * @return The tasks
+     */
+    static java.util.List<KTask> tile(BadRaster src, BadRaster dst, BaseKernel baseKernel, KField field, KChain chain,
+                                      int blockSize, int nThreads, boolean adaptive, int engine) {
+        if (field != null)
+            return KTiler.tile(src, dst, field, nThreads);
+        if (chain != null)
+            return KTiler.tile(src, dst, chain, nThreads, engine);
+        return KTiler.tile(src, dst, baseKernel, blockSize, nThreads, adaptive, engine);
+    }
+    /**
+     * Print the command lines and options Kernelizr understands.
+     */
+    private static void printUsage() {
+        System.out.println("Usage:");
+        System.out.println("    java Kernelizr image_path [kernel_path] [options]");
+        System.out.println("    java Kernelizr image_path kernel_path,kernel_path,... [options]   (kernel chain)");
+        System.out.println("    java Kernelizr image_path bank.kbank#name [options]        (kernel from a bank,");
+        System.out.println("                           build one with make bank, see KBank)");
+        System.out.println("    java Kernelizr directory_or_glob [kernel_path] [options]   (frame sequence)");
+        System.out.println("    java Kernelizr directory_or_glob temporal_kernel_path [options]   (3D kernel over");
+        System.out.println("                           neighbouring frames, see KTemporal)");
+        System.out.println("    java Kernelizr image.kraw [kernel_path] --output=out.kraw     (memory-mapped raw rasters,");
+        System.out.println("                           convert with java MappedRaster)");
+        System.out.println("    java KServer [--port=n] [--spool=dir] [--jobs=n]                (job server, see KServer;");
+        System.out.println("                           submit with java KServer --send image [kernel] --output=path)");
+        System.out.println("    java KCluster --worker [--port=n] [--threads=n]                 (worker process for --cluster;");
+        System.out.println("                           java KCluster --scale image measures scaling, see KCluster)");
+        System.out.println("Options:");
+        System.out.println("    --output=path          where to save the image (../test/output.png),");
+        System.out.println("                           or the frames of a sequence (../test/output/)");
+        System.out.println("    --threads=n            number of worker threads (one per processor)");
+        System.out.println("    --block=n              block size in pixels (8)");
+        System.out.println("    --tiling=adaptive      group blocks into tasks of equal cost (default)");
+        System.out.println("    --tiling=fixed         one task per block");
+        System.out.println("    --scheduler=forkjoin   work-stealing fork-join workers (default)");
+        System.out.println("    --scheduler=pool       one Runnable per block on a fixed thread pool");
+        System.out.println("    --scheduler=structured one structured scope per image on a bounded pool;");
+        System.out.println("                           a failing task cancels the rest of the image");
+        System.out.println("    --io=auto              virtual I/O threads when the JDK has them (default)");
+        System.out.println("    --io=platform|virtual  platform or virtual threads for decode and encode");
+        System.out.println("    --engine=auto          cheapest of FFT, summed-area tables and direct (default)");
+        System.out.println("    --engine=direct        spatial convolution (separable passes when possible)");
+        System.out.println("    --engine=fft           FFT overlap-save convolution");
+        System.out.println("    --engine=vector        SIMD convolution (needs --add-modules jdk.incubator.vector)");
+        System.out.println("    --engine=sat           summed-area tables, for kernels made of rectangles");
+        System.out.println("    --precision=float      32-bit float pixels (default)");
+        System.out.println("    --precision=fixed      8-bit pixels, fixed-point kernels");
+        System.out.println("    --psnr                 also run the other precision and report the PSNR");
+        System.out.println("    --modulation=linear    kernels shrink towards the right and bottom (default)");
+        System.out.println("    --modulation=radial    kernels shrink away from the centre");
+        System.out.println("    --interpolate[=n]      interpolate the kernel per pixel between n x n");
+        System.out.println("                           modulation samples (17) instead of one per block");
+        System.out.println("    --chain=compose        run a kernel chain tile by tile, composing stages into");
+        System.out.println("                           one kernel where that is cheaper (default)");
+        System.out.println("    --chain=fuse           run a kernel chain tile by tile, one stage at a time");
+        System.out.println("    --chain=staged         run a kernel chain one full pass per kernel");
+        System.out.println("    --cluster=host:port,.. filter on running worker processes (java KCluster --worker)");
+        System.out.println("    --spawn[=n]            filter on n worker processes started on this machine (2)");
+        System.out.println("    --worker-threads=n     threads per spawned worker (the processors shared out)");
+        System.out.println("    --stream               decode, filter and encode the image in row strips");
+        System.out.println("    --strip=n              strip height in rows for --stream (256)");
+        System.out.println("    --metrics[=path]       print per-worker metrics (and write them as JSON)");
+        System.out.println("    --trace=path           write a Chrome trace-event file of every task region");
+        System.out.println("    ");
+    }
+    /**
+     * Stop recording metrics and report them, if recording was on: print
+     * the summary, and write the JSON summary and the trace if asked to.
+     * @param metricsPath Where to write the JSON summary (null: nowhere)
+     * @param tracePath Where to write the trace events (null: nowhere)
+     */
+    private static void reportMetrics(String metricsPath, String tracePath) {
+        if (!KMetrics.isEnabled())
+            return;
+        KMetrics.disable();
+        KMetrics.printSummary(System.out);
+        try {
+            if (metricsPath != null) {
+                KMetrics.writeSummary(new java.io.File(metricsPath));
+                System.out.println("Wrote metrics to " + metricsPath);
+            }
+            if (tracePath != null) {
+                KMetrics.writeTrace(new java.io.File(tracePath));
+                System.out.println("Wrote trace events to " + tracePath);
+            }
+        } catch (java.io.IOException e) {
+            e.printStackTrace();
+            System.out.println("ERROR: Failed to write metrics.");
+        }
+    }
 }
@@ -0,0 +1,322 @@
+/*
+ * MappedRaster.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A BadRaster whose pixels live in a raw raster file, memory-mapped with
+ * {@code FileChannel.map} instead of held on the heap. Source and destination
+ * rasters of any size can then be processed tile by tile by the usual KTask
+ * machinery, with the operating system paging the file in and out, and
+ * opening a pre-converted frame costs no decoding at all.
+ * <br>
+ * The raw raster format (suffix {@code .kraw}) is a 32-byte little-endian
+ * header followed by a planar payload:
+ * <pre>
+ *   int magic       'KRAW' (0x4B524157)
+ *   int version     1
+ *   int sampleType  SAMPLE_FLOAT (4-byte floats) or SAMPLE_BYTE (unsigned bytes, value/255)
+ *   int bands
+ *   int width
+ *   int height
+ *   int reserved[2]
+ *   payload         band 0 rows top to bottom, then band 1, ...
+ * </pre>
+ * A single mapping is limited to 2 GB, so the payload is mapped in
+ * segments of whole rows of one band.
+ * <br>
+ * {@code getData} returns null, so the convolution paths reach the pixels
+ * through the public accessors and {@code readBlock}/{@code writeBlock}.
+ * Concurrent accesses use absolute buffer indexing only and are safe as long
+ * as threads write disjoint pixels. Convert from and to PNG with the main
+ * method (or {@code convert}).
+ */
+public class MappedRaster extends BadRaster {
+    /** File name suffix of raw raster files */
+    public static final String SUFFIX = ".kraw";
+    /** Sample type: 32-bit float, stored as is */
+    public static final int SAMPLE_FLOAT = 0;
+    /** Sample type: unsigned byte, value/255 (saturated when written) */
+    public static final int SAMPLE_BYTE = 1;
+    /** The size of the header in bytes */
+    public static final int HEADER_SIZE = 32;
+    /** 'KRAW' */
+    private static final int MAGIC = 0x4B524157;
+    private static final int VERSION = 1;
+    /** Largest size of one mapped segment */
+    private static final long MAX_SEGMENT = 1L << 30;
+    /** The sample type, one of the SAMPLE_* constants */
+    private int sampleType;
+    /** Bytes per sample */
+    private int sampleSize;
+    /** Rows per segment (every band starts a new segment) */
+    private int rowsPerSegment;
+    /** Segments per band */
+    private int segmentsPerBand;
+    /** The mapped segments, band by band */
+    private MappedByteBuffer [] segments;
+
+    /**
+     * Private constructor: use {@code create} or {@code open}.
+     */
+    private MappedRaster() {
+        super(LAYOUT_PLANAR);
+    }
+    /**
+     * Create a raw raster file, zero-filled, and map it for writing.
+     * @param file The file to create (replaced if it exists)
+     * @param bands The number of bands
+     * @param width The width
+     * @param height The height
+     * @param sampleType SAMPLE_FLOAT or SAMPLE_BYTE
+     * @return The mapped raster
+     * @throws IOException if the file cannot be created or mapped
+     */
+    public static MappedRaster create(File file, int bands, int width, int height, int sampleType) throws IOException {
+        if (sampleType != SAMPLE_FLOAT && sampleType != SAMPLE_BYTE)
+            throw new IllegalArgumentException("Unknown sample type: " + sampleType);
+        MappedRaster raster = new MappedRaster();
+        raster.bands = Math.max(1, bands);
+        raster.width = Math.max(1, width);
+        raster.height = Math.max(1, height);
+        raster.sampleType = sampleType;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(sampleType)
+                  .putInt(raster.bands).putInt(raster.width).putInt(raster.height);
+            raster.map(channel, FileChannel.MapMode.READ_WRITE);
+        }
+        return raster;
+    }
+    /**
+     * Open and map an existing raw raster file.
+     * @param file The file
+     * @param writable Map the file for writing as well as reading
+     * @return The mapped raster
+     * @throws IOException if the file cannot be read or is not a raw raster
+     */
+    public static MappedRaster open(File file, boolean writable) throws IOException {
+        MappedRaster raster = new MappedRaster();
+        StandardOpenOption [] options = writable
+            ? new StandardOpenOption[] {StandardOpenOption.READ, StandardOpenOption.WRITE}
+            : new StandardOpenOption[] {StandardOpenOption.READ};
+        try (FileChannel channel = FileChannel.open(file.toPath(), options)) {
+            if (channel.size() < HEADER_SIZE)
+                throw new IOException("Not a raw raster (too short): " + file);
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt() != MAGIC)
+                throw new IOException("Not a raw raster (bad magic): " + file);
+            int version = header.getInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported raw raster version " + version + ": " + file);
+            raster.sampleType = header.getInt();
+            raster.bands = header.getInt();
+            raster.width = header.getInt();
+            raster.height = header.getInt();
+            if (raster.sampleType != SAMPLE_FLOAT && raster.sampleType != SAMPLE_BYTE)
+                throw new IOException("Unknown sample type " + raster.sampleType + ": " + file);
+            if (raster.bands < 1 || raster.width < 1 || raster.height < 1)
+                throw new IOException("Bad raw raster dimensions: " + file);
+            raster.map(channel, writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY);
+        }
+        return raster;
+    }
+    /**
+     * Set up the strides and map the payload, segment by segment.
+     * @param channel The open file
+     * @param mode The mapping mode
+     * @throws IOException if the file is too short or cannot be mapped
+     */
+    private void map(FileChannel channel, FileChannel.MapMode mode) throws IOException {
+        sampleSize = (sampleType == SAMPLE_FLOAT) ? 4 : 1;
+        layout = LAYOUT_PLANAR;
+        bandStride = width*height;
+        xStride = 1;
+        yStride = width;
+        long rowBytes = (long)width*sampleSize;
+        long payload = rowBytes*height*bands;
+        if (mode == FileChannel.MapMode.READ_ONLY && channel.size() < HEADER_SIZE + payload)
+            throw new IOException("Raw raster payload is truncated");
+        rowsPerSegment = (int)Math.max(1, Math.min(height, MAX_SEGMENT/rowBytes));
+        segmentsPerBand = (height + rowsPerSegment - 1)/rowsPerSegment;
+        segments = new MappedByteBuffer[bands*segmentsPerBand];
+        for (int b = 0; b < bands; ++b) {
+            for (int s = 0; s < segmentsPerBand; ++s) {
+                int rows = Math.min(rowsPerSegment, height - s*rowsPerSegment);
+                long offset = HEADER_SIZE + rowBytes*((long)b*height + (long)s*rowsPerSegment);
+                MappedByteBuffer segment = channel.map(mode, offset, rowBytes*rows);
+                segment.order(ByteOrder.LITTLE_ENDIAN);
+                segments[b*segmentsPerBand + s] = segment;
+            }
+        }
+        flat = null;
+        data = null;
+    }
+    /**
+     * Read a sample. Coordinates must be in range.
+     * @param x The x position
+     * @param y The y position
+     * @param b The band
+     * @return The sample, scaled to [0,1] for byte samples
+     */
+    private float read(int x, int y, int b) {
+        MappedByteBuffer segment = segments[b*segmentsPerBand + y/rowsPerSegment];
+        int index = ((y % rowsPerSegment)*width + x)*sampleSize;
+        if (sampleType == SAMPLE_FLOAT)
+            return segment.getFloat(index);
+        return (segment.get(index) & 0xff)/255.0f;
+    }
+    /**
+     * Write a sample. Coordinates must be in range.
+     * @param value The value
+     * @param x The x position
+     * @param y The y position
+     * @param b The band
+     */
+    private void write(float value, int x, int y, int b) {
+        MappedByteBuffer segment = segments[b*segmentsPerBand + y/rowsPerSegment];
+        int index = ((y % rowsPerSegment)*width + x)*sampleSize;
+        if (sampleType == SAMPLE_FLOAT)
+            segment.putFloat(index, value);
+        else
+            segment.put(index, (byte)ByteRaster.toSample(value));
+    }
+    /**
+     * Get the sample type.
+     * @return SAMPLE_FLOAT or SAMPLE_BYTE
+     */
+    public int getSampleType() {
+        return sampleType;
+    }
+    /**
+     * Write any changes back to the file.
+     */
+    public void force() {
+        for (MappedByteBuffer segment : segments)
+            segment.force();
+    }
+    @Override
+    protected void allocate() {
+        throw new UnsupportedOperationException("MappedRaster cannot be reallocated; use create or open");
+    }
+    @Override
+    public void loadFromFile(File file) throws IOException {
+        throw new UnsupportedOperationException("MappedRaster cannot be loaded in place; use convert");
+    }
+    @Override
+    protected void store(float value, int x, int y, int b) {
+        write(value, x, y, b);
+    }
+    @Override
+    public void setPixel(float [] pixel, int x, int y) {
+        for (int i = 0; i < bands; ++i)
+            write(pixel[i], x, y, i);
+    }
+    @Override
+    public void setPixelComponent(float value, int x, int y, int b) {
+        write(value, x, y, b);
+    }
+    @Override
+    public float [] getPixel(int x, int y) {
+        int xi = (x<0)?0:((x>=width)?width-1:x);
+        int yi = (y<0)?0:((y>=height)?height-1:y);
+        float [] pixel = new float[bands];
+        for (int i = 0; i < bands; ++i)
+            pixel[i] = read(xi, yi, i);
+        return pixel;
+    }
+    @Override
+    public float getPixelComponent(int x, int y, int b) {
+        int xi = (x<0)?0:((x>=width)?width-1:x);
+        int yi = (y<0)?0:((y>=height)?height-1:y);
+        return read(xi, yi, b);
+    }
+    @Override
+    public void readBlock(int x0, int y0, int w, int h, float [] out) {
+        for (int j = 0; j < h; ++j) {
+            int yi = (y0 + j < 0) ? 0 : ((y0 + j >= height) ? height - 1 : y0 + j);
+            int row = j*w*bands;
+            for (int i = 0; i < w; ++i) {
+                int xi = (x0 + i < 0) ? 0 : ((x0 + i >= width) ? width - 1 : x0 + i);
+                for (int b = 0; b < bands; ++b)
+                    out[row + i*bands + b] = read(xi, yi, b);
+            }
+        }
+    }
+    @Override
+    public void writeBlock(int x0, int y0, int w, int h, float [] in) {
+        for (int j = 0; j < h; ++j) {
+            int row = j*w*bands;
+            for (int i = 0; i < w; ++i)
+                for (int b = 0; b < bands; ++b)
+                    write(in[row + i*bands + b], x0 + i, y0 + j, b);
+        }
+    }
+
+    /**
+     * Copy every pixel of one raster into another of the same dimensions,
+     * a row at a time.
+     * @param src The source raster
+     * @param dst The destination raster
+     */
+    public static void copy(BadRaster src, BadRaster dst) {
+        float [] row = new float[src.getWidth()*src.getBands()];
+        for (int y = 0; y < src.getHeight(); ++y) {
+            src.readBlock(0, y, src.getWidth(), 1, row);
+            dst.writeBlock(0, y, src.getWidth(), 1, row);
+        }
+    }
+    /**
+     * Convert an image to a raw raster file or back: a {@code .kraw} input
+     * is written as a PNG, anything else is loaded with ImageIO and written
+     * as a raw raster.
+     * @param in The input file
+     * @param out The output file
+     * @param sampleType The sample type of a raw raster output
+     * @throws IOException if either file cannot be read or written
+     */
+    public static void convert(File in, File out, int sampleType) throws IOException {
+        if (in.getName().endsWith(SUFFIX)) {
+            open(in, false).writeToFile(out);
+            return;
+        }
+        BadRaster image = new BadRaster(LAYOUT_INTERLEAVED);
+        image.loadFromFile(in);
+        MappedRaster raw = create(out, image.getBands(), image.getWidth(), image.getHeight(), sampleType);
+        copy(image, raw);
+        raw.force();
+    }
+
+    /* Main method: converts between PNG (or any ImageIO format) and raw rasters */
+    public static void main(String[] args) {
+        KOptions options = new KOptions(args);
+        if (options.positionalCount() < 2) {
+            System.out.println("Usage:");
+            System.out.println("    java MappedRaster image.png image.kraw [--bytes]   (convert to a raw raster)");
+            System.out.println("    java MappedRaster image.kraw image.png             (convert to PNG)");
+            System.out.println("Options:");
+            System.out.println("    --bytes                store 8-bit samples instead of floats");
+            return;
+        }
+        File in = new File(options.getPositional(0, null));
+        File out = new File(options.getPositional(1, null));
+        try {
+            final long startTime = System.currentTimeMillis();
+            convert(in, out, options.getFlag("bytes") ? SAMPLE_BYTE : SAMPLE_FLOAT);
+            System.out.printf("Converted %s to %s in %d ms\n", in, out, System.currentTimeMillis() - startTime);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
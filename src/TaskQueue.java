@@ -4,142 +4,111 @@
  * Built for ECEN4003 Concurrent Programming
  */
 
-import java.util.concurrent.locks.*;
+import java.util.concurrent.atomic.*;
 
 /**
  * TaskQueue is a concurrent task queue for managing tasks between concurrent
- * threads.
+ * threads. It is an unbounded, lock-free FIFO queue (Michael and Scott,
+ * "Simple, Fast, and Practical Non-Blocking and Blocking Concurrent Queue
+ * Algorithms", 1996): a singly linked list with a sentinel at the head,
+ * where push appends at the tail and pop advances the head, both with
+ * compare-and-set. Threads that find the tail lagging behind help advance it,
+ * so no thread ever waits for another.
  */
 public class TaskQueue {
-    /** Head node */
-    private TaskNode head;
-    /** Tail node */
-    private TaskNode tail;
+    /** Head node (the sentinel; the first task is in head.next) */
+    private final AtomicReference<TaskNode> head;
+    /** Tail node (the last node, or one behind it during a push) */
+    private final AtomicReference<TaskNode> tail;
     /** Queue length */
-    private int length;
+    private final AtomicInteger length = new AtomicInteger(0);
     /** Create an empty queue */
     public TaskQueue(){
-        // Initialize head and tail
-        head = new TaskNode();
-        tail = new TaskNode();
-        // Set empty queue
-        head.next = tail;
-        tail.next = null;
-        length = 0;
+        // Head and tail both start at the sentinel
+        TaskNode sentinel = new TaskNode();
+        head = new AtomicReference<TaskNode>(sentinel);
+        tail = new AtomicReference<TaskNode>(sentinel);
     }
     /**
-     * Add a task to the the queue.
+     * Add a task to the end of the queue.
      * @param task The task to add
-     * @return True if add was successful, false otherwise
+     * @return True (the queue is unbounded, so push always succeeds)
      */
     public boolean push(KTask task) {
-        TaskNode curr;
-        TaskNode next;
-        curr = head;
-        next = head.next;
         TaskNode newNode = new TaskNode(task);
-        newNode.task = task;
-        curr.lock(); // add only needs one lock
-        try {
-            if (validatePush(curr, next)) { //make sure curr points to next
-                head.next = newNode; //add new node to the front of the queue
-                newNode.next = next;
-                ++length;
-                return true;
-            } else { // if not return false
-                return false;
+        while (true) {
+            TaskNode last = tail.get();
+            TaskNode next = last.next;
+            if (last != tail.get())
+                continue; // tail moved under us, start over
+            if (next == null) {
+                // last really is the last node: try to link the new node
+                if (last.casNext(null, newNode)) {
+                    // swing the tail; if this fails someone helped already
+                    tail.compareAndSet(last, newNode);
+                    length.incrementAndGet();
+                    return true;
+                }
+            } else {
+                // tail is lagging behind, help the other push along
+                tail.compareAndSet(last, next);
             }
-        } finally {
-            curr.unlock();
         }
     }
     /**
-     * Pop a task from the queue.
-     * @return The item popped. Return null on error
+     * Pop the task at the front of the queue.
+     * @return The item popped. Return null if the queue is empty
      */
     public KTask pop() {
-        TaskNode pred, curr, next;
-        pred = head;
-        curr = head.next;
-        if (curr == tail) { // if curr = tail then the queue is empty
-            return null;
-        }
-        next = curr.next;
-        pred.lock();
-        try {
-            curr.lock();
-            try {
-                next.lock(); // lock the three locks and get rid of the middle one
-                try {
-                    if (validatePop(pred, curr, next)) {
-                        pred.next = next; // connect pred to next skipping current
-                        --length;
-                        return curr.task;
-                    } else {
-                        return null; // if validate doesn't work return null
-                    }
-                } finally {
-                    next.unlock();
+        while (true) {
+            TaskNode first = head.get();
+            TaskNode last = tail.get();
+            TaskNode next = first.next;
+            if (first != head.get())
+                continue; // head moved under us, start over
+            if (first == last) {
+                if (next == null)
+                    return null; // empty
+                // a push is half done, help it before retrying
+                tail.compareAndSet(last, next);
+            } else {
+                KTask task = next.task;
+                // next becomes the new sentinel
+                if (head.compareAndSet(first, next)) {
+                    next.task = null; // let the task be collected
+                    length.decrementAndGet();
+                    return task;
                 }
-            } finally {
-                curr.unlock();
             }
-        } finally {
-            pred.unlock();
         }
     }
     /**
-     * Get the length of the queue
+     * Get the length of the queue. While other threads are pushing or
+     * popping the value is only a snapshot.
      * @return The length of the queue
      */
     public int length() {
-        return length;
+        return Math.max(0, length.get());
     }
     /**
      * Return true if the queue is empty
      * @return True if empty, false otherwise
      */
     public boolean isEmpty() {
-        return (length == 0);
+        return head.get().next == null;
     }
     /**
-     * Check if our push worked
-     * @param curr The current node
-     * @param next The next node
-     * @return True if push worked, false otherwise
-     */
-    private boolean validatePush(TaskNode curr, TaskNode next) {
-        return (curr.next == next); // does curr point to next
-    }
-    /**
-     * Check if our pop worked
-     * @param pred The preceding node
-     * @param curr The current node
-     * @param next The next node
-     * @return True if pop worked, false otherwise
-     */
-    private boolean validatePop(TaskNode pred, TaskNode curr, TaskNode next){
-        return (pred.next == curr && curr.next == next); // check pred->curr->next
-    }
-    /**
-     * Print the contents of the queue
+     * Print the contents of the queue. Not safe to call while other threads
+     * are popping.
      */
     public void print() {
         int i = 0;
-        TaskNode temp;
-        temp = head;
-        while (temp != null) {
-            if (temp == head) {
-                System.out.println("[HEAD]");
-            } else if (temp == tail) {
-                System.out.println("[TAIL]");
-            } else {
-                System.out.println("  [ " + temp.task.getRegionString() + " ] ");
-            }
-            temp = temp.next;
+        System.out.println("[HEAD]");
+        for (TaskNode temp = head.get().next; temp != null; temp = temp.next) {
+            System.out.println("  [ " + temp.task.getRegionString() + " ] ");
             i++;
         }
-        i -= 2;
+        System.out.println("[TAIL]");
         System.out.println("There are " + i + " items in the queue.");
     }
 }
@@ -148,9 +117,11 @@ public class TaskQueue {
  * TaskNode is a node for TaskQueue.
  */
 class TaskNode {
+    /** Atomic access to the next field */
+    private static final AtomicReferenceFieldUpdater<TaskNode,TaskNode> nextUpdater =
+        AtomicReferenceFieldUpdater.newUpdater(TaskNode.class, TaskNode.class, "next");
     public KTask task;
-    public TaskNode next;
-    public Lock nodeLock = new ReentrantLock();
+    public volatile TaskNode next;
     /**
      * Create an empty TaskNode.
      */
@@ -167,15 +138,12 @@ class TaskNode {
         this.task = task;
     }
     /**
-     * Lock the node
-     */
-    public void lock() {
-        nodeLock.lock();
-    }
-    /**
-     * Unlock the node
+     * Atomically set the next node if it is currently the expected node.
+     * @param expect The expected next node
+     * @param update The new next node
+     * @return True if successful
      */
-    public void unlock(){
-        nodeLock.unlock();
+    public boolean casNext(TaskNode expect, TaskNode update) {
+        return nextUpdater.compareAndSet(this, expect, update);
     }
 }
@@ -0,0 +1,117 @@
+/*
+ * ClusterTest.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+/**
+ * A test for KCluster: an image filtered by worker processes over sockets
+ * must match the local scheduler, also when a worker dies or hangs up in
+ * the middle of a shard. Spawns worker JVMs, so the lost-worker messages
+ * it prints are expected. Run from the src directory.
+ */
+public class ClusterTest {
+    private int failures = 0;
+
+    /**
+     * Filter an image on a cluster of two spawned worker JVMs and on the
+     * local scheduler and compare; then again with a third worker that
+     * drops its connection in the middle of a shard, whose shards must be
+     * retried on the others.
+     */
+    public void testCluster() throws Exception {
+        java.util.Random random = new java.util.Random(4003);
+        BadRaster src = new BadRaster(3, 150, 110, BadRaster.LAYOUT_INTERLEAVED);
+        for (int y = 0; y < src.getHeight(); y++)
+            for (int x = 0; x < src.getWidth(); x++)
+                for (int b = 0; b < 3; b++)
+                    src.setPixelComponent(random.nextInt(256), x, y, b);
+        BaseKernel baseKernel = new BaseKernel("../test/kernels/diamondblur_11x11.json");
+        BadRaster expected = new BadRaster(3, src.getWidth(), src.getHeight(), BadRaster.LAYOUT_INTERLEAVED);
+        java.util.List<KTask> tasks = KTiler.tile(src, expected, baseKernel, 8, 2, true, KOps.ENGINE_DIRECT);
+        KScheduler scheduler = new KScheduler(KScheduler.MODE_FORKJOIN, 2);
+        scheduler.run(tasks);
+        scheduler.shutdown();
+
+        KCluster cluster = KCluster.spawn(2, 1);
+        try {
+            BadRaster dst = new BadRaster(3, src.getWidth(), src.getHeight(), BadRaster.LAYOUT_INTERLEAVED);
+            cluster.run(src, dst, tasks);
+            checkSame("cluster of 2 processes", expected, dst);
+            // a worker process dies: the next image runs on the other
+            cluster.getProcesses().get(0).destroyForcibly().waitFor();
+            dst = new BadRaster(3, src.getWidth(), src.getHeight(), BadRaster.LAYOUT_INTERLEAVED);
+            cluster.run(src, dst, tasks);
+            checkSame("cluster after a worker died", expected, dst);
+        } finally {
+            cluster.close();
+        }
+
+        // a worker that reads part of a shard and hangs up
+        final java.net.ServerSocket flaky = new java.net.ServerSocket(0, 1, java.net.InetAddress.getLoopbackAddress());
+        Thread hangUp = new Thread() {
+            public void run() {
+                try (java.net.Socket socket = flaky.accept()) {
+                    socket.getInputStream().read(new byte[4096]);
+                } catch (java.io.IOException e) {
+                    // the test fails below
+                }
+            }
+        };
+        hangUp.start();
+        KCluster.Worker worker = new KCluster.Worker(0, 2).start();
+        java.util.List<java.net.InetSocketAddress> addresses = new java.util.ArrayList<java.net.InetSocketAddress>();
+        addresses.add(new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), flaky.getLocalPort()));
+        addresses.add(new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), worker.getPort()));
+        cluster = new KCluster(addresses);
+        try {
+            BadRaster dst = new BadRaster(3, src.getWidth(), src.getHeight(), BadRaster.LAYOUT_INTERLEAVED);
+            cluster.run(src, dst, tasks);
+            checkSame("cluster with a worker hanging up", expected, dst);
+            if (cluster.getRetries() == 0 || cluster.getLiveWorkers() != 1) {
+                System.out.printf("FAIL lost shards were not retried (%d retries, %d live workers)\n",
+                                  cluster.getRetries(), cluster.getLiveWorkers());
+                ++failures;
+            }
+        } finally {
+            cluster.close();
+            worker.close();
+            flaky.close();
+        }
+        // with no workers left the image fails instead of waiting forever
+        worker = new KCluster.Worker(0, 1).start();
+        addresses.clear();
+        addresses.add(new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), worker.getPort()));
+        cluster = new KCluster(addresses);
+        worker.close();
+        try {
+            cluster.run(src, new BadRaster(3, src.getWidth(), src.getHeight(), BadRaster.LAYOUT_INTERLEAVED), tasks);
+            System.out.println("FAIL cluster without workers did not fail");
+            ++failures;
+        } catch (java.io.IOException e) {
+            // expected
+        }
+        cluster.close();
+    }
+
+    private void checkSame(String what, BadRaster expected, BadRaster actual) {
+        for (int y = 0; y < expected.getHeight(); y++)
+            for (int x = 0; x < expected.getWidth(); x++)
+                for (int b = 0; b < expected.getBands(); b++)
+                    if (expected.getPixelComponent(x, y, b) != actual.getPixelComponent(x, y, b)) {
+                        System.out.printf("FAIL %s: pixel (%d,%d,%d) is %f, expected %f\n", what, x, y, b,
+                                          actual.getPixelComponent(x, y, b), expected.getPixelComponent(x, y, b));
+                        ++failures;
+                        return;
+                    }
+    }
+
+    /* Main method */
+    public static void main(String[] args) throws Exception {
+        ClusterTest test = new ClusterTest();
+        test.testCluster();
+        System.out.println(test.failures == 0 ? "All cluster tests passed." : test.failures + " failure(s).");
+        if (test.failures != 0)
+            System.exit(1);
+    }
+}
@@ -0,0 +1,584 @@
+/*
+ * ConvolutionTest.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * A test for the KOps convolution routines. Every fast path is checked
+ * against the per-pixel reference, {@code KOps.convolve2D}, for each kernel in
+ * test/kernels and each BadRaster layout, kernel chains against one full
+ * pass per kernel, temporal kernels against a weighted sum of 2D passes,
+ * and kernels loaded from a bank against their JSON.
+ * Run from the src directory.
+ */
+public class ConvolutionTest {
+    private final static String KERNEL_DIR = "../test/kernels";
+    /** Deliberately not a multiple of any block size */
+    private final static int WIDTH = 37;
+    private final static int HEIGHT = 29;
+    /** Slack for float summation order */
+    private final static float EPSILON = 1e-4f;
+    /** Convolution paths for {@code tiled}: KOps.convolveRegion */
+    private final static int PATH_DIRECT = 0;
+    /** KOps.convolveRegionSeparable */
+    private final static int PATH_SEPARABLE = 1;
+    /** KFFT.convolveRegion */
+    private final static int PATH_FFT = 2;
+    /** The KVector engine, through KOps.convolveTaskRegion */
+    private final static int PATH_VECTOR = 3;
+    /** The KIntegral engine, through KOps.convolveTaskRegion */
+    private final static int PATH_SAT = 4;
+
+    private int failures = 0;
+
+    /**
+     * Build a raster of random pixels.
+     * @param layout The raster layout
+     * @return The raster
+     */
+    static BadRaster randomRaster(int layout) {
+        Random random = new Random(4003);
+        BadRaster raster = new BadRaster(3, WIDTH, HEIGHT, layout);
+        for (int x = 0; x < WIDTH; ++x)
+            for (int y = 0; y < HEIGHT; ++y)
+                for (int b = 0; b < 3; ++b)
+                    raster.setPixelComponent(random.nextFloat(), x, y, b);
+        return raster;
+    }
+
+    /**
+     * Compute the reference result with convolve2D.
+     * @param src The source raster
+     * @param kernel The kernel
+     * @return The filtered raster
+     */
+    static BadRaster reference(BadRaster src, Kernel kernel) {
+        BadRaster dst = new BadRaster(src.getBands(), src.getWidth(), src.getHeight());
+        for (int x = 0; x < src.getWidth(); ++x)
+            for (int y = 0; y < src.getHeight(); ++y)
+                dst.setPixel(KOps.convolve2D(src, x, y, kernel), x, y);
+        return dst;
+    }
+
+    /**
+     * Compare two rasters and record a failure if they differ.
+     * @param name The name of the check
+     * @param expected The reference raster
+     * @param actual The raster under test
+     * @param tolerance The largest acceptable absolute difference
+     */
+    void compare(String name, BadRaster expected, BadRaster actual, float tolerance) {
+        float worst = 0.0f;
+        for (int x = 0; x < expected.getWidth(); ++x)
+            for (int y = 0; y < expected.getHeight(); ++y)
+                for (int b = 0; b < expected.getBands(); ++b)
+                    worst = Math.max(worst, Math.abs(expected.getPixelComponent(x,y,b) - actual.getPixelComponent(x,y,b)));
+        if (!(worst <= tolerance)) {
+            System.out.printf("FAIL %s: max error %g > %g\n", name, worst, tolerance);
+            ++failures;
+        }
+    }
+
+    /**
+     * Convolve a raster region by region, the way worker threads do.
+     * @param src The source raster
+     * @param kernel The kernel
+     * @param block The region size
+     * @param path The convolution path, one of the PATH_* constants
+     * @return The filtered raster
+     */
+    static BadRaster tiled(BadRaster src, Kernel kernel, int block, int path) {
+        BadRaster dst = new BadRaster(src.getBands(), src.getWidth(), src.getHeight(), src.getLayout());
+        KScratch scratch = new KScratch();
+        KTask task = new KTask(0, 0, src.getWidth(), src.getHeight());
+        task.setInputRaster(src);
+        task.setOutputRaster(dst);
+        task.setKernel(kernel);
+        task.setEngine((path == PATH_VECTOR) ? KOps.ENGINE_VECTOR : KOps.ENGINE_SAT);
+        for (int x = 0; x < src.getWidth(); x += block) {
+            for (int y = 0; y < src.getHeight(); y += block) {
+                int w = Math.min(block, src.getWidth() - x);
+                int h = Math.min(block, src.getHeight() - y);
+                if (path == PATH_FFT)
+                    KFFT.convolveRegion(src, dst, x, y, w, h, kernel, scratch);
+                else if (path == PATH_VECTOR || path == PATH_SAT)
+                    KOps.convolveTaskRegion(task, x, y, w, h, scratch);
+                else if (path == PATH_SEPARABLE)
+                    KOps.convolveRegionSeparable(src, dst, x, y, w, h, kernel, scratch);
+                else
+                    KOps.convolveRegion(src, dst, x, y, w, h, kernel, scratch);
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * Check kernel fields against a per-pixel convolution with the taps
+     * interpolated at each pixel, and that neither the tiling nor a constant
+     * modulation changes anything.
+     */
+    public void testKernelField() throws InterruptedException {
+        Random random = new Random(4003);
+        BadRaster src = new BadRaster(3, KOps.BLOCK_SIZE*2 + 21, 90, BadRaster.LAYOUT_INTERLEAVED);
+        for (int x = 0; x < src.getWidth(); ++x)
+            for (int y = 0; y < src.getHeight(); ++y)
+                for (int b = 0; b < 3; ++b)
+                    src.setPixelComponent(random.nextFloat(), x, y, b);
+        BaseKernel diamond = new BaseKernel(KERNEL_DIR + "/diamondblur_11x11.json");
+        KField field = new KField(diamond, 5);
+        if (field.getWidth() != 11 || field.getSample(4, 4).getWidth() >= 11) {
+            System.out.println("FAIL linear modulation does not vary the kernel over the field");
+            ++failures;
+        }
+        // reference: the interpolated taps at every pixel, clamped at the edges
+        BadRaster expected = new BadRaster(3, src.getWidth(), src.getHeight(), src.getLayout());
+        int fw = field.getWidth(), fh = field.getHeight();
+        for (int x = 0; x < src.getWidth(); ++x) {
+            for (int y = 0; y < src.getHeight(); ++y) {
+                float [] taps = field.getTaps(x, y, src.getWidth(), src.getHeight());
+                for (int b = 0; b < 3; ++b) {
+                    float sum = 0.0f;
+                    for (int j = 0; j < fh; ++j)
+                        for (int i = 0; i < fw; ++i)
+                            sum += taps[j*fw + i]*src.getPixelComponent(x - fw/2 + i, y - fh/2 + j, b);
+                    expected.setPixelComponent(sum, x, y, b);
+                }
+            }
+        }
+        KScheduler scheduler = new KScheduler(KScheduler.MODE_FORKJOIN, 3);
+        BadRaster one = new BadRaster(3, src.getWidth(), src.getHeight(), src.getLayout());
+        BadRaster many = new BadRaster(3, src.getWidth(), src.getHeight(), src.getLayout());
+        scheduler.run(KTiler.tile(src, one, field, 1));
+        scheduler.run(KTiler.tile(src, many, field, 8));
+        compare("field", expected, one, EPSILON);
+        compare("field tiling", one, many, 0.0f);
+        // a modulation that trims nothing: every sample is the base kernel
+        BaseKernel flat = new BaseKernel(KERNEL_DIR + "/diamondblur_11x11.json");
+        flat.setModulation(point -> Float.POSITIVE_INFINITY);
+        KField constant = new KField(flat, 3);
+        BadRaster uniform = new BadRaster(3, src.getWidth(), src.getHeight(), src.getLayout());
+        scheduler.run(KTiler.tile(src, uniform, constant, 2));
+        compare("constant field", reference(src, constant.getSample(0, 0)), uniform, EPSILON);
+        scheduler.shutdown();
+    }
+
+    public void testKernelChain() throws InterruptedException {
+        Random random = new Random(4004);
+        BadRaster src = new BadRaster(3, 200, 150, BadRaster.LAYOUT_INTERLEAVED);
+        for (int x = 0; x < src.getWidth(); ++x)
+            for (int y = 0; y < src.getHeight(); ++y)
+                for (int b = 0; b < 3; ++b)
+                    src.setPixelComponent(random.nextFloat(), x, y, b);
+        List<BaseKernel> stages = new ArrayList<BaseKernel>();
+        stages.add(new BaseKernel(KERNEL_DIR + "/gaussianblur_7x7.json"));
+        stages.add(new BaseKernel(KERNEL_DIR + "/unsharp_5x5.json"));
+        stages.add(new BaseKernel(KERNEL_DIR + "/diamondblur_11x11.json"));
+        KChain chain = new KChain(stages, src.getWidth(), src.getHeight(), 8);
+        KScheduler scheduler = new KScheduler(KScheduler.MODE_FORKJOIN, 3);
+        // reference: one full pass per kernel
+        BadRaster staged = new BadRaster(3, src.getWidth(), src.getHeight(), src.getLayout());
+        chain.runStaged(scheduler, src, staged, 3, true, KOps.ENGINE_AUTO);
+        BadRaster composed = new BadRaster(3, src.getWidth(), src.getHeight(), src.getLayout());
+        scheduler.run(KTiler.tile(src, composed, chain, 3, KOps.ENGINE_AUTO));
+        compare("composed chain", staged, composed, EPSILON);
+        if (chain.getComposedKernels() == 0) {
+            System.out.println("FAIL no chain stages were composed");
+            ++failures;
+        }
+        chain.setComposition(false);
+        BadRaster fused = new BadRaster(3, src.getWidth(), src.getHeight(), src.getLayout());
+        scheduler.run(KTiler.tile(src, fused, chain, 8, KOps.ENGINE_DIRECT));
+        compare("fused chain", staged, fused, EPSILON);
+        // composing with the identity changes nothing
+        Kernel sharpen = new BaseKernel(KERNEL_DIR + "/sharpen_3x3.json");
+        compare("identity composition", reference(src, sharpen),
+                reference(src, KChain.composeKernels(new Kernel(1, 1), sharpen)), EPSILON);
+        scheduler.shutdown();
+    }
+
+    /**
+     * Check temporal kernels against the weighted sum of one 2D pass per
+     * kernel frame, with constant and linear modulation, and a frame
+     * sequence against the same sum over its clamped neighbours.
+     */
+    public void testTemporal() throws Exception {
+        String path = KERNEL_DIR + "/temporal/gaussian_5x5x3.json";
+        Random random = new Random(4005);
+        BadRaster [] inputs = new BadRaster[3];
+        for (int k = 0; k < inputs.length; ++k) {
+            inputs[k] = new BadRaster(3, 150, 110, BadRaster.LAYOUT_INTERLEAVED);
+            for (int x = 0; x < 150; ++x)
+                for (int y = 0; y < 110; ++y)
+                    for (int b = 0; b < 3; ++b)
+                        inputs[k].setPixelComponent(random.nextFloat(), x, y, b);
+        }
+        KScheduler scheduler = new KScheduler(KScheduler.MODE_FORKJOIN, 3);
+        for (String modulation : new String[] {"constant", "linear"}) {
+            List<BaseKernel> frames = KTemporal.loadFrames(path).frames;
+            if (modulation.equals("constant"))
+                for (BaseKernel frame : frames)
+                    frame.setModulation(point -> Float.POSITIVE_INFINITY);
+            KTemporal temporal = new KTemporal("test", frames, 150, 110, 8);
+            BadRaster expected = weightedSum(scheduler, temporal, inputs);
+            BadRaster actual = new BadRaster(3, 150, 110, BadRaster.LAYOUT_INTERLEAVED);
+            List<KTask> tasks = KTiler.tile(inputs[1], actual, temporal, 3, KOps.ENGINE_AUTO);
+            for (KTask task : tasks)
+                task.setInputFrames(inputs);
+            scheduler.run(tasks);
+            compare("temporal " + modulation, expected, actual, EPSILON);
+        }
+        // the 5x5x3 kernel is a 5x5 Gaussian weighted 1/4, 1/2, 1/4 over time
+        KTemporal.Frames loaded = KTemporal.loadFrames(path);
+        KTemporal gaussian = new KTemporal(loaded.name, loaded.frames, 150, 110, 8);
+        if (Math.abs(gaussian.getWeight(0) - 0.25f) > EPSILON || Math.abs(gaussian.getWeight(1) - 0.5f) > EPSILON
+                || gaussian.getFramesBefore() != 1 || gaussian.getFramesAfter() != 1) {
+            System.out.println("FAIL temporal kernel frames are not weighted 1/4, 1/2, 1/4 around the output");
+            ++failures;
+        }
+        // a sequence of five frames through KSequence's ring buffer
+        File dir = java.nio.file.Files.createTempDirectory("sequence").toFile();
+        File out = new File(dir, "out");
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < 5; ++i) {
+            BadRaster frame = new BadRaster(3, 40, 30, BadRaster.LAYOUT_INTERLEAVED);
+            for (int x = 0; x < 40; ++x)
+                for (int y = 0; y < 30; ++y)
+                    for (int b = 0; b < 3; ++b)
+                        frame.setPixelComponent(random.nextFloat(), x, y, b);
+            files.add(new File(dir, String.format("frame%02d.png", i)));
+            frame.writeToFile(files.get(i));
+        }
+        KTemporal.Frames loadedFrames = KTemporal.loadFrames(path);
+        List<BaseKernel> frames = loadedFrames.frames;
+        KSequence sequence = new KSequence(scheduler, loadedFrames.middle(), 8, false);
+        sequence.setTemporal(loadedFrames);
+        sequence.run(files, out);
+        // the ring buffer reuses decoded frames: each is decoded exactly once
+        if (sequence.getDecodeStats().getCount() != files.size()) {
+            System.out.println("FAIL temporal sequence decoded " + sequence.getDecodeStats().getCount()
+                               + " times for " + files.size() + " frames");
+            ++failures;
+        }
+        KTemporal temporal = new KTemporal("test", frames, 40, 30, 8);
+        for (int t = 0; t < files.size(); ++t) {
+            BadRaster [] neighbours = new BadRaster[3];
+            for (int k = 0; k < 3; ++k) {
+                neighbours[k] = new BadRaster(BadRaster.LAYOUT_INTERLEAVED);
+                neighbours[k].loadFromFile(files.get(Math.min(Math.max(t - 1 + k, 0), files.size() - 1)));
+            }
+            BadRaster actual = new BadRaster(BadRaster.LAYOUT_INTERLEAVED);
+            actual.loadFromFile(new File(out, files.get(t).getName()));
+            // the output is truncated to 8 bits
+            compare("temporal sequence frame " + t, weightedSum(scheduler, temporal, neighbours), actual,
+                    (1.0f + EPSILON)/255.0f);
+        }
+        for (File file : out.listFiles())
+            file.delete();
+        out.delete();
+        for (File file : files)
+            file.delete();
+        dir.delete();
+        scheduler.shutdown();
+    }
+
+    /**
+     * Compute the reference result of a temporal kernel: one full 2D pass
+     * per kernel frame, summed with the frame weights.
+     * @param scheduler The scheduler that runs the 2D passes
+     * @param temporal The temporal kernel
+     * @param inputs One input frame per kernel frame
+     * @return The filtered raster
+     */
+    static BadRaster weightedSum(KScheduler scheduler, KTemporal temporal, BadRaster [] inputs)
+            throws InterruptedException {
+        BadRaster sum = new BadRaster(inputs[0].getBands(), inputs[0].getWidth(), inputs[0].getHeight());
+        for (int k = 0; k < temporal.getDepth(); ++k) {
+            BadRaster part = new BadRaster(inputs[k].getBands(), inputs[k].getWidth(), inputs[k].getHeight());
+            scheduler.run(KTiler.tile(inputs[k], part, temporal.getFrame(k), 8, 3, false));
+            for (int x = 0; x < sum.getWidth(); ++x)
+                for (int y = 0; y < sum.getHeight(); ++y)
+                    for (int b = 0; b < sum.getBands(); ++b)
+                        sum.setPixelComponent(sum.getPixelComponent(x, y, b)
+                                              + temporal.getWeight(k)*part.getPixelComponent(x, y, b), x, y, b);
+        }
+        return sum;
+    }
+
+    /**
+     * Sum of the absolute values of a kernel.
+     * @param kernel The kernel
+     * @return The L1 norm of the kernel
+     */
+    static float absSum(Kernel kernel) {
+        float sum = 0.0f;
+        for (int i = 0; i < kernel.getWidth(); ++i)
+            for (int j = 0; j < kernel.getHeight(); ++j)
+                sum += Math.abs(kernel.get(i,j));
+        return sum;
+    }
+
+    /**
+     * A 4x4 kernel. Even kernels reach one tap further right and down than
+     * left and up, and the taps are all different, so a kernel shifted or
+     * flipped by a path shows.
+     * @return The kernel
+     */
+    static BaseKernel evenKernel() {
+        JSONKernel json = new JSONKernel();
+        json.type = JSONKernel.TYPE_SPATIAL;
+        json.width = 4;
+        json.height = 4;
+        json.kernel = new float[4][4];
+        for (int i = 0; i < 4; ++i)
+            for (int j = 0; j < 4; ++j)
+                json.kernel[i][j] = 1 + 4*i + j;
+        json.coeff = 1.0f/136;
+        json.name = "even 4x4";
+        return new BaseKernel(json);
+    }
+
+    public void testKernels() {
+        if (!KOps.isVectorAvailable())
+            System.out.println("Vector API not available (run with --add-modules jdk.incubator.vector), skipping vector engine checks");
+        String [] files = new File(KERNEL_DIR).list((dir, name) -> name.endsWith(".json"));
+        java.util.Arrays.sort(files);
+        for (String file : files)
+            checkKernel(file, new BaseKernel(KERNEL_DIR + "/" + file));
+        checkKernel("even 4x4", evenKernel());
+    }
+
+    /**
+     * Check every convolution path against the reference, in every layout.
+     * @param file The kernel, for messages
+     * @param kernel The kernel
+     */
+    void checkKernel(String file, BaseKernel kernel) {
+        for (int layout = BadRaster.LAYOUT_CUBE; layout <= BadRaster.LAYOUT_INTERLEAVED; ++layout) {
+            BadRaster src = randomRaster(layout);
+            BadRaster expected = reference(src, kernel);
+            float scale = absSum(kernel);
+            String name = file + " layout " + layout;
+            compare(name + " direct", expected, tiled(src, kernel, 8, PATH_DIRECT), EPSILON*scale);
+            compare(name + " direct 1x1", expected, tiled(src, kernel, 1, PATH_DIRECT), EPSILON*scale);
+            if (kernel.isSeparable())
+                compare(name + " separable", expected, tiled(src, kernel, 8, PATH_SEPARABLE),
+                        (Kernel.SEPARABLE_TOLERANCE + EPSILON)*scale);
+            compare(name + " fft", expected, tiled(src, kernel, 8, PATH_FFT), EPSILON*scale);
+            compare(name + " fft whole", expected, tiled(src, kernel, WIDTH, PATH_FFT), EPSILON*scale);
+            if (KOps.isVectorAvailable()) {
+                compare(name + " vector", expected, tiled(src, kernel, 8, PATH_VECTOR), EPSILON*scale);
+                compare(name + " vector whole", expected, tiled(src, kernel, WIDTH, PATH_VECTOR), EPSILON*scale);
+            }
+            // kernels without rectangles fall back to direct (maybe separable) convolution
+            compare(name + " sat", expected, tiled(src, kernel, 8, PATH_SAT),
+                    ((kernel.hasRectangles() || !kernel.isSeparable()) ? EPSILON
+                                                                       : Kernel.SEPARABLE_TOLERANCE + EPSILON)*scale);
+        }
+        System.out.printf("%-28s %dx%d separable: %b, rectangles: %d\n", file, kernel.getWidth(), kernel.getHeight(),
+                          kernel.isSeparable(), kernel.hasRectangles() ? kernel.getRectangles().length/5 : 0);
+    }
+
+    public void testKernelBank() throws java.io.IOException {
+        File file = File.createTempFile("kernels", KBank.SUFFIX);
+        file.deleteOnExit();
+        File [] jsons = new File(KERNEL_DIR).listFiles((dir, name) -> name.endsWith(".json"));
+        KBank.write(file, Arrays.asList(jsons));
+        KBank bank = new KBank(file);
+        for (File json : jsons) {
+            String key = json.getName().replace(".json", "");
+            BaseKernel expected = new BaseKernel(json.getPath());
+            BaseKernel actual = BaseKernel.load(file.getPath() + "#" + key);
+            sameKernel(key + " (base)", expected, actual);
+            // every variant, just at and just below the scale it starts at
+            List<Float> scales = new ArrayList<Float>();
+            for (float scale : expected.ladder().scales) {
+                scales.add(scale);
+                scales.add(Math.nextDown(scale));
+            }
+            scales.add(Float.POSITIVE_INFINITY);
+            for (float scale : scales) {
+                final float value = scale;
+                expected.setModulation(point -> value);
+                actual.setModulation(point -> value);
+                sameKernel(key + " at scale " + scale, expected.getModulatedKernel(new float[] {0.5f, 0.5f}),
+                           actual.getModulatedKernel(new float[] {0.5f, 0.5f}));
+            }
+            expected.setModulation(KModulation.RADIAL);
+            actual.setModulation(KModulation.RADIAL);
+            for (int i = 0; i <= 20; ++i)
+                for (int j = 0; j <= 20; ++j) {
+                    float [] point = {i/20.0f, j/20.0f};
+                    sameKernel(key + " radial", expected.getModulatedKernel(point), actual.getModulatedKernel(point));
+                }
+        }
+        if (bank.keys().size() != jsons.length) {
+            System.out.println("FAIL kernel bank has " + bank.keys().size() + " kernels");
+            ++failures;
+        }
+    }
+
+    /**
+     * Check that two kernels have the same taps and analyses.
+     * @param name What is being compared
+     * @param expected The expected kernel
+     * @param actual The kernel to check
+     */
+    void sameKernel(String name, Kernel expected, Kernel actual) {
+        boolean same = expected.getWidth() == actual.getWidth() && expected.getHeight() == actual.getHeight()
+                    && Arrays.equals(expected.getFlatKernel(), actual.getFlatKernel())
+                    && Arrays.equals(expected.getRowFactor(), actual.getRowFactor())
+                    && Arrays.equals(expected.getColumnFactor(), actual.getColumnFactor())
+                    && Arrays.equals(expected.getRectangles(), actual.getRectangles());
+        if (!same) {
+            System.out.printf("FAIL %s: %dx%d expected, %dx%d loaded\n", name, expected.getWidth(),
+                              expected.getHeight(), actual.getWidth(), actual.getHeight());
+            ++failures;
+        }
+    }
+
+    public void testSeparabilityAnalysis() {
+        Kernel kernel = new Kernel(5,3);
+        for (int i = 0; i < 5; ++i)
+            for (int j = 0; j < 3; ++j)
+                kernel.set(i, j, (i + 1)*(3 - j));
+        if (!kernel.analyzeSeparability()) {
+            System.out.println("FAIL outer product not detected as separable");
+            ++failures;
+        }
+        kernel.set(2, 1, 0.0f);
+        if (kernel.isSeparable() || kernel.analyzeSeparability()) {
+            System.out.println("FAIL modified kernel still separable");
+            ++failures;
+        }
+    }
+
+    public void testRectangleAnalysis() {
+        // a box with a heavier box inside it, off center
+        Kernel nested = new Kernel(15, 9);
+        for (int i = 0; i < 15; ++i)
+            for (int j = 0; j < 9; ++j)
+                nested.set(i, j, (i >= 3 && i < 10 && j >= 2 && j < 5) ? 3.0f : 1.0f);
+        nested.normalize();
+        if (!nested.analyzeRectangles() || nested.getRectangles().length/5 > 5) {
+            System.out.println("FAIL nested boxes not decomposed into at most 5 rectangles");
+            ++failures;
+        }
+        nested.analyzeSeparability();
+        nested.lock();
+        BaseKernel diamond = new BaseKernel(KERNEL_DIR + "/diamondblur_11x11.json");
+        if (diamond.hasRectangles()) {
+            System.out.println("FAIL diamond kernel decomposed into rectangles");
+            ++failures;
+        }
+        BaseKernel box = new BaseKernel(KERNEL_DIR + "/boxblur_31x31.json");
+        if (!box.hasRectangles() || KOps.selectEngine(box) != KOps.ENGINE_SAT) {
+            System.out.println("FAIL auto engine does not pick summed-area tables for a 31x31 box");
+            ++failures;
+        }
+        // a raster spanning several blocks, so tables are rebuilt per block
+        Random random = new Random(4003);
+        BadRaster src = new BadRaster(3, KOps.BLOCK_SIZE*2 + 21, 90, BadRaster.LAYOUT_INTERLEAVED);
+        for (int x = 0; x < src.getWidth(); ++x)
+            for (int y = 0; y < src.getHeight(); ++y)
+                for (int b = 0; b < 3; ++b)
+                    src.setPixelComponent(random.nextFloat(), x, y, b);
+        Kernel [] kernels = {nested, box};
+        for (Kernel kernel : kernels) {
+            BadRaster expected = reference(src, kernel);
+            String name = kernel.getWidth() + "x" + kernel.getHeight() + " sat";
+            compare(name + " whole", expected, tiled(src, kernel, src.getWidth(), PATH_SAT), EPSILON);
+            compare(name + " 24", expected, tiled(src, kernel, 24, PATH_SAT), EPSILON);
+        }
+    }
+
+    public void testFFTLargeKernel() {
+        // a random (non-separable) kernel above the auto threshold, on a
+        // raster wider than one FFT block so overlap-save spans blocks
+        Random random = new Random(4003);
+        int size = 25;
+        Kernel kernel = new Kernel(size, size);
+        for (int i = 0; i < size; ++i)
+            for (int j = 0; j < size; ++j)
+                kernel.set(i, j, random.nextFloat() - 0.3f);
+        kernel.normalize();
+        kernel.analyzeSeparability();
+        kernel.lock();
+        if (KOps.selectEngine(kernel) != KOps.ENGINE_FFT) {
+            System.out.println("FAIL auto engine does not pick the FFT for a 25x25 kernel");
+            ++failures;
+        }
+        BadRaster src = new BadRaster(3, KFFT.MAX_BLOCK + 45, 70, BadRaster.LAYOUT_INTERLEAVED);
+        for (int x = 0; x < src.getWidth(); ++x)
+            for (int y = 0; y < src.getHeight(); ++y)
+                for (int b = 0; b < 3; ++b)
+                    src.setPixelComponent(random.nextFloat(), x, y, b);
+        BadRaster expected = reference(src, kernel);
+        float scale = absSum(kernel);
+        compare("25x25 fft whole", expected, tiled(src, kernel, src.getWidth(), PATH_FFT), EPSILON*scale);
+        compare("25x25 fft 48", expected, tiled(src, kernel, 48, PATH_FFT), EPSILON*scale);
+    }
+
+    public void testFixedPoint() {
+        String [] files = new File(KERNEL_DIR).list((dir, name) -> name.endsWith(".json"));
+        java.util.Arrays.sort(files);
+        for (String file : files)
+            checkFixedPoint(file, new BaseKernel(KERNEL_DIR + "/" + file));
+        checkFixedPoint("even 4x4", evenKernel());
+        // samples round-trip through the float accessors
+        ByteRaster raster = new ByteRaster(1, 256, 1);
+        for (int x = 0; x < 256; ++x)
+            raster.setPixelComponent(x/255.0f, x, 0, 0);
+        for (int x = 0; x < 256; ++x)
+            if (raster.getSample(x, 0, 0) != x) {
+                System.out.println("FAIL ByteRaster sample " + x + " does not round-trip");
+                ++failures;
+                break;
+            }
+    }
+
+    /**
+     * Check the 8-bit fixed-point path against the float reference.
+     * @param file The kernel, for messages
+     * @param kernel The kernel
+     */
+    void checkFixedPoint(String file, BaseKernel kernel) {
+        ByteRaster src = new ByteRaster(3, WIDTH, HEIGHT);
+        Random random = new Random(4003);
+        for (int i = 0; i < src.getBytes().length; ++i)
+            src.getBytes()[i] = (byte)random.nextInt(256);
+        // the float reference, saturated like the 8-bit output
+        BadRaster expected = reference(src, kernel);
+        for (int x = 0; x < WIDTH; ++x)
+            for (int y = 0; y < HEIGHT; ++y)
+                for (int b = 0; b < 3; ++b)
+                    expected.setPixelComponent(ByteRaster.toSample(expected.getPixelComponent(x,y,b))/255.0f, x, y, b);
+        ByteRaster dst = new ByteRaster(3, WIDTH, HEIGHT);
+        KScratch scratch = new KScratch();
+        for (int x = 0; x < WIDTH; x += 8)
+            for (int y = 0; y < HEIGHT; y += 8)
+                KOps.convolveRegionFixed(src, dst, x, y, Math.min(8, WIDTH - x), Math.min(8, HEIGHT - y), kernel, scratch);
+        // rounding to the nearest sample, plus the tap rounding
+        compare(file + " fixed point", expected, dst, (1.0f + EPSILON)/255.0f);
+    }
+
+    /* Main method */
+    public static void main(String[] args) throws Exception {
+        ConvolutionTest test = new ConvolutionTest();
+        test.testSeparabilityAnalysis();
+        test.testKernels();
+        test.testFFTLargeKernel();
+        test.testRectangleAnalysis();
+        test.testKernelField();
+        test.testKernelChain();
+        test.testTemporal();
+        test.testKernelBank();
+        test.testFixedPoint();
+        System.out.println(test.failures == 0 ? "All convolution tests passed." : test.failures + " failure(s).");
+        if (test.failures != 0)
+            System.exit(1);
+    }
+}
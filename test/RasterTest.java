@@ -0,0 +1,257 @@
+/*
+ * RasterTest.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+import java.awt.image.*;
+import java.io.*;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+/**
+ * A test for the raster storage classes: memory-mapped raw rasters must
+ * round-trip their samples through the file and convolve exactly like an
+ * in-heap raster, streaming an image in strips must give the same
+ * image as filtering it whole, and reading a PNG row by row must give the
+ * samples of loading it whole, reading the file once. Run from the src
+ * directory.
+ */
+public class RasterTest {
+    private int failures = 0;
+
+    /**
+     * Record a failure.
+     * @param message What went wrong
+     */
+    void fail(String message) {
+        System.out.println("FAIL " + message);
+        ++failures;
+    }
+
+    public void testMappedRoundTrip() throws Exception {
+        Random random = new Random(4003);
+        BadRaster heap = new BadRaster(3, 53, 41, BadRaster.LAYOUT_INTERLEAVED);
+        for (int y = 0; y < heap.getHeight(); ++y)
+            for (int x = 0; x < heap.getWidth(); ++x)
+                for (int b = 0; b < 3; ++b)
+                    heap.setPixelComponent(random.nextFloat(), x, y, b);
+        for (int type = MappedRaster.SAMPLE_FLOAT; type <= MappedRaster.SAMPLE_BYTE; ++type) {
+            File file = File.createTempFile("rastertest", MappedRaster.SUFFIX);
+            file.deleteOnExit();
+            MappedRaster raw = MappedRaster.create(file, 3, heap.getWidth(), heap.getHeight(), type);
+            MappedRaster.copy(heap, raw);
+            raw.force();
+            MappedRaster reopened = MappedRaster.open(file, false);
+            float tolerance = (type == MappedRaster.SAMPLE_FLOAT) ? 0.0f : 0.5f/255.0f + 1e-6f;
+            float worst = 0.0f;
+            for (int y = 0; y < heap.getHeight(); ++y)
+                for (int x = 0; x < heap.getWidth(); ++x)
+                    for (int b = 0; b < 3; ++b)
+                        worst = Math.max(worst, Math.abs(heap.getPixelComponent(x,y,b) - reopened.getPixelComponent(x,y,b)));
+            if (reopened.getBands() != 3 || reopened.getWidth() != heap.getWidth() || reopened.getHeight() != heap.getHeight())
+                fail("sample type " + type + ": reopened raster has the wrong dimensions");
+            if (worst > tolerance)
+                fail("sample type " + type + ": round trip error " + worst);
+        }
+    }
+
+    public void testMappedConvolution() throws Exception {
+        Random random = new Random(4003);
+        BadRaster heap = new BadRaster(3, 70, 45, BadRaster.LAYOUT_INTERLEAVED);
+        for (int y = 0; y < heap.getHeight(); ++y)
+            for (int x = 0; x < heap.getWidth(); ++x)
+                for (int b = 0; b < 3; ++b)
+                    heap.setPixelComponent(random.nextFloat(), x, y, b);
+        File srcFile = File.createTempFile("rastertest", MappedRaster.SUFFIX);
+        File dstFile = File.createTempFile("rastertest", MappedRaster.SUFFIX);
+        srcFile.deleteOnExit();
+        dstFile.deleteOnExit();
+        MappedRaster src = MappedRaster.create(srcFile, 3, heap.getWidth(), heap.getHeight(), MappedRaster.SAMPLE_FLOAT);
+        MappedRaster.copy(heap, src);
+        MappedRaster dst = MappedRaster.create(dstFile, 3, heap.getWidth(), heap.getHeight(), MappedRaster.SAMPLE_FLOAT);
+        BadRaster expected = new BadRaster(3, heap.getWidth(), heap.getHeight(), BadRaster.LAYOUT_INTERLEAVED);
+        BaseKernel kernel = new BaseKernel("../test/kernels/diamondblur_11x11.json");
+        KScratch scratch = new KScratch();
+        KOps.convolveRegion(heap, expected, 0, 0, heap.getWidth(), heap.getHeight(), kernel, scratch);
+        for (int y = 0; y < heap.getHeight(); y += 16)
+            for (int x = 0; x < heap.getWidth(); x += 16)
+                KOps.convolveRegion(src, dst, x, y, Math.min(16, heap.getWidth() - x),
+                                    Math.min(16, heap.getHeight() - y), kernel, scratch);
+        for (int y = 0; y < heap.getHeight(); ++y)
+            for (int x = 0; x < heap.getWidth(); ++x)
+                for (int b = 0; b < 3; ++b)
+                    if (expected.getPixelComponent(x,y,b) != dst.getPixelComponent(x,y,b)) {
+                        fail("mapped convolution differs at (" + x + "," + y + ")");
+                        return;
+                    }
+    }
+
+    public void testStreaming() throws Exception {
+        Random random = new Random(4003);
+        for (int bands = 3; bands <= 4; ++bands) {
+            BadRaster heap = new BadRaster(bands, 77, 61, BadRaster.LAYOUT_INTERLEAVED);
+            for (int y = 0; y < heap.getHeight(); ++y)
+                for (int x = 0; x < heap.getWidth(); ++x)
+                    for (int b = 0; b < bands; ++b)
+                        heap.setPixelComponent(random.nextInt(256)/255.0f, x, y, b);
+            File input = File.createTempFile("rastertest", ".png");
+            File output = File.createTempFile("rastertest", ".png");
+            input.deleteOnExit();
+            output.deleteOnExit();
+            heap.writeToFile(input);
+            BaseKernel kernel = new BaseKernel("../test/kernels/diamondblur_11x11.json");
+            KScheduler scheduler = new KScheduler(KScheduler.MODE_FORKJOIN, 2);
+            BadRaster expected = new BadRaster(bands, heap.getWidth(), heap.getHeight(), BadRaster.LAYOUT_INTERLEAVED);
+            scheduler.run(KTiler.tile(heap, expected, kernel, 8, 2, true));
+            KStream stream = new KStream(scheduler, kernel, 8, true);
+            stream.setStripHeight(12);
+            stream.run(input, output);
+            scheduler.shutdown();
+            BadRaster streamed = new BadRaster(BadRaster.LAYOUT_INTERLEAVED);
+            streamed.loadFromFile(output);
+            if (streamed.getBands() != bands || streamed.getWidth() != heap.getWidth() || streamed.getHeight() != heap.getHeight()) {
+                fail(bands + " bands: streamed image has the wrong dimensions");
+                continue;
+            }
+            for (int y = 0; y < heap.getHeight(); ++y)
+                for (int x = 0; x < heap.getWidth(); ++x)
+                    for (int b = 0; b < bands; ++b)
+                        if (streamed.getSample(x,y,b) != expected.getSample(x,y,b)) {
+                            fail(bands + " bands: streamed output differs at (" + x + "," + y + ")");
+                            x = heap.getWidth();
+                            y = heap.getHeight();
+                            break;
+                        }
+        }
+    }
+
+    public void testRowReader() throws Exception {
+        Random random = new Random(4003);
+        // every PNG flavour ImageIO writes, read in strips, against loadFromFile
+        byte [] levels = new byte[16];
+        for (int i = 0; i < levels.length; ++i)
+            levels[i] = (byte)(17*i);
+        IndexColorModel translucent = new IndexColorModel(4, 16, levels, levels, levels, levels);
+        BufferedImage [] images = {
+            new BufferedImage(37, 29, BufferedImage.TYPE_BYTE_GRAY),
+            new BufferedImage(37, 29, BufferedImage.TYPE_USHORT_GRAY),
+            new BufferedImage(37, 29, BufferedImage.TYPE_3BYTE_BGR),
+            new BufferedImage(37, 29, BufferedImage.TYPE_4BYTE_ABGR),
+            new BufferedImage(37, 29, BufferedImage.TYPE_BYTE_INDEXED),
+            new BufferedImage(37, 29, BufferedImage.TYPE_BYTE_BINARY, translucent),
+            new BufferedImage(37, 29, BufferedImage.TYPE_BYTE_BINARY)
+        };
+        for (int i = 0; i < images.length; ++i) {
+            WritableRaster raster = images[i].getRaster();
+            for (int y = 0; y < raster.getHeight(); ++y)
+                for (int x = 0; x < raster.getWidth(); ++x)
+                    for (int b = 0; b < raster.getNumBands(); ++b)
+                        raster.setSample(x, y, b, random.nextInt(1 << raster.getSampleModel().getSampleSize(b)));
+            File file = File.createTempFile("rastertest", ".png");
+            file.deleteOnExit();
+            ImageIO.write(images[i], "png", file);
+            checkRows("image type " + images[i].getType(), file, i < images.length - 1);
+        }
+        // the row writer's gray + alpha
+        BadRaster grayAlpha = new BadRaster(2, 37, 29, BadRaster.LAYOUT_INTERLEAVED);
+        for (int y = 0; y < grayAlpha.getHeight(); ++y)
+            for (int x = 0; x < grayAlpha.getWidth(); ++x)
+                for (int b = 0; b < 2; ++b)
+                    grayAlpha.setPixelComponent(random.nextInt(256)/255.0f, x, y, b);
+        File file = File.createTempFile("rastertest", ".png");
+        file.deleteOnExit();
+        KStream.PNGRowWriter writer = new KStream.PNGRowWriter(file, 2, grayAlpha.getWidth(), grayAlpha.getHeight());
+        writer.writeRows(grayAlpha, 0, grayAlpha.getHeight());
+        writer.close();
+        checkRows("gray + alpha", file, true);
+
+        // a tall image in many strips is read in one pass over the file
+        BadRaster tall = new BadRaster(3, 48, 4000, BadRaster.LAYOUT_INTERLEAVED);
+        for (int y = 0; y < tall.getHeight(); ++y)
+            for (int x = 0; x < tall.getWidth(); ++x)
+                for (int b = 0; b < 3; ++b)
+                    tall.setPixelComponent(random.nextInt(256)/255.0f, x, y, b);
+        File tallFile = File.createTempFile("rastertest", ".png");
+        tallFile.deleteOnExit();
+        tall.writeToFile(tallFile);
+        final long [] read = new long[1];
+        InputStream counting = new FilterInputStream(new FileInputStream(tallFile)) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0)
+                    ++read[0];
+                return b;
+            }
+            @Override
+            public int read(byte [] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0)
+                    read[0] += n;
+                return n;
+            }
+        };
+        KStream.PNGRowReader reader = new KStream.PNGRowReader(counting, false);
+        for (int y0 = 0; y0 < tall.getHeight(); y0 += 16) {
+            BadRaster rows = reader.readRows(16);
+            for (int x = 0; x < tall.getWidth(); ++x)
+                if (rows.getPixelComponent(x, 15, 1) != tall.getPixelComponent(x, y0 + 15, 1)) {
+                    fail("tall image row " + (y0 + 15) + " differs");
+                    y0 = tall.getHeight();
+                    break;
+                }
+        }
+        reader.close();
+        if (read[0] > tallFile.length())
+            fail("reading a " + tallFile.length() + "-byte image in strips read " + read[0] + " bytes");
+    }
+
+    /**
+     * Read an image through KStream.openRows in 8-bit and float, in strips of
+     * 7 rows, and compare it with loading it whole.
+     * @param what The image, for messages
+     * @param file The image file
+     * @param streamable Whether the file must be read by a PNGRowReader
+     */
+    void checkRows(String what, File file, boolean streamable) throws IOException {
+        for (boolean fixedPoint : new boolean[] {false, true}) {
+            BadRaster expected = fixedPoint ? new ByteRaster() : new BadRaster(BadRaster.LAYOUT_INTERLEAVED);
+            expected.loadFromFile(file);
+            KStream.RowSource source = KStream.openRows(file, fixedPoint);
+            if (streamable && !(source instanceof KStream.PNGRowReader))
+                fail(what + ": not streamed");
+            if (source.getBands() != expected.getBands() || source.getWidth() != expected.getWidth()
+                    || source.getHeight() != expected.getHeight()) {
+                fail(what + ": " + source.getBands() + " bands " + source.getWidth() + "x" + source.getHeight()
+                     + ", expected " + expected.getBands() + " bands " + expected.getWidth() + "x" + expected.getHeight());
+                source.close();
+                continue;
+            }
+            for (int y0 = 0; y0 < expected.getHeight(); y0 += 7) {
+                BadRaster rows = source.readRows(Math.min(7, expected.getHeight() - y0));
+                for (int y = 0; y < rows.getHeight(); ++y)
+                    for (int x = 0; x < expected.getWidth(); ++x)
+                        for (int b = 0; b < expected.getBands(); ++b)
+                            if (rows.getPixelComponent(x, y, b) != expected.getPixelComponent(x, y0 + y, b)) {
+                                fail(what + (fixedPoint ? " (8-bit)" : "") + ": row " + (y0 + y) + " differs at x " + x);
+                                source.close();
+                                return;
+                            }
+            }
+            source.close();
+        }
+    }
+
+    /* Main method */
+    public static void main(String[] args) throws Exception {
+        RasterTest test = new RasterTest();
+        test.testMappedRoundTrip();
+        test.testMappedConvolution();
+        test.testStreaming();
+        test.testRowReader();
+        System.out.println(test.failures == 0 ? "All raster tests passed." : test.failures + " failure(s).");
+        if (test.failures != 0)
+            System.exit(1);
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * SchedulerTest.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.google.gson.*;
+
+/**
+ * A test for KScheduler and its instrumentation: the bucket and percentile
+ * math of the KMetrics histograms, that threads recording at the same time
+ * get distinct trace tracks, that a pool scheduler run over many batches
+ * reports one worker per thread with a sane utilization, and that a failing
+ * subtask shuts a KScope (and a batch in every scheduler mode) down. Run from
+ * the src directory.
+ */
+public class SchedulerTest {
+    private int failures = 0;
+
+    /**
+     * Record a failure.
+     * @param message What went wrong
+     */
+    void fail(String message) {
+        System.out.println("FAIL " + message);
+        ++failures;
+    }
+
+    public void testHistogram() {
+        // every value lies in its bucket, and buckets are at most 1/8 wide
+        long previous = -1;
+        for (long v = 0; v < 1L << 40; v = (v < 4096) ? v + 1 : v + v/7 + 1) {
+            int bucket = KMetrics.Histogram.bucket(v);
+            long upper = KMetrics.Histogram.upperBound(bucket);
+            long lower = (bucket == 0) ? 0 : KMetrics.Histogram.upperBound(bucket - 1) + 1;
+            if (v < lower || v > upper || bucket < previous) {
+                fail("histogram value " + v + " in bucket " + bucket + " [" + lower + ", " + upper + "]");
+                return;
+            }
+            if (upper - lower + 1 > Math.max(1, lower/8)) {
+                fail("histogram bucket " + bucket + " [" + lower + ", " + upper + "] is wider than 12.5%");
+                return;
+            }
+            previous = bucket;
+        }
+        if (KMetrics.Histogram.upperBound(KMetrics.Histogram.bucket(Long.MAX_VALUE)) != Long.MAX_VALUE)
+            fail("histogram does not cover Long.MAX_VALUE");
+        // percentiles of 1..1000 are the upper bounds of their buckets
+        KMetrics.Histogram histogram = new KMetrics.Histogram();
+        if (histogram.percentile(0.5) != 0)
+            fail("empty histogram has a non-zero median");
+        for (long v = 1; v <= 1000; ++v)
+            histogram.record(v);
+        double [] qs = {0.001, 0.5, 0.9, 0.99};
+        long [] ranks = {1, 500, 900, 990};
+        for (int i = 0; i < qs.length; ++i) {
+            long p = histogram.percentile(qs[i]);
+            if (p < ranks[i] || p > ranks[i] + ranks[i]/8)
+                fail("histogram p" + qs[i]*100 + " of 1..1000 is " + p);
+        }
+        if (histogram.percentile(1.0) != 1000)
+            fail("histogram p100 is not the maximum");
+        // merging doubles every count, so the percentiles stay put
+        KMetrics.Histogram merged = new KMetrics.Histogram();
+        merged.add(histogram);
+        merged.add(histogram);
+        for (double q : qs)
+            if (merged.percentile(q) != histogram.percentile(q))
+                fail("merged histogram p" + q*100 + " moved");
+        JsonObject json = merged.toJson();
+        if (json.get("count").getAsLong() != 2000 || Math.abs(json.get("mean").getAsDouble() - 0.5005) > 1e-9)
+            fail("merged histogram summary: " + json);
+    }
+
+    public void testRecorderIds() throws Exception {
+        // threads that record their first region together get distinct tracks
+        final KTask task = new KTask(0, 0, 1, 1);
+        task.setKernel(new BaseKernel("../test/kernels/sharpen_3x3.json"));
+        task.setInputRaster(new BadRaster(3, 1, 1));
+        KMetrics.enable(true);
+        final CountDownLatch go = new CountDownLatch(1);
+        Thread [] threads = new Thread[16];
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long now = KMetrics.now();
+                    KMetrics.task(task, 0, 0, 1, 1, now, now);
+                }
+            });
+            threads[i].start();
+        }
+        go.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        KMetrics.disable();
+        File trace = File.createTempFile("trace", ".json");
+        trace.deleteOnExit();
+        KMetrics.writeTrace(trace);
+        JsonObject root;
+        try (java.io.Reader in = new java.io.FileReader(trace)) {
+            root = new JsonParser().parse(in).getAsJsonObject();
+        }
+        Set<Integer> tids = new HashSet<Integer>();
+        int tracks = 0;
+        for (JsonElement e : root.getAsJsonArray("traceEvents")) {
+            JsonObject event = e.getAsJsonObject();
+            if (event.get("ph").getAsString().equals("M")) {
+                ++tracks;
+                tids.add(event.get("tid").getAsInt());
+            }
+        }
+        if (tracks != threads.length || tids.size() != tracks)
+            fail(tracks + " trace tracks for " + threads.length + " threads, " + tids.size() + " distinct ids");
+    }
+
+    public void testPoolMetrics() throws Exception {
+        Random random = new Random(4003);
+        BadRaster src = new BadRaster(3, 160, 120, BadRaster.LAYOUT_INTERLEAVED);
+        for (int x = 0; x < src.getWidth(); ++x)
+            for (int y = 0; y < src.getHeight(); ++y)
+                for (int b = 0; b < 3; ++b)
+                    src.setPixelComponent(random.nextFloat(), x, y, b);
+        BadRaster dst = new BadRaster(3, src.getWidth(), src.getHeight(), src.getLayout());
+        BaseKernel kernel = new BaseKernel("../test/kernels/diamondblur_11x11.json");
+        KScheduler scheduler = new KScheduler(KScheduler.MODE_POOL, 2);
+        KMetrics.enable(false);
+        for (int batch = 0; batch < 20; ++batch)
+            scheduler.run(KTiler.tile(src, dst, kernel, 8, 2, false));
+        KMetrics.disable();
+        scheduler.shutdown();
+        JsonObject summary = KMetrics.summary();
+        if (summary.get("batches").getAsInt() != 20)
+            fail("pool metrics counted " + summary.get("batches") + " runs of 20");
+        if (summary.get("workers").getAsInt() > 2)
+            fail("pool metrics report " + summary.get("workers") + " workers for 2 threads");
+        double wall = summary.get("wallSeconds").getAsDouble();
+        for (JsonElement e : summary.getAsJsonArray("workerThreads")) {
+            JsonObject w = e.getAsJsonObject();
+            double utilization = w.get("utilization").getAsDouble();
+            if (utilization <= 0.0 || utilization > 1.0 + 1e-6 || w.get("idleSeconds").getAsDouble() > wall)
+                fail("pool worker " + w);
+        }
+        double imbalance = summary.get("imbalance").getAsDouble();
+        if (imbalance < 1.0 - 1e-6 || imbalance > 2.0)
+            fail("pool imbalance " + imbalance);
+    }
+
+    public void testScope() throws Exception {
+        java.util.concurrent.ExecutorService pool = KThreads.newComputePool("test-scope", 2);
+        final AtomicInteger ran = new AtomicInteger();
+        KScope scope = new KScope(pool);
+        for (int i = 0; i < 200; i++) {
+            final int index = i;
+            scope.fork(new Runnable() {
+                public void run() {
+                    if (index == 10)
+                        throw new IllegalStateException("tile " + index);
+                    ran.incrementAndGet();
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        scope.join();
+        scope.close();
+        try {
+            scope.throwIfFailed();
+            System.out.println("FAIL scope did not report the failing subtask");
+            ++failures;
+        } catch (java.util.concurrent.ExecutionException e) {
+            if (!(e.getCause() instanceof IllegalStateException)) {
+                System.out.println("FAIL scope reported the wrong failure: " + e.getCause());
+                ++failures;
+            }
+        }
+        if (!scope.isShutdown() || ran.get() >= 199) {
+            System.out.printf("FAIL scope ran %d subtasks after a failure\n", ran.get());
+            ++failures;
+        }
+        pool.shutdown();
+        // a batch with a broken task (no rasters) fails as a whole in every
+        // mode, as a CompletionException, and the pool survives it
+        for (int mode : new int[] {KScheduler.MODE_FORKJOIN, KScheduler.MODE_STRUCTURED, KScheduler.MODE_POOL}) {
+            KScheduler scheduler = new KScheduler(mode, 2);
+            for (int batch = 0; batch < 2; ++batch) {
+                java.util.List<KTask> tasks = new java.util.ArrayList<KTask>();
+                tasks.add(new KTask(0, 0, 8, 8));
+                try {
+                    scheduler.run(tasks);
+                    System.out.println("FAIL scheduler mode " + mode + " swallowed a failing task");
+                    ++failures;
+                } catch (java.util.concurrent.CompletionException e) {
+                    // expected
+                }
+            }
+            scheduler.shutdown();
+        }
+    }
+
+    /* Main method */
+    public static void main(String[] args) throws Exception {
+        SchedulerTest test = new SchedulerTest();
+        test.testHistogram();
+        test.testRecorderIds();
+        test.testPoolMetrics();
+        test.testScope();
+        System.out.println(test.failures == 0 ? "All scheduler tests passed." : test.failures + " failure(s).");
+        if (test.failures != 0)
+            System.exit(1);
+    }
+}
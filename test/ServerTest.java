@@ -0,0 +1,207 @@
+/*
+ * ServerTest.java
+ * Authors: Tyler Greene, Akira Youngblood
+ * Built for ECEN4003 Concurrent Programming
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * A test for KServer, run in process: job lines split like a shell would,
+ * two clients submitting at once both get their images, a missing input
+ * and a bad option value get error replies, stats counts the jobs, a spooled *.job file gets its
+ * *.done file, and the shutdown command and file stop the server. Run from
+ * the src directory.
+ */
+public class ServerTest {
+    /** How long to wait for the server, in milliseconds */
+    static final long TIMEOUT = 60000;
+    private int failures = 0;
+
+    /**
+     * Record a failure.
+     * @param message What went wrong
+     */
+    void fail(String message) {
+        System.out.println("FAIL " + message);
+        ++failures;
+    }
+
+    public void testSplitJob() {
+        String [][] cases = {
+            {"a.png  --output=b.png\t--block=4", "a.png", "--output=b.png", "--block=4"},
+            {"\"my image.png\" --output='out put.png'", "my image.png", "--output=out put.png"},
+            {"my\\ image.png \"a \\\"b\\\" \\\\c\" 'd\\e'", "my image.png", "a \"b\" \\c", "d\\e"},
+            {"'' x\"\"y", "", "xy"}
+        };
+        for (String [] c : cases) {
+            String [] args = KServer.splitJob(c[0]);
+            if (!Arrays.equals(args, Arrays.copyOfRange(c, 1, c.length)))
+                fail("split " + c[0] + " into " + Arrays.toString(args));
+        }
+        String [] args = {"plain", "with space", "it's", "back\\slash", "\"quoted\"", ""};
+        StringBuilder line = new StringBuilder();
+        for (String arg : args)
+            line.append(KServer.quote(arg)).append(' ');
+        if (!Arrays.equals(KServer.splitJob(line.toString()), args))
+            fail("quoted " + Arrays.toString(args) + " as " + line);
+        try {
+            KServer.splitJob("a 'b");
+            fail("an unclosed quote was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testServer() throws Exception {
+        Path dir = Files.createTempDirectory("server test");
+        Path input = dir.resolve("in put.png");
+        Files.copy(Paths.get("../test/datasets/image/pattern_128x128.png"), input);
+        final File spool = dir.resolve("spool").toFile();
+        final KServer server = new KServer(KScheduler.MODE_FORKJOIN, 2, 2);
+        Thread listener = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.listen(0);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        Thread spooler = new Thread(new Runnable() {
+            public void run() {
+                server.spool(spool);
+            }
+        });
+        listener.start();
+        spooler.start();
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (server.getPort() <= 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        final int port = server.getPort();
+
+        // two clients at once, one with a missing input and a bad block size
+        final String [] jobs = {
+            KServer.quote(input.toString()) + " --output=" + KServer.quote(dir.resolve("out 1.png").toString()),
+            KServer.quote(input.toString()) + " --output=" + KServer.quote(dir.resolve("out 2.png").toString())
+                + " --engine=direct\n" + KServer.quote(dir.resolve("missing.png").toString())
+                + " --output=" + KServer.quote(dir.resolve("out 3.png").toString())
+                + "\n" + KServer.quote(input.toString()) + " --output=" + KServer.quote(dir.resolve("out 5.png").toString())
+                + " --block=0"
+        };
+        final List<List<String>> replies = Collections.synchronizedList(new ArrayList<List<String>>());
+        Thread [] clients = new Thread[jobs.length];
+        for (int i = 0; i < clients.length; ++i) {
+            final String job = jobs[i];
+            clients[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        replies.add(exchange(port, job));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            clients[i].start();
+        }
+        for (Thread client : clients)
+            client.join(TIMEOUT);
+        int ok = 0, errors = 0;
+        for (List<String> lines : replies)
+            for (String reply : lines) {
+                if (reply.startsWith("ok"))
+                    ++ok;
+                else if (reply.startsWith("error") && (reply.contains("missing.png") || reply.contains("--block")))
+                    ++errors;
+                else
+                    fail("unexpected reply " + reply);
+            }
+        if (replies.size() != 2 || ok != 2 || errors != 2)
+            fail(replies.size() + " clients answered with " + ok + " ok and " + errors + " error replies: " + replies);
+        for (String name : new String[] {"out 1.png", "out 2.png"}) {
+            File out = dir.resolve(name).toFile();
+            if (!out.isFile()) {
+                fail("no " + name);
+                continue;
+            }
+            BadRaster image = new BadRaster(BadRaster.LAYOUT_INTERLEAVED);
+            image.loadFromFile(out);
+            if (image.getWidth() != 128 || image.getHeight() != 128)
+                fail(name + " is " + image.getWidth() + "x" + image.getHeight());
+        }
+        List<String> stats = exchange(port, "stats");
+        if (stats.isEmpty() || !stats.get(0).startsWith("jobs: 4 accepted, 0 pending (0 queued), 2 failed"))
+            fail("stats: " + stats);
+
+        // a spooled job, written under another name and renamed
+        File part = new File(spool, "a.part");
+        Files.write(part.toPath(), (KServer.quote(input.toString()) + " --output="
+                    + KServer.quote(dir.resolve("out 4.png").toString()) + "\n").getBytes(StandardCharsets.UTF_8));
+        part.renameTo(new File(spool, "a.job"));
+        File done = new File(spool, "a.done");
+        deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!done.isFile() && System.currentTimeMillis() < deadline)
+            Thread.sleep(50);
+        Thread.sleep(50); // written in one call, but let it land
+        List<String> spooled = done.isFile() ? Files.readAllLines(done.toPath(), StandardCharsets.UTF_8)
+                                             : new ArrayList<String>();
+        if (spooled.size() != 1 || !spooled.get(0).startsWith("ok") || !dir.resolve("out 4.png").toFile().isFile())
+            fail("spooled job replied " + spooled);
+
+        // shutdown ends the listener, the shutdown file the spooler
+        exchange(port, "shutdown");
+        listener.join(TIMEOUT);
+        if (listener.isAlive())
+            fail("the shutdown command did not stop the listener");
+        new File(spool, "shutdown").createNewFile();
+        spooler.join(TIMEOUT);
+        if (spooler.isAlive())
+            fail("the shutdown file did not stop the spooler");
+        server.shutdown();
+        try {
+            new Socket(InetAddress.getLoopbackAddress(), port).close();
+            fail("the server still accepts connections after shutdown");
+        } catch (IOException e) {
+            // expected
+        }
+        try (java.util.stream.Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * Send lines to the server and read its replies until it closes the
+     * connection.
+     * @param port The server's port
+     * @param text The lines to send
+     * @return The replies
+     */
+    static List<String> exchange(int port, String text) throws IOException {
+        List<String> replies = new ArrayList<String>();
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            out.write(text + "\n");
+            out.flush();
+            socket.shutdownOutput();
+            String reply;
+            while ((reply = in.readLine()) != null)
+                replies.add(reply);
+        }
+        return replies;
+    }
+
+    /* Main method */
+    public static void main(String[] args) throws Exception {
+        ServerTest test = new ServerTest();
+        test.testSplitJob();
+        test.testServer();
+        System.out.println(test.failures == 0 ? "All server tests passed." : test.failures + " failure(s).");
+        if (test.failures != 0)
+            System.exit(1);
+    }
+}
@@ -7,7 +7,10 @@
 import java.util.concurrent.atomic.*;
 
 /**
- * A test for TaskQueue
+ * A test for TaskQueue. Checks FIFO order, runs a multi-producer,
+ * multi-consumer stress test that verifies every task is popped exactly once,
+ * and compares throughput against the old locking queue (LockedTaskQueue)
+ * at 1 to 64 threads.
  */
 public class TaskQueueTest {
     private static long startTime = System.currentTimeMillis();
@@ -22,11 +25,23 @@ public class TaskQueueTest {
     private final static int COUNT = 128;
     private final static int PER_THREAD = COUNT / THREADS;
 
+    /** Stress test: tasks pushed by each producer */
+    private final static int STRESS_PER_PRODUCER = 20000;
+    /** Throughput comparison: push/pop pairs per run, split between threads */
+    private final static int THROUGHPUT_OPS = 400000;
+
     Thread[] thread = new Thread[THREADS];
     TaskQueue queue = new TaskQueue();
+    int failures = 0;
+
+    /** The push/pop operations the throughput comparison needs. */
+    interface Queue {
+        boolean push(KTask task);
+        KTask pop();
+    }
 
     public void testParallel() throws Exception {
-        System.out.println("test parallel FineDoublyLinkedList");
+        System.out.println("test parallel TaskQueue");
         for (int i = 0; i < THREADS; i++) {
             thread[i] = new TestThread(i * PER_THREAD);
         }
@@ -36,6 +51,10 @@ public class TaskQueueTest {
         for (int i = 0; i < THREADS; i++) {
             thread[i].join();
         }
+        if (!queue.isEmpty() || queue.length() != 0) {
+            System.out.println("FAIL queue not empty after parallel test");
+            ++failures;
+        }
     }
 
     class TestThread extends Thread {
@@ -45,34 +64,180 @@ public class TaskQueueTest {
         }
         public void run() {
             int i = 0;
-            while (i < PER_THREAD) { // if push returns true, then push the next value, but if not keep trying to push that value
+            while (i < PER_THREAD) { // push always succeeds, but keep the retry loop honest
                 int ii = threadLocalValue + i;
                 KTask task = new KTask(ii,ii,ii,ii);
-                if (queue.push(task)) { // basically check if validate worked, if not keep trying
+                if (queue.push(task)) {
                     i++;
                 }
             }
             i = 0;
-            while (i < PER_THREAD) { // same thing with pop, if pop doesn't work, keep trying
+            while (i < PER_THREAD) { // every thread pushed before popping, so pop never sees an empty queue
                 KTask result = queue.pop();
-                if (result.getWidth() != -1) { // if validate returns false you get a -1
+                if (result != null) {
                     i++;
                 }
             }
         }
     }
 
+    public void testFifo() {
+        System.out.println("test FIFO order");
+        TaskQueue fifo = new TaskQueue();
+        if (fifo.pop() != null || !fifo.isEmpty()) {
+            System.out.println("FAIL new queue not empty");
+            ++failures;
+        }
+        for (int i = 0; i < COUNT; i++)
+            fifo.push(new KTask(i,0,1,1));
+        if (fifo.length() != COUNT) {
+            System.out.println("FAIL length " + fifo.length() + " != " + COUNT);
+            ++failures;
+        }
+        for (int i = 0; i < COUNT; i++) {
+            KTask task = fifo.pop();
+            if (task == null || task.getOriginX() != i) {
+                System.out.println("FAIL expected task " + i + ", got " + (task == null ? "null" : task.getOriginX()));
+                ++failures;
+                return;
+            }
+        }
+        if (fifo.pop() != null || !fifo.isEmpty()) {
+            System.out.println("FAIL drained queue not empty");
+            ++failures;
+        }
+    }
+
+    /**
+     * Producers push (producer, sequence) pairs while consumers pop
+     * concurrently. Every pair must be seen exactly once, and each consumer
+     * must see the tasks of any one producer in increasing order.
+     */
+    public void testStress() throws Exception {
+        final int producers = THREADS / 2;
+        final int consumers = THREADS / 2;
+        final int total = producers * STRESS_PER_PRODUCER;
+        System.out.printf("stress test: %d producers, %d consumers, %d tasks\n", producers, consumers, total);
+        final TaskQueue stress = new TaskQueue();
+        final AtomicIntegerArray seen = new AtomicIntegerArray(total);
+        final AtomicInteger popped = new AtomicInteger(0);
+        final AtomicInteger orderErrors = new AtomicInteger(0);
+        Thread[] threads = new Thread[producers + consumers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < STRESS_PER_PRODUCER; i++)
+                        stress.push(new KTask(producer, i, 1, 1));
+                }
+            };
+        }
+        for (int c = 0; c < consumers; c++) {
+            threads[producers + c] = new Thread() {
+                public void run() {
+                    int [] last = new int[producers];
+                    java.util.Arrays.fill(last, -1);
+                    while (popped.get() < total) {
+                        KTask task = stress.pop();
+                        if (task == null)
+                            continue;
+                        popped.incrementAndGet();
+                        int producer = task.getOriginX();
+                        int sequence = task.getOriginY();
+                        if (sequence <= last[producer])
+                            orderErrors.incrementAndGet();
+                        last[producer] = sequence;
+                        seen.incrementAndGet(producer * STRESS_PER_PRODUCER + sequence);
+                    }
+                }
+            };
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        int wrong = 0;
+        for (int i = 0; i < total; i++)
+            if (seen.get(i) != 1)
+                wrong++;
+        if (wrong != 0 || orderErrors.get() != 0 || !stress.isEmpty()) {
+            System.out.printf("FAIL stress: %d tasks not seen exactly once, %d out of order, empty: %b\n",
+                              wrong, orderErrors.get(), stress.isEmpty());
+            ++failures;
+        }
+    }
+
+    /**
+     * Each thread alternates push and pop. Returns pairs per millisecond.
+     * @param q The queue to drive
+     * @param threads The number of threads
+     * @return The throughput in push/pop pairs per millisecond
+     */
+    static double throughput(final Queue q, int threads) throws Exception {
+        final int perThread = THROUGHPUT_OPS / threads;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread() {
+                public void run() {
+                    KTask task = new KTask(0,0,1,1);
+                    for (int i = 0; i < perThread; i++) {
+                        while (!q.push(task)) {}
+                        // the locked queue's pop can fail spuriously; give up
+                        // after a while so a lost task cannot hang the run
+                        for (int tries = 0; q.pop() == null && tries < 1000; tries++) {}
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread t : workers)
+            t.start();
+        for (Thread t : workers)
+            t.join();
+        return (perThread * (double)threads) / ((System.nanoTime() - start) / 1e6);
+    }
+
+    public void compareThroughput() throws Exception {
+        System.out.println("throughput (push/pop pairs per ms):");
+        System.out.println("threads   lock-free      locked");
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            final TaskQueue lockFree = new TaskQueue();
+            final LockedTaskQueue locked = new LockedTaskQueue();
+            Queue a = new Queue() {
+                public boolean push(KTask task) { return lockFree.push(task); }
+                public KTask pop() { return lockFree.pop(); }
+            };
+            Queue b = new Queue() {
+                public boolean push(KTask task) { return locked.push(task); }
+                public KTask pop() { return locked.pop(); }
+            };
+            // warm up both once at this thread count, then measure
+            throughput(a, threads);
+            throughput(b, threads);
+            System.out.printf("%7d %11.0f %11.0f\n", threads, throughput(a, threads), throughput(b, threads));
+        }
+    }
+
     /* Main method */
     public static void main(String[] args) {
         TaskQueueTest queueTest = new TaskQueueTest();
         try {
+            queueTest.testFifo();
             queueTest.testParallel();
             queueTest.queue.print(); // print the queue
+            queueTest.testStress();
+            if (args.length == 0 || !args[0].equals("--no-throughput"))
+                queueTest.compareThroughput();
         } catch (Exception e) {
+            e.printStackTrace();
+            queueTest.failures++;
         }
         long endTime = System.currentTimeMillis();
         /* Print the total execution time of the program */
         System.out.println("It took " + (endTime - startTime) + " milliseconds");
+        System.out.println(queueTest.failures == 0 ? "All queue tests passed." : queueTest.failures + " failure(s).");
+        if (queueTest.failures != 0)
+            System.exit(1);
     }
 
 }